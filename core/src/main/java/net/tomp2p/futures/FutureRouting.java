@@ -15,14 +15,19 @@
  */
 package net.tomp2p.futures;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import net.tomp2p.peers.Number256;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Pair;
 
 /**
  * The routing future keeps track of the routing process. This means that the
@@ -45,6 +50,8 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
 
     private SortedSet<PeerAddress> routingPath;
 
+    private Map<PeerAddress, Map<Number256, Pair<Number256, Data>>> piggyBackedValues = Collections.emptyMap();
+
     public FutureRouting() {
     	self(this);
     }
@@ -177,6 +184,31 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
         }
     }
 
+    /**
+     * Sets the values that peers piggy-backed on their neighbor replies. Needs to be set before the routing finishes.
+     * 
+     * @param piggyBackedValues
+     *            The version keys and values by peer and content key
+     */
+    public void piggyBackedValues(
+            final Map<PeerAddress, Map<Number256, Pair<Number256, Data>>> piggyBackedValues) {
+        synchronized (lock) {
+            this.piggyBackedValues = piggyBackedValues;
+        }
+    }
+
+    /**
+     * Returns the small values the peers sent along with their neighbors during the routing. If a peer stores all
+     * values we were looking for, no further request to that peer is needed.
+     * 
+     * @return The version keys and values by peer and content key, empty if no values were piggy-backed
+     */
+    public Map<PeerAddress, Map<Number256, Pair<Number256, Data>>> piggyBackedValues() {
+        synchronized (lock) {
+            return piggyBackedValues;
+        }
+    }
+
     @Override
     public String failedReason() {
         synchronized (lock) {
@@ -17,18 +17,18 @@ package net.tomp2p.p2p;
 
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
-import net.tomp2p.futures.FutureForkJoin;
-import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
@@ -37,6 +37,7 @@ import net.tomp2p.peers.*;
 import net.tomp2p.peers.Number256;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Pair;
 
 import org.slf4j.Logger;
@@ -59,6 +60,8 @@ public class DistributedRouting {
 
     private final Random rnd;
 
+    private final RoutingCache routingCache;
+
     /**
      * The routing process involves multiple RPCs, mostly UDP based.
      * 
@@ -68,8 +71,23 @@ public class DistributedRouting {
      *            The neighbor RPC that will be issues
      */
     public DistributedRouting(final PeerBean peerBean, final NeighborRPC neighbors) {
+        this(peerBean, neighbors, null);
+    }
+
+    /**
+     * The routing process involves multiple RPCs, mostly UDP based.
+     * 
+     * @param peerBean
+     *            The peer bean
+     * @param neighbors
+     *            The neighbor RPC that will be issues
+     * @param routingCache
+     *            The cache for routing results of hot keys, or null to always route
+     */
+    public DistributedRouting(final PeerBean peerBean, final NeighborRPC neighbors, final RoutingCache routingCache) {
         this.neighbors = neighbors;
         this.peerBean = peerBean;
+        this.routingCache = routingCache;
         // stable random number. No need to be truly random
         rnd = new Random(peerBean.serverPeerAddress().peerId().hashCode());
     }
@@ -135,10 +153,52 @@ public class DistributedRouting {
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     public FutureRouting route(final RoutingBuilder routingBuilder, final Type type) {
+        final boolean cacheable = isCacheable(routingBuilder);
+        final Number256 locationKey = routingBuilder.locationKey();
+        final Number256 domainKey = routingBuilder.domainKey();
+        if (cacheable) {
+            final FutureRouting cached = routingCache.route(locationKey, domainKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
         // for bad distribution, use large NO_NEW_INFORMATION
         Collection<PeerStatistic> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
                 routingBuilder.parallel() * 2);
-        return routing(startPeers, routingBuilder, type);
+        final FutureRouting futureRouting = routing(startPeers, routingBuilder, type);
+        if (cacheable) {
+            futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                @Override
+                public void operationComplete(final FutureRouting future) throws Exception {
+                    // direct hits depend on the content, only cache where the peers are
+                    if (future.isSuccess() && future.directHitsDigest().isEmpty()
+                            && future.potentialHits().size() > 1) {
+                        routingCache.put(locationKey, domainKey, future.potentialHits());
+                    }
+                }
+            });
+        }
+        return futureRouting;
+    }
+
+    /**
+     * Only plain lookups for a location key are cached. Bootstrapping and lookups with filters need to route.
+     */
+    private boolean isCacheable(final RoutingBuilder routingBuilder) {
+        return routingCache != null && routingBuilder.isRoutingCache() && !routingBuilder.isBootstrap()
+                && !routingBuilder.isForceRoutingOnlyToSelf() && routingBuilder.locationKey() != null
+                && isEmpty(routingBuilder.peerMapFilters()) && isEmpty(routingBuilder.postRoutingFilters());
+    }
+
+    private static boolean isEmpty(final Collection<?> collection) {
+        return collection == null || collection.isEmpty();
+    }
+
+    /**
+     * @return The cache for routing results, or null if disabled
+     */
+    public RoutingCache routingCache() {
+        return routingCache;
     }
 
     /**
@@ -219,6 +279,7 @@ public class DistributedRouting {
         routingMechanism.potentialHits(potentialHits);
         routingMechanism.directHits(directHits);
         routingMechanism.alreadyAsked(alreadyAsked);
+        routingMechanism.closestResponded(new TreeSet<PeerAddress>(addressComparator));
         
         //evaluate direct hits early
         if(directHits.size() >= routingMechanism.getMaxDirectHits()) {
@@ -243,8 +304,10 @@ public class DistributedRouting {
     }
 
     /**
-     * Looks for a route to the given locationKey, performing recursively. Since this method is not called concurrently,
-     * but sequentially, no synchronization is necessary.
+     * Looks for a route to the given locationKey. This method is called whenever a request finishes or a speculative
+     * timer fires and fills up the free slots, so requests are pipelined and we never wait for a whole round. The
+     * routing mechanism is synchronized, as this method can be called concurrently from the timer and the reply
+     * handlers.
      *
      * @param routingBuilder
      * @param routingMechanism
@@ -254,63 +317,58 @@ public class DistributedRouting {
             final Type type) {
 
         final boolean randomSearch = routingBuilder.locationKey() == null;
-        int active = 0;
-        for (int i = 0; i < routingMechanism.parallel(); i++) {
-            if (routingMechanism.futureResponse(i) == null && !routingMechanism.isStopCreatingNewFutures()) {
-                final PeerAddress next;
-                if (randomSearch) {
-                    next = routingMechanism.pollRandomInQueueToAsk(rnd);
-                } else {
-                    next = routingMechanism.pollFirstInQueueToAsk();
-                }
-                if (next != null) {
-                    routingMechanism.addToAlreadyAsked(next);
-                    active++;
-                    // If we search for a random peer, then the peer should
-                    // return the address farest away.
-                    final Number256 locationKey2 = randomSearch ? next.peerId().xor(Number256.MAX_VALUE)
-                            : routingBuilder.locationKey();
-                    routingBuilder.locationKey(locationKey2);
-                     
-                    
-                    //routingMechanism.futureResponse(i, neighbors.closeNeighbors(next,
-                    //        routingBuilder.searchValues(), type, channelCreator, routingBuilder));
-                    LOG.debug("get close neighbors: {} on {}", next, i);
-                }
-            } else if (routingMechanism.futureResponse(i) != null) {
-                LOG.debug("Activity on {}.", i);
-                active++;
-            }
+        PeerAddress next;
+        while ((next = routingMechanism.nextToAsk(randomSearch, rnd)) != null) {
+            // If we search for a random peer, then the peer should
+            // return the address farest away.
+            final Number256 locationKey2 = randomSearch ? next.peerId().xor(Number256.MAX_VALUE)
+                    : routingBuilder.locationKey();
+            routingBuilder.locationKey(locationKey2);
+            final FutureDone<Message> futureResponse = neighbors.closeNeighbors(next,
+                    routingBuilder.searchValues(), randomSearch ? 0 : routingBuilder.piggyBackSize(), type,
+                    routingBuilder).element0();
+            routingMechanism.inFlight(next, futureResponse);
+            LOG.debug("get close neighbors: {}, {} in flight", next, routingMechanism.inFlightSize());
+            addListener(routingBuilder, routingMechanism, type, next, futureResponse);
+            scheduleSpeculative(routingBuilder, routingMechanism, type, next);
         }
-        if (active == 0) {
+        if (routingMechanism.inFlightSize() == 0) {
             LOG.debug("No activity, closing.");
 
             routingMechanism.neighbors(routingBuilder);
             routingMechanism.cancel();
-            return;
         }
-        final boolean last = active == 1;
-        /*final FutureForkJoin<FutureResponse> fp = new FutureForkJoin<FutureResponse>(1, false,
-                routingMechanism.futureResponses());
-        fp.addListener(new BaseFutureAdapter<FutureForkJoin<FutureResponse>>() {
+    }
+
+    private void addListener(final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism,
+            final Type type, final PeerAddress remotePeer, final FutureDone<Message> futureResponse) {
+        futureResponse.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
             @Override
-            public void operationComplete(final FutureForkJoin<FutureResponse> future) throws Exception {
+            public void operationComplete(final FutureDone<Message> future) throws Exception {
+                final PeerStatistic peerStatistic = peerMap().getPeerStatistic(remotePeer);
+                final long expectedRTT = peerStatistic == null ? -1 : peerStatistic.getMeanRTT();
+                final boolean success = future.isSuccess() && future.object() != null;
+                final long rtt = routingMechanism.responded(remotePeer, success, expectedRTT);
                 final boolean finished;
-                if (future.isSuccess()) {
-                    Message lastResponse = future.last().responseMessage();
-                    PeerAddress remotePeer = lastResponse.sender();
-                    routingMechanism.addPotentialHits(remotePeer);
-                    Collection<PeerAddress> newNeighbors = lastResponse.neighborsSet(0).neighbors();
+                if (success) {
+                    Message lastResponse = future.object();
+                    PeerAddress sender = lastResponse.sender();
+                    if (rtt > 0) {
+                        peerBean.notifyPeerFound(sender, null, new RTT(rtt, true));
+                    }
+                    routingMechanism.addPotentialHits(sender);
+                    Collection<PeerAddress> newNeighbors = NeighborRPC.decodeNeighbors(lastResponse);
                     Collection<PeerStatistic> newNeighborStatistics = peerMap().getPeerStatistics(newNeighbors);
-
-                    Integer resultSize = lastResponse.intAt(0);
-                    Number256 keyDigest = lastResponse.key(0);
-                    Number256 contentDigest = lastResponse.key(1);
-                    DigestInfo digestBean = new DigestInfo(keyDigest, contentDigest, resultSize == null ? 0
-                            : resultSize);
+                    final Map<Number256, Pair<Number256, Data>> values = NeighborRPC.decodeValues(lastResponse);
+                    // piggy-backed values make this peer a direct hit
+                    DigestInfo digestBean = new DigestInfo(values.size());
+                    if (!values.isEmpty()) {
+                        routingMechanism.addPiggyBackedValues(sender, values);
+                    }
                     LOG.debug("Peer ({}) {} reported {} in message {}.", (digestBean.size() > 0 ? "direct" : "none"),
-                            remotePeer, newNeighbors, lastResponse);
-                    finished = routingMechanism.evaluateSuccess(remotePeer, digestBean, newNeighborStatistics, last, routingBuilder.locationKey());
+                            sender, newNeighbors, lastResponse);
+                    finished = routingMechanism.evaluateSuccess(sender, digestBean, newNeighborStatistics,
+                            routingBuilder.locationKey());
                     LOG.debug("Routing finished {} / {}.", finished,
                             routingMechanism.isStopCreatingNewFutures());
                 } else {
@@ -318,7 +376,9 @@ public class DistributedRouting {
                     // be busy
                     LOG.debug("Routing error {}.", future.failedReason());
                     finished = routingMechanism.evaluateFailed();
-                    routingMechanism.stopCreatingNewFutures(finished);
+                    if (finished) {
+                        routingMechanism.stopCreatingNewFutures(true);
+                    }
                 }
                 if (finished) {
                     LOG.debug("Routing finished. Direct hits: {}. Potential hits: {}.",
@@ -332,7 +392,27 @@ public class DistributedRouting {
                     routingRec(routingBuilder, routingMechanism, type);
                 }
             }
-        });*/
+        });
+    }
+
+    /**
+     * If the request takes longer than expected, we issue a request to the next peer in the queue without waiting
+     * for the slow one. The slow request is not canceled, if it replies, its information is used as well.
+     */
+    private void scheduleSpeculative(final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism,
+            final Type type, final PeerAddress remotePeer) {
+        final long delay = routingMechanism.speculativeDelay(peerMap().getPeerStatistic(remotePeer));
+        if (delay <= 0) {
+            return;
+        }
+        neighbors.connectionBean().timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (routingMechanism.speculate(remotePeer)) {
+                    routingRec(routingBuilder, routingMechanism, type);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     public PeerMap peerMap() {
@@ -1,6 +1,7 @@
 package net.tomp2p.p2p;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,16 +20,30 @@ import net.tomp2p.peers.PeerStatistic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Checks periodically if the peers in the maps are still online. On each tick, a batch of peers that are due is pinged
+ * concurrently. The number of pings is limited by a probe budget per second and by the number of pings in flight.
+ * Peers that we have seen recently, e.g. because they sent us a message, are not due and thus not pinged.
+ * 
+ * @author Thomas Bocek
+ */
 public class MaintenanceTask implements Runnable {
     
     private static final Logger LOG = LoggerFactory.getLogger(MaintenanceTask.class);
-    private static final int MAX_PING = 5;
-    private static final AtomicInteger COUNTER = new AtomicInteger(0);
+    public static final int DEFAULT_MAX_PARALLEL = 5;
+    public static final int DEFAULT_PINGS_PER_SECOND = 20;
 
     private Peer peer;
 
     private int intervalMillis = 1000;
 
+    private int maxParallel = DEFAULT_MAX_PARALLEL;
+
+    private int pingsPerSecond = DEFAULT_PINGS_PER_SECOND;
+
+    // the unused probe budget, refilled on every tick up to pingsPerSecond
+    private double budget = 0;
+
     private List<Maintainable> maintainables = new ArrayList<Maintainable>();
 
     private Map<BaseFuture, PeerAddress> runningFutures = new HashMap<BaseFuture, PeerAddress>();
@@ -47,34 +62,47 @@ public class MaintenanceTask implements Runnable {
     @Override
     public void run() {
         synchronized (lock) {
-            //make sure we only have 5 pings in parallel
-            if (shutdown || COUNTER.get() > MAX_PING) {
+            if (shutdown) {
                 return;
             }
+            budget = Math.min(budget + (pingsPerSecond * intervalMillis / 1000d), Math.max(1, pingsPerSecond));
             for (Maintainable maintainable : maintainables) {
-                PeerStatistic peerStatistic = maintainable.nextForMaintenance(runningFutures.values());
-                if(peerStatistic == null) {
-                    continue;
+                final int available = Math.min((int) budget, maxParallel - runningFutures.size());
+                if (available <= 0) {
+                    return;
+                }
+                final Collection<PeerStatistic> peerStatistics = maintainable.nextForMaintenance(
+                        new ArrayList<PeerAddress>(runningFutures.values()), available);
+                for (PeerStatistic peerStatistic : peerStatistics) {
+                    ping(peerStatistic.peerAddress());
                 }
-                BaseFuture future = peer.ping().peerAddress(peerStatistic.peerAddress()).start();
-                LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), peerStatistic.peerAddress());
-            
-                peer.notifyAutomaticFutures(future);
-                runningFutures.put(future, peerStatistic.peerAddress());
-                COUNTER.incrementAndGet();
-                future.addListener(new BaseFutureAdapter<BaseFuture>() {
-                    @Override
-                    public void operationComplete(BaseFuture future) throws Exception {
-                    	synchronized (lock) {
-                            runningFutures.remove(future);
-                            COUNTER.decrementAndGet();
-                        }
-                    }
-                });
             }
         }
     }
 
+    /**
+     * Sends a maintenance ping. The reply updates the peer map, a failure removes the peer. Needs to be called while
+     * holding the lock.
+     * 
+     * @param peerAddress
+     *            The peer to check
+     */
+    private void ping(final PeerAddress peerAddress) {
+        final BaseFuture future = peer.ping().peerAddress(peerAddress).start();
+        LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), peerAddress);
+        budget--;
+        peer.notifyAutomaticFutures(future);
+        runningFutures.put(future, peerAddress);
+        future.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                synchronized (lock) {
+                    runningFutures.remove(future);
+                }
+            }
+        });
+    }
+
     public FutureDone<Void> shutdown() {
     	if(scheduledFuture!=null) {
     		scheduledFuture.cancel(false);
@@ -112,6 +140,41 @@ public class MaintenanceTask implements Runnable {
         return this;
     }
     
+    /**
+     * @return The maximum number of maintenance pings in flight
+     */
+    public int maxParallel() {
+        return maxParallel;
+    }
+
+    /**
+     * @param maxParallel
+     *            The maximum number of maintenance pings in flight
+     * @return This class
+     */
+    public MaintenanceTask maxParallel(int maxParallel) {
+        this.maxParallel = maxParallel;
+        return this;
+    }
+
+    /**
+     * @return The probe budget, the maximum number of maintenance pings per second
+     */
+    public int pingsPerSecond() {
+        return pingsPerSecond;
+    }
+
+    /**
+     * @param pingsPerSecond
+     *            The probe budget, the maximum number of maintenance pings per second. Unused budget is carried over
+     *            for at most one second
+     * @return This class
+     */
+    public MaintenanceTask pingsPerSecond(int pingsPerSecond) {
+        this.pingsPerSecond = pingsPerSecond;
+        return this;
+    }
+
     public void addMaintainable(Maintainable maintainable) {
         maintainables.add(maintainable);
     }
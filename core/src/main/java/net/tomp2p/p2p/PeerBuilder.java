@@ -86,6 +86,7 @@ public class PeerBuilder {
 	private Random random = null;
 	private List<PeerInit> toInitialize = new ArrayList<PeerInit>(1);
 	private SendBehavior sendBehavior;
+	private int routingCacheTTL = RoutingCache.DEFAULT_TIME_TO_LIVE;
 
 	// enable / disable RPC/P2P/other
 	@Getter @Setter
@@ -174,8 +175,9 @@ public class PeerBuilder {
 		peerBean.keyPair(keyPair);
 
 		if (bloomfilterFactory == null) {
-			peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
+			bloomfilterFactory = new DefaultBloomfilterFactory();
 		}
+		peerBean.bloomfilterFactory(bloomfilterFactory);
 
 		if (broadcastHandler == null) {
 			broadcastHandler = new StructuredBroadcastHandler();
@@ -206,7 +208,14 @@ public class PeerBuilder {
 		}
 		
 		if (isEnableRouting() && isEnableNeighborRPC()) {
-			DistributedRouting routing = new DistributedRouting(peerBean, peer.neighborRPC());
+			final RoutingCache routingCache;
+			if (routingCacheTTL > 0) {
+				routingCache = new RoutingCache(routingCacheTTL, RoutingCache.DEFAULT_MAX_ENTRIES);
+				peerMap.addPeerMapChangeListener(routingCache);
+			} else {
+				routingCache = null;
+			}
+			DistributedRouting routing = new DistributedRouting(peerBean, peer.neighborRPC(), routingCache);
 			peer.distributedRouting(routing);
 		}
 
@@ -449,4 +458,24 @@ public class PeerBuilder {
 	public SendBehavior sendBehavior() {
 		return sendBehavior;
 	}
+
+	/**
+	 * @return The time in seconds a routing result is cached, 0 if the routing cache is disabled
+	 */
+	public int routingCacheTTL() {
+		return routingCacheTTL;
+	}
+
+	/**
+	 * Set the time a routing result for a location and domain key is cached. Repeated DHT operations on the same key
+	 * within this time skip the routing process. Set to 0 to disable the routing cache.
+	 * 
+	 * @param routingCacheTTL
+	 *            The time-to-live in seconds
+	 * @return This class
+	 */
+	public PeerBuilder routingCacheTTL(int routingCacheTTL) {
+		this.routingCacheTTL = routingCacheTTL;
+		return this;
+	}
 }
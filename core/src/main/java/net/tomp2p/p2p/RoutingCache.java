@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.peers.Number256;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the result of a routing process (the closest peers for a location and domain key) for a short time. Repeated
+ * DHT operations on the same key can use the cached peers and skip the iterative lookup. An entry is removed if one of
+ * its peers is removed from the peer map or if a peer closer than the cached ones is verified.
+ *
+ * @author Thomas Bocek
+ */
+public class RoutingCache implements PeerMapChangeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingCache.class);
+
+    /**
+     * The default time-to-live of a routing result in seconds.
+     */
+    public static final int DEFAULT_TIME_TO_LIVE = 5;
+
+    /**
+     * The default number of location/domain keys that are cached.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final ConcurrentCacheMap<Pair<Number256, Number256>, NavigableSet<PeerAddress>> cache;
+
+    /**
+     * Creates a routing cache with the default time-to-live and size.
+     */
+    public RoutingCache() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param timeToLiveSeconds
+     *            The time a routing result is valid
+     * @param maxEntries
+     *            The maximum number of cached location/domain keys
+     */
+    public RoutingCache(final int timeToLiveSeconds, final int maxEntries) {
+        // do not refresh the timeout, a hot key should still be routed from time to time
+        this.cache = new ConcurrentCacheMap<Pair<Number256, Number256>, NavigableSet<PeerAddress>>(
+                timeToLiveSeconds, maxEntries, false);
+    }
+
+    /**
+     * Stores the potential hits of a successful routing process.
+     *
+     * @param locationKey
+     *            The location key of the routing
+     * @param domainKey
+     *            The domain key of the routing, may be null
+     * @param potentialHits
+     *            The closest peers found during the routing
+     */
+    public void put(final Number256 locationKey, final Number256 domainKey,
+            final NavigableSet<PeerAddress> potentialHits) {
+        final NavigableSet<PeerAddress> copy = new TreeSet<PeerAddress>(potentialHits);
+        cache.put(key(locationKey, domainKey), Collections.unmodifiableNavigableSet(copy));
+    }
+
+    /**
+     * @param locationKey
+     *            The location key of the routing
+     * @param domainKey
+     *            The domain key of the routing, may be null
+     * @return The cached closest peers or null if nothing is cached
+     */
+    public NavigableSet<PeerAddress> get(final Number256 locationKey, final Number256 domainKey) {
+        return cache.get(key(locationKey, domainKey));
+    }
+
+    /**
+     * Creates a finished routing future from the cached peers.
+     *
+     * @param locationKey
+     *            The location key of the routing
+     * @param domainKey
+     *            The domain key of the routing, may be null
+     * @return The finished future or null if nothing is cached
+     */
+    public FutureRouting route(final Number256 locationKey, final Number256 domainKey) {
+        final NavigableSet<PeerAddress> cached = get(locationKey, domainKey);
+        if (cached == null) {
+            return null;
+        }
+        LOG.debug("Routing cache hit for {}: {}.", locationKey, cached);
+        final NavigableSet<PeerAddress> potentialHits = new TreeSet<PeerAddress>(cached);
+        final SortedMap<PeerAddress, DigestInfo> directHits = new TreeMap<PeerAddress, DigestInfo>(
+                cached.comparator());
+        final SortedSet<PeerAddress> routingPath = new TreeSet<PeerAddress>(cached);
+        final FutureRouting futureRouting = new FutureRouting();
+        futureRouting.neighbors(directHits, potentialHits, routingPath, false, true);
+        return futureRouting;
+    }
+
+    /**
+     * @return The number of cached routing results
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        if (!verified) {
+            return;
+        }
+        // a new peer that is closer than the farthest cached peer would be missed
+        for (Iterator<Map.Entry<Pair<Number256, Number256>, NavigableSet<PeerAddress>>> iterator = cache.entrySet()
+                .iterator(); iterator.hasNext();) {
+            final Map.Entry<Pair<Number256, Number256>, NavigableSet<PeerAddress>> entry = iterator.next();
+            final NavigableSet<PeerAddress> cached = entry.getValue();
+            if (cached.isEmpty() || cached.comparator().compare(peerAddress, cached.last()) < 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        for (Iterator<Map.Entry<Pair<Number256, Number256>, NavigableSet<PeerAddress>>> iterator = cache.entrySet()
+                .iterator(); iterator.hasNext();) {
+            if (iterator.next().getValue().contains(peerAddress)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        // the position of a peer in the XOR space does not change
+    }
+
+    private static Pair<Number256, Number256> key(final Number256 locationKey, final Number256 domainKey) {
+        return new Pair<Number256, Number256>(locationKey, domainKey == null ? Number256.ZERO : domainKey);
+    }
+}
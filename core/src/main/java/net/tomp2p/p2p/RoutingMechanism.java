@@ -1,7 +1,11 @@
 package net.tomp2p.p2p;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableSet;
@@ -9,10 +13,8 @@ import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.futures.BaseFuture;
-import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.peers.Number256;
@@ -20,6 +22,9 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMapFilter;
 import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.FIFOCache;
+import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
@@ -31,22 +36,49 @@ import org.slf4j.LoggerFactory;
  * 
  * http://stackoverflow.com/questions/8304309/keeping-state-in-a-netty-channelhandler
  * 
+ * The lookup is pipelined: there is no fixed array of slots, instead up to {@link #parallel()} requests are kept in
+ * flight and a new request is issued as soon as any of them returns. The parallelism adapts to the observed
+ * behavior: failures and slow replies (compared to the RTT seen so far in this lookup or the RTT known from the
+ * {@link PeerStatistic}) raise it up to a maximum, fast replies bring it back to the configured value. A request that
+ * takes longer than a latency percentile can be backed by a speculative request to the next peer in the queue, and if
+ * a closest set size is configured, the lookup terminates as soon as the closest peers have all replied and no closer
+ * peer is known.
+ * 
  * @author Thomas Bocek
  * 
  */
-//TODO: check sync
 public class RoutingMechanism {
     
     private static final Logger LOG = LoggerFactory.getLogger(RoutingMechanism.class);
-    
-    private final AtomicReferenceArray<FutureResponse> futureResponses;
+
+    // the number of latency samples kept for the percentile calculation
+    public static final int LATENCY_SAMPLES = 32;
+    // below this number of samples, the percentile is considered not reliable
+    public static final int MIN_LATENCY_SAMPLES = 4;
+    // a reply is considered slow if it took longer than this factor times the known mean RTT of the peer
+    public static final int SLOW_RTT_FACTOR = 2;
+
     private final FutureRouting futureRoutingResponse;
     private final Collection<PeerMapFilter> peerMapFilters;
+
+    // the requests that are running, with the time they were sent
+    private final Map<PeerAddress, Long> inFlight = new HashMap<PeerAddress, Long>();
+    private final Map<PeerAddress, BaseFuture> inFlightFutures = new HashMap<PeerAddress, BaseFuture>();
+    // the requests for which a speculative request has already been issued
+    private final Set<PeerAddress> speculated = new HashSet<PeerAddress>();
+    private final FIFOCache<Long> latencies = new FIFOCache<Long>(LATENCY_SAMPLES);
+
+    private final int minParallel;
+    private final int maxParallel;
+    private int parallel;
     
     private NavigableSet<PeerStatistic> queueToAsk;
     private SortedSet<PeerAddress> alreadyAsked;
     private SortedMap<PeerAddress, DigestInfo> directHits;
     private NavigableSet<PeerAddress> potentialHits;
+    private SortedSet<PeerAddress> closestResponded;
+    private final Map<PeerAddress, Map<Number256, Pair<Number256, Data>>> piggyBackedValues =
+            new HashMap<PeerAddress, Map<Number256, Pair<Number256, Data>>>();
 
     private int nrNoNewInfo = 0;
     private int nrFailures = 0;
@@ -56,19 +88,30 @@ public class RoutingMechanism {
     private int maxNoNewInfo;
     private int maxFailures;
     private int maxSuccess;
+    private int closestSize;
+    private double speculativePercentile;
     private boolean stopCreatingNewFutures;
 
     /**
      * Creates the routing mechanism. Make sure to set the max* fields.
      * 
-     * @param futureResponses
-     *            The current future responses that are running
+     * @param parallel
+     *            The number of requests that are kept in flight if the lookup makes progress
+     * @param maxParallel
+     *            The upper bound for the number of requests in flight if replies are slow or fail
      * @param futureRoutingResponse
      *            The response future from this routing request
+     * @param peerMapFilters
+     *            The filters that are applied to newly reported peers, may be null
      */
-    public RoutingMechanism(final AtomicReferenceArray<FutureResponse> futureResponses,
-            final FutureRouting futureRoutingResponse, final Collection<PeerMapFilter> peerMapFilters) {
-        this.futureResponses = futureResponses;
+    public RoutingMechanism(final int parallel, final int maxParallel, final FutureRouting futureRoutingResponse,
+            final Collection<PeerMapFilter> peerMapFilters) {
+        if (parallel <= 0 || maxParallel < parallel) {
+            throw new IllegalArgumentException("Parallel needs to be larger than zero and smaller than max parallel.");
+        }
+        this.minParallel = parallel;
+        this.maxParallel = maxParallel;
+        this.parallel = parallel;
         this.futureRoutingResponse = futureRoutingResponse;
         this.peerMapFilters = peerMapFilters;
     }
@@ -78,37 +121,29 @@ public class RoutingMechanism {
     }
 
     /**
-     * @return The number of parallel requests. The number is determined by the length of the future response array
+     * @return The current number of parallel requests. This number is between the configured parallel and max
+     *         parallel value and changes with the observed latencies and failures.
      */
     public int parallel() {
-        return futureResponses.length();
-    }
-
-    /**
-     * @return True if we should stop creating more futures, false otherwise
-     */
-    public boolean isStopCreatingNewFutures() {
-        return stopCreatingNewFutures;
+        synchronized (this) {
+            return parallel;
+        }
     }
 
     /**
-     * @param i
-     *            The number of the future response to get
-     * @return The future response at position i
+     * @return The upper bound for the number of parallel requests
      */
-    public FutureResponse futureResponse(final int i) {
-        return futureResponses.get(i);
+    public int maxParallel() {
+        return maxParallel;
     }
 
     /**
-     * @param i
-     *            The number of the future response to get and set
-     * @param futureResponse
-     *            The future response to set
-     * @return The old future response
+     * @return True if we should stop creating more futures, false otherwise
      */
-    public FutureResponse futureResponse(final int i, final FutureResponse futureResponse) {
-        return futureResponses.getAndSet(i, futureResponse);
+    public boolean isStopCreatingNewFutures() {
+        synchronized (this) {
+            return stopCreatingNewFutures;
+        }
     }
 
     /**
@@ -218,6 +253,42 @@ public class RoutingMechanism {
         this.maxSuccess = maxSuccess;
     }
 
+    public int closestSize() {
+        return closestSize;
+    }
+
+    /**
+     * @param closestSize
+     *            The number of closest peers (k) that need to reply before the lookup can terminate. If 0, the
+     *            lookup does not check for a stable closest set.
+     */
+    public void closestSize(int closestSize) {
+        this.closestSize = closestSize;
+    }
+
+    public double speculativePercentile() {
+        return speculativePercentile;
+    }
+
+    /**
+     * @param speculativePercentile
+     *            The percentile of the observed latencies after which a speculative request is sent. A value of 0
+     *            disables speculative requests.
+     */
+    public void speculativePercentile(double speculativePercentile) {
+        this.speculativePercentile = speculativePercentile;
+    }
+
+    /**
+     * @param closestResponded
+     *            The set that keeps the closest peers that replied, sorted by the distance to the target
+     * @return This class
+     */
+    public RoutingMechanism closestResponded(final SortedSet<PeerAddress> closestResponded) {
+        this.closestResponded = closestResponded;
+        return this;
+    }
+
     public PeerAddress pollFirstInQueueToAsk() {
         synchronized (this) {
             PeerStatistic first = queueToAsk.pollFirst();
@@ -243,8 +314,191 @@ public class RoutingMechanism {
         }
     }
 
+    /**
+     * Takes the next peer to ask if there is a free slot and marks it as asked and in flight. This is called from the
+     * routing loop as well as from the timer that triggers speculative requests.
+     * 
+     * @param randomSearch
+     *            True if a random peer should be taken from the queue, false if the first should be taken
+     * @param rnd
+     *            The random number generator for the random search
+     * @return The next peer to ask or null if no more requests should be created at the moment
+     */
+    public PeerAddress nextToAsk(final boolean randomSearch, final Random rnd) {
+        synchronized (this) {
+            if (stopCreatingNewFutures || inFlight.size() >= parallel) {
+                return null;
+            }
+            final PeerAddress next = randomSearch ? pollRandomInQueueToAsk(rnd) : pollFirstInQueueToAsk();
+            if (next != null) {
+                alreadyAsked.add(next);
+                inFlight.put(next, System.currentTimeMillis());
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Attaches the future of a running request, so that it can be canceled once the routing finishes.
+     * 
+     * @param remotePeer
+     *            The peer that was asked
+     * @param future
+     *            The future of the request
+     */
+    public void inFlight(final PeerAddress remotePeer, final BaseFuture future) {
+        synchronized (this) {
+            if (inFlight.containsKey(remotePeer)) {
+                inFlightFutures.put(remotePeer, future);
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests that are running
+     */
+    public int inFlightSize() {
+        synchronized (this) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * Removes a request that finished from the in-flight set and adapts the parallelism. A failed request raises the
+     * parallelism by one. A successful request raises it if it was slow and lowers it towards the configured value
+     * if it was fast.
+     * 
+     * @param remotePeer
+     *            The peer that was asked
+     * @param success
+     *            True if the peer replied
+     * @param expectedRTT
+     *            The mean RTT that we know from the statistics of this peer or -1 if unknown
+     * @return The round-trip time of this request in milliseconds or -1 if the request was not in flight
+     */
+    public long responded(final PeerAddress remotePeer, final boolean success, final long expectedRTT) {
+        synchronized (this) {
+            final Long start = inFlight.remove(remotePeer);
+            inFlightFutures.remove(remotePeer);
+            speculated.remove(remotePeer);
+            if (start == null) {
+                return -1;
+            }
+            final long rtt = System.currentTimeMillis() - start;
+            if (!success) {
+                parallel = Math.min(parallel + 1, maxParallel);
+                LOG.debug("Request to {} failed, parallel is now {}.", remotePeer, parallel);
+                return rtt;
+            }
+            final long percentile = latencyPercentile(speculativePercentile > 0 ? speculativePercentile : 0.5d);
+            latencies.add(rtt);
+            final boolean slow = (expectedRTT > 0 && rtt > expectedRTT * SLOW_RTT_FACTOR)
+                    || (percentile >= 0 && rtt > percentile);
+            if (slow) {
+                parallel = Math.min(parallel + 1, maxParallel);
+            } else if (parallel > minParallel) {
+                parallel--;
+            }
+            LOG.debug("Reply from {} in {}ms (slow={}), parallel is now {}.", remotePeer, rtt, slow, parallel);
+            return rtt;
+        }
+    }
+
+    /**
+     * Calculates the delay after which a request to this peer is considered slow and a speculative request should be
+     * sent. If we have enough samples in this lookup, the percentile of those is used, otherwise the mean RTT from the
+     * peer statistics.
+     * 
+     * @param peerStatistic
+     *            The statistics of the peer we are about to ask, may be null
+     * @return The delay in milliseconds or -1 if no speculative request should be sent
+     */
+    public long speculativeDelay(final PeerStatistic peerStatistic) {
+        if (speculativePercentile <= 0) {
+            return -1;
+        }
+        synchronized (this) {
+            final long percentile = latencyPercentile(speculativePercentile);
+            if (percentile >= 0) {
+                return percentile;
+            }
+        }
+        if (peerStatistic != null && peerStatistic.getMeanRTT() > 0) {
+            return peerStatistic.getMeanRTT() * SLOW_RTT_FACTOR;
+        }
+        return -1;
+    }
+
+    /**
+     * Called if a request is still running after the speculative delay. This raises the parallelism by one, so that
+     * the routing loop can issue a request to the next peer without waiting for the slow one.
+     * 
+     * @param remotePeer
+     *            The peer that was asked
+     * @return True if a speculative request can be sent
+     */
+    public boolean speculate(final PeerAddress remotePeer) {
+        synchronized (this) {
+            if (stopCreatingNewFutures || !inFlight.containsKey(remotePeer) || !speculated.add(remotePeer)) {
+                return false;
+            }
+            if (parallel >= maxParallel) {
+                return false;
+            }
+            parallel++;
+            LOG.debug("Request to {} is slow, speculative request, parallel is now {}.", remotePeer, parallel);
+            return true;
+        }
+    }
+
+    /**
+     * @param percentile
+     *            The percentile between 0 and 1
+     * @return The latency at that percentile or -1 if we do not have enough samples
+     */
+    private long latencyPercentile(final double percentile) {
+        if (latencies.size() < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        final Long[] sorted = latencies.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Checks if the closest peers are stable: we have replies from at least {@link #closestSize()} peers, and there is
+     * no peer in the queue or in flight that is closer than the farthest of those.
+     * 
+     * @return True if the lookup can terminate
+     */
+    boolean isClosestSetStable() {
+        synchronized (this) {
+            if (closestSize <= 0 || closestResponded == null || closestResponded.size() < closestSize) {
+                return false;
+            }
+            final Comparator<? super PeerAddress> comparator = closestResponded.comparator();
+            final PeerAddress farthest = closestResponded.last();
+            for (PeerStatistic peerStatistic : queueToAsk) {
+                if (comparator.compare(peerStatistic.peerAddress(), farthest) < 0) {
+                    return false;
+                }
+            }
+            for (PeerAddress running : inFlight.keySet()) {
+                if (comparator.compare(running, farthest) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     public void neighbors(RoutingBuilder builder) {
         synchronized (this) {
+            if (!piggyBackedValues.isEmpty()) {
+                futureRoutingResponse.piggyBackedValues(
+                        new HashMap<PeerAddress, Map<Number256, Pair<Number256, Data>>>(piggyBackedValues));
+            }
         	applyPostRouting(builder, directHits, potentialHits);
             futureRoutingResponse.neighbors(directHits, potentialHits, alreadyAsked,
                     builder.isBootstrap(), builder.isRoutingToOthers());
@@ -255,17 +509,29 @@ public class RoutingMechanism {
      * Cancel the future that causes the underlying futures to cancel as well.
      */
     public void cancel() {
-        int len = futureResponses.length();
-        for (int i = 0; i < len; i++) {
-            BaseFuture baseFuture = futureResponses.get(i);
-            if (baseFuture != null) {
-                baseFuture.cancel();
-            }
+        final Collection<BaseFuture> running;
+        synchronized (this) {
+            stopCreatingNewFutures = true;
+            running = new ArrayList<BaseFuture>(inFlightFutures.values());
+        }
+        for (BaseFuture baseFuture : running) {
+            baseFuture.cancel();
         }
     }
 
-    public AtomicReferenceArray<FutureResponse> futureResponses() {
-        return futureResponses;
+    /**
+     * Stores the values a peer piggy-backed on its neighbor reply.
+     * 
+     * @param remotePeer
+     *            The peer that replied
+     * @param values
+     *            The version keys and values by content key
+     */
+    public void addPiggyBackedValues(final PeerAddress remotePeer,
+            final Map<Number256, Pair<Number256, Data>> values) {
+        synchronized (this) {
+            piggyBackedValues.put(remotePeer, values);
+        }
     }
 
     public void addPotentialHits(PeerAddress remotePeer) {
@@ -275,17 +541,29 @@ public class RoutingMechanism {
     }
 
     public void stopCreatingNewFutures(boolean stopCreatingNewFutures) {
-        this.stopCreatingNewFutures = stopCreatingNewFutures;
+        synchronized (this) {
+            this.stopCreatingNewFutures = stopCreatingNewFutures;
+        }
     }
 
     public boolean evaluateFailed() {
-        return (++nrFailures) > maxFailures();
+        synchronized (this) {
+            return (++nrFailures) > maxFailures();
+        }
     }
 
     public boolean evaluateSuccess(PeerAddress remotePeer, DigestInfo digestBean,
-            Collection<PeerStatistic> newNeighbors, boolean last, Number256 locationkey) {
+            Collection<PeerStatistic> newNeighbors, Number256 locationkey) {
         boolean finished;
         synchronized (this) {
+            // we only finish after waiting for other requests if this was the last one running
+            final boolean last = inFlight.isEmpty();
+            if (closestResponded != null && closestSize > 0) {
+                closestResponded.add(remotePeer);
+                while (closestResponded.size() > closestSize) {
+                    closestResponded.remove(closestResponded.last());
+                }
+            }
         	filterPeers(newNeighbors, alreadyAsked, queueToAsk, locationkey);
             if (evaluateDirectHits(remotePeer, directHits, digestBean, getMaxDirectHits())) {
                 // stop immediately
@@ -297,15 +575,24 @@ public class RoutingMechanism {
                 LOG.debug("Max success reached: {}.", nrSuccess);
                 finished = last;
                 stopCreatingNewFutures = true;
-            } else if (evaluateInformation(newNeighbors, queueToAsk, alreadyAsked, maxNoNewInfo())) {
-                // wait until pending futures are finished
-                LOG.debug("No new information for the {} time.", maxNoNewInfo());
-                finished = last;
-                stopCreatingNewFutures = true;
             } else {
-                // continue
-                finished = false;
-                stopCreatingNewFutures = false;
+                final boolean noNewInfo = evaluateInformation(newNeighbors, queueToAsk, alreadyAsked,
+                        maxNoNewInfo());
+                if (isClosestSetStable()) {
+                    // stop immediately, the requests still running cannot give us closer peers
+                    LOG.debug("The {} closest peers replied: {}.", closestSize, closestResponded);
+                    finished = true;
+                    stopCreatingNewFutures = true;
+                } else if (noNewInfo) {
+                    // wait until pending futures are finished
+                    LOG.debug("No new information for the {} time.", maxNoNewInfo());
+                    finished = last;
+                    stopCreatingNewFutures = true;
+                } else {
+                    // continue
+                    finished = false;
+                    stopCreatingNewFutures = false;
+                }
             }
         }
         return finished;
@@ -1,10 +1,8 @@
 package net.tomp2p.p2p.builder;
 
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.connection.DefaultConnectionConfiguration;
-import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.p2p.PostRoutingFilter;
 import net.tomp2p.p2p.RoutingMechanism;
@@ -15,6 +13,8 @@ import net.tomp2p.rpc.SimpleBloomFilter;
 
 public class RoutingBuilder extends DefaultConnectionConfiguration {
 
+    public static final double DEFAULT_SPECULATIVE_PERCENTILE = 0.9d;
+
     private Number256 locationKey;
     private Number256 domainKey;
     private Number256 contentKey;
@@ -33,9 +33,14 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private int maxFailures;
     private int maxSuccess;
     private int parallel;
+    private int maxParallel;
+    private int closestSize;
+    private double speculativePercentile = DEFAULT_SPECULATIVE_PERCENTILE;
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
+    private boolean isRoutingCache = true;
+    private int piggyBackSize;
 
     public Number256 locationKey() {
         return locationKey;
@@ -90,6 +95,47 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         this.parallel = parallel;
     }
 
+    /**
+     * The upper bound for parallel requests if replies are slow or fail. If not set, twice the number of parallel
+     * requests is used.
+     * 
+     * @return The max. number of requests in flight
+     */
+    public int maxParallel() {
+        return maxParallel;
+    }
+
+    public void maxParallel(int maxParallel) {
+        this.maxParallel = maxParallel;
+    }
+
+    /**
+     * The number of closest peers (k) that need to reply before the routing stops. 0 disables this stop condition.
+     * 
+     * @return The size of the closest set
+     */
+    public int closestSize() {
+        return closestSize;
+    }
+
+    public void closestSize(int closestSize) {
+        this.closestSize = closestSize;
+    }
+
+    /**
+     * The percentile of the latencies seen in a routing after which a speculative request to the next peer is sent.
+     * 0 disables speculative requests.
+     * 
+     * @return The percentile between 0 and 1
+     */
+    public double speculativePercentile() {
+        return speculativePercentile;
+    }
+
+    public void speculativePercentile(double speculativePercentile) {
+        this.speculativePercentile = speculativePercentile;
+    }
+
     public boolean isBootstrap() {
         return isBootstrap;
     }
@@ -98,6 +144,37 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         this.isBootstrap = isBootstrap;
     }
 
+    /**
+     * @return True if a cached routing result for the same location and domain key may be used
+     */
+    public boolean isRoutingCache() {
+        return isRoutingCache;
+    }
+
+    /**
+     * @param isRoutingCache
+     *            Set to false to always perform the routing process, even if a recent result is cached
+     */
+    public void routingCache(boolean isRoutingCache) {
+        this.isRoutingCache = isRoutingCache;
+    }
+
+    /**
+     * @return The maximum size of values that a peer may piggy-back on its neighbor reply, 0 if disabled
+     */
+    public int piggyBackSize() {
+        return piggyBackSize;
+    }
+
+    /**
+     * @param piggyBackSize
+     *            The maximum size in bytes of values that a peer may piggy-back on its neighbor reply. This allows a
+     *            get of small values to finish in the routing phase. Set to 0 to disable.
+     */
+    public void piggyBackSize(int piggyBackSize) {
+        this.piggyBackSize = piggyBackSize;
+    }
+
     public boolean isForceRoutingOnlyToSelf() {
         return isForceRoutingOnlyToSelf;
     }
@@ -185,9 +262,11 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     }
 
     public RoutingMechanism createRoutingMechanism(FutureRouting futureRouting) {
-        final FutureResponse[] futureResponses = new FutureResponse[parallel()];
-        RoutingMechanism routingMechanism = new RoutingMechanism(
-                new AtomicReferenceArray<FutureResponse>(futureResponses), futureRouting, peerMapFilters);
+        final int maxParallel = Math.max(parallel(), maxParallel() > 0 ? maxParallel() : parallel() * 2);
+        RoutingMechanism routingMechanism = new RoutingMechanism(parallel(), maxParallel, futureRouting,
+                peerMapFilters);
+        routingMechanism.closestSize(closestSize());
+        routingMechanism.speculativePercentile(speculativePercentile());
         routingMechanism.maxDirectHits(maxDirectHits());
         routingMechanism.maxFailures(maxFailures());
         routingMechanism.maxNoNewInfo(maxNoNewInfo());
@@ -16,6 +16,7 @@
 
 package net.tomp2p.peers;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -117,12 +118,30 @@ public class DefaultMaintenance implements Maintenance {
      * @return The next most important peer to check if it is still alive.
      */
     public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
+        final Collection<PeerStatistic> result = nextForMaintenance(notInterestedAddresses, 1);
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    /**
+     * Finds a batch of peers that should have a maintenance check in one pass over the bags, with the same importance
+     * as {@link #nextForMaintenance(Collection)}. Peers that have been seen online recently, e.g., because they sent
+     * us a message or replied to a routing request, do not need a check.
+     * 
+     * @param notInterestedAddresses
+     *            The peers that are already being checked
+     * @param max
+     *            The maximum number of peers to return
+     * @return The most important peers to check, empty if no maintenance is needed
+     */
+    public Collection<PeerStatistic> nextForMaintenance(final Collection<PeerAddress> notInterestedAddresses,
+            final int max) {
         if (peerMapVerified == null || peerMapNonVerified == null || offlineMap == null 
                 || shutdownMap == null || exceptionMap == null) {
             throw new IllegalArgumentException("Did not initialize some of the maintenance maps.");
         }
+        final List<PeerStatistic> result = new ArrayList<PeerStatistic>(Math.min(max, 16));
         int peersBefore = 0;
-        for (int i = 0; i < Number256.BITS; i++) {
+        for (int i = 0; i < Number256.BITS && result.size() < max; i++) {
             final Map<Number256, PeerStatistic> mapVerified = peerMapVerified.get(i);
             boolean urgent = false;
             synchronized (mapVerified) {
@@ -132,39 +151,42 @@ public class DefaultMaintenance implements Maintenance {
             }
             if (urgent) {
                 final Map<Number256, PeerStatistic> mapNonVerified = peerMapNonVerified.get(i);
-                final PeerStatistic readyForMaintenance = next(mapNonVerified);
-                if (readyForMaintenance != null
-                        && !notInterestedAddresses.contains(readyForMaintenance.peerAddress())) {
-                    LOG.debug("check urgent peer {} from the non-verified map.", readyForMaintenance.peerAddress());
-                    return readyForMaintenance;
+                final int before = result.size();
+                next(mapNonVerified, notInterestedAddresses, max, result);
+                if (LOG.isDebugEnabled() && result.size() > before) {
+                    LOG.debug("check {} urgent peers from the non-verified map.", result.size() - before);
                 }
             }
-            final PeerStatistic readyForMaintenance = next(mapVerified);
-            if (readyForMaintenance != null
-                    && !notInterestedAddresses.contains(readyForMaintenance.peerAddress())) {
-            	LOG.debug("check peer {} from the non-verified map.", readyForMaintenance.peerAddress());
-                return readyForMaintenance;
-            }
+            next(mapVerified, notInterestedAddresses, max, result);
         }
-        return null;
+        return result;
     }
 
     /**
-     * Returns a peer with its statistics from a bag that needs maintenance.
+     * Adds peers with their statistics from a bag that need maintenance.
      * 
      * @param map
      *            The bag with all the peers
-     * @return A peer that needs maintenance
+     * @param notInterestedAddresses
+     *            The peers to skip
+     * @param max
+     *            The maximum size of the result
+     * @param result
+     *            The list the peers are added to
      */
-    private PeerStatistic next(final Map<Number256, PeerStatistic> map) {
+    private void next(final Map<Number256, PeerStatistic> map, final Collection<PeerAddress> notInterestedAddresses,
+            final int max, final List<PeerStatistic> result) {
         synchronized (map) {
             for (PeerStatistic peerStatistic : map.values()) {
-                if (needMaintenance(peerStatistic, intervalSeconds)) {
-                    return peerStatistic;
+                if (result.size() >= max) {
+                    return;
+                }
+                if (needMaintenance(peerStatistic, intervalSeconds)
+                        && !notInterestedAddresses.contains(peerStatistic.peerAddress())) {
+                    result.add(peerStatistic);
                 }
             }
         }
-        return null;
     }
 
     /**
@@ -1,7 +1,40 @@
 package net.tomp2p.peers;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public interface Maintainable {
+	/**
+	 * @return The next peer that needs maintenance or null if no maintenance is needed
+	 */
 	public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses);
+
+	/**
+	 * @param notInterestedAddresses
+	 *            The peers that are already being checked
+	 * @param max
+	 *            The maximum number of peers to return
+	 * @return The peers that need maintenance, most important first, empty if none need maintenance. By default,
+	 *         {@link #nextForMaintenance(Collection)} is called until it returns null or max peers are found.
+	 */
+	public default Collection<PeerStatistic> nextForMaintenance(Collection<PeerAddress> notInterestedAddresses,
+	        int max) {
+		final List<PeerStatistic> result = new ArrayList<PeerStatistic>();
+		final Set<PeerAddress> notInterested = new HashSet<PeerAddress>();
+		if (notInterestedAddresses != null) {
+			notInterested.addAll(notInterestedAddresses);
+		}
+		while (result.size() < max) {
+			final PeerStatistic peerStatistic = nextForMaintenance(notInterested);
+			// stop if the peer was returned before, in case an implementation ignores the peers to skip
+			if (peerStatistic == null || !notInterested.add(peerStatistic.peerAddress())) {
+				break;
+			}
+			result.add(peerStatistic);
+		}
+		return result;
+	}
 }
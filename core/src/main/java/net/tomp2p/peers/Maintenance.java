@@ -16,7 +16,6 @@
 
 package net.tomp2p.peers;
 
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -29,7 +28,7 @@ import net.tomp2p.utils.ConcurrentCacheMap;
  * @author Thomas Bocek
  * 
  */
-public interface Maintenance {
+public interface Maintenance extends Maintainable {
 
     /**
      * Initializes the maintenance class. This may result in a new class
@@ -49,9 +48,4 @@ public interface Maintenance {
                      ConcurrentCacheMap<Number256, PeerAddress> offlineMap,
                      ConcurrentCacheMap<Number256, PeerAddress> shutdownMap, ConcurrentCacheMap<Number256, PeerAddress> exceptionMap);
 
-    /**
-     * @return The next peer that needs maintenance or null if no maintenance is needed
-     */
-    PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses);
-
 }
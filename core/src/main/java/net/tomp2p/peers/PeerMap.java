@@ -76,6 +76,10 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     private final Maintenance maintenance;
 
     private PeerStatisticComparator peerStatisticComparator;
+
+    // proximity neighbor selection, disabled if the factor is 0
+    private final double proximityRTTFactor;
+    private final long proximityStableMillis;
     
     private final ConcurrentCacheSet<PeerAddress> knownPeers = new ConcurrentCacheSet<>(24 * 60 * 60, 10000);
     private final ConcurrentCacheSet<PeerAddress> unknownPeers = new ConcurrentCacheSet<>(60, 1000);
@@ -110,6 +114,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         this.maintenance = peerMapConfiguration.maintenance().init(peerMapVerified, peerMapOverflow,
                 offlineMap, shutdownMap, exceptionMap);
         this.peerStatisticComparator = peerMapConfiguration.getPeerStatisticComparator();
+        this.proximityRTTFactor = peerMapConfiguration.proximityRTTFactor();
+        this.proximityStableMillis = peerMapConfiguration.proximityStableTime() * 1000L;
     }
 
     private int totalNumberOfVerifiedBags() {
@@ -340,11 +346,18 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             if (firstHand) {
                 final Map<Number256, PeerStatistic> map = peerMapVerified.get(classMember);
                 boolean inserted = false;
+                PeerStatistic replaced = null;
                 synchronized (map) {
                     // check again, now we are synchronized
                     if (map.containsKey(remotePeer.peerId())) {
                         return peerFound(remotePeer, referrer, roundTripTime);
                     }
+                    if (map.size() >= bagSizesVerified[classMember]) {
+                        replaced = proximityReplace(map, roundTripTime);
+                        if (replaced != null) {
+                            map.remove(replaced.peerAddress().peerId());
+                        }
+                    }
                     if (map.size() < bagSizesVerified[classMember]) {
                         final PeerStatistic peerStatistic = new PeerStatistic(remotePeer);
                         peerStatistic.successfullyChecked();
@@ -359,6 +372,14 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                     final Map<Number256, PeerStatistic> mapOverflow = peerMapOverflow.get(classMember);
                     synchronized (mapOverflow) {
                         mapOverflow.remove(remotePeer.peerId());
+                        if (replaced != null) {
+                            // keep the statistics, the replaced peer may come back if a close peer goes offline
+                            mapOverflow.put(replaced.peerAddress().peerId(), replaced);
+                        }
+                    }
+                    if (replaced != null) {
+                        LOG.debug("Peer {} replaced by faster peer {}.", replaced.peerAddress(), remotePeer);
+                        notifyRemove(replaced.peerAddress(), replaced);
                     }
                     notifyInsert(remotePeer, true);
                     LOG.debug("Peer inserted");
@@ -389,6 +410,59 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return true;
     }
 
+    /**
+     * Proximity neighbor selection: finds the peer in a full verified bag that should be replaced by a new peer with
+     * the given first hand RTT. Peers that are online for a long time are never replaced. Of the others, the slowest
+     * peer is replaced if it is slower than the new peer by the configured factor. Peers without measured RTT count
+     * with the median RTT of the bag, so they are neither preferred nor evicted first. If no peer in the bag has a
+     * measured RTT, nothing is replaced. Ties are broken by the shorter online time. Needs to be called while holding
+     * the lock of the bag.
+     * 
+     * @param map
+     *            The full verified bag
+     * @param roundTripTime
+     *            The RTT of the new peer
+     * @return The peer to replace or null if the new peer should go to the overflow map
+     */
+    private PeerStatistic proximityReplace(final Map<Number256, PeerStatistic> map, final RTT roundTripTime) {
+        if (proximityRTTFactor <= 0 || roundTripTime == null || roundTripTime.isEstimated()
+                || roundTripTime.getRtt() <= 0) {
+            return null;
+        }
+        final List<Long> measured = new ArrayList<Long>(map.size());
+        for (PeerStatistic peerStatistic : map.values()) {
+            if (hasMeasuredRTT(peerStatistic)) {
+                measured.add(peerStatistic.getMeanRTT());
+            }
+        }
+        if (measured.isEmpty()) {
+            return null;
+        }
+        Collections.sort(measured);
+        final long medianRTT = measured.get(measured.size() / 2);
+        PeerStatistic candidate = null;
+        long candidateRTT = 0;
+        for (PeerStatistic peerStatistic : map.values()) {
+            if (peerStatistic.isLocal() || peerStatistic.onlineTime() >= proximityStableMillis) {
+                continue;
+            }
+            final long rtt = hasMeasuredRTT(peerStatistic) ? peerStatistic.getMeanRTT() : medianRTT;
+            if (candidate == null || rtt > candidateRTT
+                    || (rtt == candidateRTT && peerStatistic.onlineTime() < candidate.onlineTime())) {
+                candidate = peerStatistic;
+                candidateRTT = rtt;
+            }
+        }
+        if (candidate != null && candidateRTT > roundTripTime.getRtt() * proximityRTTFactor) {
+            return candidate;
+        }
+        return null;
+    }
+
+    private static boolean hasMeasuredRTT(final PeerStatistic peerStatistic) {
+        return peerStatistic.getRTTCount() > 0 && !peerStatistic.containsEstimates();
+    }
+
     /**
      * Removes a peer from the list. In order to not reappear, the node is put for a certain time in a cache list to keep
      * the node removed. This method is thread-safe.
@@ -701,6 +775,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return maintenance.nextForMaintenance(notInterestedAddresses);
     }
 
+    @Override
+    public Collection<PeerStatistic> nextForMaintenance(Collection<PeerAddress> notInterestedAddresses, int max) {
+        return maintenance.nextForMaintenance(notInterestedAddresses, max);
+    }
+
     /**
      * Returns the number of the class that this id belongs to.
      * 
@@ -40,6 +40,8 @@ public class PeerMapConfiguration {
     private Collection<PeerMapFilter> peerMapFilters = new ArrayList<PeerMapFilter>(2);
     private Maintenance maintenance;
     private PeerStatisticComparator peerStatisticComparator;
+    private double proximityRTTFactor;
+    private int proximityStableTime;
 
     /**
      * Constructor with reasonable defaults.
@@ -57,6 +59,8 @@ public class PeerMapConfiguration {
         offlineCount = 3;
         maintenance = new DefaultMaintenance(4, new int[] { 2, 4, 8, 16, 32, 64 });
         setPeerStatisticComparator(new DefaultPeerStatisticComparator());
+        proximityRTTFactor = 0;
+        proximityStableTime = 60 * 60;
     }
 
     /**
@@ -312,4 +316,47 @@ public class PeerMapConfiguration {
         this.peerStatisticComparator = peerStatisticComparator;
         return this;
     }
+
+    /**
+     * @return The factor a peer in a full verified bag has to be slower than a new peer to be replaced, 0 if proximity
+     *         neighbor selection is disabled
+     */
+    public double proximityRTTFactor() {
+        return proximityRTTFactor;
+    }
+
+    /**
+     * Enables proximity neighbor selection. If a verified bag is full and we have first hand information of a new peer,
+     * then the slowest peer in this bag is replaced if its mean RTT is larger than the RTT of the new peer times this
+     * factor. A peer whose RTT we have not measured yet is rated with the median RTT of the measured peers in the bag,
+     * and if no peer in the bag has been measured, nothing is replaced. The replaced peer is moved to the overflow map.
+     * Routing hops thus land on nearby peers.
+     * 
+     * @param proximityRTTFactor
+     *            The factor, e.g. 2 means the new peer needs to be twice as fast. 0 disables proximity neighbor
+     *            selection and the verified bags are first-come
+     * @return this class
+     */
+    public PeerMapConfiguration proximityRTTFactor(final double proximityRTTFactor) {
+        this.proximityRTTFactor = proximityRTTFactor;
+        return this;
+    }
+
+    /**
+     * @return The time in seconds a peer needs to be online to never be replaced by a faster peer
+     */
+    public int proximityStableTime() {
+        return proximityStableTime;
+    }
+
+    /**
+     * @param proximityStableTime
+     *            The time in seconds a peer needs to be online to never be replaced by a faster peer. Long running
+     *            peers are likely to stay online, so we keep them even if they are slow
+     * @return this class
+     */
+    public PeerMapConfiguration proximityStableTime(final int proximityStableTime) {
+        this.proximityStableTime = proximityStableTime;
+        return this;
+    }
 }
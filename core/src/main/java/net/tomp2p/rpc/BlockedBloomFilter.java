@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.BitSet;
+
+import net.tomp2p.peers.Number256;
+
+/**
+ * A blocked bloom filter, where all the probes of an element fall into one block of 64 bytes, i.e., one cache line.
+ * An element is hashed once, the upper bits select the block and the lower bits the positions within the block.
+ * Number256 elements are hashes already, their bits are used directly instead of seeding a java.util.Random as
+ * {@link SimpleBloomFilter} does. For the same size, the false positive rate is slightly higher than the one of a
+ * SimpleBloomFilter.
+ * <p>
+ * The encoding marks the filter as blocked, so {@link SimpleBloomFilter#decode(ByteBuf)} can tell the two apart. If
+ * only a few blocks have bits set, only these blocks are encoded.
+ *
+ * @author Thomas Bocek
+ * @param <E>
+ *            The type of object the BloomFilter should contain
+ */
+public class BlockedBloomFilter<E> extends SimpleBloomFilter<E> {
+
+	private static final long serialVersionUID = -2400497553939546624L;
+
+	static final int FLAG_SPARSE = 1 << 30;
+
+	private static final int FLAG_MASK = FLAG_VARIANT | FLAG_SPARSE | CuckooFilter.FLAG_CUCKOO;
+
+	/**
+	 * The size of a block, one cache line.
+	 */
+	public static final int BLOCK_BYTES = 64;
+
+	/**
+	 * More probes do not lower the false positive rate within a block of 512 bits.
+	 */
+	public static final int MAX_HASH_FUNCTIONS = 16;
+
+	private static final int SIZE_HEADER_BLOCKED = SIZE_HEADER + 2;
+
+	private final int blockBits;
+
+	private final int nrBlocks;
+
+	private final int probes;
+
+	/**
+	 * Construct an empty BlockedBloomFilter for the given false positive probability.
+	 *
+	 * @param falsePositiveProbability
+	 *            The false positive probability of a SimpleBloomFilter, the one of this filter is slightly higher
+	 * @param expectedElements
+	 *            The typical number of items you expect to be added
+	 */
+	public BlockedBloomFilter(final double falsePositiveProbability, final int expectedElements) {
+		this(byteArraySize(falsePositiveProbability, expectedElements), expectedElements);
+	}
+
+	/**
+	 * Construct an empty BlockedBloomFilter. Filters larger than a block are rounded up to a multiple of
+	 * {@link #BLOCK_BYTES}.
+	 *
+	 * @param byteArraySize
+	 *            The number of bits in multiple of 8 in the bit array
+	 * @param expectedElements
+	 *            The typical number of items you expect to be added
+	 */
+	public BlockedBloomFilter(final int byteArraySize, final int expectedElements) {
+		this(roundUp(byteArraySize), expectedElements, new BitSet(roundUp(byteArraySize) * Byte.SIZE));
+	}
+
+	private BlockedBloomFilter(final int byteArraySize, final int expectedElements, final BitSet bitSet) {
+		super(byteArraySize, expectedElements, bitSet);
+		if ((expectedElements & FLAG_MASK) != 0) {
+			throw new IllegalArgumentException("too many expected elements: " + expectedElements);
+		}
+		this.blockBits = blockBits(byteArraySize);
+		this.nrBlocks = blockBits == 0 ? 0 : bitArraySize() / blockBits;
+		this.probes = Math.max(1, Math.min(hashFunctions(), MAX_HASH_FUNCTIONS));
+	}
+
+	private static int byteArraySize(final double falsePositiveProbability, final int expectedElements) {
+		final double c = Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2.0))) / Math.log(2.0);
+		return ((int) Math.ceil(c * expectedElements) + 7) / 8;
+	}
+
+	private static int roundUp(final int byteArraySize) {
+		if (byteArraySize <= BLOCK_BYTES) {
+			return byteArraySize;
+		}
+		return ((byteArraySize + BLOCK_BYTES - 1) / BLOCK_BYTES) * BLOCK_BYTES;
+	}
+
+	private static int blockBits(final int byteArraySize) {
+		if (byteArraySize >= BLOCK_BYTES) {
+			return BLOCK_BYTES * Byte.SIZE;
+		}
+		// a small filter is a single block, the bits that do not fit a power of two are not used
+		return Integer.highestOneBit(byteArraySize * Byte.SIZE);
+	}
+
+	@Override
+	public boolean add(final E o) {
+		if (nrBlocks == 0) {
+			return false;
+		}
+		final long hash = hash(o);
+		final BitSet bitSet = getBitSet();
+		final int offset = block(hash) * blockBits;
+		int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < probes; i++) {
+			bitSet.set(offset + (h1 & (blockBits - 1)));
+			h1 += h2;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean contains(final Object o) {
+		if (nrBlocks == 0 || isVoid()) {
+			return false;
+		}
+		final long hash = hash(o);
+		final BitSet bitSet = getBitSet();
+		final int offset = block(hash) * blockBits;
+		int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < probes; i++) {
+			if (!bitSet.get(offset + (h1 & (blockBits - 1)))) {
+				return false;
+			}
+			h1 += h2;
+		}
+		return true;
+	}
+
+	private int block(final long hash) {
+		// the upper 32 bits mapped to [0, nrBlocks) without a division
+		return (int) (((hash >>> 32) * nrBlocks) >>> 32);
+	}
+
+	static long hash(final Object o) {
+		if (o instanceof Number256) {
+			final Number256 number = (Number256) o;
+			return mix(number.longValue() ^ ((long) number.hashCode() << 32));
+		}
+		return mix(o.hashCode());
+	}
+
+	// the finalizer of MurmurHash3
+	static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private int nonEmptyBlocks() {
+		final BitSet bitSet = getBitSet();
+		final int end = nrBlocks * blockBits;
+		int count = 0;
+		for (int i = bitSet.nextSetBit(0); i >= 0 && i < end; i = bitSet.nextSetBit((i / blockBits + 1) * blockBits)) {
+			count++;
+		}
+		return count;
+	}
+
+	private boolean isSparse(final int nonEmptyBlocks) {
+		return nonEmptyBlocks * (2 + blockBits / Byte.SIZE) + 2 < byteArraySize();
+	}
+
+	/**
+	 * @return The size of the encoded filter
+	 */
+	@Override
+	public int size() {
+		final int nonEmptyBlocks = nonEmptyBlocks();
+		if (isSparse(nonEmptyBlocks)) {
+			return SIZE_HEADER_BLOCKED + 2 + nonEmptyBlocks * (2 + blockBits / Byte.SIZE);
+		}
+		return SIZE_HEADER_BLOCKED + byteArraySize();
+	}
+
+	/**
+	 * Encodes the size, the expected elements with the flags and the size of the bit array. Then either the whole bit
+	 * array follows, or the number of blocks that have bits set followed by the index and the bits of each block.
+	 *
+	 * @param buf
+	 *            The byte buffer where the bloom filter will be written.
+	 */
+	@Override
+	public void encode(final ByteBuf buf) {
+		final int nonEmptyBlocks = nonEmptyBlocks();
+		final boolean sparse = isSparse(nonEmptyBlocks);
+		buf.writeShort(size());
+		buf.writeInt(expectedElements() | FLAG_VARIANT | (sparse ? FLAG_SPARSE : 0));
+		buf.writeShort(byteArraySize());
+		final byte[] tmp = RPCUtils.toByteArray(getBitSet());
+		if (!sparse) {
+			buf.writeBytes(tmp);
+			buf.writeZero(byteArraySize() - tmp.length);
+			return;
+		}
+		final int blockBytes = blockBits / Byte.SIZE;
+		buf.writeShort(nonEmptyBlocks);
+		final BitSet bitSet = getBitSet();
+		final int end = nrBlocks * blockBits;
+		for (int i = bitSet.nextSetBit(0); i >= 0 && i < end; i = bitSet.nextSetBit((i / blockBits + 1) * blockBits)) {
+			final int block = i / blockBits;
+			buf.writeShort(block);
+			final int from = block * blockBytes;
+			// the byte array ends with the last bit that is set
+			final int length = Math.min(blockBytes, tmp.length - from);
+			buf.writeBytes(tmp, from, length);
+			buf.writeZero(blockBytes - length);
+		}
+	}
+
+	static <E> BlockedBloomFilter<E> decodeBlocked(final ByteBuf channelBuffer) {
+		final int size = channelBuffer.getUnsignedShort(channelBuffer.readerIndex());
+		if (size < SIZE_HEADER_BLOCKED || channelBuffer.readableBytes() < size) {
+			throw new IllegalArgumentException("blocked bloom filter is truncated");
+		}
+		// the encoded size, checked above
+		channelBuffer.readUnsignedShort();
+		final int header = channelBuffer.readInt();
+		final int byteArraySize = channelBuffer.readUnsignedShort();
+		if (roundUp(byteArraySize) != byteArraySize) {
+			throw new IllegalArgumentException("wrong size of the bit array: " + byteArraySize);
+		}
+		final byte[] me = new byte[byteArraySize];
+		if ((header & FLAG_SPARSE) != 0) {
+			final int blockBytes = blockBits(byteArraySize) / Byte.SIZE;
+			if (blockBytes == 0 || size < SIZE_HEADER_BLOCKED + 2) {
+				throw new IllegalArgumentException("sparse blocked bloom filter without blocks");
+			}
+			final int nrBlocks = byteArraySize / blockBytes;
+			final int nonEmptyBlocks = channelBuffer.readUnsignedShort();
+			if (nonEmptyBlocks > nrBlocks
+			        || size != SIZE_HEADER_BLOCKED + 2 + nonEmptyBlocks * (2 + blockBytes)) {
+				throw new IllegalArgumentException("wrong number of blocks: " + nonEmptyBlocks);
+			}
+			for (int i = 0; i < nonEmptyBlocks; i++) {
+				final int block = channelBuffer.readUnsignedShort();
+				if (block >= nrBlocks) {
+					throw new IllegalArgumentException("wrong block: " + block + " of " + nrBlocks);
+				}
+				channelBuffer.readBytes(me, block * blockBytes, blockBytes);
+			}
+		} else {
+			if (size != SIZE_HEADER_BLOCKED + byteArraySize) {
+				throw new IllegalArgumentException("wrong blocked bloom filter size: " + size);
+			}
+			channelBuffer.readBytes(me);
+		}
+		return new BlockedBloomFilter<E>(byteArraySize, header & ~FLAG_MASK, RPCUtils.fromByteArray(me));
+	}
+
+	/**
+	 * Merges this bloom filter with the provided one using OR.
+	 *
+	 * @param toMerge
+	 *            A blocked bloom filter of the same size
+	 * @return A new bloom filter that contains both sets.
+	 */
+	@Override
+	public BlockedBloomFilter<E> merge(final SimpleBloomFilter<E> toMerge) {
+		if (!(toMerge instanceof BlockedBloomFilter) || toMerge.bitArraySize() != bitArraySize()) {
+			throw new RuntimeException("The two bloomfilters must be blocked and have the same size.");
+		}
+		final BitSet mergedBitSet = (BitSet) getBitSet().clone();
+		mergedBitSet.or(toMerge.getBitSet());
+		return new BlockedBloomFilter<E>(byteArraySize(), expectedElements(), mergedBitSet);
+	}
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A cuckoo filter (see https://www.cs.cmu.edu/~dga/papers/cuckoo-conext2014.pdf) that stores a fingerprint of each
+ * element in one of two buckets with four slots. Unlike a {@link CountingBloomFilter}, it supports
+ * {@link #remove(Object)} with about 10 bits per element for a false positive rate of 1%, which is about the size of a
+ * bloom filter, for lower false positive rates it is smaller. Removing an element that has not been added may remove
+ * another element with the same fingerprint.
+ * <p>
+ * The filter is sized for the expected elements. If more elements are added, a table with twice the buckets and one
+ * more bit per fingerprint is chained to the last one, so the false positive rate grows only slowly. If the encoded
+ * filter would not fit into its size field anymore, the filter becomes full and contains every element, so there are
+ * no false negatives.
+ * <p>
+ * It can be used where a SimpleBloomFilter is expected, e.g., from a {@link CuckooFilterFactory}. Filters cannot be
+ * merged and the bit set is not available.
+ *
+ * @author Thomas Bocek
+ * @param <E>
+ *            The type of object the filter should contain
+ */
+public class CuckooFilter<E> extends SimpleBloomFilter<E> {
+
+	private static final long serialVersionUID = 3851227651563834906L;
+
+	static final int FLAG_CUCKOO = 1 << 29;
+
+	private static final int FLAG_MASK = FLAG_VARIANT | FLAG_CUCKOO;
+
+	public static final int SLOTS = 4;
+
+	public static final int MIN_FINGERPRINT_BITS = 4;
+
+	public static final int MAX_FINGERPRINT_BITS = 16;
+
+	private static final double MAX_LOAD = 0.95;
+
+	private static final int MAX_KICKS = 500;
+
+	// the encoded size is an unsigned short
+	private static final int MAX_SIZE = 0xffff;
+
+	private static final int MAX_BUCKETS = 0xffff;
+
+	// length, expected elements, flags, number of tables
+	private static final int SIZE_HEADER_CUCKOO = SIZE_HEADER + 1 + 1;
+
+	// fingerprint bits, buckets, flags
+	private static final int SIZE_HEADER_TABLE = 1 + 2 + 1;
+
+	// bucket and fingerprint
+	private static final int SIZE_VICTIM = 2 + 2;
+
+	private static final int FLAG_FULL = 1;
+
+	private static final int FLAG_VICTIM = 2;
+
+	private final int expectedElements;
+
+	// new elements go to the last table
+	private final List<Table> tables;
+
+	private boolean full = false;
+
+	/**
+	 * Construct an empty CuckooFilter.
+	 *
+	 * @param falsePositiveProbability
+	 *            The false positive probability when the filter is full, determines the size of the fingerprints
+	 * @param expectedElements
+	 *            The typical number of items you expect to be added
+	 */
+	public CuckooFilter(final double falsePositiveProbability, final int expectedElements) {
+		this(expectedElements, new ArrayList<Table>(Arrays.asList(new Table(
+		        fingerprintBits(falsePositiveProbability), nrBuckets(expectedElements)))));
+		if (size() > MAX_SIZE) {
+			throw new IllegalArgumentException("too many expected elements: " + expectedElements);
+		}
+	}
+
+	private CuckooFilter(final int expectedElements, final List<Table> tables) {
+		super(0, 0, new BitSet(0));
+		if ((expectedElements & FLAG_MASK) != 0) {
+			throw new IllegalArgumentException("too many expected elements: " + expectedElements);
+		}
+		this.expectedElements = expectedElements;
+		this.tables = tables;
+	}
+
+	private static int fingerprintBits(final double falsePositiveProbability) {
+		// an element is compared with the fingerprints of two full buckets
+		final int bits = (int) Math.ceil(Math.log(2 * SLOTS / falsePositiveProbability) / Math.log(2.0));
+		return Math.max(MIN_FINGERPRINT_BITS, Math.min(MAX_FINGERPRINT_BITS, bits));
+	}
+
+	private static int nrBuckets(final int expectedElements) {
+		if (expectedElements == 0) {
+			return 0;
+		}
+		final int nrBuckets = (int) Math.ceil(expectedElements / (SLOTS * MAX_LOAD));
+		if (nrBuckets > MAX_BUCKETS) {
+			throw new IllegalArgumentException("too many expected elements: " + expectedElements);
+		}
+		return nrBuckets;
+	}
+
+	@Override
+	public synchronized double expectedFalsePositiveProbability() {
+		double notFalsePositive = 1;
+		for (int i = 0; i < tables.size(); i++) {
+			final Table table = tables.get(i);
+			// a chained table exists because the previous one overflowed, use its actual load
+			final double load = Math.min(1.0, (i == 0 ? expectedElements : table.count)
+			        / (double) (table.nrBuckets * SLOTS));
+			notFalsePositive *= Math.pow(1 - Math.pow(2, -table.fingerprintBits), 2 * SLOTS * load);
+		}
+		return 1 - notFalsePositive;
+	}
+
+	@Override
+	public int expectedElements() {
+		return expectedElements;
+	}
+
+	/**
+	 * @return The number of fingerprints in this filter
+	 */
+	public synchronized int count() {
+		int count = 0;
+		for (Table table : tables) {
+			count += table.count;
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of chained tables, 1 if no more elements than expected have been added
+	 */
+	public synchronized int nrTables() {
+		return tables.size();
+	}
+
+	@Override
+	public synchronized boolean add(final E o) {
+		if (full || isVoid()) {
+			return false;
+		}
+		final long hash = BlockedBloomFilter.hash(o);
+		final Table last = tables.get(tables.size() - 1);
+		if (last.add(hash)) {
+			return true;
+		}
+		final Table next = last.next();
+		if (size() + next.size() > MAX_SIZE) {
+			full = true;
+			return false;
+		}
+		tables.add(next);
+		return next.add(hash);
+	}
+
+	@Override
+	public synchronized boolean contains(final Object o) {
+		if (full) {
+			return true;
+		}
+		if (isVoid()) {
+			return false;
+		}
+		final long hash = BlockedBloomFilter.hash(o);
+		for (Table table : tables) {
+			if (table.contains(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes an element that has been added before.
+	 *
+	 * @param o
+	 *            The element to remove
+	 * @return True if a fingerprint of the element has been removed
+	 */
+	@Override
+	public synchronized boolean remove(final Object o) {
+		if (full || isVoid()) {
+			return false;
+		}
+		final long hash = BlockedBloomFilter.hash(o);
+		for (Table table : tables) {
+			if (table.remove(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized void clear() {
+		while (tables.size() > 1) {
+			tables.remove(tables.size() - 1);
+		}
+		tables.get(0).clear();
+		full = false;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		if (full) {
+			return false;
+		}
+		for (Table table : tables) {
+			if (!table.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isVoid() {
+		return tables.get(0).nrBuckets == 0;
+	}
+
+	@Override
+	public synchronized boolean isFull() {
+		return full;
+	}
+
+	@Override
+	public synchronized CuckooFilter<E> setAll() {
+		full = true;
+		return this;
+	}
+
+	/**
+	 * Not supported, the filter has no bit set.
+	 */
+	@Override
+	public BitSet getBitSet() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Not supported, cuckoo filters cannot be merged.
+	 */
+	@Override
+	public SimpleBloomFilter<E> merge(final SimpleBloomFilter<E> toMerge) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return The size of the encoded filter
+	 */
+	@Override
+	public synchronized int size() {
+		int size = SIZE_HEADER_CUCKOO;
+		for (Table table : tables) {
+			size += table.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes the size, the expected elements with the flags, the flags of the filter and the number of tables. Each
+	 * table follows with the number of bits per fingerprint, the number of buckets, its flags, the victim if there is
+	 * one and the packed fingerprints.
+	 *
+	 * @param buf
+	 *            The byte buffer where the filter will be written.
+	 */
+	@Override
+	public synchronized void encode(final ByteBuf buf) {
+		buf.writeShort(size());
+		buf.writeInt(expectedElements | FLAG_MASK);
+		buf.writeByte(full ? FLAG_FULL : 0);
+		buf.writeByte(tables.size());
+		for (Table table : tables) {
+			table.encode(buf);
+		}
+	}
+
+	static <E> CuckooFilter<E> decodeCuckoo(final ByteBuf channelBuffer) {
+		final int size = channelBuffer.getUnsignedShort(channelBuffer.readerIndex());
+		if (size < SIZE_HEADER_CUCKOO || channelBuffer.readableBytes() < size) {
+			throw new IllegalArgumentException("cuckoo filter is truncated");
+		}
+		final int end = channelBuffer.readerIndex() + size;
+		// the encoded size, checked above
+		channelBuffer.readUnsignedShort();
+		final int expectedElements = channelBuffer.readInt() & ~FLAG_MASK;
+		final int flags = channelBuffer.readUnsignedByte();
+		final int nrTables = channelBuffer.readUnsignedByte();
+		if (nrTables == 0) {
+			throw new IllegalArgumentException("cuckoo filter without table");
+		}
+		final List<Table> tables = new ArrayList<Table>(nrTables);
+		for (int i = 0; i < nrTables; i++) {
+			final Table table = Table.decode(channelBuffer, end);
+			if (table.nrBuckets == 0 && nrTables > 1) {
+				throw new IllegalArgumentException("empty table in a chain");
+			}
+			tables.add(table);
+		}
+		if (channelBuffer.readerIndex() != end) {
+			throw new IllegalArgumentException("wrong cuckoo filter size: " + size);
+		}
+		final CuckooFilter<E> cuckooFilter = new CuckooFilter<E>(expectedElements, tables);
+		cuckooFilter.full = (flags & FLAG_FULL) != 0;
+		return cuckooFilter;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof CuckooFilter)) {
+			return false;
+		}
+		if (this == obj) {
+			return true;
+		}
+		final CuckooFilter<?> o = (CuckooFilter<?>) obj;
+		synchronized (this) {
+			return o.expectedElements == expectedElements && o.full == full && o.tables.equals(tables);
+		}
+	}
+
+	@Override
+	public synchronized int hashCode() {
+		final int magic = 31;
+		int hash = 7;
+		hash = magic * hash + tables.hashCode();
+		hash = magic * hash + expectedElements;
+		return hash;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("CuckooFilter[");
+		for (Table table : tables) {
+			sb.append("f:").append(table.fingerprintBits).append(",b:").append(table.nrBuckets).append(",n:")
+			        .append(table.count).append(';');
+		}
+		sb.setLength(sb.length() - 1);
+		return sb.append(full ? ",full]" : "]").toString();
+	}
+
+	/**
+	 * One cuckoo hash table with its own fingerprint size. A table that overflows keeps the fingerprint that was
+	 * kicked out last as victim and accepts no further elements that do not fit into their buckets.
+	 */
+	private static final class Table implements Serializable {
+
+		private static final long serialVersionUID = -2394718206349174213L;
+
+		private final int fingerprintBits;
+
+		private final int nrBuckets;
+
+		// a fingerprint of 0 is an empty slot
+		private final short[] slots;
+
+		private int count;
+
+		private int victimBucket;
+
+		private short victim = 0;
+
+		private Table(final int fingerprintBits, final int nrBuckets) {
+			this(fingerprintBits, nrBuckets, new short[nrBuckets * SLOTS]);
+		}
+
+		private Table(final int fingerprintBits, final int nrBuckets, final short[] slots) {
+			this.fingerprintBits = fingerprintBits;
+			this.nrBuckets = nrBuckets;
+			this.slots = slots;
+			for (short fingerprint : slots) {
+				if (fingerprint != 0) {
+					count++;
+				}
+			}
+		}
+
+		/**
+		 * @return The table to chain to this one
+		 */
+		private Table next() {
+			return new Table(Math.min(MAX_FINGERPRINT_BITS, fingerprintBits + 1),
+			        Math.min(MAX_BUCKETS, nrBuckets * 2));
+		}
+
+		/**
+		 * @return False if the table already has a victim and the element does not fit into its buckets
+		 */
+		private boolean add(final long hash) {
+			short fingerprint = fingerprint(hash);
+			int bucket = bucket(hash);
+			if (insert(bucket, fingerprint) || insert(alternate(bucket, fingerprint), fingerprint)) {
+				return true;
+			}
+			if (victim != 0) {
+				// no room for a second victim
+				return false;
+			}
+			// kick out fingerprints to their alternate bucket
+			if ((hash & 1) != 0) {
+				bucket = alternate(bucket, fingerprint);
+			}
+			for (int kick = 0; kick < MAX_KICKS; kick++) {
+				final int slot = bucket * SLOTS + (kick % SLOTS);
+				final short kicked = slots[slot];
+				slots[slot] = fingerprint;
+				fingerprint = kicked;
+				bucket = alternate(bucket, fingerprint);
+				if (insert(bucket, fingerprint)) {
+					return true;
+				}
+			}
+			victim = fingerprint;
+			victimBucket = bucket;
+			return true;
+		}
+
+		private boolean insert(final int bucket, final short fingerprint) {
+			final int offset = bucket * SLOTS;
+			for (int i = 0; i < SLOTS; i++) {
+				if (slots[offset + i] == 0) {
+					slots[offset + i] = fingerprint;
+					count++;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean contains(final long hash) {
+			final short fingerprint = fingerprint(hash);
+			final int bucket = bucket(hash);
+			final int alternate = alternate(bucket, fingerprint);
+			if (victim == fingerprint && (victimBucket == bucket || victimBucket == alternate)) {
+				return true;
+			}
+			return find(bucket, fingerprint) >= 0 || find(alternate, fingerprint) >= 0;
+		}
+
+		private int find(final int bucket, final short fingerprint) {
+			final int offset = bucket * SLOTS;
+			for (int i = 0; i < SLOTS; i++) {
+				if (slots[offset + i] == fingerprint) {
+					return offset + i;
+				}
+			}
+			return -1;
+		}
+
+		private boolean remove(final long hash) {
+			final short fingerprint = fingerprint(hash);
+			final int bucket = bucket(hash);
+			final int alternate = alternate(bucket, fingerprint);
+			if (victim == fingerprint && (victimBucket == bucket || victimBucket == alternate)) {
+				victim = 0;
+				return true;
+			}
+			int slot = find(bucket, fingerprint);
+			if (slot < 0) {
+				slot = find(alternate, fingerprint);
+			}
+			if (slot < 0) {
+				return false;
+			}
+			slots[slot] = 0;
+			count--;
+			if (victim != 0) {
+				// there is room now
+				final short oldVictim = victim;
+				victim = 0;
+				if (!insert(victimBucket, oldVictim) && !insert(alternate(victimBucket, oldVictim), oldVictim)) {
+					victim = oldVictim;
+				}
+			}
+			return true;
+		}
+
+		private short fingerprint(final long hash) {
+			final int fingerprint = (int) (hash >>> (Long.SIZE - fingerprintBits));
+			return (short) (fingerprint == 0 ? 1 : fingerprint);
+		}
+
+		private int bucket(final long hash) {
+			return (int) (((hash & 0xffffffffL) * nrBuckets) >>> 32);
+		}
+
+		// symmetric, so that the alternate of the alternate bucket is the bucket again
+		private int alternate(final int bucket, final short fingerprint) {
+			final int hash = (int) (BlockedBloomFilter.mix(fingerprint) >>> 33);
+			return Math.floorMod(hash - bucket, nrBuckets);
+		}
+
+		private void clear() {
+			Arrays.fill(slots, (short) 0);
+			count = 0;
+			victim = 0;
+		}
+
+		private boolean isEmpty() {
+			return count == 0 && victim == 0;
+		}
+
+		private int size() {
+			return SIZE_HEADER_TABLE + (victim != 0 ? SIZE_VICTIM : 0) + packedSize(nrBuckets, fingerprintBits);
+		}
+
+		private static int packedSize(final int nrBuckets, final int fingerprintBits) {
+			return (nrBuckets * SLOTS * fingerprintBits + 7) / 8;
+		}
+
+		private void encode(final ByteBuf buf) {
+			buf.writeByte(fingerprintBits);
+			buf.writeShort(nrBuckets);
+			buf.writeByte(victim != 0 ? FLAG_VICTIM : 0);
+			if (victim != 0) {
+				buf.writeShort(victimBucket);
+				buf.writeShort(victim);
+			}
+			long bits = 0;
+			int nrBits = 0;
+			for (short fingerprint : slots) {
+				bits = (bits << fingerprintBits) | (fingerprint & 0xffff);
+				nrBits += fingerprintBits;
+				while (nrBits >= Byte.SIZE) {
+					nrBits -= Byte.SIZE;
+					buf.writeByte((int) (bits >>> nrBits));
+				}
+			}
+			if (nrBits > 0) {
+				buf.writeByte((int) (bits << (Byte.SIZE - nrBits)));
+			}
+		}
+
+		// end is the reader index after the filter, nothing is allocated before the sizes are checked against it
+		private static Table decode(final ByteBuf buf, final int end) {
+			if (end - buf.readerIndex() < SIZE_HEADER_TABLE) {
+				throw new IllegalArgumentException("cuckoo filter is truncated");
+			}
+			final int fingerprintBits = buf.readUnsignedByte();
+			if (fingerprintBits < MIN_FINGERPRINT_BITS || fingerprintBits > MAX_FINGERPRINT_BITS) {
+				throw new IllegalArgumentException("wrong fingerprint size: " + fingerprintBits);
+			}
+			final int nrBuckets = buf.readUnsignedShort();
+			final int flags = buf.readUnsignedByte();
+			final int mask = (1 << fingerprintBits) - 1;
+			int victimBucket = 0;
+			short victim = 0;
+			if ((flags & FLAG_VICTIM) != 0) {
+				if (end - buf.readerIndex() < SIZE_VICTIM) {
+					throw new IllegalArgumentException("cuckoo filter is truncated");
+				}
+				victimBucket = buf.readUnsignedShort();
+				victim = buf.readShort();
+				if (victimBucket >= nrBuckets || victim == 0 || (victim & 0xffff & ~mask) != 0) {
+					throw new IllegalArgumentException("wrong victim: " + victim + " in bucket " + victimBucket);
+				}
+			}
+			if (end - buf.readerIndex() < packedSize(nrBuckets, fingerprintBits)) {
+				throw new IllegalArgumentException("cuckoo filter is truncated");
+			}
+			final short[] slots = new short[nrBuckets * SLOTS];
+			long bits = 0;
+			int nrBits = 0;
+			for (int i = 0; i < slots.length; i++) {
+				while (nrBits < fingerprintBits) {
+					bits = (bits << Byte.SIZE) | buf.readUnsignedByte();
+					nrBits += Byte.SIZE;
+				}
+				nrBits -= fingerprintBits;
+				slots[i] = (short) ((bits >>> nrBits) & mask);
+			}
+			final Table table = new Table(fingerprintBits, nrBuckets, slots);
+			table.victim = victim;
+			table.victimBucket = victimBucket;
+			return table;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Table)) {
+				return false;
+			}
+			final Table o = (Table) obj;
+			return o.fingerprintBits == fingerprintBits && o.victim == victim
+			        && (victim == 0 || o.victimBucket == victimBucket) && Arrays.equals(o.slots, slots);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(slots) + fingerprintBits;
+		}
+	}
+}
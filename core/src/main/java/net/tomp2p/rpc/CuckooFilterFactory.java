@@ -0,0 +1,25 @@
+package net.tomp2p.rpc;
+
+import net.tomp2p.peers.Number256;
+
+/**
+ * Creates {@link CuckooFilter}s with the same parameters as the {@link DefaultBloomfilterFactory}.
+ */
+public class CuckooFilterFactory implements BloomfilterFactory {
+
+    @Override
+    public SimpleBloomFilter<Number256> createContentKeyBloomFilter() {
+        return new CuckooFilter<Number256>(0.01d, 1000);
+    }
+
+    @Override
+    public SimpleBloomFilter<Number256> createVersionKeyBloomFilter() {
+        return new CuckooFilter<Number256>(0.01d, 1000);
+    }
+
+    @Override
+    public SimpleBloomFilter<Number256> createContentBloomFilter() {
+        return new CuckooFilter<Number256>(0.01d, 1000);
+    }
+
+}
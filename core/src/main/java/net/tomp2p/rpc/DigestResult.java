@@ -33,6 +33,8 @@ public class DigestResult {
     
     final private Map<Object, Data> dataMap;
 
+    final private DigestInfo summary;
+
     public DigestResult(SimpleBloomFilter<Number256> contentKeyBloomFilter, SimpleBloomFilter<Number256> versionKeyBloomFilter,
                         SimpleBloomFilter<Number256> contentBloomFilter) {
         this.contentKeyBloomFilter = contentKeyBloomFilter;
@@ -40,6 +42,7 @@ public class DigestResult {
         this.contentBloomFilter = contentBloomFilter;
         this.keyDigest = null;
         this.dataMap = null;
+        this.summary = null;
     }
 
     public DigestResult(NavigableMap<Object, Collection<Number256>> keyDigest) {
@@ -48,6 +51,7 @@ public class DigestResult {
         this.versionKeyBloomFilter = null;
         this.contentBloomFilter = null;
         this.dataMap = null;
+        this.summary = null;
     }
 
     public DigestResult(Map<Object, Data> dataMap) {
@@ -56,6 +60,20 @@ public class DigestResult {
 	    this.contentKeyBloomFilter = null;
         this.versionKeyBloomFilter = null;
         this.contentBloomFilter = null;
+        this.summary = null;
+    }
+
+    /**
+     * @param summary
+     *            The digest of a whole location and domain, with the key digest, the content digest and the size only
+     */
+    public DigestResult(DigestInfo summary) {
+        this.summary = summary;
+        this.keyDigest = null;
+        this.contentKeyBloomFilter = null;
+        this.versionKeyBloomFilter = null;
+        this.contentBloomFilter = null;
+        this.dataMap = null;
     }
 
 	public SimpleBloomFilter<Number256> contentKeyBloomFilter() {
@@ -77,6 +95,10 @@ public class DigestResult {
     public Map<Object, Data> dataMap() {
         return dataMap;
     }
+
+    public DigestInfo summary() {
+        return summary;
+    }
     
 
     @Override
@@ -97,6 +119,9 @@ public class DigestResult {
         if	(dataMap!=null) {
         	hashCode ^= dataMap.hashCode();
         }
+        if (summary != null) {
+            hashCode ^= summary.hashCode();
+        }
         return hashCode;
     }
 
@@ -114,6 +139,7 @@ public class DigestResult {
         		Utils.equals(contentKeyBloomFilter, o.contentKeyBloomFilter) &&
         		Utils.equals(versionKeyBloomFilter, o.versionKeyBloomFilter) &&
         		Utils.equals(contentBloomFilter, o.contentBloomFilter) &&
-        		Utils.equals(dataMap, o.dataMap);
+        		Utils.equals(dataMap, o.dataMap) &&
+        		Utils.equals(summary, o.summary);
     }
 }
@@ -15,13 +15,22 @@
  */
 package net.tomp2p.rpc;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
+import java.util.TreeMap;
 
 import net.tomp2p.connection.ChannelSender;
 import net.tomp2p.connection.ConnectionBean;
@@ -40,7 +49,10 @@ import net.tomp2p.message.NeighborSet;
 import net.tomp2p.network.KCP;
 import net.tomp2p.peers.*;
 import net.tomp2p.peers.Number256;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.DigestStorage;
 import net.tomp2p.utils.Pair;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +69,13 @@ public class NeighborRPC extends DispatchHandler {
 
     public static final int NEIGHBOR_SIZE = 30;
     public static final int NEIGHBOR_LIMIT = 1000;
+    /**
+     * Upper bound for piggy-backed values, so that a neighbor reply still fits into a few datagrams.
+     */
+    public static final int MAX_PIGGY_BACK_SIZE = 8 * 1024;
+
+    private static final int FLAG_CONTENT_KEY = 1;
+    private static final int FLAG_PIGGY_BACK = 1 << 1;
     
     public NeighborRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
         this(peerBean, connectionBean, true);
@@ -103,32 +122,34 @@ public class NeighborRPC extends DispatchHandler {
      */
     public Pair<FutureDone<Message>, KCP> closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
             final Type type, final ConnectionConfiguration configuration) {
+        return closeNeighbors(remotePeer, searchValues, 0, type, configuration);
+    }
+
+    /**
+     * Requests close neighbors from the remote peer. If the remote peer stores values for the search values and those
+     * are not larger than the piggy-back size in total, they are added to the reply. This saves the round trip to get
+     * small values after the routing.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request to
+     * @param searchValues
+     *            The values to search for in the storage
+     * @param piggyBackSize
+     *            The maximum size in bytes of the values in the reply, 0 to not piggy-back any values
+     * @param type
+     *            The type of the neighbor request
+     * @param configuration
+     *            The client-side connection configuration
+     * @return The future response to keep track of future events
+     */
+    public Pair<FutureDone<Message>, KCP> closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
+            final int piggyBackSize, final Type type, final ConnectionConfiguration configuration) {
         Message message = createMessage(remotePeer, RPC.Commands.NEIGHBOR.getNr(), type);
         if (!message.isRequest()) {
             throw new IllegalArgumentException("The type must be a request");
         }
         
-        /*message.key(searchValues.locationKey());
-        message.key(searchValues.domainKey() == null ? Number256.ZERO : searchValues.domainKey());
-        
-        /*if(searchValues.from() !=null && searchValues.to()!=null) {
-        	Collection<Object> collection = new ArrayList<Object>(2);
-        	//collection.add(searchValues.from());
-        	//collection.add(searchValues.to());
-        	//KeyCollection keyCollection = new KeyCollection(collection);
-        	//message.keyCollection(keyCollection);
-        } else*/ /*{
-	        if (searchValues.contentKey() != null) {
-        		message.key(searchValues.contentKey());
-        	}
-        
-        	if (searchValues.keyBloomFilter() != null) {
-        		message.bloomFilter(searchValues.keyBloomFilter());
-        	}
-        	if (searchValues.contentBloomFilter() != null) {
-        		message.bloomFilter(searchValues.contentBloomFilter());
-        	}
-        }*/
+        message.payload(encodeRequest(searchValues, piggyBackSize));
         LOG.debug("Ask remote peer for neighbors with msg {}", message);
         return send(message, configuration);
     }
@@ -158,22 +179,25 @@ public class NeighborRPC extends DispatchHandler {
 
     @Override
     public void handleResponse(Responder r, final Message message, final boolean sign, KCP kcp, ChannelSender sender) throws IOException {
-        /*if (message.keyList().size() < 2) {
-			throw new IllegalArgumentException("At least location and domain keys are needed.");
-        }
-        if (!(message.type() == Type.REQUEST_1 || message.type() == Type.REQUEST_2
-                || message.type() == Type.REQUEST_3 || message.type() == Type.REQUEST_4)
-                && (message.command() == RPC.Commands.NEIGHBOR.getNr())) {
+        if (!message.isRequest() || message.command() != RPC.Commands.NEIGHBOR.getNr()) {
 			throw new IllegalArgumentException("Message content is wrong for this handler.");
         }
-        Number256 locationKey = message.key(0);
-        Number256 domainKey = message.key(1);
+        final ByteBuffer request = message.payload();
+        if (request == null || request.remaining() < 2 * Number256.BYTE_ARRAY_SIZE) {
+			throw new IllegalArgumentException("At least location and domain keys are needed.");
+        }
+        final ByteBuffer buf = request.duplicate();
+        final Number256 locationKey = Number256.decode(buf);
+        final Number256 domainKey = Number256.decode(buf);
+        final byte flags = buf.hasRemaining() ? buf.get() : 0;
+        final Number256 contentKey = (flags & FLAG_CONTENT_KEY) != 0 ? Number256.decode(buf) : null;
+        final int piggyBackSize = (flags & FLAG_PIGGY_BACK) != 0 ? buf.getInt() : 0;
         
         List<PeerAddress> neighbors = getNeighbors(locationKey, NEIGHBOR_SIZE);
         if(neighbors == null) {
             //return empty neighbor set
             Message response = createResponseMessage(message, Type.NOT_FOUND);
-            response.neighborsSet(new NeighborSet(-1, Collections.<PeerAddress>emptyList()));
+            response.payload(encodeResponse(Collections.<PeerAddress>emptyList(), null));
             r.response(response);
             return;
         }
@@ -183,54 +207,206 @@ public class NeighborRPC extends DispatchHandler {
         
 		LOG.debug("Found the following neighbors: {}.", neighbors);
         NeighborSet neighborSet = new NeighborSet(NEIGHBOR_LIMIT, neighbors);
-        responseMessage.neighborsSet(neighborSet);
-		// check for fast get:
-		// -1 if no domain provided, so we cannot check content length
-		// 0 for content not here
-		// >0 content here
-        // int contentLength = -1;
-        Number256 contentKey = message.key(2);
-        SimpleBloomFilter<Number256> keyBloomFilter = message.bloomFilter(0);
-        SimpleBloomFilter<Number256> contentBloomFilter = message.bloomFilter(1);
-        KeyCollection keyCollection = message.keyCollection(0);
-        // it is important to set an integer if a value is present
-        boolean isDigest = message.type() != Type.REQUEST_1;
-        if (isDigest) {
-            if (message.type() == Type.REQUEST_2) {
-                final DigestInfo digestInfo;
-                if (peerBean().digestStorage() == null) {
-                	//no storage to search
-                	digestInfo = new DigestInfo();
-                } else {
-					LOG.warn("Did not search for anything.");
-                	digestInfo = new DigestInfo();
-                }
-                responseMessage.intValue(digestInfo.size());
-                responseMessage.key(digestInfo.keyDigest());
-                responseMessage.key(digestInfo.contentDigest());
-            } else if (message.type() == Type.REQUEST_3) {
-            	final DigestInfo digestInfo;
-            	if(peerBean().digestTracker() == null) {
-            		//no tracker to search
-            		digestInfo = new DigestInfo();
-            	} else {
-            		digestInfo = peerBean().digestTracker().digest(locationKey, domainKey, contentKey);
-            		if (digestInfo.size() == 0) {	
-						LOG.debug("No entry found on peer {}.", message.recipient());
-            		}
-            	}
-                responseMessage.intValue(digestInfo.size());
-            } 
-            else if (message.type() == Type.REQUEST_4) {
-            	synchronized (peerBean().peerStatusListeners()) {
-            		for (PeerStatusListener peerStatusListener : peerBean().peerStatusListeners()) {
-    					peerStatusListener.peerFailed(message.sender(), new PeerException(AbortCause.SHUTDOWN, "shutdown"));
-    				}
-            	}
+        final Map<Number256, Pair<Number256, Data>> values = piggyBackSize > 0 ? smallValues(locationKey, domainKey, contentKey,
+                piggyBackSize) : null;
+        responseMessage.payload(encodeResponse(neighborSet.neighbors(), values));
+        r.response(responseMessage);
+    }
+
+    /**
+     * Returns the values that are stored on this peer for the search values, if they fit into the piggy-back size.
+     * 
+     * @return The values or null if there are none or they are too large
+     */
+    private Map<Number256, Pair<Number256, Data>> smallValues(final Number256 locationKey,
+            final Number256 domainKey, final Number256 contentKey, final int piggyBackSize) {
+        final DigestStorage digestStorage = peerBean().digestStorage();
+        if (digestStorage == null) {
+            return null;
+        }
+        final Map<Number256, Pair<Number256, Data>> values = digestStorage.smallValues(locationKey, domainKey, contentKey,
+                Math.min(piggyBackSize, MAX_PIGGY_BACK_SIZE));
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        LOG.debug("Piggy-back {} values for {}.", values.size(), locationKey);
+        return values;
+    }
+
+    /**
+     * Encodes the search values of a neighbor request: the location key, the domain key (zero if not set), a flag
+     * byte, optionally the content key and optionally the piggy-back size.
+     * 
+     * @param searchValues
+     *            The values to search for
+     * @param piggyBackSize
+     *            The maximum size of values to piggy-back, 0 for none
+     * @return The payload of the request
+     */
+    static ByteBuffer encodeRequest(final SearchValues searchValues, final int piggyBackSize) {
+        final boolean hasContentKey = searchValues.contentKey() != null;
+        final boolean piggyBack = piggyBackSize > 0;
+        final ByteBuffer buf = ByteBuffer.allocate((hasContentKey ? 3 : 2) * Number256.BYTE_ARRAY_SIZE + 1
+                + (piggyBack ? Utils.INTEGER_BYTE_SIZE : 0));
+        searchValues.locationKey().encode(buf);
+        (searchValues.domainKey() == null ? Number256.ZERO : searchValues.domainKey()).encode(buf);
+        buf.put((byte) ((hasContentKey ? FLAG_CONTENT_KEY : 0) | (piggyBack ? FLAG_PIGGY_BACK : 0)));
+        if (hasContentKey) {
+            searchValues.contentKey().encode(buf);
+        }
+        if (piggyBack) {
+            buf.putInt(piggyBackSize);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Encodes the neighbors of a reply as the number of neighbors followed by the peer addresses. Piggy-backed values
+     * follow as the number of values and for each value the content key, the version key, the length and the value
+     * with its header, i.e., with TTL, based-on keys, public key and signature.
+     * 
+     * @param neighbors
+     *            The neighbors to report
+     * @param values
+     *            The piggy-backed version keys and values by content key, may be null
+     * @return The payload of the reply
+     */
+    static ByteBuffer encodeResponse(final Collection<PeerAddress> neighbors,
+            final Map<Number256, Pair<Number256, Data>> values) {
+        final List<byte[]> encoded = encodeValues(values);
+        int size = Utils.SHORT_BYTE_SIZE;
+        for (PeerAddress neighbor : neighbors) {
+            size += neighbor.size();
+        }
+        if (encoded != null) {
+            size += Utils.SHORT_BYTE_SIZE;
+            for (byte[] value : encoded) {
+                size += 2 * Number256.BYTE_ARRAY_SIZE + Utils.INTEGER_BYTE_SIZE + value.length;
+            }
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putShort((short) neighbors.size());
+        for (PeerAddress neighbor : neighbors) {
+            neighbor.encode(buf);
+        }
+        if (encoded != null) {
+            buf.putShort((short) encoded.size());
+            final Iterator<byte[]> iterator = encoded.iterator();
+            for (Map.Entry<Number256, Pair<Number256, Data>> entry : values.entrySet()) {
+                final byte[] value = iterator.next();
+                entry.getKey().encode(buf);
+                entry.getValue().element0().encode(buf);
+                buf.putInt(value.length);
+                buf.put(value);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * @return The encoded values in the order of the map, or null if there are none or a value cannot be encoded
+     */
+    private static List<byte[]> encodeValues(final Map<Number256, Pair<Number256, Data>> values) {
+        if (values == null) {
+            return null;
+        }
+        final List<byte[]> encoded = new ArrayList<byte[]>(values.size());
+        for (Pair<Number256, Data> value : values.values()) {
+            final CompositeByteBuf buf = Unpooled.compositeBuffer();
+            try {
+                value.element1().encodeHeader(buf);
+                value.element1().encodeBuffer(buf);
+                value.element1().encodeDone(buf);
+                final byte[] me = new byte[buf.readableBytes()];
+                buf.readBytes(me);
+                encoded.add(me);
+            } catch (InvalidKeyException | SignatureException | IOException | IllegalArgumentException e) {
+                // the requester gets the values the regular way
+                LOG.warn("Cannot piggy-back value {}.", value.element1(), e);
+                return null;
+            } finally {
+                buf.release();
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Decodes the neighbors from the reply of a neighbor request.
+     * 
+     * @param response
+     *            The reply from the remote peer
+     * @return The neighbors the remote peer reported, empty if none
+     */
+    public static Collection<PeerAddress> decodeNeighbors(final Message response) {
+        if (response == null || response.payload() == null || response.payload().remaining() < Utils.SHORT_BYTE_SIZE) {
+            return Collections.emptyList();
+        }
+        final ByteBuffer buf = response.payload().duplicate();
+        return decodeNeighbors(buf);
+    }
+
+    private static List<PeerAddress> decodeNeighbors(final ByteBuffer buf) {
+        final int size = buf.getShort() & 0xffff;
+        final List<PeerAddress> neighbors = new ArrayList<PeerAddress>(size);
+        for (int i = 0; i < size; i++) {
+            neighbors.add(PeerAddress.decode(buf));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Decodes the piggy-backed values from the reply of a neighbor request.
+     * 
+     * @param response
+     *            The reply from the remote peer
+     * @return The version keys and values stored on the remote peer by content key, empty if none were piggy-backed
+     *         or they cannot be decoded
+     */
+    public static Map<Number256, Pair<Number256, Data>> decodeValues(final Message response) {
+        if (response == null || response.payload() == null || response.payload().remaining() < Utils.SHORT_BYTE_SIZE) {
+            return Collections.emptyMap();
+        }
+        final ByteBuffer buf = response.payload().duplicate();
+        decodeNeighbors(buf);
+        if (buf.remaining() < Utils.SHORT_BYTE_SIZE) {
+            return Collections.emptyMap();
+        }
+        final int size = buf.getShort() & 0xffff;
+        final Map<Number256, Pair<Number256, Data>> values = new TreeMap<Number256, Pair<Number256, Data>>();
+        for (int i = 0; i < size; i++) {
+            if (buf.remaining() < 2 * Number256.BYTE_ARRAY_SIZE + Utils.INTEGER_BYTE_SIZE) {
+                LOG.warn("Piggy-backed values are truncated.");
+                return Collections.emptyMap();
+            }
+            final Number256 contentKey = Number256.decode(buf);
+            final Number256 versionKey = Number256.decode(buf);
+            final int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                LOG.warn("Piggy-backed values are truncated.");
+                return Collections.emptyMap();
             }
-              
+            final byte[] value = new byte[length];
+            buf.get(value);
+            final Data data = decodeValue(value);
+            if (data == null) {
+                LOG.warn("Piggy-backed value for {} cannot be decoded.", contentKey);
+                return Collections.emptyMap();
+            }
+            values.put(contentKey, new Pair<Number256, Data>(versionKey, data));
+        }
+        return values;
+    }
+
+    private static Data decodeValue(final byte[] value) {
+        final ByteBuf buf = Unpooled.wrappedBuffer(value);
+        final Data data = Data.decodeWrapped(buf);
+        if (data == null || !data.decodeDone(buf)) {
+            return null;
         }
-        r.response(responseMessage);*/
+        return data;
     }
 
     /**
@@ -32,7 +32,9 @@ public class RPC {
 		GET_LATEST_WITH_DIGEST(),
 		GCM(),
 		REPLICA_PUT(), 
-		DIGEST_ALL_BLOOMFILTER();
+		DIGEST_ALL_BLOOMFILTER(),
+		MERKLE(),
+		NEAR_CACHE();
 	public byte getNr() {
 		return (byte) ordinal();
 	}
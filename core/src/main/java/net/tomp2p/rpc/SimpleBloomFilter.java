@@ -55,6 +55,9 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 
 	public static final int SIZE_HEADER = SIZE_HEADER_LENGTH + SIZE_HEADER_ELEMENTS;
 
+	// set in the expected elements of the encoding if the filter is not a SimpleBloomFilter
+	static final int FLAG_VARIANT = 1 << 31;
+
 	private final int k;
 
 	private final BitSet bitSet;
@@ -145,6 +148,25 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		this.bitSet = bitSet;
 	}
 
+	/**
+	 * Decodes a bloom filter that has been encoded with {@link #encode(ByteBuf)}, either a SimpleBloomFilter, a
+	 * {@link BlockedBloomFilter} or a {@link CuckooFilter}.
+	 * 
+	 * @param channelBuffer
+	 *            The byte buffer with the data
+	 * @return The decoded bloom filter
+	 */
+	public static <E> SimpleBloomFilter<E> decode(final ByteBuf channelBuffer) {
+		final int header = channelBuffer.getInt(channelBuffer.readerIndex() + SIZE_HEADER_LENGTH);
+		if ((header & FLAG_VARIANT) != 0) {
+			if ((header & CuckooFilter.FLAG_CUCKOO) != 0) {
+				return CuckooFilter.decodeCuckoo(channelBuffer);
+			}
+			return BlockedBloomFilter.decodeBlocked(channelBuffer);
+		}
+		return new SimpleBloomFilter<E>(channelBuffer);
+	}
+
 	/**
 	 * Calculates the approximate probability of the contains() method returning
 	 * true for an object that had not previously been inserted into the bloom
@@ -156,6 +178,18 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		return Math.pow((1 - Math.exp(-k * (double) expectedElements / bitArraySize)), k);
 	}
 
+	protected int hashFunctions() {
+		return k;
+	}
+
+	protected int byteArraySize() {
+		return byteArraySize;
+	}
+
+	protected int bitArraySize() {
+		return bitArraySize;
+	}
+
 	/**
 	 * Returns the expected elements that was provided by the user.
 	 * 
@@ -372,12 +406,13 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 
 	/** Merges this bloom filter with the provided one using OR.
 	 * @param toMerge
+	 *            A bloom filter of the same kind and size, the variants do not use the same bits
 	 *
 	 * @return A new bloom filter that contains both sets.
 	 */
 	public SimpleBloomFilter<E> merge(final SimpleBloomFilter<E> toMerge) {
-		if (toMerge.bitArraySize != bitArraySize) {
-			throw new RuntimeException("The two bloomfilters must have the same size.");
+		if (toMerge.getClass() != getClass() || toMerge.bitArraySize != bitArraySize) {
+			throw new RuntimeException("The two bloomfilters must be of the same kind and have the same size.");
 		}
 		BitSet mergedBitSet = (BitSet) bitSet.clone();
 		mergedBitSet.or(toMerge.bitSet);
@@ -386,7 +421,7 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 
 	@Override
 	public boolean equals(final Object obj) {
-		if (!(obj instanceof SimpleBloomFilter)) {
+		if (obj == null || obj.getClass() != getClass()) {
 			return false;
 		}
 		if (this == obj) {
@@ -117,6 +117,20 @@ public class Data {
 	 *            The length, depending on the header values.
 	 */
 	public Data(final int header, final int length) {
+		this(header, length, Unpooled.buffer(length));
+	}
+
+	/**
+	 * Creates a Data object from a header and a buffer that already contains the complete data.
+	 * 
+	 * @param header
+	 *            The 8 bit header
+	 * @param length
+	 *            The length, depending on the header values.
+	 * @param buffer
+	 *            The buffer of the data, either empty or with exactly length readable bytes
+	 */
+	private Data(final int header, final int length, final ByteBuf buffer) {
 		this.publicKeyFlag = hasPublicKey(header);
 		this.flag1 = isFlag1(header);
 		this.flag2 = isFlag2(header);
@@ -134,7 +148,7 @@ public class Data {
 		}
 
 		this.length = length;
-		this.buffer = Unpooled.buffer(length);
+		this.buffer = buffer;
 		this.validFromMillis = System.currentTimeMillis();
 	}
 
@@ -196,6 +210,23 @@ public class Data {
 	 * @return The data object, may be partially filled
 	 */
 	public static Data decodeHeader(final ByteBuf buf) {
+		return decodeHeader(buf, false);
+	}
+
+	/**
+	 * Reads the header and wraps the data that follows without copying it. Use this for buffers that stay valid as
+	 * long as the data object is used, e.g., a memory mapped file. Does not modify the buffer positions if the header
+	 * and the data could not be fully read.
+	 * 
+	 * @param buf
+	 *            The buffer to read from
+	 * @return The data object with the complete data, or null if the buffer is too short
+	 */
+	public static Data decodeWrapped(final ByteBuf buf) {
+		return decodeHeader(buf, true);
+	}
+
+	private static Data decodeHeader(final ByteBuf buf, final boolean wrap) {
 		// 2 is the smallest packet size, we could start if we know 1 byte to
 		// decode the header, but we always need
 		// a second byte. Thus, we are waiting for at least 2 bytes.
@@ -285,18 +316,29 @@ public class Data {
 			if (buf.readableBytes() < indexEnd) {
 				return null;
 			}
+			if (wrap && buf.readableBytes() < indexPublicKeySize + length) {
+				return null;
+			}
 			//get public key
 			buf.skipBytes(indexPublicKeySize);
 			//publicKey = signatureFactory.decodePublicKey(buf);
 		} else {
 			publicKeySize = 0;
 			indexPublicKey = indexPublicKeySize;
+			if (wrap && buf.readableBytes() < indexPublicKey + length) {
+				return null;
+			}
 			buf.skipBytes(indexPublicKey);
 			publicKey = null;
 		}
 		
 		// now, we have read the header and the length
-		final Data data = new Data(header, length);
+		final Data data;
+		if (wrap) {
+			data = new Data(header, length, buf.readSlice(length));
+		} else {
+			data = new Data(header, length);
+		}
 		data.ttlSeconds = ttl;
 		data.basedOnSet = basedOn;
 		//data.publicKey = publicKey;
@@ -1,10 +1,12 @@
 package net.tomp2p.storage;
 
 import java.util.Collection;
+import java.util.NavigableMap;
 
 import net.tomp2p.peers.Number256;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.utils.Pair;
 
 public interface DigestStorage {
 
@@ -15,4 +17,22 @@ public interface DigestStorage {
 
 	public abstract DigestInfo digest(Collection<Number640> number640s);*/
 
+	/**
+	 * Returns the latest values for a location and domain key, if their total size does not exceed the given limit.
+	 * These values are piggy-backed on a neighbor reply.
+	 *
+	 * @param locationKey
+	 *            The location key
+	 * @param domainKey
+	 *            The domain key
+	 * @param contentKey
+	 *            The content key or null for all content keys
+	 * @param maxSize
+	 *            The maximum total size of the values in bytes
+	 * @return The version key and the value by content key, or null if there are none, they are too large or a content
+	 *         key has more than one latest version
+	 */
+	public abstract NavigableMap<Number256, Pair<Number256, Data>> smallValues(Number256 locationKey, Number256 domainKey,
+			Number256 contentKey, int maxSize);
+
 }
\ No newline at end of file
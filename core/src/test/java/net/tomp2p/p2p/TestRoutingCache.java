@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.net.UnknownHostException;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.peers.Number256;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRoutingCache {
+
+    private static final Number256 KEY = new Number256(0);
+
+    @Test
+    public void testHit() throws UnknownHostException {
+        RoutingCache routingCache = new RoutingCache();
+        routingCache.put(KEY, null, create(KEY, 2, 3, 4));
+        Assert.assertNull(routingCache.route(KEY, new Number256(1)));
+        Assert.assertNull(routingCache.route(new Number256(1), null));
+        FutureRouting futureRouting = routingCache.route(KEY, Number256.ZERO);
+        Assert.assertTrue(futureRouting.isSuccess());
+        Assert.assertEquals(3, futureRouting.potentialHits().size());
+        Assert.assertEquals(Utils2.createAddress(2), futureRouting.potentialHits().first());
+        Assert.assertEquals(0, futureRouting.directHits().size());
+    }
+
+    @Test
+    public void testInvalidate() throws UnknownHostException {
+        RoutingCache routingCache = new RoutingCache();
+        routingCache.put(KEY, null, create(KEY, 2, 3, 4));
+        routingCache.put(new Number256(1), null, create(new Number256(1), 5, 6));
+        routingCache.peerRemoved(Utils2.createAddress(3), null);
+        Assert.assertNull(routingCache.get(KEY, null));
+        Assert.assertNotNull(routingCache.get(new Number256(1), null));
+        // a farther peer does not change the closest set, a closer one does
+        routingCache.peerInserted(Utils2.createAddress(8), true);
+        Assert.assertNotNull(routingCache.get(new Number256(1), null));
+        routingCache.peerInserted(Utils2.createAddress(0), false);
+        Assert.assertNotNull(routingCache.get(new Number256(1), null));
+        routingCache.peerInserted(Utils2.createAddress(0), true);
+        Assert.assertNull(routingCache.get(new Number256(1), null));
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        RoutingCache routingCache = new RoutingCache(1, RoutingCache.DEFAULT_MAX_ENTRIES);
+        routingCache.put(KEY, null, create(KEY, 2, 3));
+        Assert.assertNotNull(routingCache.get(KEY, null));
+        Thread.sleep(1100);
+        Assert.assertNull(routingCache.get(KEY, null));
+    }
+
+    private static NavigableSet<PeerAddress> create(Number256 locationKey, int... ids) throws UnknownHostException {
+        NavigableSet<PeerAddress> set = new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(locationKey));
+        for (int id : ids) {
+            set.add(Utils2.createAddress(id));
+        }
+        return set;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.peers.Number256;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.DigestInfo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRoutingMechanism {
+
+    private static final Number256 KEY = new Number256(0);
+
+    @Test
+    public void testPipelined() throws UnknownHostException {
+        RoutingMechanism routingMechanism = create(2, 4, 10);
+        PeerAddress first = routingMechanism.nextToAsk(false, null);
+        PeerAddress second = routingMechanism.nextToAsk(false, null);
+        Assert.assertEquals(Utils2.createAddress(1), first);
+        Assert.assertEquals(Utils2.createAddress(2), second);
+        // all slots are taken
+        Assert.assertNull(routingMechanism.nextToAsk(false, null));
+        Assert.assertEquals(2, routingMechanism.inFlightSize());
+        // a reply frees a slot, no need to wait for the other request
+        Assert.assertTrue(routingMechanism.responded(first, true, -1) >= 0);
+        Assert.assertEquals(Utils2.createAddress(3), routingMechanism.nextToAsk(false, null));
+        Assert.assertEquals(-1, routingMechanism.responded(Utils2.createAddress(9), true, -1));
+    }
+
+    @Test
+    public void testAdaptiveParallel() throws UnknownHostException {
+        RoutingMechanism routingMechanism = create(2, 3, 10);
+        PeerAddress first = routingMechanism.nextToAsk(false, null);
+        PeerAddress second = routingMechanism.nextToAsk(false, null);
+        routingMechanism.responded(first, false, -1);
+        Assert.assertEquals(3, routingMechanism.parallel());
+        routingMechanism.responded(second, false, -1);
+        // bounded by max parallel
+        Assert.assertEquals(3, routingMechanism.parallel());
+        // a fast reply lowers it again
+        PeerAddress third = routingMechanism.nextToAsk(false, null);
+        routingMechanism.responded(third, true, Long.MAX_VALUE / 4);
+        Assert.assertEquals(2, routingMechanism.parallel());
+    }
+
+    @Test
+    public void testSpeculate() throws UnknownHostException {
+        RoutingMechanism routingMechanism = create(1, 2, 10);
+        PeerAddress first = routingMechanism.nextToAsk(false, null);
+        Assert.assertNull(routingMechanism.nextToAsk(false, null));
+        Assert.assertTrue(routingMechanism.speculate(first));
+        // only once per request
+        Assert.assertFalse(routingMechanism.speculate(first));
+        Assert.assertEquals(Utils2.createAddress(2), routingMechanism.nextToAsk(false, null));
+        routingMechanism.responded(first, true, -1);
+        Assert.assertFalse(routingMechanism.speculate(first));
+    }
+
+    @Test
+    public void testClosestSetStable() throws UnknownHostException {
+        RoutingMechanism routingMechanism = create(2, 2, 10);
+        routingMechanism.closestSize(2);
+        routingMechanism.maxSuccess(100);
+        routingMechanism.maxNoNewInfo(100);
+        PeerAddress first = routingMechanism.nextToAsk(false, null);
+        PeerAddress second = routingMechanism.nextToAsk(false, null);
+        routingMechanism.responded(first, true, -1);
+        Assert.assertFalse(routingMechanism.evaluateSuccess(first, new DigestInfo(0),
+                new ArrayList<PeerStatistic>(), KEY));
+        routingMechanism.responded(second, true, -1);
+        // peers 3..10 are farther away than 1 and 2
+        Assert.assertTrue(routingMechanism.evaluateSuccess(second, new DigestInfo(0),
+                new ArrayList<PeerStatistic>(), KEY));
+        Assert.assertTrue(routingMechanism.isStopCreatingNewFutures());
+    }
+
+    private static RoutingMechanism create(int parallel, int maxParallel, int peers) throws UnknownHostException {
+        RoutingMechanism routingMechanism = new RoutingMechanism(parallel, maxParallel, new FutureRouting(),
+                null);
+        NavigableSet<PeerStatistic> queueToAsk = new TreeSet<PeerStatistic>(
+                PeerMap.createXORStatisticComparator(KEY));
+        for (int i = 1; i <= peers; i++) {
+            queueToAsk.add(Utils2.createStatistic(i));
+        }
+        routingMechanism.queueToAsk(queueToAsk);
+        routingMechanism.alreadyAsked(new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(KEY)));
+        routingMechanism.potentialHits(new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(KEY)));
+        routingMechanism.directHits(new TreeMap<PeerAddress, DigestInfo>(PeerMap.createXORAddressComparator(KEY)));
+        routingMechanism.closestResponded(new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(KEY)));
+        routingMechanism.maxFailures(10);
+        return routingMechanism;
+    }
+}
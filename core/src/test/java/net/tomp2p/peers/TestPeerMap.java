@@ -508,6 +508,59 @@ public class TestPeerMap {
         Assert.assertEquals(peerStatatistic.peerAddress(), pa3);
     }
 
+    @Test
+    public void testMaintenanceBatch() throws UnknownHostException, InterruptedException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.maintenance(new DefaultMaintenance(0, new int[] { 1, 1 }));
+        final PeerMap peerMap = new PeerMap(conf);
+        for (int i = 0; i < 6; i++) {
+            peerMap.peerFound(Utils2.createAddress(Number256.createHash("peer " + i)), null, null);
+        }
+        // just seen, no maintenance needed
+        Assert.assertTrue(peerMap.nextForMaintenance(new ArrayList<PeerAddress>(), 10).isEmpty());
+        Thread.sleep(1100);
+        // seen again, e.g., it sent us a message
+        PeerAddress recent = Utils2.createAddress(Number256.createHash("peer 0"));
+        peerMap.peerFound(recent, null, null);
+        List<PeerAddress> notInterested = new ArrayList<PeerAddress>();
+        notInterested.add(Utils2.createAddress(Number256.createHash("peer 1")));
+        Collection<PeerStatistic> batch = peerMap.nextForMaintenance(notInterested, 3);
+        Assert.assertEquals(3, batch.size());
+        batch = peerMap.nextForMaintenance(notInterested, 10);
+        Assert.assertEquals(4, batch.size());
+        for (PeerStatistic peerStatistic : batch) {
+            Assert.assertFalse(peerStatistic.peerAddress().equals(recent));
+            Assert.assertFalse(notInterested.contains(peerStatistic.peerAddress()));
+        }
+    }
+
+    @Test
+    public void testMaintenanceBatchDefault() throws UnknownHostException {
+        final List<PeerStatistic> peers = new ArrayList<PeerStatistic>();
+        for (int i = 0; i < 5; i++) {
+            peers.add(new PeerStatistic(Utils2.createAddress(Number256.createHash("peer " + i))));
+        }
+        // only implements the single peer method
+        final Maintainable maintainable = new Maintainable() {
+            @Override
+            public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
+                for (PeerStatistic peerStatistic : peers) {
+                    if (!notInterestedAddresses.contains(peerStatistic.peerAddress())) {
+                        return peerStatistic;
+                    }
+                }
+                return null;
+            }
+        };
+        List<PeerAddress> notInterested = new ArrayList<PeerAddress>();
+        notInterested.add(peers.get(0).peerAddress());
+        Assert.assertEquals(peers.subList(1, 3), maintainable.nextForMaintenance(notInterested, 2));
+        Assert.assertEquals(peers.subList(1, 5), maintainable.nextForMaintenance(notInterested, 10));
+        Assert.assertEquals(1, notInterested.size());
+    }
+
     @Test
     public void testClose() throws UnknownHostException {
         for (int i = 1; i < 30; i++) {
@@ -515,6 +568,79 @@ public class TestPeerMap {
         }
     }
 
+    @Test
+    public void testProximitySelection() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(2).setFixedOverflowBagSizes(4);
+        conf.offlineCount(1000).offlineTimeout(60);
+        conf.maintenance(new DefaultMaintenance(0, new int[] {}));
+        conf.proximityRTTFactor(2);
+        final PeerMap peerMap = new PeerMap(conf);
+        // all in the same bag
+        PeerAddress slow1 = Utils2.createAddress(4);
+        PeerAddress slow2 = Utils2.createAddress(5);
+        PeerAddress fast = Utils2.createAddress(6);
+        PeerAddress medium = Utils2.createAddress(7);
+        peerMap.peerFound(slow1, null, new RTT(100, true));
+        peerMap.peerFound(slow2, null, new RTT(120, true));
+        Assert.assertEquals(2, peerMap.size());
+        // replaces the slowest
+        peerMap.peerFound(fast, null, new RTT(10, true));
+        Assert.assertTrue(peerMap.contains(fast));
+        Assert.assertTrue(peerMap.contains(slow1));
+        Assert.assertFalse(peerMap.contains(slow2));
+        Assert.assertTrue(peerMap.containsOverflow(slow2));
+        // not twice as fast as 100ms
+        peerMap.peerFound(medium, null, new RTT(60, true));
+        Assert.assertFalse(peerMap.contains(medium));
+        Assert.assertTrue(peerMap.containsOverflow(medium));
+        // estimates never replace
+        peerMap.peerFound(medium, Utils2.createAddress(8), new RTT(1, true));
+        Assert.assertFalse(peerMap.contains(medium));
+    }
+
+    @Test
+    public void testProximitySelectionUnmeasured() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(4).setFixedOverflowBagSizes(4);
+        conf.offlineCount(1000).offlineTimeout(60);
+        conf.maintenance(new DefaultMaintenance(0, new int[] {}));
+        conf.proximityRTTFactor(2);
+        final PeerMap peerMap = new PeerMap(conf);
+        // all in the same bag, the unmeasured peer counts with the median of 40, 60 and 200ms
+        PeerAddress slow = Utils2.createAddress(8);
+        PeerAddress unmeasured = Utils2.createAddress(9);
+        peerMap.peerFound(slow, null, new RTT(200, true));
+        peerMap.peerFound(unmeasured, null, null);
+        peerMap.peerFound(Utils2.createAddress(10), null, new RTT(40, true));
+        peerMap.peerFound(Utils2.createAddress(11), null, new RTT(60, true));
+        peerMap.peerFound(Utils2.createAddress(12), null, new RTT(10, true));
+        Assert.assertTrue(peerMap.contains(Utils2.createAddress(12)));
+        Assert.assertTrue(peerMap.contains(unmeasured));
+        Assert.assertFalse(peerMap.contains(slow));
+        // a bag without any measured peer is not touched
+        for (int i = 16; i < 20; i++) {
+            peerMap.peerFound(Utils2.createAddress(i), null, null);
+        }
+        peerMap.peerFound(Utils2.createAddress(20), null, new RTT(10, true));
+        Assert.assertFalse(peerMap.contains(Utils2.createAddress(20)));
+        Assert.assertTrue(peerMap.containsOverflow(Utils2.createAddress(20)));
+    }
+
+    @Test
+    public void testProximitySelectionDisabled() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(2).setFixedOverflowBagSizes(4);
+        conf.offlineCount(1000).offlineTimeout(60);
+        conf.maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        peerMap.peerFound(Utils2.createAddress(4), null, new RTT(100, true));
+        peerMap.peerFound(Utils2.createAddress(5), null, new RTT(120, true));
+        peerMap.peerFound(Utils2.createAddress(6), null, new RTT(10, true));
+        Assert.assertFalse(peerMap.contains(Utils2.createAddress(6)));
+        Assert.assertTrue(peerMap.contains(Utils2.createAddress(5)));
+    }
+
     private void testClose(int round) throws UnknownHostException {
         Random rnd = new Random(round);
         for (int j = 0; j < 1000; j++) {
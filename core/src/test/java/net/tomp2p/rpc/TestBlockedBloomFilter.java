@@ -0,0 +1,147 @@
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.tomp2p.peers.Number256;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBlockedBloomFilter {
+
+	private static final Random RND = new Random(42L);
+
+	private static Number256 key() {
+		return new Number256(RND.nextLong(), RND.nextLong(), RND.nextLong(), RND.nextLong());
+	}
+
+	@Test
+	public void testContains() {
+		BlockedBloomFilter<Number256> bloomFilter = new BlockedBloomFilter<Number256>(0.01d, 1000);
+		List<Number256> added = new ArrayList<Number256>();
+		for (int i = 0; i < 1000; i++) {
+			Number256 key = key();
+			bloomFilter.add(key);
+			added.add(key);
+		}
+		Assert.assertTrue(bloomFilter.containsAll(added));
+	}
+
+	@Test
+	public void testContainsObjects() {
+		BlockedBloomFilter<String> bloomFilter = new BlockedBloomFilter<String>(0.01d, 100);
+		for (int i = 0; i < 100; i++) {
+			bloomFilter.add("value" + i);
+		}
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(bloomFilter.contains("value" + i));
+		}
+	}
+
+	@Test
+	public void testFalsePositives() {
+		BlockedBloomFilter<Number256> bloomFilter = new BlockedBloomFilter<Number256>(0.01d, 1000);
+		for (int i = 0; i < 1000; i++) {
+			bloomFilter.add(key());
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (bloomFilter.contains(key())) {
+				falsePositives++;
+			}
+		}
+		// 1% for the simple bloom filter, blocking costs a bit
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void testEncodeSparse() {
+		BlockedBloomFilter<Number256> bloomFilter = new BlockedBloomFilter<Number256>(0.01d, 1000);
+		Number256 key1 = key();
+		Number256 key2 = key();
+		bloomFilter.add(key1);
+		bloomFilter.add(key2);
+		// two blocks instead of the whole filter
+		Assert.assertTrue(bloomFilter.size() < 200);
+		ByteBuf buf = Unpooled.buffer();
+		bloomFilter.encode(buf);
+		Assert.assertEquals(bloomFilter.size(), buf.readableBytes());
+		SimpleBloomFilter<Number256> bloomFilter2 = SimpleBloomFilter.decode(buf);
+		Assert.assertTrue(bloomFilter2 instanceof BlockedBloomFilter);
+		Assert.assertEquals(bloomFilter, bloomFilter2);
+		Assert.assertTrue(bloomFilter2.contains(key1));
+		Assert.assertTrue(bloomFilter2.contains(key2));
+	}
+
+	@Test
+	public void testEncodeDense() {
+		BlockedBloomFilter<Number256> bloomFilter = new BlockedBloomFilter<Number256>(0.01d, 1000);
+		for (int i = 0; i < 1000; i++) {
+			bloomFilter.add(key());
+		}
+		ByteBuf buf = Unpooled.buffer();
+		bloomFilter.encode(buf);
+		Assert.assertEquals(bloomFilter.size(), buf.readableBytes());
+		Assert.assertEquals(bloomFilter, SimpleBloomFilter.decode(buf));
+	}
+
+	@Test
+	public void testSmallAndVoid() {
+		BlockedBloomFilter<Number256> bloomFilter = new BlockedBloomFilter<Number256>(0, 0);
+		Assert.assertFalse(bloomFilter.contains(Number256.ONE));
+		bloomFilter = new BlockedBloomFilter<Number256>(20, 10);
+		bloomFilter.add(Number256.ONE);
+		Assert.assertTrue(bloomFilter.contains(Number256.ONE));
+		ByteBuf buf = Unpooled.buffer();
+		bloomFilter.encode(buf);
+		Assert.assertEquals(bloomFilter, SimpleBloomFilter.decode(buf));
+	}
+
+	@Test
+	public void testDecodeInvalid() {
+		BlockedBloomFilter<Number256> bloomFilter = new BlockedBloomFilter<Number256>(0.01d, 1000);
+		bloomFilter.add(key());
+		ByteBuf buf = Unpooled.buffer();
+		bloomFilter.encode(buf);
+		// block index beyond the bit array
+		ByteBuf wrongBlock = buf.copy();
+		wrongBlock.setShort(SimpleBloomFilter.SIZE_HEADER + 4, bloomFilter.byteArraySize() / BlockedBloomFilter.BLOCK_BYTES);
+		assertInvalid(wrongBlock);
+		// bit array not a multiple of the block size
+		ByteBuf wrongArraySize = buf.copy();
+		wrongArraySize.setShort(SimpleBloomFilter.SIZE_HEADER, bloomFilter.byteArraySize() + 1);
+		assertInvalid(wrongArraySize);
+		// more blocks than sent
+		ByteBuf wrongBlocks = buf.copy();
+		wrongBlocks.setShort(SimpleBloomFilter.SIZE_HEADER + 2, 0xffff);
+		assertInvalid(wrongBlocks);
+		// truncated
+		assertInvalid(buf.slice(0, buf.readableBytes() - 1));
+		Assert.assertEquals(bloomFilter, SimpleBloomFilter.decode(buf));
+	}
+
+	private static void assertInvalid(ByteBuf buf) {
+		try {
+			SimpleBloomFilter.decode(buf);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDecodeSimple() {
+		SimpleBloomFilter<Number256> bloomFilter = new SimpleBloomFilter<Number256>(128, 100);
+		bloomFilter.add(Number256.ONE);
+		ByteBuf buf = Unpooled.buffer();
+		bloomFilter.encode(buf);
+		SimpleBloomFilter<Number256> bloomFilter2 = SimpleBloomFilter.decode(buf);
+		Assert.assertFalse(bloomFilter2 instanceof BlockedBloomFilter);
+		Assert.assertTrue(bloomFilter2.contains(Number256.ONE));
+	}
+}
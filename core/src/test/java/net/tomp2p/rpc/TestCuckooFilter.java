@@ -0,0 +1,211 @@
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.tomp2p.peers.Number256;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCuckooFilter {
+
+	private static final Random RND = new Random(42L);
+
+	private static Number256 key() {
+		return new Number256(RND.nextLong(), RND.nextLong(), RND.nextLong(), RND.nextLong());
+	}
+
+	@Test
+	public void testContains() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 1000);
+		List<Number256> added = new ArrayList<Number256>();
+		for (int i = 0; i < 1000; i++) {
+			Number256 key = key();
+			cuckooFilter.add(key);
+			added.add(key);
+		}
+		Assert.assertTrue(cuckooFilter.containsAll(added));
+		Assert.assertFalse(cuckooFilter.isFull());
+	}
+
+	@Test
+	public void testRemove() {
+		CuckooFilter<String> cuckooFilter = new CuckooFilter<String>(0.01d, 100);
+		for (int i = 0; i < 100; i++) {
+			cuckooFilter.add("value" + i);
+		}
+		for (int i = 0; i < 50; i++) {
+			Assert.assertTrue(cuckooFilter.remove("value" + i));
+		}
+		for (int i = 50; i < 100; i++) {
+			Assert.assertTrue(cuckooFilter.contains("value" + i));
+		}
+		int stillThere = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cuckooFilter.contains("value" + i)) {
+				stillThere++;
+			}
+		}
+		// only false positives
+		Assert.assertTrue("still there: " + stillThere, stillThere < 5);
+		for (int i = 50; i < 100; i++) {
+			cuckooFilter.remove("value" + i);
+		}
+		Assert.assertTrue(cuckooFilter.isEmpty());
+	}
+
+	@Test
+	public void testFalsePositives() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 1000);
+		for (int i = 0; i < 1000; i++) {
+			cuckooFilter.add(key());
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (cuckooFilter.contains(key())) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 150);
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 1000);
+		List<Number256> added = new ArrayList<Number256>();
+		for (int i = 0; i < 500; i++) {
+			Number256 key = key();
+			cuckooFilter.add(key);
+			added.add(key);
+		}
+		ByteBuf buf = Unpooled.buffer();
+		cuckooFilter.encode(buf);
+		Assert.assertEquals(cuckooFilter.size(), buf.readableBytes());
+		SimpleBloomFilter<Number256> cuckooFilter2 = SimpleBloomFilter.decode(buf);
+		Assert.assertTrue(cuckooFilter2 instanceof CuckooFilter);
+		Assert.assertEquals(cuckooFilter, cuckooFilter2);
+		Assert.assertEquals(500, ((CuckooFilter<Number256>) cuckooFilter2).count());
+		Assert.assertTrue(cuckooFilter2.containsAll(added));
+		// about the size of a simple bloom filter with the same parameters
+		SimpleBloomFilter<Number256> bloomFilter = new SimpleBloomFilter<Number256>(0.01d, 1000);
+		Assert.assertTrue(cuckooFilter.size() < bloomFilter.size() * 1.2);
+	}
+
+	@Test
+	public void testGrow() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 1000);
+		List<Number256> added = new ArrayList<Number256>();
+		for (int i = 0; i < 5000; i++) {
+			Number256 key = key();
+			cuckooFilter.add(key);
+			added.add(key);
+		}
+		Assert.assertFalse(cuckooFilter.isFull());
+		Assert.assertTrue(cuckooFilter.nrTables() > 1);
+		Assert.assertTrue(cuckooFilter.containsAll(added));
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (cuckooFilter.contains(key())) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 300);
+		ByteBuf buf = Unpooled.buffer();
+		cuckooFilter.encode(buf);
+		Assert.assertEquals(cuckooFilter.size(), buf.readableBytes());
+		SimpleBloomFilter<Number256> cuckooFilter2 = SimpleBloomFilter.decode(buf);
+		Assert.assertEquals(cuckooFilter, cuckooFilter2);
+		Assert.assertTrue(cuckooFilter2.containsAll(added));
+		for (Number256 key : added) {
+			Assert.assertTrue(cuckooFilter.remove(key));
+		}
+		Assert.assertTrue(cuckooFilter.isEmpty());
+	}
+
+	@Test
+	public void testOverfull() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 100);
+		List<Number256> added = new ArrayList<Number256>();
+		// more than fits into the encoded size
+		for (int i = 0; i < 100000; i++) {
+			Number256 key = key();
+			cuckooFilter.add(key);
+			added.add(key);
+		}
+		Assert.assertTrue(cuckooFilter.isFull());
+		// no false negatives
+		Assert.assertTrue(cuckooFilter.containsAll(added));
+		ByteBuf buf = Unpooled.buffer();
+		cuckooFilter.encode(buf);
+		Assert.assertTrue(SimpleBloomFilter.<Number256> decode(buf).contains(key()));
+	}
+
+	@Test
+	public void testDecodeInvalid() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 100);
+		cuckooFilter.add(key());
+		ByteBuf buf = Unpooled.buffer();
+		cuckooFilter.encode(buf);
+		// fingerprint bits of the first table
+		ByteBuf wrongBits = buf.copy();
+		wrongBits.setByte(SimpleBloomFilter.SIZE_HEADER + 2, 17);
+		try {
+			SimpleBloomFilter.decode(wrongBits);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// more buckets than sent
+		ByteBuf wrongBuckets = buf.copy();
+		wrongBuckets.setShort(SimpleBloomFilter.SIZE_HEADER + 3, 0xffff);
+		try {
+			SimpleBloomFilter.decode(wrongBuckets);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// truncated
+		try {
+			SimpleBloomFilter.decode(buf.slice(0, buf.readableBytes() - 1));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertEquals(cuckooFilter, SimpleBloomFilter.decode(buf));
+	}
+
+	@Test
+	public void testMerge() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 100);
+		SimpleBloomFilter<Number256> bloomFilter = new SimpleBloomFilter<Number256>(0, 0);
+		cuckooFilter.add(key());
+		// same bit array size, but the cuckoo filter has no bits to merge
+		try {
+			bloomFilter.merge(cuckooFilter);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+		try {
+			cuckooFilter.merge(bloomFilter);
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testVoid() {
+		CuckooFilter<Number256> cuckooFilter = new CuckooFilter<Number256>(0.01d, 0);
+		Assert.assertTrue(cuckooFilter.isVoid());
+		Assert.assertFalse(cuckooFilter.contains(key()));
+		ByteBuf buf = Unpooled.buffer();
+		cuckooFilter.encode(buf);
+		Assert.assertEquals(cuckooFilter, SimpleBloomFilter.decode(buf));
+	}
+}
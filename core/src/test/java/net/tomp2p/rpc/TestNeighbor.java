@@ -0,0 +1,68 @@
+package net.tomp2p.rpc;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number256;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.NeighborRPC.SearchValues;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Pair;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNeighbor {
+
+    @Test
+    public void testEncodeRequest() {
+        SearchValues searchValues = new SearchValues(new Number256(1), null, new Number256(3));
+        ByteBuffer buf = NeighborRPC.encodeRequest(searchValues, 100);
+        Assert.assertEquals(new Number256(1), Number256.decode(buf));
+        Assert.assertEquals(Number256.ZERO, Number256.decode(buf));
+        Assert.assertEquals(3, buf.get());
+        Assert.assertEquals(new Number256(3), Number256.decode(buf));
+        Assert.assertEquals(100, buf.getInt());
+        Assert.assertFalse(buf.hasRemaining());
+        // no piggy-back, no size
+        buf = NeighborRPC.encodeRequest(new SearchValues(new Number256(1), new Number256(2)), 0);
+        Assert.assertEquals(2 * Number256.BYTE_ARRAY_SIZE + 1, buf.remaining());
+    }
+
+    @Test
+    public void testPiggyBack() throws UnknownHostException {
+        List<PeerAddress> neighbors = new ArrayList<PeerAddress>();
+        neighbors.add(Utils2.createAddress(1));
+        neighbors.add(Utils2.createAddress(2));
+        Map<Number256, Pair<Number256, Data>> values = new TreeMap<Number256, Pair<Number256, Data>>();
+        values.put(new Number256(5), Pair.create(new Number256(7),
+                new Data(new byte[] { 1, 2, 3 }).ttlSeconds(60).addBasedOn(new Number256(4))));
+        values.put(new Number256(6), Pair.create(Number256.ZERO, new Data(new byte[0])));
+
+        Message message = new Message().payload(NeighborRPC.encodeResponse(neighbors, values));
+        Collection<PeerAddress> neighbors2 = NeighborRPC.decodeNeighbors(message);
+        Map<Number256, Pair<Number256, Data>> values2 = NeighborRPC.decodeValues(message);
+        Assert.assertEquals(neighbors, neighbors2);
+        Assert.assertEquals(2, values2.size());
+        Pair<Number256, Data> value = values2.get(new Number256(5));
+        Assert.assertEquals(new Number256(7), value.element0());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, value.element1().toBytes());
+        Assert.assertEquals(60, value.element1().ttlSeconds());
+        Assert.assertEquals(Collections.singleton(new Number256(4)), value.element1().basedOnSet());
+        Assert.assertEquals(Number256.ZERO, values2.get(new Number256(6)).element0());
+        Assert.assertEquals(0, values2.get(new Number256(6)).element1().length());
+
+        // without values
+        message = new Message().payload(NeighborRPC.encodeResponse(neighbors, null));
+        Assert.assertEquals(neighbors, NeighborRPC.decodeNeighbors(message));
+        Assert.assertTrue(NeighborRPC.decodeValues(message).isEmpty());
+    }
+}
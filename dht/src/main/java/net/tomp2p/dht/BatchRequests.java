@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import net.tomp2p.connection.ChannelClient;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Pair;
+
+/**
+ * Sends the requests of a batch operation. The keys are grouped by peer and split into messages of at most batch size
+ * keys. At most parallel messages are in flight at the same time, the next message is sent once a reply arrived.
+ *
+ * @author Thomas Bocek
+ *
+ */
+class BatchRequests {
+
+    /**
+     * Creates the request for a peer and handles the reply, similar to {@link OperationMapper}.
+     */
+    interface Mapper {
+        FutureResponse create(ChannelClient channelClient, PeerAddress remotePeer, Collection<Number640> keys);
+
+        /**
+         * Called for every reply. More requests can be added with {@link BatchRequests#add(PeerAddress, Collection)},
+         * e.g., to try the next peer.
+         */
+        void response(BatchRequests requests, FutureResponse futureResponse, PeerAddress remotePeer,
+                Collection<Number640> keys);
+
+        /**
+         * Called once all requests have been answered.
+         */
+        void done();
+    }
+
+    private final FutureBatch<?> futureBatch;
+    private final ChannelClient channelClient;
+    private final int batchSize;
+    private final int parallel;
+    private final Mapper mapper;
+
+    // guarded by this
+    private final Queue<Pair<PeerAddress, Collection<Number640>>> queue = new LinkedList<Pair<PeerAddress, Collection<Number640>>>();
+    private int active = 0;
+    private boolean done = false;
+
+    BatchRequests(final FutureBatch<?> futureBatch, final ChannelClient channelClient, final int batchSize,
+            final int parallel, final Mapper mapper) {
+        this.futureBatch = futureBatch;
+        this.channelClient = channelClient;
+        this.batchSize = batchSize;
+        this.parallel = parallel;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Queues the keys for a peer, split into messages of at most batch size keys. The messages are sent with the next
+     * call to {@link #send()}.
+     */
+    void add(final PeerAddress remotePeer, final Collection<Number640> keys) {
+        List<Number640> batch = new ArrayList<Number640>(Math.min(batchSize, keys.size()));
+        synchronized (this) {
+            for (Number640 key : keys) {
+                batch.add(key);
+                if (batch.size() == batchSize) {
+                    queue.add(new Pair<PeerAddress, Collection<Number640>>(remotePeer, batch));
+                    batch = new ArrayList<Number640>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                queue.add(new Pair<PeerAddress, Collection<Number640>>(remotePeer, batch));
+            }
+        }
+    }
+
+    /**
+     * Sends queued messages until parallel messages are in flight. Calls {@link Mapper#done()} if there is nothing to
+     * send and nothing in flight.
+     */
+    void send() {
+        while (true) {
+            final Pair<PeerAddress, Collection<Number640>> next;
+            synchronized (this) {
+                if (futureBatch.isCompleted()) {
+                    return;
+                }
+                if (active >= parallel) {
+                    return;
+                }
+                next = queue.poll();
+                if (next == null) {
+                    if (active > 0 || done) {
+                        return;
+                    }
+                    done = true;
+                }
+                if (next != null) {
+                    active++;
+                }
+            }
+            if (next == null) {
+                mapper.done();
+                return;
+            }
+            final FutureResponse futureResponse = mapper.create(channelClient, next.element0(), next.element1());
+            futureBatch.addRequests(futureResponse);
+            futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    try {
+                        mapper.response(BatchRequests.this, future, next.element0(), next.element1());
+                    } finally {
+                        synchronized (BatchRequests.this) {
+                            active--;
+                        }
+                        send();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+/**
+ * A storage that leaves holes when values are replaced or removed and reclaims them in a separate step. The
+ * {@link StorageLayer} calls {@link #compact()} after every run of its maintenance task.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface CompactingStorage extends Storage {
+    /**
+     * Reclaims the space of replaced and removed values if enough of it is wasted.
+     * 
+     * @return The number of reclaimed units, e.g., slabs or segments
+     */
+    public abstract int compact();
+}
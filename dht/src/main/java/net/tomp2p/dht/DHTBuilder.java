@@ -299,6 +299,8 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
         routingBuilder.maxFailures(routingConfiguration.maxFailures());
         routingBuilder.maxSuccess(routingConfiguration.maxSuccess());
+        // we need at least the minimum results as closest peers, stop once those replied
+        routingBuilder.closestSize(requestP2PConfiguration.minimumResults());
         return routingBuilder;
     }
 
@@ -64,6 +64,8 @@ public class DigestBuilder extends DHTBuilder<DigestBuilder> implements Searchab
     
     private boolean fastGet = true;
 
+    private boolean summary = false;
+
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -274,13 +276,33 @@ public class DigestBuilder extends DHTBuilder<DigestBuilder> implements Searchab
         return this;
     }
 
+    public boolean isSummary() {
+        return summary;
+    }
+
+    /**
+     * Asks for the digest summary of the whole location and domain only, i.e., the key digest, the content digest and
+     * the number of entries. A peer keeps this summary up to date on every change, so it answers without reading the
+     * entries. The summary is found in {@link net.tomp2p.rpc.DigestResult#summary()}. A peer that does not know this
+     * option answers with the digest of every entry.
+     */
+    public DigestBuilder summary(boolean summary) {
+        this.summary = summary;
+        return this;
+    }
+
+    public DigestBuilder summary() {
+        this.summary = true;
+        return this;
+    }
+
     public FutureDigest start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
         }
         preBuild("digest-builder");
 
-        if (all) {
+        if (all || summary) {
             contentKeys = null;
         } else if (contentKeys == null && !all) {
             // default is Number160.ZERO
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.DigestInfo;
+
+/**
+ * An incrementally maintained digest of all entries of a location and domain key. The digests are xor sums, so an
+ * entry can be added and removed in constant time. The summary has two levels: the digest over all entries and a
+ * digest per content key, which is used to find the content keys that differ if two summaries do not match.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class DigestSummary {
+
+	private Number160 keyDigest = Number160.ZERO;
+	private Number160 contentDigest = Number160.ZERO;
+	private int size = 0;
+	private final NavigableMap<Number160, Node> contentKeys = new TreeMap<Number160, Node>();
+	// set once the summary is empty and removed from the storage, it must not be used anymore
+	private boolean discarded = false;
+
+	private static final class Node {
+		private Number160 digest = Number160.ZERO;
+		private int size = 0;
+	}
+
+	/**
+	 * @return False if this summary has been discarded and a new one needs to be used
+	 */
+	public synchronized boolean add(final Number640 key, final Number160 hash) {
+		if (discarded) {
+			return false;
+		}
+		keyDigest = keyDigest.xor(key.contentKey().xor(key.versionKey()));
+		contentDigest = contentDigest.xor(hash);
+		size++;
+		Node node = contentKeys.get(key.contentKey());
+		if (node == null) {
+			node = new Node();
+			contentKeys.put(key.contentKey(), node);
+		}
+		node.digest = node.digest.xor(key.versionKey().xor(hash));
+		node.size++;
+		return true;
+	}
+
+	/**
+	 * @return True if the summary is empty afterwards. In that case the summary is discarded.
+	 */
+	public synchronized boolean remove(final Number640 key, final Number160 hash) {
+		final Node node = contentKeys.get(key.contentKey());
+		if (discarded || node == null) {
+			return false;
+		}
+		keyDigest = keyDigest.xor(key.contentKey().xor(key.versionKey()));
+		contentDigest = contentDigest.xor(hash);
+		size--;
+		node.digest = node.digest.xor(key.versionKey().xor(hash));
+		if (--node.size == 0) {
+			contentKeys.remove(key.contentKey());
+		}
+		if (size == 0) {
+			discarded = true;
+		}
+		return discarded;
+	}
+
+	/**
+	 * @return The digest over all entries, without the per entry digests
+	 */
+	public synchronized DigestInfo digestInfo() {
+		return new DigestInfo(keyDigest, contentDigest, size);
+	}
+
+	/**
+	 * @return A copy of the digests per content key
+	 */
+	public synchronized NavigableMap<Number160, Number160> contentKeyDigests() {
+		final NavigableMap<Number160, Number160> result = new TreeMap<Number160, Number160>();
+		for (Map.Entry<Number160, Node> entry : contentKeys.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().digest);
+		}
+		return result;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -17,12 +17,21 @@ package net.tomp2p.dht;
 
 import io.netty.buffer.ByteBuf;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -34,21 +43,24 @@ import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureForkJoin;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
-import net.tomp2p.message.KeyMap640Keys;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.DistributedRouting;
 import net.tomp2p.p2p.RequestP2PConfiguration;
 import net.tomp2p.p2p.builder.BasicBuilder;
 import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number256;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.rpc.DefaultBloomfilterFactory;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
@@ -68,13 +80,39 @@ public class DistributedHashTable {
 
     private final DirectDataRPC directDataRPC;
 
+    private final ReplicaSelector replicaSelector = new ReplicaSelector();
+
+    private volatile NearCacheRPC nearCacheRPC = null;
+
     public DistributedHashTable(DistributedRouting routing, StorageRPC storeRCP, DirectDataRPC directDataRPC) {
         this.routing = routing;
         this.storeRCP = storeRCP;
         this.directDataRPC = directDataRPC;
     }
 
+    /**
+     * @return The latencies of the recent reads, used to rank the replicas and to delay hedged requests
+     */
+    public ReplicaSelector replicaSelector() {
+        return replicaSelector;
+    }
+
+    /**
+     * @param nearCacheRPC
+     *            The RPC with the near cache of this peer, gets are served from that cache if it is not null
+     * @return This class
+     */
+    public DistributedHashTable nearCacheRPC(final NearCacheRPC nearCacheRPC) {
+        this.nearCacheRPC = nearCacheRPC;
+        return this;
+    }
+
+    public NearCacheRPC nearCacheRPC() {
+        return nearCacheRPC;
+    }
+
     public FuturePut add(final AddBuilder builder, final FuturePut futurePut) {
+        invalidateNearCache(builder.locationKey(), null);
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -212,6 +250,7 @@ public class DistributedHashTable {
     }
 
     public FuturePut put(final PutBuilder putBuilder, final FuturePut futurePut) {
+        invalidateNearCache(putBuilder.locationKey(), putKeys(putBuilder));
         putBuilder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -233,10 +272,17 @@ public class DistributedHashTable {
                                         future.channelCreator(), new OperationMapper<FuturePut>() {
 
                                             Map<PeerAddress, Map<Number640, Byte>> rawData = new HashMap<PeerAddress, Map<Number640, Byte>>();
+                                            // replicas that could not be reached, the next peers store a hint for them
+                                            Queue<PeerAddress> unreachable = new ConcurrentLinkedQueue<PeerAddress>();
 
                                             @Override
                                             public FutureResponse create(final ChannelClient channelCreator,
                                                     final PeerAddress address) {
+                                                final PeerAddress hint = unreachable.poll();
+                                                if (hint != null) {
+                                                    logger.debug("storing on {} in place of {}", address, hint);
+                                                    return storeRCP.putHinted(address, putBuilder, hint, channelCreator);
+                                                }
                                                 if (putBuilder.isPutIfAbsent()) {
                                                     return storeRCP.putIfAbsent(address, putBuilder,
                                                             channelCreator);
@@ -270,6 +316,12 @@ public class DistributedHashTable {
                                                 		logger.debug("future failed: "+future.failedReason());
                                                 		Map<Number640, Byte> error = Utils.setMapError(future.request().dataMap(0).dataMap(), (byte) REASON_UNKNOWN);
                                                         rawData.put(future.request().recipient(), error);
+                                                        // only plain puts, a hinted value is stored as is on the replica
+                                                        if (putBuilder.isHintedHandoff() && !putBuilder.isPutIfAbsent()
+                                                                && !putBuilder.isPutMeta() && !putBuilder.isPutConfirm()
+                                                                && !future.isSuccess()) {
+                                                            unreachable.add(future.request().recipient());
+                                                        }
                                                 	}
                                                 }
                                             }
@@ -289,6 +341,31 @@ public class DistributedHashTable {
     }
 
     public FutureGet get(final GetBuilder builder,  final FutureGet futureGet) {
+        final NearCache nearCache = nearCache();
+        final Collection<Number640> cacheKeys = nearCache == null ? null : nearCacheKeys(builder);
+        if (cacheKeys != null) {
+            final Map<Number640, Data> cached = nearCache.getAll(cacheKeys);
+            if (cached != null) {
+                logger.debug("get of {} served from the near cache", cacheKeys);
+                final PeerAddress self = storeRCP.peerBean().serverPeerAddress();
+                final Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>(1);
+                rawStatus.put(self, (byte) PutStatus.OK.ordinal());
+                futureGet.receivedData(Collections.singletonMap(self, cached),
+                        Collections.<PeerAddress, DigestResult> emptyMap(), rawStatus, new FutureDone<Void>().done());
+                return futureGet;
+            }
+            // an invalidation that arrives before the values makes them stale
+            final long stamp = nearCache.stamp();
+            futureGet.addListener(new BaseFutureAdapter<FutureGet>() {
+                @Override
+                public void operationComplete(final FutureGet future) throws Exception {
+                    if (future.isSuccess()) {
+                        nearCache.putAll(future.dataMap(), stamp);
+                    }
+                }
+            });
+        }
+        final long leaseMillis = cacheKeys == null ? 0 : nearCache.ttlMillis();
 
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -297,6 +374,10 @@ public class DistributedHashTable {
                 	
                 	final RoutingBuilder routingBuilder = createBuilder(builder);
                 	fillRoutingBuilder(builder, routingBuilder);
+                	final boolean piggyBack = isPiggyBack(builder);
+                	if (piggyBack) {
+                		routingBuilder.piggyBackSize(builder.piggyBackSize());
+                	}
                 	final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet()? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
 
                 	futureGet.futureRouting(futureRouting);
@@ -305,9 +386,15 @@ public class DistributedHashTable {
                         public void operationComplete(FutureRouting futureRouting) throws Exception {
                             if (futureRouting.isSuccess()) {
                                 logger.debug("found direct hits for get: {}", futureRouting.directHits());
+                                if (piggyBack && receivedPiggyBacked(builder, futureRouting, futureGet)) {
+                                	// the values came with the neighbor replies, no need for another round trip
+                                	return;
+                                }
                                       
-                                RequestP2PConfiguration p2pConfiguration2 = adjustConfiguration(builder.requestP2PConfiguration, 
-                                		futureRouting.potentialHits().size());
+                                // a read quorum is not lowered, if there are less replicas, the get fails
+                                RequestP2PConfiguration p2pConfiguration2 = builder.readQuorum() > 0 ? builder
+                                        .requestP2PConfiguration() : adjustConfiguration(
+                                        builder.requestP2PConfiguration, futureRouting.potentialHits().size());
                                         
                                 // store in direct hits
                                 parallelRequests(
@@ -315,7 +402,8 @@ public class DistributedHashTable {
                                         builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
                                         futureRouting.potentialHits(),
                                         futureGet, true,
-                                        future.channelCreator(), new OperationMapper<FutureGet>() {
+                                        future.channelCreator(), builder.isHedged() ? builder.hedgePercentile() : -1,
+                                        new OperationMapper<FutureGet>() {
                                             Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
                                             Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
@@ -333,12 +421,21 @@ public class DistributedHashTable {
 																RPC.Commands.GET_LATEST);
 													}
 												} else {
-													return storeRCP.get(address, builder, channelCreator);
+													return storeRCP.get(address, builder, channelCreator,
+													        leaseMillis);
 												}
                                             }
 
                                             @Override
                                             public void response(FutureGet futureDHT, FutureDone<Void> futuresCompleted) {
+                                                // filtered values are not the stored values, and with a limit
+                                                // a missing value may just be beyond the limit of a peer
+                                                if (builder.isReadRepair() && builder.valueFilter() == null
+                                                        && builder.returnNr() == -1) {
+                                                    // sent before the get finishes, so the channels are still there
+                                                    readRepair(builder, futureDHT, rawData, rawStatus,
+                                                            future.channelCreator());
+                                                }
                                                 futureDHT.receivedData(rawData, rawDigest, rawStatus, futuresCompleted);
                                             }
 
@@ -355,11 +452,11 @@ public class DistributedHashTable {
                                                         hasData = true;
                                                     }
 													
-													KeyMap640Keys keyMaps = future.responseMessage()
-															.keyMap640Keys(0);
-													if (keyMaps != null && keyMaps.keysMap() != null) {
+													NavigableMap<Number640, Collection<Number160>> keyDigest = StorageRPC
+															.digest(future.responseMessage());
+													if (keyDigest != null) {
 														rawDigest.put(future.request().recipient(),
-																new DigestResult(keyMaps.keysMap()));
+																new DigestResult(keyDigest));
 														hasData = true;
 													}
 													
@@ -390,6 +487,270 @@ public class DistributedHashTable {
         return futureGet;
     }
 
+    /**
+     * Gets the values of many keys. The keys are grouped by the closest peer of their location key, which is found by
+     * routing. Keys that are not found or whose peer did not reply are requested from the next closest peer.
+     */
+    public FutureBatch<Data> getAll(final GetAllBuilder builder, final FutureBatch<Data> futureBatch) {
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    final int replicas = builder.requestP2PConfiguration().minimumResults();
+                    responsiblePeers(builder, builder.keys(), replicas, builder.parallel(), future.channelCreator())
+                            .addListener(new BaseFutureAdapter<FutureDone<Map<Number160, List<PeerAddress>>>>() {
+                        @Override
+                        public void operationComplete(final FutureDone<Map<Number160, List<PeerAddress>>> futureResponsible)
+                                throws Exception {
+                            final Map<Number160, List<PeerAddress>> responsible = futureResponsible.object();
+                            // keys where at least one peer replied
+                            final Set<Number640> reached = Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>());
+                            final Collection<Number640> failed = new ConcurrentLinkedQueue<Number640>();
+                            final BatchRequests.Mapper mapper = new BatchRequests.Mapper() {
+                                @Override
+                                public FutureResponse create(final ChannelClient channelClient, final PeerAddress remotePeer,
+                                        final Collection<Number640> keys) {
+                                    return storeRCP.getAll(remotePeer, keys, builder, channelClient);
+                                }
+
+                                @Override
+                                public void response(final BatchRequests requests, final FutureResponse futureResponse,
+                                        final PeerAddress remotePeer, final Collection<Number640> keys) {
+                                    final Map<Number640, Data> data;
+                                    if (futureResponse.isSuccess() && futureResponse.responseMessage().isOk()) {
+                                        data = futureResponse.responseMessage().dataMap(0).dataMap();
+                                        reached.addAll(keys);
+                                        futureBatch.received(data);
+                                    } else {
+                                        logger.debug("get all failed on {}: {}", remotePeer, futureResponse.failedReason());
+                                        data = Collections.emptyMap();
+                                    }
+                                    // ask the next closest peer for the keys that are missing
+                                    final Map<PeerAddress, List<Number640>> retry = new HashMap<PeerAddress, List<Number640>>();
+                                    for (Number640 key : keys) {
+                                        if (data.containsKey(key)) {
+                                            continue;
+                                        }
+                                        final List<PeerAddress> peers = responsible.get(key.locationKey());
+                                        final int next = peers.indexOf(remotePeer) + 1;
+                                        if (next < peers.size()) {
+                                            add(retry, peers.get(next), key);
+                                        } else if (!reached.contains(key)) {
+                                            failed.add(key);
+                                        }
+                                    }
+                                    for (Map.Entry<PeerAddress, List<Number640>> entry : retry.entrySet()) {
+                                        requests.add(entry.getKey(), entry.getValue());
+                                    }
+                                }
+
+                                @Override
+                                public void done() {
+                                    futureBatch.done(failed);
+                                }
+                            };
+                            final BatchRequests requests = new BatchRequests(futureBatch, future.channelCreator(),
+                                    builder.batchSize(), builder.parallel(), mapper);
+                            final Map<PeerAddress, List<Number640>> byPeer = new HashMap<PeerAddress, List<Number640>>();
+                            for (Number640 key : builder.keys()) {
+                                add(byPeer, responsible.get(key.locationKey()).get(0), key);
+                            }
+                            for (Map.Entry<PeerAddress, List<Number640>> entry : byPeer.entrySet()) {
+                                requests.add(entry.getKey(), entry.getValue());
+                            }
+                            logger.debug("get all {} keys from {} peers", builder.keys().size(), byPeer.size());
+                            requests.send();
+                        }
+                    });
+                    futureBatch.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureBatch.failed(future);
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    /**
+     * Stores many values. The values are grouped by the closest peers of their location key, which are found by
+     * routing. Each value is sent to as many peers as the minimum results.
+     */
+    public FutureBatch<Integer> putAll(final PutAllBuilder builder, final FutureBatch<Integer> futureBatch) {
+        invalidateNearCache(null, builder.dataMap().keySet());
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    final int replicas = builder.requestP2PConfiguration().minimumResults();
+                    responsiblePeers(builder, builder.dataMap().keySet(), replicas, builder.parallel(),
+                            future.channelCreator()).addListener(
+                            new BaseFutureAdapter<FutureDone<Map<Number160, List<PeerAddress>>>>() {
+                        @Override
+                        public void operationComplete(final FutureDone<Map<Number160, List<PeerAddress>>> futureResponsible)
+                                throws Exception {
+                            final Map<Number160, List<PeerAddress>> responsible = futureResponsible.object();
+                            // the number of peers that stored a value
+                            final Map<Number640, Integer> stored = new HashMap<Number640, Integer>();
+                            final BatchRequests.Mapper mapper = new BatchRequests.Mapper() {
+                                @Override
+                                public FutureResponse create(final ChannelClient channelClient, final PeerAddress remotePeer,
+                                        final Collection<Number640> keys) {
+                                    final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+                                    for (Number640 key : keys) {
+                                        dataMap.put(key, builder.dataMap().get(key));
+                                    }
+                                    return storeRCP.putAll(remotePeer, dataMap, builder, channelClient);
+                                }
+
+                                @Override
+                                public void response(final BatchRequests requests, final FutureResponse futureResponse,
+                                        final PeerAddress remotePeer, final Collection<Number640> keys) {
+                                    if (!futureResponse.isSuccess() || !futureResponse.responseMessage().isOk()) {
+                                        logger.debug("put all failed on {}: {}", remotePeer, futureResponse.failedReason());
+                                        return;
+                                    }
+                                    final Map<Number640, Integer> partial = new HashMap<Number640, Integer>();
+                                    synchronized (stored) {
+                                        for (Map.Entry<Number640, Byte> entry : futureResponse.responseMessage()
+                                                .keyMapByte(0).keysMap().entrySet()) {
+                                            if (entry.getValue() == PutStatus.OK.ordinal()) {
+                                                final Integer count = stored.get(entry.getKey());
+                                                final int newCount = count == null ? 1 : count + 1;
+                                                stored.put(entry.getKey(), newCount);
+                                                partial.put(entry.getKey(), newCount);
+                                            }
+                                        }
+                                    }
+                                    futureBatch.received(partial);
+                                }
+
+                                @Override
+                                public void done() {
+                                    final Collection<Number640> failed = new ArrayList<Number640>();
+                                    synchronized (stored) {
+                                        for (Number640 key : builder.dataMap().keySet()) {
+                                            if (!stored.containsKey(key)) {
+                                                failed.add(key);
+                                            }
+                                        }
+                                    }
+                                    futureBatch.done(failed);
+                                }
+                            };
+                            final BatchRequests requests = new BatchRequests(futureBatch, future.channelCreator(),
+                                    builder.batchSize(), builder.parallel(), mapper);
+                            final Map<PeerAddress, List<Number640>> byPeer = new HashMap<PeerAddress, List<Number640>>();
+                            for (Number640 key : builder.dataMap().keySet()) {
+                                for (PeerAddress peerAddress : responsible.get(key.locationKey())) {
+                                    add(byPeer, peerAddress, key);
+                                }
+                            }
+                            for (Map.Entry<PeerAddress, List<Number640>> entry : byPeer.entrySet()) {
+                                requests.add(entry.getKey(), entry.getValue());
+                            }
+                            logger.debug("put all {} values to {} peers", builder.dataMap().size(), byPeer.size());
+                            requests.send();
+                        }
+                    });
+                    futureBatch.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureBatch.failed(future);
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    /**
+     * Finds the peers responsible for the location keys by routing to each distinct location key. Location keys that
+     * have been routed to recently are answered by the routing cache. At most parallel routings run at the same time.
+     * If the routing to a location key fails, the closest peers in the local peer map are used.
+     * 
+     * @return The closest peers for each location key including this peer, the closest first
+     */
+    private FutureDone<Map<Number160, List<PeerAddress>>> responsiblePeers(final BasicBuilder<?> builder,
+            final Collection<Number640> keys, final int replicas, final int parallel, final ChannelClient channelCreator) {
+        final Set<Number160> locationKeys = new HashSet<Number160>();
+        for (Number640 key : keys) {
+            locationKeys.add(key.locationKey());
+        }
+        final Map<Number160, List<PeerAddress>> retVal = new ConcurrentHashMap<Number160, List<PeerAddress>>();
+        final FutureDone<Map<Number160, List<PeerAddress>>> futureDone = new FutureDone<Map<Number160, List<PeerAddress>>>();
+        if (locationKeys.isEmpty()) {
+            return futureDone.done(retVal);
+        }
+        final Queue<Number160> pending = new ConcurrentLinkedQueue<Number160>(locationKeys);
+        final int routings = Math.min(Math.max(1, parallel), locationKeys.size());
+        final AtomicInteger running = new AtomicInteger(routings);
+        for (int i = 0; i < routings; i++) {
+            routeNext(builder, pending, replicas, channelCreator, retVal, running, futureDone);
+        }
+        return futureDone;
+    }
+
+    /**
+     * Routes to the pending location keys one after the other. Cached routings finish right away and are handled in
+     * the loop, so a long run of cache hits does not nest listeners.
+     */
+    private void routeNext(final BasicBuilder<?> builder, final Queue<Number160> pending, final int replicas,
+            final ChannelClient channelCreator, final Map<Number160, List<PeerAddress>> retVal,
+            final AtomicInteger running, final FutureDone<Map<Number160, List<PeerAddress>>> futureDone) {
+        Number160 locationKey;
+        while ((locationKey = pending.poll()) != null) {
+            final RoutingBuilder routingBuilder = createBuilder(builder);
+            routingBuilder.locationKey(locationKey);
+            final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, channelCreator);
+            if (!futureRouting.isCompleted()) {
+                final Number160 routedKey = locationKey;
+                futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                    @Override
+                    public void operationComplete(final FutureRouting future) throws Exception {
+                        retVal.put(routedKey, closestPeers(routedKey, future, replicas));
+                        routeNext(builder, pending, replicas, channelCreator, retVal, running, futureDone);
+                    }
+                });
+                return;
+            }
+            retVal.put(locationKey, closestPeers(locationKey, futureRouting, replicas));
+        }
+        if (running.decrementAndGet() == 0) {
+            futureDone.done(retVal);
+        }
+    }
+
+    private List<PeerAddress> closestPeers(final Number160 locationKey, final FutureRouting futureRouting,
+            final int replicas) {
+        final NavigableSet<PeerAddress> close = new TreeSet<PeerAddress>(
+                PeerMap.createXORAddressComparator(locationKey));
+        close.add(storeRCP.peerBean().serverPeerAddress());
+        if (futureRouting.isSuccess()) {
+            close.addAll(futureRouting.potentialHits());
+        } else {
+            logger.debug("routing to {} failed, using the peer map: {}", locationKey, futureRouting.failedReason());
+            for (PeerStatistic peerStatistic : storeRCP.peerBean().peerMap().closePeers(locationKey, replicas)) {
+                close.add(peerStatistic.peerAddress());
+            }
+        }
+        final List<PeerAddress> peers = new ArrayList<PeerAddress>(replicas);
+        for (PeerAddress peerAddress : close) {
+            if (peers.size() == Math.max(1, replicas)) {
+                break;
+            }
+            peers.add(peerAddress);
+        }
+        return peers;
+    }
+
+    private static void add(final Map<PeerAddress, List<Number640>> byPeer, final PeerAddress peerAddress,
+            final Number640 key) {
+        List<Number640> keys = byPeer.get(peerAddress);
+        if (keys == null) {
+            keys = new ArrayList<Number640>();
+            byPeer.put(peerAddress, keys);
+        }
+        keys.add(key);
+    }
+
     public FutureDigest digest(final DigestBuilder builder, final FutureDigest futureDigest) {
 
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
@@ -447,9 +808,16 @@ public class DistributedHashTable {
 												                .bloomFilter(2);
 												        digest = new DigestResult(sbf1, sbf2, sbf3);
 											        } else {
-												        NavigableMap<Number640, Collection<Number160>> keyDigest = future
-												                .responseMessage().keyMap640Keys(0).keysMap();
-												        digest = new DigestResult(keyDigest);
+												        // a peer that does not know the summary sends the digest of every entry
+												        final DigestInfo summary = builder.isSummary() ? StorageRPC
+												                .digestSummary(future.responseMessage()) : null;
+												        if (summary != null) {
+													        digest = new DigestResult(summary);
+												        } else {
+													        NavigableMap<Number640, Collection<Number160>> keyDigest = StorageRPC
+													                .digest(future.responseMessage());
+													        digest = new DigestResult(keyDigest);
+												        }
 											        }
 											        rawDigest.put(future.request().recipient(), digest);
 											        logger.debug("set data from {}", future.request().recipient());
@@ -471,6 +839,7 @@ public class DistributedHashTable {
     }
 
     public FutureRemove remove(final RemoveBuilder builder, final FutureRemove futureRemove) {
+        invalidateNearCache(builder.locationKey(), null);
 
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -575,6 +944,121 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    private NearCache nearCache() {
+        final NearCacheRPC nearCacheRPC = this.nearCacheRPC;
+        return nearCacheRPC == null ? null : nearCacheRPC.nearCache();
+    }
+
+    /**
+     * @return The keys of the get if it can be served from the near cache, or null
+     */
+    private static Collection<Number640> nearCacheKeys(final GetBuilder builder) {
+        if (builder.isRange() || builder.isAll() || builder.isGetLatest() || builder.isWithDigest()
+                || builder.isReturnBloomFilter() || builder.contentKeyBloomFilter() != null
+                || builder.versionKeyBloomFilter() != null || builder.contentBloomFilter() != null
+                || builder.returnNr() != -1 || builder.valueFilter() != null) {
+            return null;
+        }
+        if (builder.keys() != null) {
+            return builder.keys();
+        }
+        if (builder.contentKeys() == null) {
+            return null;
+        }
+        final Collection<Number640> keys = new ArrayList<Number640>(builder.contentKeys().size());
+        for (Number160 contentKey : builder.contentKeys()) {
+            keys.add(new Number640(builder.locationKey(), builder.domainKey(), contentKey, builder.versionKey()));
+        }
+        return keys;
+    }
+
+    /**
+     * @return The keys of a put, or null if only the location key is known
+     */
+    private static Collection<Number640> putKeys(final PutBuilder putBuilder) {
+        if (putBuilder.dataMap() != null) {
+            return putBuilder.dataMap().keySet();
+        }
+        if (putBuilder.dataMapContent() != null && putBuilder.locationKey() != null
+                && putBuilder.domainKey() != null) {
+            final Collection<Number640> keys = new ArrayList<Number640>(putBuilder.dataMapContent().size());
+            for (Number160 contentKey : putBuilder.dataMapContent().keySet()) {
+                keys.add(new Number640(putBuilder.locationKey(), putBuilder.domainKey(), contentKey,
+                        Number160.ZERO));
+            }
+            return keys;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the values that this peer changes from the near cache. Without keys, the whole location key is removed.
+     */
+    private void invalidateNearCache(final Number160 locationKey, final Collection<Number640> keys) {
+        final NearCache nearCache = nearCache();
+        if (nearCache == null) {
+            return;
+        }
+        if (keys != null) {
+            for (Number640 key : keys) {
+                nearCache.invalidate(key);
+            }
+        } else if (locationKey != null) {
+            nearCache.invalidate(locationKey);
+        }
+    }
+
+    /**
+     * Writes the values back to the replicas that miss them, see {@link VotingSchemeDHT#readRepair(Map, Collection)}.
+     * The requests are added to the future get, but the get does not wait for them.
+     */
+    private void readRepair(final GetBuilder builder, final FutureGet futureGet,
+            final Map<PeerAddress, Map<Number640, Data>> rawData, final Map<PeerAddress, Byte> rawStatus,
+            final ChannelClient channelClient) {
+        // peers that timed out or were canceled after the quorum was met did not tell us what they store
+        final Collection<PeerAddress> responders = new ArrayList<PeerAddress>(rawStatus.size());
+        for (Map.Entry<PeerAddress, Byte> entry : rawStatus.entrySet()) {
+            if (entry.getValue() == PutStatus.OK.ordinal() || entry.getValue() == PutStatus.NOT_FOUND.ordinal()) {
+                responders.add(entry.getKey());
+            }
+        }
+        final Map<PeerAddress, Map<Number640, Data>> repairs = VotingSchemeDHT.readRepair(rawData, responders);
+        for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : repairs.entrySet()) {
+            logger.debug("read-repair of {} keys on {}", entry.getValue().size(), entry.getKey());
+            final FutureResponse futureResponse = storeRCP.putRepair(entry.getKey(),
+                    new TreeMap<Number640, Data>(entry.getValue()), true, builder, channelClient);
+            futureGet.addRequests(futureResponse);
+        }
+    }
+
+    /**
+     * Creates RPCs for a read. If a hedge percentile is set and a single result is enough, the replica with the lowest
+     * RTT is asked first and the next one is asked as well if there is no reply within the hedge delay, see
+     * {@link HedgedRequest}. Otherwise, this is the same as the parallel requests without hedging.
+     * 
+     * @param hedgePercentile
+     *            The percentile of the recent read latencies after which the hedged request is sent, -1 to disable
+     */
+    private <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
+            NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future,
+            boolean cancleOnFinish, ChannelClient channelCreator, double hedgePercentile,
+            OperationMapper<K> operation) {
+        if (hedgePercentile < 0 || p2pConfiguration.minimumResults() != 1) {
+            parallelRequests(p2pConfiguration, directHit, potentialHit, future, cancleOnFinish, channelCreator,
+                    operation);
+            return;
+        }
+        for (PeerAddress peerAddress : directHit) {
+            potentialHit.remove(peerAddress);
+        }
+        // the direct hits have the data, so rank them by latency. The potential hits stay in XOR order as fallback.
+        final Queue<PeerAddress> queue = replicaSelector.rank(directHit, storeRCP.peerBean().peerMap());
+        queue.addAll(potentialHit);
+        new HedgedRequest<K>(queue, p2pConfiguration.maxFailure(), future, channelCreator, operation,
+                replicaSelector, storeRCP.peerBean().peerMap(), replicaSelector.percentile(hedgePercentile),
+                storeRCP.connectionBean().timer()).start();
+    }
+
     //TODO: have two queues, direct queue + potential queue.
     private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
     		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelClient channelCreator,
@@ -661,7 +1145,48 @@ public class DistributedHashTable {
         return routingBuilder;
     }
     
-    private static void fillRoutingBuilder(final SearchableBuilder builder, final RoutingBuilder routingBuilder) {
+    /**
+     * Piggy-backing only works for plain gets of a single or all content keys, as the close peers send their values
+     * with one version per content key along with their neighbors. Gets with a digest, a filter, bloom filters, a
+     * limit or for the latest version need the regular get.
+     */
+    private static boolean isPiggyBack(final GetBuilder builder) {
+        return builder.piggyBackSize() > 0 && !builder.isRange() && !builder.isWithDigest()
+                && builder.valueFilter() == null && !builder.isGetLatest() && builder.returnNr() == -1
+                && !builder.isReturnBloomFilter() && builder.contentKeyBloomFilter() == null
+                && builder.versionKeyBloomFilter() == null && builder.contentBloomFilter() == null
+                && (builder.contentKeys() == null || builder.contentKeys().size() == 1);
+    }
+
+    /**
+     * Finishes the get with the values that were piggy-backed during routing, if enough peers sent them.
+     * 
+     * @return True if the future get is finished
+     */
+    private static boolean receivedPiggyBacked(final GetBuilder builder, final FutureRouting futureRouting,
+            final FutureGet futureGet) {
+        final Map<PeerAddress, Map<Number256, Pair<Number256, Data>>> piggyBacked = futureRouting.piggyBackedValues();
+        if (piggyBacked.size() < builder.requestP2PConfiguration().minimumResults()) {
+            return false;
+        }
+        final Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
+        final Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+        for (Map.Entry<PeerAddress, Map<Number256, Pair<Number256, Data>>> entry : piggyBacked.entrySet()) {
+            final Map<Number640, Data> data = new HashMap<Number640, Data>();
+            for (Map.Entry<Number256, Pair<Number256, Data>> value : entry.getValue().entrySet()) {
+                data.put(new Number640(builder.locationKey(), builder.domainKey(), value.getKey(),
+                        value.getValue().element0()), value.getValue().element1());
+            }
+            rawData.put(entry.getKey(), data);
+            rawStatus.put(entry.getKey(), (byte) PutStatus.OK.ordinal());
+        }
+        logger.debug("get finished with piggy-backed values from {}", rawData.keySet());
+        futureGet.receivedData(rawData, new HashMap<PeerAddress, DigestResult>(), rawStatus,
+                new FutureDone<Void>().done());
+        return true;
+    }
+
+    private void fillRoutingBuilder(final SearchableBuilder builder, final RoutingBuilder routingBuilder) {
         if (builder.from()!=null && builder.to() !=null) {
         	routingBuilder.range(builder.from(), builder.to());
         } else if (builder.contentKeys() != null && builder.contentKeys().size() == 1) {
@@ -670,8 +1195,7 @@ public class DistributedHashTable {
         }
         else if(builder.contentKeys() != null && builder.contentKeys().size() > 1) {
         	//builder.contentKeys() can be null if we search for all
-        	DefaultBloomfilterFactory factory = new DefaultBloomfilterFactory();
-        	SimpleBloomFilter<Number160> bf = factory.createContentKeyBloomFilter();
+        	SimpleBloomFilter<Number160> bf = storeRCP.peerBean().bloomfilterFactory().createContentKeyBloomFilter();
         	for (Number160 contentKey : builder.contentKeys()) {
         		bf.add(contentKey);
         	}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import net.tomp2p.futures.FutureDone;
+
+/**
+ * A storage that acknowledges changes before they are on disk, e.g., because it commits them in batches.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface DurableStorage extends Storage {
+    /**
+     * @return A future that completes once all changes made before this call are durable. The future fails if the
+     *         changes could not be written.
+     */
+    public abstract FutureDone<Void> durable();
+}
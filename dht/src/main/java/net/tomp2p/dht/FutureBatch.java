@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureProgres;
+import net.tomp2p.peers.Number640;
+
+/**
+ * The future object for batch operations over many location keys, see {@link PeerDHT#getAll(Collection)} and
+ * {@link PeerDHT#putAll(java.util.NavigableMap)}. The results can be consumed while the batch is running:
+ * {@link #progres()} is completed with the results of the first reply, and its {@link FutureProgres#next()} with the
+ * results of the next reply. The last progress future has an empty map and is completed once the batch is done.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The data for a get, the number of peers that stored the value for a put
+ */
+public class FutureBatch<K> extends FutureDHT<FutureBatch<K>> {
+
+    private final Map<Number640, K> results = new HashMap<Number640, K>();
+    private final Collection<Number640> failedKeys = new ArrayList<Number640>();
+
+    private final FutureProgres<Map<Number640, K>> progres = new FutureProgres<Map<Number640, K>>();
+    // guarded by streamLock, progres is called in order
+    private final Object streamLock = new Object();
+    private FutureProgres<Map<Number640, K>> current = progres;
+
+    public FutureBatch(final DHTBuilder<?> builder) {
+        super(builder);
+        self(this);
+        addListener(new BaseFutureAdapter<FutureBatch<K>>() {
+            @Override
+            public void operationComplete(final FutureBatch<K> future) throws Exception {
+                synchronized (streamLock) {
+                    if (current != null) {
+                        current.done(Collections.<Number640, K> emptyMap());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the results of a reply and passes them on to the stream.
+     *
+     * @param partial
+     *            The results of one reply, a later result for the same key replaces the former
+     */
+    void received(final Map<Number640, K> partial) {
+        if (partial.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            if (completed) {
+                return;
+            }
+            results.putAll(partial);
+        }
+        synchronized (streamLock) {
+            // null if the stream has been closed in the meantime
+            if (current != null) {
+                current = current.progres(partial, false);
+            }
+        }
+    }
+
+    /**
+     * Finishes the batch. The future fails if not all keys could be handled.
+     *
+     * @param failedKeys
+     *            The keys that could not be read from or stored to any peer
+     * @return This class
+     */
+    public FutureBatch<K> done(final Collection<Number640> failedKeys) {
+        synchronized (lock) {
+            if (!completedAndNotify()) {
+                return this;
+            }
+            this.failedKeys.addAll(failedKeys);
+            if (failedKeys.isEmpty()) {
+                this.type = BaseFuture.FutureType.OK;
+            } else {
+                this.type = BaseFuture.FutureType.FAILED;
+                this.reason = failedKeys.size() + " keys could not be handled";
+            }
+        }
+        notifyListeners();
+        return this;
+    }
+
+    /**
+     * @return The results that have been received so far
+     */
+    public Map<Number640, K> results() {
+        synchronized (lock) {
+            return new HashMap<Number640, K>(results);
+        }
+    }
+
+    /**
+     * @return The keys that could not be read from or stored to any peer
+     */
+    public Collection<Number640> failedKeys() {
+        synchronized (lock) {
+            return failedKeys;
+        }
+    }
+
+    /**
+     * @return The first future of the stream of results
+     */
+    public FutureProgres<Map<Number640, K>> progres() {
+        return progres;
+    }
+}
@@ -15,7 +15,10 @@
  */
 package net.tomp2p.dht;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.futures.FutureDone;
@@ -38,6 +41,9 @@ public class FutureGet extends FutureDHT<FutureGet> {
     // simplify the result
     private final EvaluatingSchemeDHT evaluationScheme;
 
+    // If set, the get fails if less than min peers replied
+    private final boolean quorum;
+
     // Storage of results
     private Map<PeerAddress, Map<Number640, Data>> rawData;
     // Digest results
@@ -64,9 +70,25 @@ public class FutureGet extends FutureDHT<FutureGet> {
      *            The scheme to evaluate results from multiple peers
      */
     public FutureGet(final DHTBuilder<?> builder, final int min, final EvaluatingSchemeDHT evaluationScheme) {
+        this(builder, min, evaluationScheme, false);
+    }
+
+    /**
+     * Creates a new DHT future object that keeps track of the status of the DHT operations.
+     * 
+     * @param min
+     *            The minimum of expected results
+     * @param evaluationScheme
+     *            The scheme to evaluate results from multiple peers
+     * @param quorum
+     *            True if the get only succeeds if at least min peers replied
+     */
+    public FutureGet(final DHTBuilder<?> builder, final int min, final EvaluatingSchemeDHT evaluationScheme,
+            final boolean quorum) {
         super(builder);
         this.min = min;
         this.evaluationScheme = evaluationScheme;
+        this.quorum = quorum;
         self(this);
     }
 
@@ -85,19 +107,60 @@ public class FutureGet extends FutureDHT<FutureGet> {
             if (!completedAndNotify()) {
                 return;
             }
-            this.rawData = rawData;
+            this.rawData = withoutIgnoredCursor(rawData);
             
             this.rawDigest = rawDigest;
             this.rawStatus = rawStatus;
             this.futuresCompleted = futuresCompleted;
             final int size = rawStatus.size();
             this.minReached = size >= min;
-            this.type = size > 0 ? FutureType.OK : FutureType.FAILED;
-            this.reason = size > 0 ? "Minimum number of answers reached" : "Expected >0 answers, but got " + size;
+            if (rawData != null && this.rawData.isEmpty() && !rawData.isEmpty()) {
+                this.type = FutureType.FAILED;
+                this.reason = "The peers do not support the cursor of a paged get";
+            } else if (quorum) {
+                this.type = minReached ? FutureType.OK : FutureType.FAILED;
+                this.reason = minReached ? "Read quorum reached" : "Expected " + min
+                        + " answers for the read quorum, but got " + size;
+            } else {
+                this.type = size > 0 ? FutureType.OK : FutureType.FAILED;
+                this.reason = size > 0 ? "Minimum number of answers reached" : "Expected >0 answers, but got " + size;
+            }
         }
         notifyListeners();
     }
 
+    /**
+     * A peer that does not know the cursor of a paged get returns the first page again, and a client that follows the
+     * cursor would never reach the end. The pages of such peers are removed, they contain keys that are not after the
+     * cursor.
+     * 
+     * @return The raw data without the pages that ignored the cursor
+     */
+    private Map<PeerAddress, Map<Number640, Data>> withoutIgnoredCursor(
+            final Map<PeerAddress, Map<Number640, Data>> rawData) {
+        if (!(builder() instanceof GetBuilder) || rawData == null) {
+            return rawData;
+        }
+        final GetBuilder getBuilder = (GetBuilder) builder();
+        final Number640 requested = getBuilder.cursor();
+        if (!getBuilder.isPaged() || requested == null) {
+            return rawData;
+        }
+        final Map<PeerAddress, Map<Number640, Data>> result = new HashMap<PeerAddress, Map<Number640, Data>>();
+        for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : rawData.entrySet()) {
+            final Map<Number640, Data> page = entry.getValue();
+            if (!page.isEmpty()) {
+                final int cmp = getBuilder.isAscending() ? Collections.min(page.keySet()).compareTo(requested)
+                        : requested.compareTo(Collections.max(page.keySet()));
+                if (cmp <= 0) {
+                    continue;
+                }
+            }
+            result.put(entry.getKey(), page);
+        }
+        return result;
+    }
+
     /**
      * Returns the raw data from the get operation.
      * 
@@ -147,8 +210,59 @@ public class FutureGet extends FutureDHT<FutureGet> {
      */
     public Map<Number640, Data> dataMap() {
         synchronized (lock) {
-            return evaluationScheme.evaluate2(rawData);
+            final Map<Number640, Data> dataMap = evaluationScheme.evaluate2(rawData);
+            final Number640 cursor = cursorInternal();
+            if (cursor == null) {
+                return dataMap;
+            }
+            // beyond the cursor, a peer with a full page may have values that are not here yet
+            final boolean ascending = ((GetBuilder) builder()).isAscending();
+            final Map<Number640, Data> page = new TreeMap<Number640, Data>();
+            for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+                final int cmp = entry.getKey().compareTo(cursor);
+                if (ascending ? cmp <= 0 : cmp >= 0) {
+                    page.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Returns the cursor for the next page of a paged get, see {@link GetBuilder#pageSize(int)}. If the peers
+     * returned pages that end at different keys, the cursor is the earliest of these keys and {@link #dataMap()} only
+     * contains the values up to the cursor, so no value is skipped.
+     * 
+     * @return The cursor to read the next page with {@link GetBuilder#cursor(Number640)}, or null if all the values
+     *         of the range have been returned
+     */
+    public Number640 cursor() {
+        synchronized (lock) {
+            return cursorInternal();
+        }
+    }
+
+    private Number640 cursorInternal() {
+        if (!(builder() instanceof GetBuilder) || rawData == null) {
+            return null;
+        }
+        final GetBuilder getBuilder = (GetBuilder) builder();
+        if (!getBuilder.isPaged()) {
+            return null;
+        }
+        Number640 cursor = null;
+        for (Map<Number640, Data> page : rawData.values()) {
+            // a peer with less than a page has no more values
+            if (page.size() < getBuilder.pageSize()) {
+                continue;
+            }
+            final Number640 last = getBuilder.isAscending() ? Collections.max(page.keySet()) : Collections.min(page
+                    .keySet());
+            if (cursor == null || (getBuilder.isAscending() ? last.compareTo(cursor) < 0 : last.compareTo(cursor) > 0)) {
+                cursor = last;
+            }
         }
+        return cursor;
     }
     
     /**
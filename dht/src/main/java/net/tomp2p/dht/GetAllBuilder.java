@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Gets the values of many keys with different location keys. The peers responsible for a location key are found by
+ * routing once to each distinct location key, at most parallel routings at a time and with the routing cache. If the
+ * routing fails, the closest peers in the local peer map are used. All keys of a peer are sent in one message per
+ * batch. A key is first requested from the closest peer, if it is not found or the peer does not reply, from the next
+ * closest peer, up to the minimum results of the {@link net.tomp2p.p2p.RequestP2PConfiguration}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class GetAllBuilder extends DHTBuilder<GetAllBuilder> {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_PARALLEL = 5;
+
+    private final static FutureBatch<Data> FUTURE_SHUTDOWN = new FutureBatch<Data>(null)
+            .failed("get all builder - peer is shutting down");
+
+    private final Collection<Number640> keys;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int parallel = DEFAULT_PARALLEL;
+
+    public GetAllBuilder(PeerDHT peer, Collection<Number640> keys) {
+        super(peer, null);
+        this.keys = keys;
+        self(this);
+    }
+
+    public Collection<Number640> keys() {
+        return keys;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            The maximum number of keys in one message
+     * @return This class
+     */
+    public GetAllBuilder batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel
+     *            The maximum number of messages in flight
+     * @return This class
+     */
+    public GetAllBuilder parallel(int parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public FutureBatch<Data> start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        preBuild("get-all-builder");
+        if (batchSize <= 0 || parallel <= 0) {
+            throw new IllegalArgumentException("batch size and parallel must be positive");
+        }
+        final FutureBatch<Data> futureBatch = new FutureBatch<Data>(this);
+        if (keys == null || keys.isEmpty()) {
+            return futureBatch.done(Collections.<Number640> emptyList());
+        }
+        return peer.distributedHashTable().getAll(this, futureBatch);
+    }
+}
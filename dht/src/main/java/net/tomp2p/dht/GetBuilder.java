@@ -18,7 +18,9 @@ package net.tomp2p.dht;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 
+import net.tomp2p.p2p.RequestP2PConfiguration;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.rpc.SimpleBloomFilter;
@@ -66,6 +68,20 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     
     private boolean fastGet = true;
 
+    private int piggyBackSize = 0;
+
+    private double hedgePercentile = -1;
+
+    private int readQuorum = -1;
+
+    private boolean readRepair = false;
+
+    private ValueFilter valueFilter = null;
+
+    private int pageSize = -1;
+
+    private Number640 cursor = null;
+
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -279,6 +295,42 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     public boolean isRange() {
         return from != null && to != null;
     }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Reads a range page by page. Each get returns up to pageSize values of each responsible peer and
+     * {@link FutureGet#cursor()} returns the cursor for the next page, or null if the range has been read. The next
+     * page is read with {@link #cursor(Number640)}, so neither side needs to hold more than a page of the range.
+     * 
+     * @param pageSize
+     *            The number of values per page, overrides {@link #returnNr(int)}
+     * @return This builder
+     */
+    public GetBuilder pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public boolean isPaged() {
+        return pageSize > 0;
+    }
+
+    public Number640 cursor() {
+        return cursor;
+    }
+
+    /**
+     * @param cursor
+     *            The cursor from {@link FutureGet#cursor()} of the previous page, or null for the first page
+     * @return This builder
+     */
+    public GetBuilder cursor(Number640 cursor) {
+        this.cursor = cursor;
+        return this;
+    }
     
     public boolean isFastGet() {
         return fastGet;
@@ -294,6 +346,111 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         return this;
     }
 
+    public int piggyBackSize() {
+        return piggyBackSize;
+    }
+
+    /**
+     * Allows the close peers to send values up to this size (in bytes, for all values) along with their neighbor reply.
+     * If enough peers do that, the get finishes in the routing phase without a separate get request. Only used for
+     * plain gets of the latest values without digest, 0 to disable.
+     * 
+     * @param piggyBackSize
+     *            The maximum size of the values in bytes
+     * @return This builder
+     */
+    public GetBuilder piggyBackSize(int piggyBackSize) {
+        this.piggyBackSize = piggyBackSize;
+        return this;
+    }
+
+    public double hedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Reads from the replica with the lowest RTT first and sends a hedged request to the next replica if there is no
+     * reply after the given percentile of the recent read latencies. The slower request is canceled. Only used for fast
+     * gets that need a single result, a negative value disables it.
+     * 
+     * @param hedgePercentile
+     *            The percentile between 0 and 1, e.g., 0.95
+     * @return This builder
+     */
+    public GetBuilder hedgePercentile(double hedgePercentile) {
+        if (hedgePercentile > 1) {
+            throw new IllegalArgumentException("the percentile needs to be between 0 and 1");
+        }
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+
+    public boolean isHedged() {
+        return hedgePercentile >= 0;
+    }
+
+    public int readQuorum() {
+        return readQuorum;
+    }
+
+    /**
+     * Reads from R of the N replicas. The get waits for R replies and fails if less than R replicas replied. The
+     * replicas are not limited by the size of the local peer map as the minimum results are. -1 to disable.
+     * 
+     * @param readQuorum
+     *            The number of replicas R that need to reply
+     * @return This builder
+     */
+    public GetBuilder readQuorum(int readQuorum) {
+        this.readQuorum = readQuorum;
+        return this;
+    }
+
+    public boolean isReadRepair() {
+        return readRepair;
+    }
+
+    /**
+     * Writes a value most replicas returned back to the replicas that miss it, see
+     * {@link VotingSchemeDHT#readRepair(Map, Collection)}. The repair runs in the background and does not delay the
+     * get, the requests can be found in {@link FutureGet#futureRequests()}.
+     * 
+     * @param readRepair
+     *            True to repair stale replicas
+     * @return This builder
+     */
+    public GetBuilder readRepair(boolean readRepair) {
+        this.readRepair = readRepair;
+        return this;
+    }
+
+    public GetBuilder readRepair() {
+        this.readRepair = true;
+        return this;
+    }
+
+    public ValueFilter valueFilter() {
+        return valueFilter;
+    }
+
+    /**
+     * Filters and projects the values on the responsible peers, see {@link ValueFilters}. The filter is applied before
+     * the limit of {@link #returnNr(int)}. Only the built-in filters can be sent and they cannot be combined with
+     * {@link #getLatest()}. A filtered get is not served from the near cache and does not repair
+     * replicas.
+     * 
+     * @param valueFilter
+     *            The filter that is sent to the responsible peers, or null to return the whole values
+     * @return This builder
+     */
+    public GetBuilder valueFilter(ValueFilter valueFilter) {
+        if (valueFilter != null) {
+            ValueFilters.checkBuiltIn(valueFilter);
+        }
+        this.valueFilter = valueFilter;
+        return this;
+    }
+
     public FutureGet start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
@@ -315,13 +472,29 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
             evaluationScheme = new VotingSchemeDHT();
         }
 		if (isGetLatest) {
+			if (valueFilter != null) {
+				throw new IllegalArgumentException("a value filter cannot be used to get the latest version");
+			}
 			if (contentKey == null) {
 				contentKey = Number160.ZERO;
 			}
 		}
 		
+		if (pageSize > 0) {
+			if (!isRange()) {
+				throw new IllegalArgumentException("pagination needs a range, set from and to");
+			}
+			returnNr = pageSize;
+		}
+
+		if (readQuorum > 0) {
+			requestP2PConfiguration = new RequestP2PConfiguration(readQuorum,
+			        requestP2PConfiguration.maxFailure(), requestP2PConfiguration.parallelDiff(),
+			        requestP2PConfiguration.isForceUPD(), requestP2PConfiguration.isForceTCP());
+		}
+		
 		final FutureGet futureGet = new FutureGet(this, requestP2PConfiguration()
-                .minimumResults(), evaluationScheme);
+                .minimumResults(), evaluationScheme, readQuorum > 0);
         return peer.distributedHashTable().get(this, futureGet);
     }
 }
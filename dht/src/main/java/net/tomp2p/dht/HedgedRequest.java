@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ChannelClient;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads from a single replica and sends a hedged request to the next replica if no reply arrived within the hedge
+ * delay. The first successful reply wins and the other request is canceled. If a request fails, the next replica is
+ * tried until maxFailure requests have failed.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the future that takes care of all the RPC futures
+ */
+class HedgedRequest<K extends FutureDHT<?>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HedgedRequest.class);
+
+    private final Queue<PeerAddress> queue;
+    private final int maxFailure;
+    private final K futureDHT;
+    private final ChannelClient channelClient;
+    private final OperationMapper<K> operation;
+    private final ReplicaSelector replicaSelector;
+    private final PeerMap peerMap;
+    private final long hedgeDelayMillis;
+    private final ScheduledExecutorService timer;
+
+    private final FutureDone<Void> futuresCompleted = new FutureDone<Void>();
+
+    // guarded by this
+    private final List<FutureResponse> active = new ArrayList<FutureResponse>(2);
+    private int nrFailure = 0;
+    private boolean done = false;
+
+    /**
+     * @param queue
+     *            The replicas, the one to ask first at the head
+     * @param hedgeDelayMillis
+     *            The delay after which the next replica is asked as well, or -1 to never hedge
+     */
+    HedgedRequest(final Queue<PeerAddress> queue, final int maxFailure, final K futureDHT,
+            final ChannelClient channelClient, final OperationMapper<K> operation,
+            final ReplicaSelector replicaSelector, final PeerMap peerMap, final long hedgeDelayMillis,
+            final ScheduledExecutorService timer) {
+        this.queue = queue;
+        this.maxFailure = maxFailure;
+        this.futureDHT = futureDHT;
+        this.channelClient = channelClient;
+        this.operation = operation;
+        this.replicaSelector = replicaSelector;
+        this.peerMap = peerMap;
+        this.hedgeDelayMillis = hedgeDelayMillis;
+        this.timer = timer;
+    }
+
+    void start() {
+        if (!send()) {
+            finish();
+            return;
+        }
+        scheduleHedge();
+    }
+
+    private boolean send() {
+        final PeerAddress next;
+        synchronized (this) {
+            next = queue.poll();
+        }
+        if (next == null) {
+            return false;
+        }
+        final long start = System.currentTimeMillis();
+        final FutureResponse futureResponse = operation.create(channelClient, next);
+        synchronized (this) {
+            active.add(futureResponse);
+        }
+        futureDHT.addRequests(futureResponse);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                completed(future, next, System.currentTimeMillis() - start);
+            }
+        });
+        return true;
+    }
+
+    private void scheduleHedge() {
+        synchronized (this) {
+            if (hedgeDelayMillis < 0 || queue.isEmpty()) {
+                return;
+            }
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HedgedRequest.this) {
+                    // the read finished or failed over to the next replica in the meantime
+                    if (done || active.size() != 1) {
+                        return;
+                    }
+                }
+                LOG.debug("no reply within {}ms, sending hedged request", hedgeDelayMillis);
+                send();
+            }
+        }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void completed(final FutureResponse future, final PeerAddress peerAddress, final long latencyMillis) {
+        final boolean finished;
+        final List<FutureResponse> losers;
+        synchronized (this) {
+            active.remove(future);
+            if (done) {
+                if (active.isEmpty()) {
+                    futuresCompleted.done();
+                }
+                return;
+            }
+            if (future.isSuccess()) {
+                done = true;
+                finished = true;
+                losers = new ArrayList<FutureResponse>(active);
+            } else {
+                finished = ++nrFailure > maxFailure || (active.isEmpty() && queue.isEmpty());
+                done = finished;
+                losers = finished ? new ArrayList<FutureResponse>(active) : null;
+            }
+        }
+        operation.interMediateResponse(future);
+        if (future.isSuccess()) {
+            replicaSelector.record(peerAddress, peerMap, latencyMillis);
+        }
+        if (finished) {
+            for (FutureResponse loser : losers) {
+                loser.cancel();
+            }
+            finish();
+            return;
+        }
+        final boolean retry;
+        synchronized (this) {
+            // if the hedged request is still running, wait for it
+            retry = active.isEmpty();
+        }
+        if (retry) {
+            if (!send()) {
+                synchronized (this) {
+                    done = true;
+                }
+                finish();
+                return;
+            }
+            scheduleHedge();
+        }
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (active.isEmpty()) {
+                futuresCompleted.done();
+            }
+        }
+        operation.response(futureDHT, futuresCompleted);
+    }
+}
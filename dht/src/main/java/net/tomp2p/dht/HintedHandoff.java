@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.RTT;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the hints of puts that were stored on this peer in place of a replica that could not be reached, see
+ * {@link PutBuilder#hintedHandoff()}. Once the replica is seen again, the latest values of the hinted keys are
+ * forwarded to it in batches, off the I/O thread that reported the replica. This peer keeps its copy, as it is one of
+ * the next closest peers and the replication takes care of it if it is not responsible.
+ * <p>
+ * This peer cannot sign for the original writer. A hint keeps the public key the value was put with, and the value is
+ * forwarded as stored with its own signature, so the replica accepts a protected entry only from its owner. Hints of
+ * puts that protect a domain are not kept, as only the owner can claim the domain on the replica.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class HintedHandoff implements PeerStatusListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HintedHandoff.class);
+
+    public static final int DEFAULT_MAX_HINTS = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final PeerDHT peer;
+    private final int maxHints;
+    private final int batchSize;
+
+    // guarded by this
+    private final Map<Number160, Hints> hints = new HashMap<Number160, Hints>();
+
+    private static class Hints {
+        private PeerAddress peerAddress;
+        // the public key of the put by key, null if the put was not signed
+        private final NavigableMap<Number640, PublicKey> keys = new TreeMap<Number640, PublicKey>();
+        private boolean forwarding = false;
+    }
+
+    public HintedHandoff(final PeerDHT peer) {
+        this(peer, DEFAULT_MAX_HINTS, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param peer
+     *            The peer that stores the hinted values
+     * @param maxHints
+     *            The maximum number of keys kept per unreachable replica, further hints are dropped
+     * @param batchSize
+     *            The maximum number of values forwarded with one put
+     */
+    public HintedHandoff(final PeerDHT peer, final int maxHints, final int batchSize) {
+        this.peer = peer;
+        this.maxHints = maxHints;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Adds hints for keys that have been stored here in place of the given replica.
+     *
+     * @param intended
+     *            The replica that could not be reached
+     * @param keys
+     *            The keys that have been stored
+     * @param publicKey
+     *            The public key the values have been put with, null if the put was not signed
+     */
+    public void addHint(final PeerAddress intended, final Collection<Number640> keys, final PublicKey publicKey) {
+        if (intended.peerId().equals(peer.peerID())) {
+            return;
+        }
+        synchronized (this) {
+            Hints peerHints = hints.get(intended.peerId());
+            if (peerHints == null) {
+                peerHints = new Hints();
+                hints.put(intended.peerId(), peerHints);
+            }
+            peerHints.peerAddress = intended;
+            for (Number640 key : keys) {
+                if (peerHints.keys.size() >= maxHints && !peerHints.keys.containsKey(key)) {
+                    LOG.debug("too many hints for {}, dropping the rest", intended);
+                    break;
+                }
+                peerHints.keys.put(key, publicKey);
+            }
+        }
+    }
+
+    /**
+     * @param peerId
+     *            The peer ID of the replica
+     * @return The number of keys that wait to be forwarded to this replica
+     */
+    public synchronized int hints(final Number160 peerId) {
+        final Hints peerHints = hints.get(peerId);
+        return peerHints == null ? 0 : peerHints.keys.size();
+    }
+
+    @Override
+    public boolean peerFailed(final PeerAddress remotePeer, final PeerException exception) {
+        // a peer that left the network is handled by the replication
+        if (exception.abortCause() == AbortCause.SHUTDOWN) {
+            synchronized (this) {
+                return hints.remove(remotePeer.peerId()) != null;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean peerFound(final PeerAddress remotePeer, final PeerAddress referrer, final RTT roundTripTime) {
+        // only if we talked to the replica ourselves
+        if (referrer != null) {
+            return false;
+        }
+        synchronized (this) {
+            final Hints peerHints = hints.get(remotePeer.peerId());
+            if (peerHints == null || peerHints.forwarding) {
+                return false;
+            }
+            peerHints.forwarding = true;
+            peerHints.peerAddress = remotePeer;
+        }
+        // this is called on an I/O thread, reading the values is not
+        forwardNext(remotePeer);
+        return true;
+    }
+
+    private void forwardNext(final PeerAddress remotePeer) {
+        final ScheduledExecutorService timer = peer.peer().connectionBean().timer();
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forwardBatch(remotePeer);
+                } catch (RuntimeException e) {
+                    LOG.warn("could not forward hinted values to {}", remotePeer, e);
+                    stopForwarding(remotePeer);
+                }
+            }
+        });
+    }
+
+    private synchronized void stopForwarding(final PeerAddress remotePeer) {
+        final Hints peerHints = hints.get(remotePeer.peerId());
+        if (peerHints != null) {
+            peerHints.forwarding = false;
+        }
+    }
+
+    private void forwardBatch(final PeerAddress remotePeer) {
+        final NavigableMap<Number640, PublicKey> batch = new TreeMap<Number640, PublicKey>();
+        synchronized (this) {
+            final Hints peerHints = hints.get(remotePeer.peerId());
+            if (peerHints == null) {
+                return;
+            }
+            for (Map.Entry<Number640, PublicKey> entry : peerHints.keys.entrySet()) {
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+                batch.put(entry.getKey(), entry.getValue());
+            }
+        }
+        forward(remotePeer, batch).addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                synchronized (HintedHandoff.this) {
+                    final Hints peerHints = hints.get(remotePeer.peerId());
+                    if (peerHints == null) {
+                        return;
+                    }
+                    if (!future.isSuccess()) {
+                        peerHints.forwarding = false;
+                        return;
+                    }
+                    peerHints.keys.keySet().removeAll(batch.keySet());
+                    if (peerHints.keys.isEmpty()) {
+                        hints.remove(remotePeer.peerId());
+                        return;
+                    }
+                }
+                forwardNext(remotePeer);
+            }
+        });
+    }
+
+    private FutureDone<Void> forward(final PeerAddress remotePeer, final NavigableMap<Number640, PublicKey> keys) {
+        final FutureDone<Void> futureDone = new FutureDone<Void>();
+        final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+        for (Map.Entry<Number640, PublicKey> entry : keys.entrySet()) {
+            // the latest value, a removed or expired value is not forwarded
+            Data data = peer.storageLayer().get(entry.getKey());
+            if (data == null) {
+                continue;
+            }
+            if (data.isProtectedEntry() && data.publicKey() == null && entry.getValue() != null) {
+                // the replica checks the claim of a protected entry against the public key of the data
+                data = data.duplicate().publicKey(entry.getValue());
+            }
+            dataMap.put(entry.getKey(), data);
+        }
+        if (dataMap.isEmpty()) {
+            return futureDone.done();
+        }
+        LOG.debug("forwarding {} hinted values to {}", dataMap.size(), remotePeer);
+        final FutureChannelCreator futureChannelCreator = peer.peer().connectionBean().reservation().create(0, 1);
+        Utils.addReleaseListener(futureChannelCreator, futureDone);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    // sent as stored with the original signature, replacing what the replica had like the put it missed
+                    final FutureResponse futureResponse = peer.storeRPC().putRepair(remotePeer, dataMap, false,
+                            new PutAllBuilder(peer, dataMap), future.channelCreator());
+                    futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                        @Override
+                        public void operationComplete(final FutureResponse future) throws Exception {
+                            if (future.isSuccess() && future.responseMessage().isOk()) {
+                                futureDone.done();
+                            } else {
+                                futureDone.failed(future);
+                            }
+                        }
+                    });
+                } else {
+                    futureDone.failed(future);
+                }
+            }
+        });
+        return futureDone;
+    }
+}
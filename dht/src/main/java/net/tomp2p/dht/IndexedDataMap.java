@@ -0,0 +1,425 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * A read only view on a range of a {@link Number640Index} that maps the addresses in the index to values on access.
+ * This is used by storages that keep their values outside of the heap. Only the poll methods modify the storage, as
+ * they do for the other storages. A null bound means no bound, the bounds are in ascending order also for a
+ * descending view. The view reads the index in batches, so iterating does not block writers.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class IndexedDataMap extends AbstractMap<Number640, Data> implements NavigableMap<Number640, Data> {
+
+	private static final int BATCH_SIZE = 64;
+
+	/**
+	 * Resolves the addresses of the index.
+	 */
+	public interface Values {
+		/**
+		 * @return The value at the address, or the current value of the key if the address has been moved in the
+		 *         meantime, or null if the key has been removed
+		 */
+		Data value(Number640 key, long address);
+
+		/**
+		 * @return The removed value or null
+		 */
+		Data remove(Number640 key);
+	}
+
+	private final Number640Index index;
+	private final Values values;
+	private final Number640 from;
+	private final boolean fromInclusive;
+	private final Number640 to;
+	private final boolean toInclusive;
+	private final boolean descending;
+
+	/**
+	 * Creates a view on the whole index.
+	 */
+	public IndexedDataMap(final Number640Index index, final Values values) {
+		this(index, values, null, false, null, false, false);
+	}
+
+	public IndexedDataMap(final Number640Index index, final Values values, final Number640 from,
+	        final boolean fromInclusive, final Number640 to, final boolean toInclusive, final boolean descending) {
+		this.index = index;
+		this.values = values;
+		this.from = from;
+		this.fromInclusive = fromInclusive;
+		this.to = to;
+		this.toInclusive = toInclusive;
+		this.descending = descending;
+	}
+
+	@Override
+	public Data get(final Object key) {
+		if (!(key instanceof Number640) || !inRange((Number640) key)) {
+			return null;
+		}
+		return value((Number640) key);
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return key instanceof Number640 && inRange((Number640) key)
+		        && index.get((Number640) key) != Number640Index.NOT_FOUND;
+	}
+
+	@Override
+	public int size() {
+		return index.count(from, fromInclusive, to, toInclusive);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return index.range(from, fromInclusive, to, toInclusive, false, 1).isEmpty();
+	}
+
+	@Override
+	public Set<Map.Entry<Number640, Data>> entrySet() {
+		return new AbstractSet<Map.Entry<Number640, Data>>() {
+			@Override
+			public Iterator<Map.Entry<Number640, Data>> iterator() {
+				return new EntryIterator(IndexedDataMap.this);
+			}
+
+			@Override
+			public int size() {
+				return IndexedDataMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Comparator<? super Number640> comparator() {
+		return descending ? Collections.<Number640> reverseOrder() : null;
+	}
+
+	@Override
+	public Number640 firstKey() {
+		return key(firstEntry());
+	}
+
+	@Override
+	public Number640 lastKey() {
+		return key(lastEntry());
+	}
+
+	/**
+	 * @return A snapshot of the keys
+	 */
+	@Override
+	public NavigableSet<Number640> navigableKeySet() {
+		final NavigableSet<Number640> keys = new TreeSet<Number640>(comparator());
+		for (Map.Entry<Number640, Long> entry : index.range(from, fromInclusive, to, toInclusive, descending,
+		        Integer.MAX_VALUE)) {
+			keys.add(entry.getKey());
+		}
+		return Collections.unmodifiableNavigableSet(keys);
+	}
+
+	@Override
+	public Set<Number640> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<Number640> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> firstEntry() {
+		return descending ? below(null, false) : above(null, false);
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> lastEntry() {
+		return descending ? above(null, false) : below(null, false);
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> lowerEntry(final Number640 key) {
+		return descending ? above(key, false) : below(key, false);
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> floorEntry(final Number640 key) {
+		return descending ? above(key, true) : below(key, true);
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> ceilingEntry(final Number640 key) {
+		return descending ? below(key, true) : above(key, true);
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> higherEntry(final Number640 key) {
+		return descending ? below(key, false) : above(key, false);
+	}
+
+	@Override
+	public Number640 lowerKey(final Number640 key) {
+		return keyOrNull(lowerEntry(key));
+	}
+
+	@Override
+	public Number640 floorKey(final Number640 key) {
+		return keyOrNull(floorEntry(key));
+	}
+
+	@Override
+	public Number640 ceilingKey(final Number640 key) {
+		return keyOrNull(ceilingEntry(key));
+	}
+
+	@Override
+	public Number640 higherKey(final Number640 key) {
+		return keyOrNull(higherEntry(key));
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> pollFirstEntry() {
+		return poll(firstEntry());
+	}
+
+	@Override
+	public Map.Entry<Number640, Data> pollLastEntry() {
+		return poll(lastEntry());
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> descendingMap() {
+		return new IndexedDataMap(index, values, from, fromInclusive, to, toInclusive, !descending);
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> subMap(final Number640 fromKey, final boolean fromInclusive,
+	        final Number640 toKey, final boolean toInclusive) {
+		if (descending) {
+			return restrict(toKey, toInclusive, fromKey, fromInclusive);
+		}
+		return restrict(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> headMap(final Number640 toKey, final boolean inclusive) {
+		return descending ? restrict(toKey, inclusive, null, false) : restrict(null, false, toKey, inclusive);
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> tailMap(final Number640 fromKey, final boolean inclusive) {
+		return descending ? restrict(null, false, fromKey, inclusive) : restrict(fromKey, inclusive, null, false);
+	}
+
+	@Override
+	public SortedMap<Number640, Data> subMap(final Number640 fromKey, final Number640 toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<Number640, Data> headMap(final Number640 toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<Number640, Data> tailMap(final Number640 fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * @return The next batch of entries after the key in the order of this view, starting at the beginning if the
+	 *         key is null
+	 */
+	private List<Map.Entry<Number640, Long>> next(final Number640 key) {
+		if (key == null) {
+			return index.range(from, fromInclusive, to, toInclusive, descending, BATCH_SIZE);
+		} else if (descending) {
+			return index.range(from, fromInclusive, key, false, true, BATCH_SIZE);
+		} else {
+			return index.range(key, false, to, toInclusive, false, BATCH_SIZE);
+		}
+	}
+
+	/**
+	 * @return The smallest entry in ascending order above the key, or the smallest entry if the key is null
+	 */
+	private Map.Entry<Number640, Data> above(final Number640 key, final boolean inclusive) {
+		Number640 lower = from;
+		boolean lowerInclusive = fromInclusive;
+		if (key != null && (lower == null || key.compareTo(lower) > 0 || (key.equals(lower) && !inclusive))) {
+			lower = key;
+			lowerInclusive = inclusive;
+		}
+		return first(index.range(lower, lowerInclusive, to, toInclusive, false, 1));
+	}
+
+	/**
+	 * @return The largest entry in ascending order below the key, or the largest entry if the key is null
+	 */
+	private Map.Entry<Number640, Data> below(final Number640 key, final boolean inclusive) {
+		Number640 upper = to;
+		boolean upperInclusive = toInclusive;
+		if (key != null && (upper == null || key.compareTo(upper) < 0 || (key.equals(upper) && !inclusive))) {
+			upper = key;
+			upperInclusive = inclusive;
+		}
+		return first(index.range(from, fromInclusive, upper, upperInclusive, true, 1));
+	}
+
+	/**
+	 * @return The view on the intersection of this range and the given range
+	 */
+	private IndexedDataMap restrict(Number640 lower, boolean lowerInclusive, Number640 upper, boolean upperInclusive) {
+		if (lower == null || (from != null && from.compareTo(lower) > 0)) {
+			lower = from;
+			lowerInclusive = fromInclusive;
+		} else if (from != null && from.equals(lower)) {
+			lowerInclusive = lowerInclusive && fromInclusive;
+		}
+		if (upper == null || (to != null && to.compareTo(upper) < 0)) {
+			upper = to;
+			upperInclusive = toInclusive;
+		} else if (to != null && to.equals(upper)) {
+			upperInclusive = upperInclusive && toInclusive;
+		}
+		return new IndexedDataMap(index, values, lower, lowerInclusive, upper, upperInclusive, descending);
+	}
+
+	private boolean inRange(final Number640 key) {
+		if (from != null) {
+			final int cmp = key.compareTo(from);
+			if (cmp < 0 || (cmp == 0 && !fromInclusive)) {
+				return false;
+			}
+		}
+		if (to != null) {
+			final int cmp = key.compareTo(to);
+			if (cmp > 0 || (cmp == 0 && !toInclusive)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Map.Entry<Number640, Data> first(final List<Map.Entry<Number640, Long>> entries) {
+		return entries.isEmpty() ? null : entry(entries.get(0));
+	}
+
+	private Map.Entry<Number640, Data> poll(final Map.Entry<Number640, Data> entry) {
+		if (entry == null) {
+			return null;
+		}
+		final Data data = values.remove(entry.getKey());
+		return data == null ? null : new AbstractMap.SimpleImmutableEntry<Number640, Data>(entry.getKey(), data);
+	}
+
+	private Number640 key(final Map.Entry<Number640, Data> entry) {
+		if (entry == null) {
+			throw new NoSuchElementException();
+		}
+		return entry.getKey();
+	}
+
+	private Number640 keyOrNull(final Map.Entry<Number640, Data> entry) {
+		return entry == null ? null : entry.getKey();
+	}
+
+	private Data value(final Number640 key) {
+		final long address = index.get(key);
+		return address == Number640Index.NOT_FOUND ? null : values.value(key, address);
+	}
+
+	/**
+	 * @return The entry with the value, or null if it has been removed in the meantime
+	 */
+	private Map.Entry<Number640, Data> entry(final Map.Entry<Number640, Long> entry) {
+		final Data data = values.value(entry.getKey(), entry.getValue());
+		return data == null ? null : new AbstractMap.SimpleImmutableEntry<Number640, Data>(entry.getKey(), data);
+	}
+
+	/**
+	 * Reads the index in batches, so that the read lock of the index is not held while iterating.
+	 */
+	private static final class EntryIterator implements Iterator<Map.Entry<Number640, Data>> {
+
+		private final IndexedDataMap map;
+		private Iterator<Map.Entry<Number640, Long>> batch;
+		private Number640 last = null;
+		private boolean done = false;
+		private Map.Entry<Number640, Data> next;
+
+		private EntryIterator(final IndexedDataMap map) {
+			this.map = map;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !done) {
+				if (batch == null || !batch.hasNext()) {
+					final List<Map.Entry<Number640, Long>> entries = map.next(last);
+					if (entries.isEmpty()) {
+						done = true;
+						break;
+					}
+					batch = entries.iterator();
+				}
+				final Map.Entry<Number640, Long> entry = batch.next();
+				last = entry.getKey();
+				next = map.entry(entry);
+			}
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<Number640, Data> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final Map.Entry<Number640, Data> retVal = next;
+			next = null;
+			return retVal;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("read only view");
+		}
+	}
+}
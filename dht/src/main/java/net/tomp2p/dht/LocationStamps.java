@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Version stamps per location key for optimistic reads. A writer increments the begin counter of a location before it
+ * changes the storage and the end counter afterwards. If a reader sees no active writer and the same begin counter
+ * before and after the read, nothing changed in between. Location keys are hashed to a fixed number of slots, so a
+ * write to an unrelated location key may cause a retry.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class LocationStamps {
+
+	public static final int DEFAULT_SLOTS = 64;
+
+	private final AtomicLongArray begin;
+	private final AtomicLongArray end;
+
+	public LocationStamps() {
+		this(DEFAULT_SLOTS);
+	}
+
+	public LocationStamps(final int slots) {
+		this.begin = new AtomicLongArray(slots);
+		this.end = new AtomicLongArray(slots);
+	}
+
+	/**
+	 * Marks the start of a write. A range that spans location keys marks all slots.
+	 */
+	public void begin(final Number640 from, final Number640 to) {
+		final int slot = slot(from, to);
+		if (slot >= 0) {
+			begin.incrementAndGet(slot);
+		} else {
+			for (int i = 0; i < begin.length(); i++) {
+				begin.incrementAndGet(i);
+			}
+		}
+	}
+
+	public void end(final Number640 from, final Number640 to) {
+		final int slot = slot(from, to);
+		if (slot >= 0) {
+			end.incrementAndGet(slot);
+		} else {
+			for (int i = 0; i < end.length(); i++) {
+				end.incrementAndGet(i);
+			}
+		}
+	}
+
+	/**
+	 * @return The stamp to validate the read with, or -1 if a writer is active or the range spans location keys
+	 */
+	public long stamp(final Number640 from, final Number640 to) {
+		final int slot = slot(from, to);
+		if (slot < 0) {
+			return -1;
+		}
+		// read end first, it never overtakes begin
+		final long ended = end.get(slot);
+		final long begun = begin.get(slot);
+		return begun == ended ? begun : -1;
+	}
+
+	/**
+	 * @return True if no writer started since the stamp was taken
+	 */
+	public boolean validate(final Number640 from, final Number640 to, final long stamp) {
+		return begin.get(slot(from, to)) == stamp;
+	}
+
+	private int slot(final Number640 from, final Number640 to) {
+		if (!from.locationKey().equals(to.locationKey())) {
+			return -1;
+		}
+		int hash = from.locationKey().hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % begin.length();
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * A client side cache for the values read with {@link PeerDHT#get(Number160)}. Only gets of exact keys are served
+ * from the cache, i.e., gets of content keys or of a key collection without range, bloom filter, digest or latest
+ * version. A value is evicted after the TTL of the cache or once the value expires, whatever comes first, and the
+ * least recently used values are evicted if the cache is full. Local puts and removes invalidate the content key with
+ * all its versions, puts and removes of other peers invalidate the location key if the responsible peers send an
+ * invalidation, see {@link NearCacheRPC}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class NearCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final int DEFAULT_TTL_MILLIS = 30 * 1000;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // guarded by this, the LRU order for eviction and the sorted keys for invalidation
+    private final LinkedHashMap<Number640, Entry> entries = new LinkedHashMap<Number640, Entry>(16, 0.75f, true);
+    private final NavigableMap<Number640, Entry> sorted = new TreeMap<Number640, Entry>();
+
+    private int hits = 0;
+    private int misses = 0;
+    // incremented by every invalidation
+    private long stamp = 0;
+
+    private static class Entry {
+        private final Data data;
+        private final long expirationMillis;
+
+        private Entry(final Data data, final long expirationMillis) {
+            this.data = data;
+            this.expirationMillis = expirationMillis;
+        }
+    }
+
+    public NearCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxEntries
+     *            The maximum number of values in the cache
+     * @param ttlMillis
+     *            The time after which a value is read from the network again
+     */
+    public NearCache(final int maxEntries, final long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param keys
+     *            The keys to look up
+     * @return The cached values, or null if not all of them are cached
+     */
+    public Map<Number640, Data> getAll(final Collection<Number640> keys) {
+        final long now = System.currentTimeMillis();
+        final Map<Number640, Data> retVal = new HashMap<Number640, Data>(keys.size());
+        synchronized (this) {
+            for (Number640 key : keys) {
+                final Entry entry = entries.get(key);
+                if (entry == null || entry.expirationMillis <= now) {
+                    if (entry != null) {
+                        remove(key);
+                    }
+                    misses++;
+                    return null;
+                }
+                retVal.put(key, entry.data);
+            }
+            hits++;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return The stamp to pass to {@link #putAll(Map, long)}, taken before the get is sent
+     */
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    /**
+     * Caches the values of a get. A value that expires earlier than the TTL of the cache is evicted when it expires.
+     * Nothing is cached if there was an invalidation since the stamp was taken, as the values may be older than the
+     * invalidation.
+     *
+     * @param dataMap
+     *            The values to cache
+     * @param stamp
+     *            The stamp taken before the get was sent
+     */
+    public void putAll(final Map<Number640, Data> dataMap, final long stamp) {
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (stamp != this.stamp) {
+                return;
+            }
+            for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+                final long expirationMillis = Math.min(now + ttlMillis, entry.getValue().expirationMillis());
+                if (expirationMillis <= now) {
+                    continue;
+                }
+                final Entry cached = new Entry(entry.getValue(), expirationMillis);
+                entries.put(entry.getKey(), cached);
+                sorted.put(entry.getKey(), cached);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Removes a content key with all its versions.
+     *
+     * @param key
+     *            The key, the version key is ignored
+     */
+    public synchronized void invalidate(final Number640 key) {
+        stamp++;
+        final Number640 from = new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.ZERO);
+        final Number640 to = new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.MAX_VALUE);
+        removeAll(sorted.subMap(from, true, to, true));
+    }
+
+    /**
+     * Removes all values of a location key.
+     *
+     * @param locationKey
+     *            The location key
+     */
+    public synchronized void invalidate(final Number160 locationKey) {
+        stamp++;
+        final Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        final Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                Number160.MAX_VALUE);
+        removeAll(sorted.subMap(from, true, to, true));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sorted.clear();
+    }
+
+    /**
+     * @return The time after which a value is read from the network again
+     */
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of gets that have been served from the cache
+     */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of cacheable gets that had to go to the network
+     */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    private void removeAll(final NavigableMap<Number640, Entry> range) {
+        for (Number640 key : range.keySet()) {
+            entries.remove(key);
+        }
+        range.clear();
+    }
+
+    private void remove(final Number640 key) {
+        entries.remove(key);
+        sorted.remove(key);
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<Number640, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            final Number640 key = iterator.next().getKey();
+            iterator.remove();
+            sorted.remove(key);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The RPC that keeps the {@link NearCache} of other peers up to date. A get that can be cached asks the peers it reads
+ * from for a lease on the location keys with the get request, see {@link StorageRPC}. A peer grants the lease only
+ * for location keys it stores values of, and registers it before it reads the values, so no change after the read is
+ * missed. If the location key changes on such a peer, it sends an invalidation to the subscribers (REQUEST_1) and
+ * forgets them, the next get subscribes again. Expired leases are removed periodically, so peers that went away are
+ * forgotten.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class NearCacheRPC extends DispatchHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NearCacheRPC.class);
+
+    public static final byte NEAR_CACHE_COMMAND = RPC.Commands.NEAR_CACHE.getNr();
+
+    public static final int DEFAULT_LEASE_MILLIS = NearCache.DEFAULT_TTL_MILLIS;
+    public static final int MAX_SUBSCRIBERS = 100;
+
+    private final NearCache nearCache;
+    private final int leaseMillis;
+
+    // guarded by this, subscribers per location key with the expiration of the lease
+    private final Map<Number160, Map<PeerAddress, Long>> subscribers = new HashMap<Number160, Map<PeerAddress, Long>>();
+
+    /**
+     * Constructor that registers this RPC with the message handler.
+     *
+     * @param peerBean
+     *            The peer bean that contains data that is unique for each peer
+     * @param connectionBean
+     *            The connection bean that is unique per connection (multiple peers can share a single connection)
+     * @param nearCache
+     *            The cache of this peer that is invalidated by others, may be null
+     * @param leaseMillis
+     *            The time a subscription of another peer is kept
+     */
+    public NearCacheRPC(final PeerBean peerBean, final ConnectionBean connectionBean, final NearCache nearCache,
+            final int leaseMillis) {
+        super(peerBean, connectionBean);
+        register(NEAR_CACHE_COMMAND);
+        this.nearCache = nearCache;
+        this.leaseMillis = leaseMillis;
+    }
+
+    public NearCache nearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Removes the expired leases every interval.
+     *
+     * @param timer
+     *            The timer to schedule the removal with
+     * @param intervalMillis
+     *            The time between two removals
+     */
+    public void start(final ScheduledExecutorService timer, final int intervalMillis) {
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the expired leases.
+     */
+    public synchronized void expire() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Map<PeerAddress, Long>> iterator = subscribers.values().iterator(); iterator.hasNext();) {
+            final Map<PeerAddress, Long> leases = iterator.next();
+            removeExpired(leases, now);
+            if (leases.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The number of peers that hold a lease on the location key, including expired ones
+     */
+    public synchronized int subscribers(final Number160 locationKey) {
+        final Map<PeerAddress, Long> leases = subscribers.get(locationKey);
+        return leases == null ? 0 : leases.size();
+    }
+
+    /**
+     * Sends invalidations to the subscribers of a location key that changed on this peer.
+     *
+     * @param locationKey
+     *            The location key that changed
+     */
+    public void changed(final Number160 locationKey) {
+        final Collection<PeerAddress> notify = new ArrayList<PeerAddress>();
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            final Map<PeerAddress, Long> leases = subscribers.remove(locationKey);
+            if (leases == null) {
+                return;
+            }
+            for (Map.Entry<PeerAddress, Long> entry : leases.entrySet()) {
+                if (entry.getValue() > now) {
+                    notify.add(entry.getKey());
+                }
+            }
+        }
+        for (PeerAddress subscriber : notify) {
+            invalidate(subscriber, locationKey);
+        }
+    }
+
+    private void invalidate(final PeerAddress subscriber, final Number160 locationKey) {
+        LOG.debug("invalidate {} on {}", locationKey, subscriber);
+        final FutureChannelCreator futureChannelCreator = connectionBean().reservation().create(1, 0);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    final Message message = createMessage(subscriber, NEAR_CACHE_COMMAND, Type.REQUEST_1);
+                    message.keyCollection(new KeyCollection(toKeys(Collections.singleton(locationKey))));
+                    final FutureResponse futureResponse = new FutureResponse(message);
+                    final RequestHandler requestHandler = new RequestHandler(futureResponse, peerBean(),
+                            connectionBean(), new DefaultConnectionConfiguration());
+                    Utils.addReleaseListener(future.channelCreator(), requestHandler.sendUDP(future.channelCreator()));
+                } else {
+                    LOG.debug("could not invalidate {} on {}: {}", locationKey, subscriber, future.failedReason());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void handleResponse(final Message message, final PeerConnection peerConnection, final boolean sign,
+            final Responder responder) throws Exception {
+        if (message.command() != NEAR_CACHE_COMMAND || message.keyCollection(0) == null) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        if (message.type() != Type.REQUEST_1) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        if (nearCache != null) {
+            for (Number640 key : message.keyCollection(0).keys()) {
+                nearCache.invalidate(key.locationKey());
+            }
+        }
+        responder.response(createResponseMessage(message, Type.OK));
+    }
+
+    /**
+     * Registers a lease of a peer that is about to read the location keys. Called by {@link StorageRPC} before it
+     * reads the values, so a change after the read sends an invalidation.
+     *
+     * @param subscriber
+     *            The peer that reads the values
+     * @param locationKeys
+     *            The location keys the peer reads
+     * @param requestedMillis
+     *            The time the peer caches the values, the lease is not longer than the lease time of this peer
+     * @return The location keys the peer did not have a lease on before
+     */
+    synchronized Collection<Number160> lease(final PeerAddress subscriber, final Collection<Number160> locationKeys,
+            final long requestedMillis) {
+        final long now = System.currentTimeMillis();
+        final long expiration = now + Math.min(requestedMillis, leaseMillis);
+        final Collection<Number160> added = new ArrayList<Number160>(locationKeys.size());
+        for (Number160 locationKey : locationKeys) {
+            Map<PeerAddress, Long> leases = subscribers.get(locationKey);
+            if (leases == null) {
+                leases = new HashMap<PeerAddress, Long>();
+                subscribers.put(locationKey, leases);
+            }
+            if (leases.size() >= MAX_SUBSCRIBERS) {
+                removeExpired(leases, now);
+                if (leases.size() >= MAX_SUBSCRIBERS && !leases.containsKey(subscriber)) {
+                    LOG.debug("too many subscribers for {}, ignoring {}", locationKey, subscriber);
+                    continue;
+                }
+            }
+            if (leases.put(subscriber, expiration) == null) {
+                added.add(locationKey);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes the leases of a peer, used for location keys that turned out to have no values on this peer.
+     *
+     * @param subscriber
+     *            The peer that read the values
+     * @param locationKeys
+     *            The location keys to remove the lease for
+     */
+    synchronized void release(final PeerAddress subscriber, final Collection<Number160> locationKeys) {
+        for (Number160 locationKey : locationKeys) {
+            final Map<PeerAddress, Long> leases = subscribers.get(locationKey);
+            if (leases != null) {
+                leases.remove(subscriber);
+                if (leases.isEmpty()) {
+                    subscribers.remove(locationKey);
+                }
+            }
+        }
+    }
+
+    private static void removeExpired(final Map<PeerAddress, Long> leases, final long now) {
+        for (Iterator<Long> iterator = leases.values().iterator(); iterator.hasNext();) {
+            if (iterator.next() <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static Collection<Number640> toKeys(final Collection<Number160> locationKeys) {
+        final Collection<Number640> keys = new ArrayList<Number640>(locationKeys.size());
+        for (Number160 locationKey : locationKeys) {
+            keys.add(new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A compact wire format for {@link Number640} keys. Consecutive keys with the same location and domain key form a
+ * group, which encodes the location and domain key once. Within a group, the content key and the version key are
+ * encoded as the number of leading bytes they share with the previous key followed by the remaining bytes. A repeated
+ * content key takes one byte, a zero version key takes one byte as well, and the versions of a content key share the
+ * timestamp in their upper bytes. Sorted keys under one location and domain take about 22 bytes per key instead of
+ * 80.
+ * <p>
+ * The format is: the number of groups, and for each group the location key, the domain key and the number of keys,
+ * followed by the keys. A key is the shared length and the rest of the content key, then the shared length and the
+ * rest of the version key. The version key is compared to the previous version key if the content key is the same,
+ * otherwise to {@link Number160#ZERO}. Numbers are unsigned varints. The decoder checks every count against the
+ * bytes that are left before it allocates anything for it.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class Number640Codec {
+
+	private static final int SIZE = Number160.BYTE_ARRAY_SIZE;
+
+	private static final byte[] ZERO = new byte[SIZE];
+
+	// location key, domain key and at least one byte for the number of keys
+	private static final int MIN_GROUP_SIZE = 2 * SIZE + 1;
+
+	// one byte for the shared length of the content key and of the version key
+	private static final int MIN_KEY_SIZE = 2;
+
+	private Number640Codec() {
+	}
+
+	/**
+	 * Encodes the keys in the order of the collection. Sorted keys compress best.
+	 *
+	 * @param keys
+	 *            The keys to encode
+	 * @param buf
+	 *            The buffer to write to
+	 */
+	public static void encodeKeys(final Collection<Number640> keys, final ByteBuf buf) {
+		final List<List<Number640>> groups = new ArrayList<List<Number640>>();
+		List<Number640> group = null;
+		for (Number640 key : keys) {
+			if (group == null || !sameGroup(group.get(0), key)) {
+				group = new ArrayList<Number640>();
+				groups.add(group);
+			}
+			group.add(key);
+		}
+		writeVarInt(buf, groups.size());
+		for (List<Number640> keysOfGroup : groups) {
+			final Number640 first = keysOfGroup.get(0);
+			buf.writeBytes(first.locationKey().toByteArray());
+			buf.writeBytes(first.domainKey().toByteArray());
+			writeVarInt(buf, keysOfGroup.size());
+			byte[] previousContent = ZERO;
+			byte[] previousVersion = ZERO;
+			for (Number640 key : keysOfGroup) {
+				final byte[] content = key.contentKey().toByteArray();
+				final byte[] version = key.versionKey().toByteArray();
+				final int sharedContent = writeShared(buf, previousContent, content);
+				writeShared(buf, sharedContent == SIZE ? previousVersion : ZERO, version);
+				previousContent = content;
+				previousVersion = version;
+			}
+		}
+	}
+
+	/**
+	 * @param buf
+	 *            The buffer to read from
+	 * @return The keys in the order they were encoded
+	 */
+	public static List<Number640> decodeKeys(final ByteBuf buf) {
+		final int nrGroups = readCount(buf, MIN_GROUP_SIZE);
+		final List<Number640> keys = new ArrayList<Number640>();
+		for (int i = 0; i < nrGroups; i++) {
+			final Number160 locationKey = readNumber160(buf);
+			final Number160 domainKey = readNumber160(buf);
+			final int nrKeys = readCount(buf, MIN_KEY_SIZE);
+			byte[] previousContent = ZERO;
+			byte[] previousVersion = ZERO;
+			for (int j = 0; j < nrKeys; j++) {
+				final byte[] content = readShared(buf, previousContent);
+				final boolean sameContent = content == previousContent;
+				final byte[] version = readShared(buf, sameContent ? previousVersion : ZERO);
+				keys.add(new Number640(locationKey, domainKey, new Number160(content), new Number160(version)));
+				previousContent = content;
+				previousVersion = version;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Encodes a digest, i.e., the keys with the keys of the values they are based on.
+	 *
+	 * @param digest
+	 *            The digest to encode
+	 * @param buf
+	 *            The buffer to write to
+	 */
+	public static void encodeDigest(final NavigableMap<Number640, Collection<Number160>> digest, final ByteBuf buf) {
+		encodeKeys(digest.keySet(), buf);
+		for (Collection<Number160> basedOn : digest.values()) {
+			if (basedOn == null) {
+				writeVarInt(buf, 0);
+				continue;
+			}
+			writeVarInt(buf, basedOn.size());
+			for (Number160 key : basedOn) {
+				buf.writeBytes(key.toByteArray());
+			}
+		}
+	}
+
+	/**
+	 * @param buf
+	 *            The buffer to read from
+	 * @return The decoded digest
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> decodeDigest(final ByteBuf buf) {
+		final List<Number640> keys = decodeKeys(buf);
+		final NavigableMap<Number640, Collection<Number160>> digest = new TreeMap<Number640, Collection<Number160>>();
+		for (Number640 key : keys) {
+			final int nrBasedOn = readCount(buf, SIZE);
+			final Collection<Number160> basedOn = new ArrayList<Number160>(nrBasedOn);
+			for (int i = 0; i < nrBasedOn; i++) {
+				basedOn.add(readNumber160(buf));
+			}
+			digest.put(key, basedOn);
+		}
+		return digest;
+	}
+
+	private static boolean sameGroup(final Number640 key1, final Number640 key2) {
+		return key1.locationKey().equals(key2.locationKey()) && key1.domainKey().equals(key2.domainKey());
+	}
+
+	private static int shared(final byte[] previous, final byte[] current) {
+		int shared = 0;
+		while (shared < SIZE && previous[shared] == current[shared]) {
+			shared++;
+		}
+		return shared;
+	}
+
+	private static int writeShared(final ByteBuf buf, final byte[] previous, final byte[] current) {
+		final int shared = shared(previous, current);
+		buf.writeByte(shared);
+		buf.writeBytes(current, shared, SIZE - shared);
+		return shared;
+	}
+
+	// returns previous if all bytes are shared
+	private static byte[] readShared(final ByteBuf buf, final byte[] previous) {
+		final int shared = buf.readUnsignedByte();
+		if (shared > SIZE) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		if (shared == SIZE) {
+			return previous;
+		}
+		final byte[] current = new byte[SIZE];
+		System.arraycopy(previous, 0, current, 0, shared);
+		buf.readBytes(current, shared, SIZE - shared);
+		return current;
+	}
+
+	private static Number160 readNumber160(final ByteBuf buf) {
+		final byte[] me = new byte[SIZE];
+		buf.readBytes(me);
+		return new Number160(me);
+	}
+
+	// a count cannot be larger than the number of elements that fit into the rest of the buffer
+	private static int readCount(final ByteBuf buf, final int minElementSize) {
+		final int count = readVarInt(buf);
+		if (count > buf.readableBytes() / minElementSize) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		return count;
+	}
+
+	static void writeVarInt(final ByteBuf buf, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf.writeByte(value);
+	}
+
+	static int readVarInt(final ByteBuf buf) {
+		int value = 0;
+		for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+			final int b = buf.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IllegalArgumentException("Message content is wrong");
+				}
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Message content is wrong");
+	}
+}
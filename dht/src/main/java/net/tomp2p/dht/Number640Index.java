@@ -0,0 +1,584 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A sorted index from {@link Number640} to a long without an object per entry. A key is packed into 10 longs in big
+ * endian order, so that comparing the longs unsigned gives the same order as {@link Number640#compareTo(Number640)}.
+ * The index is split into {@link #PARTITIONS} partitions by the upper bits of the location key, so a partition holds a
+ * range of keys and a scan visits the partitions in order. Each partition has its own lock, readers share it, writers
+ * take it exclusively. A scan over several partitions is not atomic.
+ * <p>
+ * The entries of a partition are kept in sorted leaves of up to {@link #LEAF_SIZE} keys, the keys of a leaf are in one
+ * long array and the values in another. The arrays grow and shrink with the leaf, and a leaf that falls below a
+ * quarter is merged with its neighbor or takes entries from it. A key is found with a binary search over the first
+ * keys of the leaves and then within the leaf, and a range scan reads consecutive array slots.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class Number640Index {
+
+	public static final long NOT_FOUND = -1;
+
+	static final int WORDS = 10;
+	static final int LEAF_SIZE = 128;
+	static final int PARTITIONS = 16;
+
+	private static final int MIN_LEAF_SIZE = LEAF_SIZE / 4;
+	private static final int MIN_CAPACITY = 8;
+	private static final int PARTITION_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(PARTITIONS);
+
+	private final Partition[] partitions = new Partition[PARTITIONS];
+
+	public Number640Index() {
+		for (int i = 0; i < PARTITIONS; i++) {
+			partitions[i] = new Partition();
+		}
+	}
+
+	private static final class Leaf {
+		private long[] keys;
+		private long[] values;
+		private int size = 0;
+
+		private Leaf(final int capacity) {
+			keys = new long[capacity * WORDS];
+			values = new long[capacity];
+		}
+
+		private void ensureCapacity(final int capacity) {
+			if (capacity > values.length) {
+				resize(Math.min(LEAF_SIZE, Math.max(capacity, values.length * 2)));
+			}
+		}
+
+		private void trim() {
+			if (values.length > MIN_CAPACITY && size <= values.length / 4) {
+				resize(Math.max(MIN_CAPACITY, values.length / 2));
+			}
+		}
+
+		private void resize(final int capacity) {
+			keys = Arrays.copyOf(keys, capacity * WORDS);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	private static final class Partition {
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		// guarded by lock, a leaf is never empty
+		private final List<Leaf> leaves = new ArrayList<Leaf>();
+		private int size = 0;
+	}
+
+	/**
+	 * @return The value or {@link #NOT_FOUND}
+	 */
+	public long get(final Number640 key) {
+		final long[] packed = pack(key);
+		final Partition partition = partition(packed);
+		partition.lock.readLock().lock();
+		try {
+			final List<Leaf> leaves = partition.leaves;
+			if (leaves.isEmpty()) {
+				return NOT_FOUND;
+			}
+			final Leaf leaf = leaves.get(leafIndex(leaves, packed));
+			final int pos = search(leaf, packed);
+			return pos < 0 ? NOT_FOUND : leaf.values[pos];
+		} finally {
+			partition.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The previous value or {@link #NOT_FOUND}
+	 */
+	public long put(final Number640 key, final long value) {
+		final long[] packed = pack(key);
+		final Partition partition = partition(packed);
+		partition.lock.writeLock().lock();
+		try {
+			final List<Leaf> leaves = partition.leaves;
+			if (leaves.isEmpty()) {
+				leaves.add(new Leaf(MIN_CAPACITY));
+			}
+			final int leafIndex = leafIndex(leaves, packed);
+			Leaf leaf = leaves.get(leafIndex);
+			int pos = search(leaf, packed);
+			if (pos >= 0) {
+				final long old = leaf.values[pos];
+				leaf.values[pos] = value;
+				return old;
+			}
+			pos = -(pos + 1);
+			if (leaf.size == LEAF_SIZE) {
+				final Leaf right = split(leaf);
+				leaves.add(leafIndex + 1, right);
+				if (pos > leaf.size) {
+					pos -= leaf.size;
+					leaf = right;
+				}
+			}
+			leaf.ensureCapacity(leaf.size + 1);
+			System.arraycopy(leaf.keys, pos * WORDS, leaf.keys, (pos + 1) * WORDS, (leaf.size - pos) * WORDS);
+			System.arraycopy(leaf.values, pos, leaf.values, pos + 1, leaf.size - pos);
+			System.arraycopy(packed, 0, leaf.keys, pos * WORDS, WORDS);
+			leaf.values[pos] = value;
+			leaf.size++;
+			partition.size++;
+			return NOT_FOUND;
+		} finally {
+			partition.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The removed value or {@link #NOT_FOUND}
+	 */
+	public long remove(final Number640 key) {
+		return remove(key, NOT_FOUND, false);
+	}
+
+	/**
+	 * Removes the key only if it is mapped to the expected value.
+	 */
+	public boolean remove(final Number640 key, final long expected) {
+		return remove(key, expected, true) != NOT_FOUND;
+	}
+
+	/**
+	 * Replaces the value only if the key is mapped to the expected value.
+	 */
+	public boolean replace(final Number640 key, final long expected, final long value) {
+		final long[] packed = pack(key);
+		final Partition partition = partition(packed);
+		partition.lock.writeLock().lock();
+		try {
+			final List<Leaf> leaves = partition.leaves;
+			if (leaves.isEmpty()) {
+				return false;
+			}
+			final Leaf leaf = leaves.get(leafIndex(leaves, packed));
+			final int pos = search(leaf, packed);
+			if (pos < 0 || leaf.values[pos] != expected) {
+				return false;
+			}
+			leaf.values[pos] = value;
+			return true;
+		} finally {
+			partition.lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Partition partition : partitions) {
+			partition.lock.readLock().lock();
+			try {
+				size += partition.size;
+			} finally {
+				partition.lock.readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (Partition partition : partitions) {
+			partition.lock.writeLock().lock();
+			try {
+				partition.leaves.clear();
+				partition.size = 0;
+			} finally {
+				partition.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return The smallest entry that is larger than the key (or equal if inclusive), or null. A null key means no
+	 *         bound.
+	 */
+	public Map.Entry<Number640, Long> ceiling(final Number640 key, final boolean inclusive) {
+		final List<Map.Entry<Number640, Long>> result = range(key, inclusive, null, false, false, 1);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * @return The largest entry that is smaller than the key (or equal if inclusive), or null. A null key means no
+	 *         bound.
+	 */
+	public Map.Entry<Number640, Long> floor(final Number640 key, final boolean inclusive) {
+		final List<Map.Entry<Number640, Long>> result = range(null, false, key, inclusive, true, 1);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * Scans a range of the index. A null bound means no bound.
+	 *
+	 * @param descending
+	 *            If true, the scan starts at the upper bound
+	 * @param limit
+	 *            The maximum number of entries to return
+	 * @return The entries in the order of the scan
+	 */
+	public List<Map.Entry<Number640, Long>> range(final Number640 from, final boolean fromInclusive,
+	        final Number640 to, final boolean toInclusive, final boolean descending, final int limit) {
+		final long[] packedFrom = from == null ? null : pack(from);
+		final long[] packedTo = to == null ? null : pack(to);
+		final List<Map.Entry<Number640, Long>> result = new ArrayList<Map.Entry<Number640, Long>>();
+		final int first = packedFrom == null ? 0 : partitionIndex(packedFrom);
+		final int last = packedTo == null ? PARTITIONS - 1 : partitionIndex(packedTo);
+		for (int i = descending ? last : first; descending ? i >= first : i <= last; i += descending ? -1 : 1) {
+			if (result.size() >= limit) {
+				break;
+			}
+			final Partition partition = partitions[i];
+			partition.lock.readLock().lock();
+			try {
+				range(partition.leaves, packedFrom, fromInclusive, packedTo, toInclusive, descending, limit, result);
+			} finally {
+				partition.lock.readLock().unlock();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return The number of keys in the range, null bounds mean no bound
+	 */
+	public int count(final Number640 from, final boolean fromInclusive, final Number640 to,
+	        final boolean toInclusive) {
+		final long[] packedFrom = from == null ? null : pack(from);
+		final long[] packedTo = to == null ? null : pack(to);
+		final int first = packedFrom == null ? 0 : partitionIndex(packedFrom);
+		final int last = packedTo == null ? PARTITIONS - 1 : partitionIndex(packedTo);
+		int count = 0;
+		for (int i = first; i <= last; i++) {
+			final Partition partition = partitions[i];
+			partition.lock.readLock().lock();
+			try {
+				count += count(partition.leaves, packedFrom, fromInclusive, packedTo, toInclusive);
+			} finally {
+				partition.lock.readLock().unlock();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of leaves, for testing
+	 */
+	int leaves() {
+		int leaves = 0;
+		for (Partition partition : partitions) {
+			partition.lock.readLock().lock();
+			try {
+				leaves += partition.leaves.size();
+			} finally {
+				partition.lock.readLock().unlock();
+			}
+		}
+		return leaves;
+	}
+
+	private static void range(final List<Leaf> leaves, final long[] packedFrom, final boolean fromInclusive,
+	        final long[] packedTo, final boolean toInclusive, final boolean descending, final int limit,
+	        final List<Map.Entry<Number640, Long>> result) {
+		final int[] start = start(leaves, packedFrom, fromInclusive);
+		final int[] end = end(leaves, packedTo, toInclusive);
+		if (start == null || end == null || compare(start, end) > 0) {
+			return;
+		}
+		int leafIndex = descending ? end[0] : start[0];
+		int pos = descending ? end[1] : start[1];
+		while (result.size() < limit) {
+			final Leaf leaf = leaves.get(leafIndex);
+			result.add(new AbstractMap.SimpleImmutableEntry<Number640, Long>(unpack(leaf.keys, pos * WORDS),
+			        leaf.values[pos]));
+			if (leafIndex == (descending ? start[0] : end[0]) && pos == (descending ? start[1] : end[1])) {
+				break;
+			}
+			if (descending) {
+				if (--pos < 0) {
+					pos = leaves.get(--leafIndex).size - 1;
+				}
+			} else if (++pos == leaf.size) {
+				leafIndex++;
+				pos = 0;
+			}
+		}
+	}
+
+	private static int count(final List<Leaf> leaves, final long[] packedFrom, final boolean fromInclusive,
+	        final long[] packedTo, final boolean toInclusive) {
+		final int[] start = start(leaves, packedFrom, fromInclusive);
+		final int[] end = end(leaves, packedTo, toInclusive);
+		if (start == null || end == null || compare(start, end) > 0) {
+			return 0;
+		}
+		if (start[0] == end[0]) {
+			return end[1] - start[1] + 1;
+		}
+		int count = leaves.get(start[0]).size - start[1] + end[1] + 1;
+		for (int i = start[0] + 1; i < end[0]; i++) {
+			count += leaves.get(i).size;
+		}
+		return count;
+	}
+
+	private long remove(final Number640 key, final long expected, final boolean checkExpected) {
+		final long[] packed = pack(key);
+		final Partition partition = partition(packed);
+		partition.lock.writeLock().lock();
+		try {
+			final List<Leaf> leaves = partition.leaves;
+			if (leaves.isEmpty()) {
+				return NOT_FOUND;
+			}
+			final int leafIndex = leafIndex(leaves, packed);
+			final Leaf leaf = leaves.get(leafIndex);
+			final int pos = search(leaf, packed);
+			if (pos < 0 || (checkExpected && leaf.values[pos] != expected)) {
+				return NOT_FOUND;
+			}
+			final long old = leaf.values[pos];
+			System.arraycopy(leaf.keys, (pos + 1) * WORDS, leaf.keys, pos * WORDS, (leaf.size - pos - 1) * WORDS);
+			System.arraycopy(leaf.values, pos + 1, leaf.values, pos, leaf.size - pos - 1);
+			leaf.size--;
+			partition.size--;
+			if (leaf.size == 0) {
+				leaves.remove(leafIndex);
+			} else if (leaf.size < MIN_LEAF_SIZE && leaves.size() > 1) {
+				rebalance(leaves, leafIndex);
+			} else {
+				leaf.trim();
+			}
+			return old;
+		} finally {
+			partition.lock.writeLock().unlock();
+		}
+	}
+
+	private static Leaf split(final Leaf leaf) {
+		final int half = leaf.size / 2;
+		final Leaf right = new Leaf(Math.max(MIN_CAPACITY, leaf.size - half));
+		right.size = leaf.size - half;
+		System.arraycopy(leaf.keys, half * WORDS, right.keys, 0, right.size * WORDS);
+		System.arraycopy(leaf.values, half, right.values, 0, right.size);
+		leaf.size = half;
+		return right;
+	}
+
+	/**
+	 * Merges an underfull leaf with its right neighbor (the left one for the last leaf), or evens out the two leaves
+	 * if they do not fit into one.
+	 */
+	private static void rebalance(final List<Leaf> leaves, final int leafIndex) {
+		final int leftIndex = leafIndex + 1 < leaves.size() ? leafIndex : leafIndex - 1;
+		final Leaf left = leaves.get(leftIndex);
+		final Leaf right = leaves.get(leftIndex + 1);
+		final int total = left.size + right.size;
+		if (total <= LEAF_SIZE) {
+			left.ensureCapacity(total);
+			System.arraycopy(right.keys, 0, left.keys, left.size * WORDS, right.size * WORDS);
+			System.arraycopy(right.values, 0, left.values, left.size, right.size);
+			left.size = total;
+			leaves.remove(leftIndex + 1);
+			return;
+		}
+		final int half = total / 2;
+		if (left.size < half) {
+			// the first entries of the right leaf move to the end of the left leaf
+			final int move = half - left.size;
+			left.ensureCapacity(half);
+			System.arraycopy(right.keys, 0, left.keys, left.size * WORDS, move * WORDS);
+			System.arraycopy(right.values, 0, left.values, left.size, move);
+			System.arraycopy(right.keys, move * WORDS, right.keys, 0, (right.size - move) * WORDS);
+			System.arraycopy(right.values, move, right.values, 0, right.size - move);
+			left.size = half;
+			right.size -= move;
+			right.trim();
+		} else {
+			// the last entries of the left leaf move to the start of the right leaf
+			final int move = left.size - half;
+			right.ensureCapacity(right.size + move);
+			System.arraycopy(right.keys, 0, right.keys, move * WORDS, right.size * WORDS);
+			System.arraycopy(right.values, 0, right.values, move, right.size);
+			System.arraycopy(left.keys, half * WORDS, right.keys, 0, move * WORDS);
+			System.arraycopy(left.values, half, right.values, 0, move);
+			right.size += move;
+			left.size = half;
+			left.trim();
+		}
+	}
+
+	private Partition partition(final long[] packed) {
+		return partitions[partitionIndex(packed)];
+	}
+
+	private static int partitionIndex(final long[] packed) {
+		return (int) (packed[0] >>> PARTITION_SHIFT);
+	}
+
+	/**
+	 * @return The position {leaf, pos} of the first key in the range or null
+	 */
+	private static int[] start(final List<Leaf> leaves, final long[] packed, final boolean inclusive) {
+		if (leaves.isEmpty()) {
+			return null;
+		}
+		if (packed == null) {
+			return new int[] { 0, 0 };
+		}
+		int leafIndex = leafIndex(leaves, packed);
+		int pos = search(leaves.get(leafIndex), packed);
+		if (pos >= 0) {
+			pos = inclusive ? pos : pos + 1;
+		} else {
+			pos = -(pos + 1);
+		}
+		if (pos == leaves.get(leafIndex).size) {
+			if (++leafIndex == leaves.size()) {
+				return null;
+			}
+			pos = 0;
+		}
+		return new int[] { leafIndex, pos };
+	}
+
+	/**
+	 * @return The position {leaf, pos} of the last key in the range or null
+	 */
+	private static int[] end(final List<Leaf> leaves, final long[] packed, final boolean inclusive) {
+		if (leaves.isEmpty()) {
+			return null;
+		}
+		if (packed == null) {
+			return new int[] { leaves.size() - 1, leaves.get(leaves.size() - 1).size - 1 };
+		}
+		int leafIndex = leafIndex(leaves, packed);
+		int pos = search(leaves.get(leafIndex), packed);
+		if (pos >= 0) {
+			pos = inclusive ? pos : pos - 1;
+		} else {
+			pos = -(pos + 1) - 1;
+		}
+		if (pos < 0) {
+			if (--leafIndex < 0) {
+				return null;
+			}
+			pos = leaves.get(leafIndex).size - 1;
+		}
+		return new int[] { leafIndex, pos };
+	}
+
+	private static int compare(final int[] position1, final int[] position2) {
+		if (position1[0] != position2[0]) {
+			return position1[0] < position2[0] ? -1 : 1;
+		}
+		return position1[1] < position2[1] ? -1 : (position1[1] == position2[1] ? 0 : 1);
+	}
+
+	/**
+	 * @return The index of the last leaf whose first key is smaller or equal, or 0
+	 */
+	private static int leafIndex(final List<Leaf> leaves, final long[] packed) {
+		int low = 1;
+		int high = leaves.size() - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (compare(leaves.get(mid).keys, 0, packed, 0) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low - 1;
+	}
+
+	/**
+	 * @return The position of the key or -(insertion point) - 1, as in {@link Arrays#binarySearch(long[], long)}
+	 */
+	private static int search(final Leaf leaf, final long[] packed) {
+		int low = 0;
+		int high = leaf.size - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compare(leaf.keys, mid * WORDS, packed, 0);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static int compare(final long[] keys1, final int offset1, final long[] keys2, final int offset2) {
+		for (int i = 0; i < WORDS; i++) {
+			final long key1 = keys1[offset1 + i];
+			final long key2 = keys2[offset2 + i];
+			if (key1 != key2) {
+				// unsigned comparison
+				return (key1 + Long.MIN_VALUE) < (key2 + Long.MIN_VALUE) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	static long[] pack(final Number640 key) {
+		final long[] packed = new long[WORDS];
+		pack(key.locationKey().toByteArray(), packed, 0);
+		pack(key.domainKey().toByteArray(), packed, Number160.BYTE_ARRAY_SIZE);
+		pack(key.contentKey().toByteArray(), packed, 2 * Number160.BYTE_ARRAY_SIZE);
+		pack(key.versionKey().toByteArray(), packed, 3 * Number160.BYTE_ARRAY_SIZE);
+		return packed;
+	}
+
+	private static void pack(final byte[] bytes, final long[] packed, final int offset) {
+		for (int i = 0; i < bytes.length; i++) {
+			final int index = offset + i;
+			packed[index >>> 3] |= (bytes[i] & 0xFFL) << (56 - ((index & 7) << 3));
+		}
+	}
+
+	static Number640 unpack(final long[] keys, final int offset) {
+		final byte[] bytes = new byte[WORDS * 8];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (keys[offset + (i >>> 3)] >>> (56 - ((i & 7) << 3)));
+		}
+		final int size = Number160.BYTE_ARRAY_SIZE;
+		return new Number640(new Number160(Arrays.copyOfRange(bytes, 0, size)), new Number160(Arrays.copyOfRange(
+		        bytes, size, 2 * size)), new Number160(Arrays.copyOfRange(bytes, 2 * size, 3 * size)), new Number160(
+		        Arrays.copyOfRange(bytes, 3 * size, 4 * size)));
+	}
+}
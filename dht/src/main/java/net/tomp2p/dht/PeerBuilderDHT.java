@@ -9,6 +9,7 @@ public class PeerBuilderDHT {
 	private DistributedHashTable dht;
 	private StorageLayer storageLayer;
 	private Storage storage;
+	private NearCache nearCache;
 
 	public PeerBuilderDHT(Peer peer) {
 		this.peer = peer;
@@ -55,6 +56,20 @@ public class PeerBuilderDHT {
 
 	}
 
+	public NearCache nearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * @param nearCache
+	 *            The cache for gets of this peer, gets are not cached if null (default)
+	 * @return This class
+	 */
+	public PeerBuilderDHT nearCache(NearCache nearCache) {
+		this.nearCache = nearCache;
+		return this;
+	}
+
 	public PeerDHT start() {
 		if (storage == null) {
 			storage = new StorageMemory();
@@ -73,6 +88,21 @@ public class PeerBuilderDHT {
 			dht = new DistributedHashTable(peer.distributedRouting(), storageRPC, peer.directDataRPC());
 		}
 
-		return new PeerDHT(peer, storageLayer, dht, storageRPC);
+		if (storageRPC.nearCacheRPC() == null) {
+			// also without a cache, to invalidate the caches of others
+			final NearCacheRPC nearCacheRPC = new NearCacheRPC(peer.peerBean(), peer.connectionBean(), nearCache,
+			        NearCacheRPC.DEFAULT_LEASE_MILLIS);
+			nearCacheRPC.start(peer.connectionBean().timer(), NearCacheRPC.DEFAULT_LEASE_MILLIS);
+			storageRPC.nearCacheRPC(nearCacheRPC);
+			dht.nearCacheRPC(nearCacheRPC);
+		}
+
+		final PeerDHT peerDHT = new PeerDHT(peer, storageLayer, dht, storageRPC);
+		if (storageRPC.hintedHandoff() == null) {
+			final HintedHandoff hintedHandoff = new HintedHandoff(peerDHT);
+			storageRPC.hintedHandoff(hintedHandoff);
+			peer.peerBean().addPeerStatusListener(hintedHandoff);
+		}
+		return peerDHT;
 	}
 }
@@ -1,12 +1,17 @@
 package net.tomp2p.dht;
 
+import java.util.Collection;
+import java.util.NavigableMap;
+
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.Shutdown;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
 
 public class PeerDHT {
 
@@ -57,6 +62,28 @@ public class PeerDHT {
 		return new GetBuilder(this, locationKey);
 	}
 
+	/**
+	 * Gets the values of many keys in batches. Each distinct location key is routed to once, not each key.
+	 * 
+	 * @param keys
+	 *            The keys, the location keys can differ
+	 * @return The builder that allows to set options
+	 */
+	public GetAllBuilder getAll(Collection<Number640> keys) {
+		return new GetAllBuilder(this, keys);
+	}
+
+	/**
+	 * Stores many values in batches. Each distinct location key is routed to once, not each value.
+	 * 
+	 * @param dataMap
+	 *            The values, the location keys can differ
+	 * @return The builder that allows to set options
+	 */
+	public PutAllBuilder putAll(NavigableMap<Number640, Data> dataMap) {
+		return new PutAllBuilder(this, dataMap);
+	}
+
 	public DigestBuilder digest(Number160 locationKey) {
 		return new DigestBuilder(this, locationKey);
 	}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Collections;
+import java.util.NavigableMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Stores many values with different location keys. The peers responsible for a location key are found by routing once
+ * to each distinct location key, at most parallel routings at a time and with the routing cache. If the routing fails,
+ * the closest peers in the local peer map are used. All values for a peer are sent in one message per batch. Each
+ * value is sent to as many peers as the minimum results of the {@link net.tomp2p.p2p.RequestP2PConfiguration}. The
+ * result is the number of peers that stored a value.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class PutAllBuilder extends DHTBuilder<PutAllBuilder> {
+
+    private final static FutureBatch<Integer> FUTURE_SHUTDOWN = new FutureBatch<Integer>(null)
+            .failed("put all builder - peer is shutting down");
+
+    private final NavigableMap<Number640, Data> dataMap;
+
+    private int batchSize = GetAllBuilder.DEFAULT_BATCH_SIZE;
+
+    private int parallel = GetAllBuilder.DEFAULT_PARALLEL;
+
+    public PutAllBuilder(PeerDHT peer, NavigableMap<Number640, Data> dataMap) {
+        super(peer, null);
+        this.dataMap = dataMap;
+        self(this);
+    }
+
+    public NavigableMap<Number640, Data> dataMap() {
+        return dataMap;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            The maximum number of values in one message
+     * @return This class
+     */
+    public PutAllBuilder batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel
+     *            The maximum number of messages in flight
+     * @return This class
+     */
+    public PutAllBuilder parallel(int parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public FutureBatch<Integer> start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        preBuild("put-all-builder");
+        if (batchSize <= 0 || parallel <= 0) {
+            throw new IllegalArgumentException("batch size and parallel must be positive");
+        }
+        final FutureBatch<Integer> futureBatch = new FutureBatch<Integer>(this);
+        if (dataMap == null || dataMap.isEmpty()) {
+            return futureBatch.done(Collections.<Number640> emptyList());
+        }
+        return peer.distributedHashTable().putAll(this, futureBatch);
+    }
+}
@@ -41,6 +41,8 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
 
     private boolean putConfirm = false;
 
+    private boolean hintedHandoff = false;
+
     private PublicKey changePublicKey = null;
 
     public PutBuilder(PeerDHT peer, Number160 locationKey) {
@@ -183,6 +185,28 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
 		return this;
 	}
 
+    public boolean isHintedHandoff() {
+        return hintedHandoff;
+    }
+
+    /**
+     * If a replica cannot be reached, the put goes to the next closest peer with a hint for that replica. The next
+     * closest peer forwards the values once the replica is reachable again, see {@link HintedHandoff}.
+     * 
+     * @param hintedHandoff
+     *            True to store values in place of unreachable replicas
+     * @return This class
+     */
+    public PutBuilder hintedHandoff(boolean hintedHandoff) {
+        this.hintedHandoff = hintedHandoff;
+        return this;
+    }
+
+    public PutBuilder hintedHandoff() {
+        this.hintedHandoff = true;
+        return this;
+    }
+
     public PutBuilder changePublicKey(PublicKey changePublicKey) {
     	this.changePublicKey = changePublicKey;
     	this.putMeta = true;
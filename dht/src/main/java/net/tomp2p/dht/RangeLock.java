@@ -1,129 +1,390 @@
 package net.tomp2p.dht;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A lock for ranges of keys. Two ranges conflict if they overlap and are locked by different threads, the same thread
+ * can lock overlapping ranges. With a {@link Partitioner}, a range within one partition is hashed to a stripe and only
+ * contends with ranges of the same stripe, so independent partitions proceed in parallel. A range that spans
+ * partitions is wide and has to wait for all overlapping ranges in every stripe. Waiters are only woken up if a range
+ * that overlaps with theirs is released.
+ */
 final public class RangeLock<K extends Comparable<K>> {
-	private final Object lockInternal = new Object();
-	private final NavigableMap<K, Long> cache = new TreeMap<K, Long>();
-	
+
+	public static final int DEFAULT_STRIPES = 32;
+
+	/**
+	 * Splits the key space into partitions. All keys of a partition need to form a contiguous interval, i.e., if from
+	 * and to are in the same partition, all keys in between are in this partition as well.
+	 */
+	public interface Partitioner<K> {
+		Object partition(K key);
+	}
+
+	private final Partitioner<K> partitioner;
+	private final List<Segment> stripes;
+	private final Segment wide = new Segment();
+	// the number of wide ranges (pending or granted), only modified with the wide lock held
+	private volatile int wideCount = 0;
+	private final ThreadLocal<AtomicInteger> holdCount = new ThreadLocal<AtomicInteger>() {
+		@Override
+		protected AtomicInteger initialValue() {
+			return new AtomicInteger();
+		}
+	};
+
+	/**
+	 * Creates a range lock without partitions, all ranges contend in one stripe.
+	 */
+	public RangeLock() {
+		this(null, 1);
+	}
+
+	public RangeLock(final Partitioner<K> partitioner) {
+		this(partitioner, DEFAULT_STRIPES);
+	}
+
+	public RangeLock(final Partitioner<K> partitioner, final int nrStripes) {
+		if (nrStripes <= 0) {
+			throw new IllegalArgumentException("need at least one stripe");
+		}
+		this.partitioner = partitioner;
+		this.stripes = new ArrayList<Segment>(nrStripes);
+		for (int i = 0; i < nrStripes; i++) {
+			stripes.add(new Segment());
+		}
+	}
+
 	final public class Range {
         final private K fromKey;
         final private K toKey;
         final private RangeLock<K> ref;
-        private Range(final K fromKey, final K toKey, RangeLock<K> ref) {
+        final private long threadId;
+        final private Segment segment;
+        final private AtomicInteger holdCount;
+        // only used for wide ranges and guarded by the wide lock
+        private boolean granted = false;
+        private boolean bypassed = false;
+
+        private Range(final K fromKey, final K toKey, RangeLock<K> ref, final long threadId, final Segment segment,
+        		final AtomicInteger holdCount) {
         	this.fromKey = fromKey;
         	this.toKey = toKey;
         	this.ref = ref;
+        	this.threadId = threadId;
+        	this.segment = segment;
+        	this.holdCount = holdCount;
+        }
+
+        public K fromKey() {
+        	return fromKey;
         }
-        
+
+        public K toKey() {
+        	return toKey;
+        }
+
         public void unlock() {
         	ref.unlock(this);
         }
+
+        private boolean overlaps(final K fromKey, final K toKey) {
+        	return RangeLock.overlaps(this.fromKey, this.toKey, fromKey, toKey);
+        }
     }
-	
-	public Range tryLock(final K fromKey, final K toKey) {
-		final long id = Thread.currentThread().getId();
-		synchronized (lockInternal) {
-			//first check overlappings or smaller subset of keys
-			final NavigableMap<K, Long> subMap = cache.subMap(fromKey, true, toKey, true);
-			if (!subMap.isEmpty()) {
-				if(sizeFiltered(id, subMap) != 0) {
-					return null;
+
+	private final class Waiter {
+		final private K fromKey;
+		final private K toKey;
+		final private Condition condition;
+
+		private Waiter(final K fromKey, final K toKey, final Condition condition) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.condition = condition;
+		}
+	}
+
+	private final class Segment {
+		final private ReentrantLock lock = new ReentrantLock();
+		final private List<Range> held = new ArrayList<Range>();
+		final private List<Waiter> waiters = new ArrayList<Waiter>();
+
+		// lock needs to be held
+		private Range conflict(final K fromKey, final K toKey, final long id) {
+			for (final Range range : held) {
+				if (range.threadId != id && range.overlaps(fromKey, toKey)) {
+					return range;
 				}
 			}
-			
-			//second check larger subset of keys
-			final Collection<Long> before = cache.headMap(fromKey, false).values();
-			final Collection<Long> after = cache.tailMap(toKey, false).values();
-			//now check for intersection thread ids
-			final Collection<Long> intersection = intersection(before, after);
-			if(!intersection.isEmpty()) {
-				if(sizeFiltered(id, intersection) != 0) {
-					return null;
+			return null;
+		}
+
+		// lock needs to be held
+		private void await(final K fromKey, final K toKey) throws InterruptedException {
+			final Waiter waiter = new Waiter(fromKey, toKey, lock.newCondition());
+			waiters.add(waiter);
+			try {
+				waiter.condition.await();
+			} finally {
+				waiters.remove(waiter);
+			}
+		}
+
+		private boolean release(final Range range) {
+			lock.lock();
+			try {
+				boolean removed = false;
+				for (final Iterator<Range> iterator = held.iterator(); iterator.hasNext();) {
+					if (iterator.next() == range) {
+						iterator.remove();
+						removed = true;
+						break;
+					}
+				}
+				if (removed) {
+					for (final Waiter waiter : waiters) {
+						if (range.overlaps(waiter.fromKey, waiter.toKey)) {
+							waiter.condition.signal();
+						}
+					}
 				}
+				return removed;
+			} finally {
+				lock.unlock();
 			}
-			
-        	cache.put(fromKey, id);
-        	cache.put(toKey, id);
-        }
-		return new Range(fromKey, toKey, this);
+		}
+
+		private int size() {
+			lock.lock();
+			try {
+				int size = 0;
+				for (final Range range : held) {
+					if (range.segment == wide && !range.granted) {
+						continue;
+					}
+					size += range.fromKey.compareTo(range.toKey) == 0 ? 1 : 2;
+				}
+				return size;
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
-	
+
+	public Range tryLock(final K fromKey, final K toKey) {
+		try {
+			return lock(fromKey, toKey, false);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
 	/**
-	 * The same thread can lock a range twice. The first unlock for range x unlocks all range x.   
+	 * The same thread can lock a range twice, each range needs to be unlocked.
+	 *
 	 * @param fromKey
 	 * @param toKey
-	 * @return
+	 * @return The locked range or null if the thread was interrupted while waiting
 	 */
 	public Range lock(final K fromKey, final K toKey) {
+		try {
+			return lock(fromKey, toKey, true);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
+	private Range lock(final K fromKey, final K toKey, final boolean wait) throws InterruptedException {
 		final long id = Thread.currentThread().getId();
-		synchronized (lockInternal) {
-			final NavigableMap<K, Long> subMap = cache.subMap(fromKey, true, toKey, true);
-			final Collection<Long> before = cache.headMap(fromKey, false).values();
-			final Collection<Long> after = cache.tailMap(toKey, false).values();
-			Collection<Long> intersection = null;
-			
-			while (!(intersection = intersection(before, after)).isEmpty() || !subMap.isEmpty()) {
-				if((subMap.isEmpty() || sizeFiltered(id, subMap) == 0) && 
-						(intersection.isEmpty() || sizeFiltered(id, intersection) == 0)) {
-					break;
+		final Segment segment = segment(fromKey, toKey);
+		if (segment == wide) {
+			return lockWide(fromKey, toKey, id, wait);
+		} else {
+			return lockStripe(segment, fromKey, toKey, id, wait);
+		}
+	}
+
+	private Range lockStripe(final Segment segment, final K fromKey, final K toKey, final long id, final boolean wait)
+	        throws InterruptedException {
+		final AtomicInteger count = holdCount.get();
+		while (true) {
+			segment.lock.lock();
+			try {
+				while (segment.conflict(fromKey, toKey, id) != null) {
+					if (!wait) {
+						return null;
+					}
+					segment.await(fromKey, toKey);
 				}
-				
-				try {
-					lockInternal.wait();
-				} catch (InterruptedException e) {
+				// a wide range registers before it checks the stripes, so either we see it here or it sees us
+				if (wideCount == 0 || !conflictWide(fromKey, toKey, id, count.get() > 0)) {
+					final Range range = new Range(fromKey, toKey, this, id, segment, count);
+					segment.held.add(range);
+					count.incrementAndGet();
+					return range;
+				}
+				if (!wait) {
 					return null;
 				}
+			} finally {
+				segment.lock.unlock();
 			}
-        	
-        	cache.put(fromKey, id);
-        	cache.put(toKey, id);
-        }
-		return new Range(fromKey, toKey, this);
+			// never wait for the wide lock while holding a stripe, the wide range may need this stripe
+			wide.lock.lock();
+			try {
+				while (conflictWide(fromKey, toKey, id, count.get() > 0)) {
+					wide.await(fromKey, toKey);
+				}
+			} finally {
+				wide.lock.unlock();
+			}
+		}
 	}
 
-	//make a copy!
-	private Collection<Long> intersection(final Collection<Long> before,
-			final Collection<Long> after) {
-		final Collection<Long> intersection = new ArrayList<Long>(before);
-		intersection.retainAll(after);
-		return intersection;
+	/**
+	 * A pending wide range blocks new ranges so that it does not starve. A thread that already holds a range may pass
+	 * a pending wide range, as the wide range may wait for this thread. In that case the wide range is marked and
+	 * checks the stripes again. This applies to stripe and wide ranges alike.
+	 */
+	private boolean conflictWide(final K fromKey, final K toKey, final long id, final boolean holding) {
+		wide.lock.lock();
+		try {
+			for (final Range range : wide.held) {
+				if (range.threadId != id && range.overlaps(fromKey, toKey)) {
+					if (range.granted || !holding) {
+						return true;
+					}
+					range.bypassed = true;
+				}
+			}
+			return false;
+		} finally {
+			wide.lock.unlock();
+		}
 	}
 
-	public void unlock(RangeLock<?>.Range lock) {
-		synchronized (lockInternal) {
-			cache.remove(lock.fromKey);
-			cache.remove(lock.toKey);
-			lockInternal.notifyAll();
-	    }
+	private Range lockWide(final K fromKey, final K toKey, final long id, final boolean wait)
+	        throws InterruptedException {
+		final AtomicInteger count = holdCount.get();
+		final Range range = new Range(fromKey, toKey, this, id, wide, count);
+		wide.lock.lock();
+		try {
+			while (conflictWide(fromKey, toKey, id, count.get() > 0)) {
+				if (!wait) {
+					return null;
+				}
+				wide.await(fromKey, toKey);
+			}
+			wide.held.add(range);
+			wideCount++;
+		} finally {
+			wide.lock.unlock();
+		}
+		boolean success = false;
+		try {
+			while (true) {
+				for (final Segment segment : stripes) {
+					segment.lock.lock();
+					try {
+						while (segment.conflict(fromKey, toKey, id) != null) {
+							if (!wait) {
+								return null;
+							}
+							segment.await(fromKey, toKey);
+						}
+					} finally {
+						segment.lock.unlock();
+					}
+				}
+				wide.lock.lock();
+				try {
+					if (!range.bypassed && !grantedWide(fromKey, toKey, id)) {
+						range.granted = true;
+						count.incrementAndGet();
+						success = true;
+						return range;
+					}
+					range.bypassed = false;
+					// a wide range that bypassed this one may have been granted first
+					while (grantedWide(fromKey, toKey, id)) {
+						if (!wait) {
+							return null;
+						}
+						wide.await(fromKey, toKey);
+					}
+				} finally {
+					wide.lock.unlock();
+				}
+			}
+		} finally {
+			if (!success) {
+				releaseWide(range);
+			}
+		}
 	}
-	
-	public int size() {
-		synchronized (lockInternal) {
-			return cache.size();
+
+	// wide lock needs to be held
+	private boolean grantedWide(final K fromKey, final K toKey, final long id) {
+		for (final Range range : wide.held) {
+			if (range.granted && range.threadId != id && range.overlaps(fromKey, toKey)) {
+				return true;
+			}
 		}
+		return false;
 	}
-	
-	private static int sizeFiltered(final long id, final NavigableMap<?, Long> subMap) {
-		int counter = 0;
-		for(final long longValue:subMap.values()) {
-			if(longValue != id) {
-				counter ++;
+
+	public void unlock(final Range range) {
+		if (range.segment == wide) {
+			if (releaseWide(range) && range.granted) {
+				range.holdCount.decrementAndGet();
 			}
+		} else if (range.segment.release(range)) {
+			range.holdCount.decrementAndGet();
 		}
-		return counter;
 	}
-	
-	private static int sizeFiltered(final long id, final Collection<Long> intersection) {
-		int counter = 0;
-		for(final long longValue:intersection) {
-			if(longValue != id) {
-				counter ++;
+
+	private boolean releaseWide(final Range range) {
+		wide.lock.lock();
+		try {
+			final boolean removed = wide.release(range);
+			if (removed) {
+				wideCount--;
 			}
+			return removed;
+		} finally {
+			wide.lock.unlock();
+		}
+	}
+
+	public int size() {
+		int size = wide.size();
+		for (final Segment segment : stripes) {
+			size += segment.size();
 		}
-		return counter;
+		return size;
+	}
+
+	private Segment segment(final K fromKey, final K toKey) {
+		if (partitioner == null) {
+			return stripes.get(0);
+		}
+		final Object partition = partitioner.partition(fromKey);
+		if (!partition.equals(partitioner.partition(toKey))) {
+			return wide;
+		}
+		int hash = partition.hashCode();
+		hash ^= (hash >>> 16);
+		return stripes.get((hash & Integer.MAX_VALUE) % stripes.size());
+	}
+
+	private static <K extends Comparable<K>> boolean overlaps(final K fromKey1, final K toKey1, final K fromKey2,
+	        final K toKey2) {
+		return fromKey1.compareTo(toKey2) <= 0 && fromKey2.compareTo(toKey1) <= 0;
 	}
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatistic;
+
+/**
+ * Selects the replicas for reads by latency. The replicas are ranked by their mean RTT from the {@link PeerStatistic},
+ * and the latencies of completed reads are kept to find the delay after which a hedged request is sent to the next
+ * replica.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ReplicaSelector {
+
+    public static final int DEFAULT_SAMPLES = 128;
+
+    /**
+     * Below this number of samples, the percentile is not meaningful and no hedged request is sent.
+     */
+    public static final int MIN_SAMPLES = 10;
+
+    // guarded by this
+    private final long[] samples;
+    private int index = 0;
+    private int count = 0;
+
+    public ReplicaSelector() {
+        this(DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param nrSamples
+     *            The number of recent read latencies that are kept
+     */
+    public ReplicaSelector(final int nrSamples) {
+        if (nrSamples < MIN_SAMPLES) {
+            throw new IllegalArgumentException("need to keep at least " + MIN_SAMPLES + " samples");
+        }
+        this.samples = new long[nrSamples];
+    }
+
+    /**
+     * Ranks the replicas by their mean RTT, the fastest first. This peer comes first, peers without RTT come last.
+     * Peers with the same RTT keep the order of the given collection, which is typically sorted by XOR distance.
+     *
+     * @param peers
+     *            The replicas to rank
+     * @param peerMap
+     *            The peer map with the statistics of the replicas
+     * @return The replicas, the fastest first
+     */
+    public Queue<PeerAddress> rank(final Collection<PeerAddress> peers, final PeerMap peerMap) {
+        final List<PeerAddress> sorted = new ArrayList<PeerAddress>(peers);
+        final List<Long> rtts = new ArrayList<Long>(sorted.size());
+        for (PeerAddress peerAddress : sorted) {
+            rtts.add(rtt(peerAddress, peerMap));
+        }
+        final List<Integer> order = new ArrayList<Integer>(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            order.add(i);
+        }
+        // stable, so equal RTTs stay in XOR order
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                return Long.compare(rtts.get(o1), rtts.get(o2));
+            }
+        });
+        final Queue<PeerAddress> retVal = new LinkedList<PeerAddress>();
+        for (Integer i : order) {
+            retVal.add(sorted.get(i));
+        }
+        return retVal;
+    }
+
+    private static long rtt(final PeerAddress peerAddress, final PeerMap peerMap) {
+        if (peerAddress.peerId().equals(peerMap.self())) {
+            return 0;
+        }
+        final PeerStatistic peerStatistic = peerMap.getPeerStatistic(peerAddress);
+        if (peerStatistic == null) {
+            return Long.MAX_VALUE;
+        }
+        final long meanRTT = peerStatistic.getMeanRTT();
+        return meanRTT < 0 ? Long.MAX_VALUE : meanRTT;
+    }
+
+    /**
+     * Records the latency of a successful read. Reads from this peer are not recorded, as they do not go over the
+     * network and would pull the hedge delay towards 0.
+     *
+     * @param peerAddress
+     *            The replica that replied
+     * @param peerMap
+     *            The peer map of this peer
+     * @param latencyMillis
+     *            The time from sending the request until the reply arrived
+     */
+    public void record(final PeerAddress peerAddress, final PeerMap peerMap, final long latencyMillis) {
+        if (peerAddress.peerId().equals(peerMap.self())) {
+            return;
+        }
+        record(latencyMillis);
+    }
+
+    synchronized void record(final long latencyMillis) {
+        samples[index] = latencyMillis;
+        index = (index + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * @param percentile
+     *            The percentile between 0 and 1, e.g., 0.95
+     * @return The latency in milliseconds that this percentile of the recent reads stayed below, or -1 if there are
+     *         not enough samples yet
+     */
+    public long percentile(final double percentile) {
+        final long[] copy;
+        synchronized (this) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            copy = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(copy);
+        final int pos = (int) Math.ceil(percentile * copy.length) - 1;
+        return copy[Math.max(0, Math.min(copy.length - 1, pos))];
+    }
+}
@@ -26,12 +26,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number256;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.Number640;
@@ -78,20 +84,57 @@ public class StorageLayer implements DigestStorage {
 	// anyone
 	final private Collection<Number160> removedDomains = new HashSet<Number160>();
 
-	final private RangeLock<Number640> rangeLock = new RangeLock<Number640>();
-	final private RangeLock<Number640> responsibilityLock = new RangeLock<Number640>();
+	// all ranges of a location key are contiguous, so different location keys never contend
+	private static final RangeLock.Partitioner<Number640> LOCATION_PARTITIONER = new RangeLock.Partitioner<Number640>() {
+		@Override
+		public Object partition(Number640 key) {
+			return key.locationKey();
+		}
+	};
+
+	final private RangeLock<Number640> rangeLock = new RangeLock<Number640>(LOCATION_PARTITIONER);
+	final private RangeLock<Number640> responsibilityLock = new RangeLock<Number640>(LOCATION_PARTITIONER);
+
+	// number of optimistic attempts before a read falls back to the range lock
+	private static final int OPTIMISTIC_RETRIES = 3;
+
+	final private LocationStamps stamps = new LocationStamps();
+	// incrementally maintained digests per location and domain key, prepared entries are not included
+	final private ConcurrentNavigableMap<Number320, DigestSummary> summaries = new ConcurrentSkipListMap<Number320, DigestSummary>();
+	// true if the backend was empty at startup, otherwise the summaries are built per location key on first use
+	final private boolean summariesComplete;
+	final private Set<Number160> summarizedLocations = Collections
+	        .newSetFromMap(new ConcurrentHashMap<Number160, Boolean>());
+	// only backends that can be read while being modified, e.g., concurrent maps
+	private volatile boolean optimisticReads;
 	
 	final private Storage backend;
 	final int maxVersions;
 
 	public StorageLayer(Storage backend) {
-		this.backend = backend;
-		this.maxVersions = -1;
+		this(backend, -1);
 	}
 	
 	public StorageLayer(Storage backend, int maxVersions) {
 		this.backend = backend;
 		this.maxVersions = maxVersions;
+		this.optimisticReads = backend instanceof StorageMemory;
+		// a persistent backend comes back with its values, but the summaries are only in memory. Reading every value
+		// here would read the whole store from disk, so the summaries of a location key are built when first needed.
+		this.summariesComplete = backend.map().isEmpty();
+	}
+
+	/**
+	 * @param optimisticReads
+	 *            True if reads should not take the range lock and retry if a concurrent write changed the location.
+	 *            Only enable this for backends that can be read while being modified.
+	 */
+	public void optimisticReads(boolean optimisticReads) {
+		this.optimisticReads = optimisticReads;
+	}
+
+	public boolean optimisticReads() {
+		return optimisticReads;
 	}
 
 	public void protection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
@@ -142,30 +185,6 @@ public class StorageLayer implements DigestStorage {
 		return removedDomains.contains(domain);
 	}
 	
-	private RangeLock<Number640>.Range lock(Number640 min, Number640 max) { 
-		return rangeLock.lock(min, max);
-	}
-	
-	private RangeLock<Number640>.Range lock(Number640 number640) { 
-		return rangeLock.lock(number640, number640);
-	}
-	
-	private RangeLock<Number640>.Range lock(Number480 number480) { 
-		return rangeLock.lock(new Number640(number480, Number160.ZERO), new Number640(number480, Number160.MAX_VALUE));
-	}
-	
-	private RangeLock<Number640>.Range lock(Number320 number320) { 
-		return rangeLock.lock(
-				new Number640(number320, Number160.ZERO, Number160.ZERO), 
-				new Number640(number320, Number160.MAX_VALUE, Number160.MAX_VALUE));
-	}
-	
-	private RangeLock<Number640>.Range lock(Number160 number160) { 
-		return rangeLock.lock(
-				new Number640(number160, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
-				new Number640(number160, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
-	}
-	
 	private RangeLock<Number640>.Range lockResponsibility(Number160 number160) { 
 		return responsibilityLock.lock(
 				new Number640(number160, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
@@ -177,6 +196,126 @@ public class StorageLayer implements DigestStorage {
 				new Number640(Number160.ZERO, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
 				new Number640(Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 	}
+
+	/**
+	 * Locks the range for a write and invalidates the optimistic reads of its location keys until
+	 * {@link #unlockWrite(RangeLock.Range)} is called.
+	 */
+	private RangeLock<Number640>.Range lockWrite(Number640 from, Number640 to) {
+		final RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		stamps.begin(from, to);
+		return lock;
+	}
+
+	private void unlockWrite(RangeLock<Number640>.Range lock) {
+		stamps.end(lock.fromKey(), lock.toKey());
+		lock.unlock();
+	}
+
+	private interface Read<T> {
+		T read();
+	}
+
+	/**
+	 * Reads without the range lock as long as no writer changes the location in the meantime. After
+	 * {@link #OPTIMISTIC_RETRIES} failed attempts, if a writer is active, or if the range spans location keys, the
+	 * range lock is used.
+	 */
+	private <T> T read(Number640 from, Number640 to, Read<T> read) {
+		if (optimisticReads) {
+			for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+				final long stamp = stamps.stamp(from, to);
+				if (stamp < 0) {
+					break;
+				}
+				try {
+					final T result = read.read();
+					if (stamps.validate(from, to, stamp)) {
+						return result;
+					}
+				} catch (RuntimeException e) {
+					// the data was changed while reading it, otherwise this is a real problem
+					if (stamps.validate(from, to, stamp)) {
+						throw e;
+					}
+				}
+			}
+		}
+		final RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		try {
+			return read.read();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// needs to be called with the write lock held
+	private void summaryAdd(Number640 key, Data data) {
+		if (data.hasPrepareFlag() || !isSummarized(key.locationKey())) {
+			return;
+		}
+		summaryAddInternal(key, data);
+	}
+
+	private void summaryAddInternal(Number640 key, Data data) {
+		final Number320 locationAndDomainKey = key.locationAndDomainKey();
+		while (true) {
+			DigestSummary summary = summaries.get(locationAndDomainKey);
+			if (summary == null) {
+				summary = new DigestSummary();
+				final DigestSummary old = summaries.putIfAbsent(locationAndDomainKey, summary);
+				if (old != null) {
+					summary = old;
+				}
+			}
+			// a concurrent remove may have discarded the summary
+			if (summary.add(key, data.hash())) {
+				return;
+			}
+		}
+	}
+
+	// needs to be called with the write lock held
+	private void summaryRemove(Number640 key, Data data) {
+		if (data == null || data.hasPrepareFlag() || !isSummarized(key.locationKey())) {
+			return;
+		}
+		final Number320 locationAndDomainKey = key.locationAndDomainKey();
+		final DigestSummary summary = summaries.get(locationAndDomainKey);
+		if (summary != null && summary.remove(key, data.hash())) {
+			summaries.remove(locationAndDomainKey, summary);
+		}
+	}
+	
+	private boolean isSummarized(Number160 locationKey) {
+		return summariesComplete || summarizedLocations.contains(locationKey);
+	}
+
+	/**
+	 * Builds the summaries of a location key from the backend, unless they are maintained already. Changes that are
+	 * made before are not tracked, as they are part of the values that are read here.
+	 */
+	private void summarize(Number160 locationKey) {
+		if (isSummarized(locationKey)) {
+			return;
+		}
+		final Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+		final Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		final RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		try {
+			if (isSummarized(locationKey)) {
+				return;
+			}
+			for (Map.Entry<Number640, Data> entry : backend.subMap(from, to).entrySet()) {
+				if (!entry.getValue().hasPrepareFlag()) {
+					summaryAddInternal(entry.getKey(), entry.getValue());
+				}
+			}
+			summarizedLocations.add(locationKey);
+		} finally {
+			lock.unlock();
+		}
+	}
 	
 	public Map<Number640, Enum<?>> putAll(final NavigableMap<Number640, Data> dataMap, PublicKey publicKey, boolean putIfAbsent,
 	        boolean domainProtection, boolean sendSelf) {
@@ -187,7 +326,7 @@ public class StorageLayer implements DigestStorage {
 		final Number640 max = dataMap.lastKey();
 		final Map<Number640, Enum<?>> retVal = new HashMap<Number640, Enum<?>>();
 		final HashSet<Number480> keysToCheck = new HashSet<Number480>();
-		final RangeLock<Number640>.Range lock = lock(min, max);
+		final RangeLock<Number640>.Range lock = lockWrite(min, max);
 		try {
 			for(Map.Entry<Number640, Data> entry: dataMap.entrySet()) {
 				Number640 key = entry.getKey();
@@ -238,6 +377,10 @@ public class StorageLayer implements DigestStorage {
 				}
 				
 				final Data oldDataPut = backend.put(key, newData);
+				if (oldDataPut != newData) {
+					summaryRemove(key, oldDataPut);
+					summaryAdd(key, newData);
+				}
 				
 				long expiration = newData.expirationMillis();
 				// handle timeout
@@ -280,6 +423,11 @@ public class StorageLayer implements DigestStorage {
 					                .timestamp()) {
 						Map.Entry<Number640, Data> entry = versions.pollFirstEntry();
 						Data removed = backend.remove(entry.getKey(), true);
+						if (removed == null) {
+							// the sub map is a view of the backend, the poll has already removed the entry
+							removed = entry.getValue();
+						}
+						summaryRemove(entry.getKey(), removed);
 						if(removed != null) {
 							removed.release();
 						}
@@ -290,7 +438,7 @@ public class StorageLayer implements DigestStorage {
 			return retVal;
 			
 		} finally {
-			lock.unlock();
+			unlockWrite(lock);
 		}
 	}
 	
@@ -308,7 +456,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Pair<Data, Enum<?>> remove(Number640 key, PublicKey publicKey, boolean returnData) {
-		RangeLock<Number640>.Range lock = lock(key);
+		RangeLock<Number640>.Range lock = lockWrite(key, key);
 		try {
 			if (!canClaimDomain(key.locationAndDomainKey(), publicKey)) {
 				return new Pair<Data, Enum<?>>(null, PutStatus.FAILED_SECURITY);
@@ -320,25 +468,27 @@ public class StorageLayer implements DigestStorage {
 				return new Pair<Data, Enum<?>>(null, PutStatus.NOT_FOUND);
 			}
 			backend.removeTimeout(key);
-			Data removed = backend.remove(key, returnData);
+			// always get the data back, as the digest summary needs its hash
+			Data removed = backend.remove(key, true);
+			summaryRemove(key, removed);
 			if(removed != null && !returnData) {
 				removed.release();
 			}
 			// else -> it will be removed in the encoder 
 			return new Pair<Data, Enum<?>>(removed, PutStatus.OK);
 		} finally {
-			lock.unlock();
+			unlockWrite(lock);
 		}
 	}
 
-	public Data get(Number640 key) {
-		RangeLock<Number640>.Range lock = lock(key);
-		try {
-			Data tmp = getInternal(key);
-			return tmp == null? null:tmp.duplicate();
-		} finally {
-			lock.unlock();
-		}
+	public Data get(final Number640 key) {
+		return read(key, key, new Read<Data>() {
+			@Override
+			public Data read() {
+				Data tmp = getInternal(key);
+				return tmp == null? null:tmp.duplicate();
+			}
+		});
 	}
 
 	private Data getInternal(Number640 key) {
@@ -350,26 +500,68 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
-	public NavigableMap<Number640, Data> get(Number640 from, Number640 to, int limit, boolean ascending) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
-		try {
-			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
-			tmp = filterCopy(tmp, limit, ascending);
-			return tmp;
-		} finally {
-			lock.unlock();
+	public NavigableMap<Number640, Data> get(final Number640 from, final Number640 to, final int limit,
+	        final boolean ascending) {
+		return read(from, to, new Read<NavigableMap<Number640, Data>>() {
+			@Override
+			public NavigableMap<Number640, Data> read() {
+				NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
+				tmp = filterCopy(tmp, limit, ascending);
+				return tmp;
+			}
+		});
+	}
+
+	/**
+	 * Gets a range of values that pass a filter. The filter is applied before the limit, so up to limit matching
+	 * values are returned.
+	 */
+	public NavigableMap<Number640, Data> get(final Number640 from, final Number640 to, final int limit,
+	        final boolean ascending, final ValueFilter valueFilter) {
+		if (valueFilter == null) {
+			return get(from, to, limit, ascending);
 		}
+		return read(from, to, new Read<NavigableMap<Number640, Data>>() {
+			@Override
+			public NavigableMap<Number640, Data> read() {
+				return filterCopy(backend.subMap(from, to), limit, ascending, valueFilter);
+			}
+		});
 	}
 
-	public NavigableMap<Number640, Data> getLatestVersion(Number640 key) {
-		RangeLock<Number640>.Range lock = lock(key.locationAndDomainAndContentKey());
-		try {
-			NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey());
-			tmp = filterCopyOrig(tmp, -1, true, true);
-			return getLatestInternal(tmp);
-		} finally {
-			lock.unlock();
+	/**
+	 * Gets a page of a range. The page starts after the cursor, so a range can be read page by page with the last
+	 * key of the previous page as cursor. Only the values of the page are copied.
+	 * 
+	 * @param cursor
+	 *            The last key of the previous page, or null for the first page
+	 */
+	public NavigableMap<Number640, Data> getPage(final Number640 from, final Number640 to, final Number640 cursor,
+	        final int limit, final boolean ascending, final ValueFilter valueFilter) {
+		if (cursor == null) {
+			return get(from, to, limit, ascending, valueFilter);
 		}
+		return read(from, to, new Read<NavigableMap<Number640, Data>>() {
+			@Override
+			public NavigableMap<Number640, Data> read() {
+				final NavigableMap<Number640, Data> range = backend.subMap(from, to);
+				final NavigableMap<Number640, Data> page = ascending ? range.tailMap(cursor, false) : range.headMap(
+				        cursor, false);
+				return valueFilter == null ? filterCopy(page, limit, ascending) : filterCopy(page, limit, ascending,
+				        valueFilter);
+			}
+		});
+	}
+
+	public NavigableMap<Number640, Data> getLatestVersion(final Number640 key) {
+		return read(key.minVersionKey(), key.maxVersionKey(), new Read<NavigableMap<Number640, Data>>() {
+			@Override
+			public NavigableMap<Number640, Data> read() {
+				NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey());
+				tmp = filterCopyOrig(tmp, -1, true, true);
+				return getLatestInternal(tmp);
+			}
+		});
 	}
 
 	private NavigableMap<Number640, Data> getLatestInternal(NavigableMap<Number640, Data> input) {
@@ -414,6 +606,25 @@ public class StorageLayer implements DigestStorage {
 		return retVal;
     }
 	
+	private NavigableMap<Number640, Data> filterCopy(final NavigableMap<Number640, Data> tmp, int limit,
+	        boolean ascending, ValueFilter valueFilter) {
+		NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		int counter = 0;
+		for (Map.Entry<Number640, Data> entry : ascending ? tmp.entrySet() : tmp.descendingMap().entrySet()) {
+			if (!entry.getValue().hasPrepareFlag()) {
+				final Data data = valueFilter.apply(entry.getValue().duplicate());
+				if (data == null) {
+					continue;
+				}
+				if (limit >= 0 && counter++ >= limit) {
+					break;
+				}
+				retVal.put(entry.getKey(), data);
+			}
+		}
+		return retVal;
+	}
+
 	private NavigableMap<Number640, Data> filterCopyOrig(final NavigableMap<Number640, Data> tmp, int limit, 
                 boolean ascending, boolean filterPrepared) {
 		NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
@@ -459,70 +670,64 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
-	public boolean contains(Number640 key) {
-		RangeLock<Number640>.Range lock = lock(key);
-		try {
-			return backend.contains(key);
-		} finally {
-			lock.unlock();
-		}
+	public boolean contains(final Number640 key) {
+		return read(key, key, new Read<Boolean>() {
+			@Override
+			public Boolean read() {
+				return backend.contains(key);
+			}
+		});
 	}
 
 	public NavigableMap<Number640, Data> get(Number640 from, Number640 to, SimpleBloomFilter<Number160> contentKeyBloomFilter,
 	        SimpleBloomFilter<Number160> versionKeyBloomFilter, SimpleBloomFilter<Number160> contentBloomFilter, 
 	        int limit, boolean ascending, boolean isBloomFilterAnd) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
-		try {
-			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
-			tmp = filterCopy(tmp, limit, ascending);
-			Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
+		NavigableMap<Number640, Data> tmp = get(from, to, limit, ascending);
+		Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
 
-			while (iterator.hasNext()) {
-				Map.Entry<Number640, Data> entry = iterator.next();
+		while (iterator.hasNext()) {
+			Map.Entry<Number640, Data> entry = iterator.next();
 
-				if (isBloomFilterAnd) {
-					if (!contentKeyBloomFilter.contains(entry.getKey().contentKey())) {
-						entry.getValue().release();
-						iterator.remove();
-						continue;
-					}
-					if (!versionKeyBloomFilter.contains(entry.getKey().versionKey())) {
-						entry.getValue().release();
-						iterator.remove();
-						continue;
-					}
-					if (!contentBloomFilter.contains(entry.getValue().hash())) {
-						entry.getValue().release();
-						iterator.remove();
-						continue;
-					}
-				} else {
-					if (contentKeyBloomFilter.contains(entry.getKey().contentKey())) {
-						entry.getValue().release();
-						iterator.remove();
-						continue;
-					}
-					if (versionKeyBloomFilter.contains(entry.getKey().versionKey())) {
-						entry.getValue().release();
-						iterator.remove();
-						continue;
-					}
-					if (contentBloomFilter.contains(entry.getValue().hash())) {
-						entry.getValue().release();
-						iterator.remove();
-						continue;
-					}
+			if (isBloomFilterAnd) {
+				if (!contentKeyBloomFilter.contains(entry.getKey().contentKey())) {
+					entry.getValue().release();
+					iterator.remove();
+					continue;
+				}
+				if (!versionKeyBloomFilter.contains(entry.getKey().versionKey())) {
+					entry.getValue().release();
+					iterator.remove();
+					continue;
+				}
+				if (!contentBloomFilter.contains(entry.getValue().hash())) {
+					entry.getValue().release();
+					iterator.remove();
+					continue;
+				}
+			} else {
+				if (contentKeyBloomFilter.contains(entry.getKey().contentKey())) {
+					entry.getValue().release();
+					iterator.remove();
+					continue;
+				}
+				if (versionKeyBloomFilter.contains(entry.getKey().versionKey())) {
+					entry.getValue().release();
+					iterator.remove();
+					continue;
+				}
+				if (contentBloomFilter.contains(entry.getValue().hash())) {
+					entry.getValue().release();
+					iterator.remove();
+					continue;
 				}
 			}
-
-			return tmp;
-		} finally {
-			lock.unlock();
 		}
+
+		return tmp;
 	}
 
 	public NavigableMap<Number640, Data> removeReturnData(Number640 from, Number640 to, PublicKey publicKey) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		RangeLock<Number640>.Range lock = lockWrite(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to);
 			NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
@@ -539,18 +744,19 @@ public class StorageLayer implements DigestStorage {
 					if (toRemove!= null && (toRemove.publicKey() == null || toRemove.publicKey().equals(publicKey))) {
 						backend.removeTimeout(key);
 						Data removed = backend.remove(key, true);
+						summaryRemove(key, removed);
 						result.put(key, removed);
 					}
 				}
 			}
 			return result;
 		} finally {
-			lock.unlock();
+			unlockWrite(lock);
 		}
 	}
 
 	public SortedMap<Number640, Byte> removeReturnStatus(Number640 from, Number640 to, PublicKey publicKey) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		RangeLock<Number640>.Range lock = lockWrite(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to);
 			SortedMap<Number640, Byte> result = new TreeMap<Number640, Byte>();
@@ -563,25 +769,44 @@ public class StorageLayer implements DigestStorage {
 			}
 			return result;
 		} finally {
-			lock.unlock();
+			unlockWrite(lock);
 		}
 	}
 
 	public void checkTimeout() {
 		long time = System.currentTimeMillis();
 		Collection<Number640> toRemove = backend.subMapTimeout(time);
+		if (toRemove.isEmpty()) {
+			return;
+		}
+		// evict per location key, so that every location is locked and checked for responsibility only once
+		final NavigableMap<Number160, List<Number640>> byLocation = new TreeMap<Number160, List<Number640>>();
 		for (Number640 key : toRemove) {
-			RangeLock<Number640>.Range lock = lock(key);
+			List<Number640> keys = byLocation.get(key.locationKey());
+			if (keys == null) {
+				keys = new ArrayList<Number640>();
+				byLocation.put(key.locationKey(), keys);
+			}
+			keys.add(key);
+		}
+		for (Map.Entry<Number160, List<Number640>> entry : byLocation.entrySet()) {
+			final Number160 locationKey = entry.getKey();
+			final Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			final Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+			        Number160.MAX_VALUE);
+			RangeLock<Number640>.Range lock = lockWrite(from, to);
 			try {
-				Data oldData = backend.remove(key, false);
-				if(oldData != null) {
-					oldData.release();
+				for (Number640 key : entry.getValue()) {
+					Data oldData = backend.remove(key, true);
+					summaryRemove(key, oldData);
+					if (oldData != null) {
+						oldData.release();
+					}
+					backend.removeTimeout(key);
 				}
-				backend.removeTimeout(key);
 				// remove responsibility if we don't have any data stored under
 				// locationkey
-				Number160 locationKey = key.locationKey();
-				RangeLock<Number640>.Range lockResp= lockResponsibility(locationKey);
+				RangeLock<Number640>.Range lockResp = lockResponsibility(locationKey);
 				try {
 					if (isEmpty(locationKey)) {
 						backend.removeResponsibility(locationKey);
@@ -590,7 +815,7 @@ public class StorageLayer implements DigestStorage {
 					lockResp.unlock();
 				}
 			} finally {
-				lock.unlock();
+				unlockWrite(lock);
 			}
 		}
 	}
@@ -598,67 +823,67 @@ public class StorageLayer implements DigestStorage {
 	private boolean isEmpty(Number160 locationKey) {
 		Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
 		Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
-		Map<Number640, Data> tmp = backend.subMap(from, to);
-		return tmp.size() == 0;
+		return backend.subMap(from, to).isEmpty();
 	}
 
 	/* (non-Javadoc)
 	 * @see net.tomp2p.dht.DigestStorage#digest(net.tomp2p.peers.Number640, net.tomp2p.peers.Number640, int, boolean)
 	 */
 	@Override
-    public DigestInfo digest(Number640 from, Number640 to, int limit, boolean ascending) {
-		DigestInfo digestInfo = new DigestInfo();
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
-		try {
-			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
-			tmp = filterCopyOrig(tmp, limit, ascending, true);
-			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
-				if (!entry.getValue().hasPrepareFlag()) {
-					digestInfo.put(entry.getKey(), entry.getValue().basedOnSet());
+    public DigestInfo digest(final Number640 from, final Number640 to, final int limit, final boolean ascending) {
+		return read(from, to, new Read<DigestInfo>() {
+			@Override
+			public DigestInfo read() {
+				DigestInfo digestInfo = new DigestInfo();
+				NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
+				tmp = filterCopyOrig(tmp, limit, ascending, true);
+				for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+					if (!entry.getValue().hasPrepareFlag()) {
+						digestInfo.put(entry.getKey(), entry.getValue().basedOnSet());
+					}
 				}
+				return digestInfo;
 			}
-			return digestInfo;
-		} finally {
-			lock.unlock();
-		}
+		});
 	}
 
 	/* (non-Javadoc)
 	 * @see net.tomp2p.dht.DigestStorage#digest(net.tomp2p.peers.Number320, net.tomp2p.rpc.SimpleBloomFilter, net.tomp2p.rpc.SimpleBloomFilter, int, boolean, boolean)
 	 */
 	@Override
-    public DigestInfo digest(Number320 locationAndDomainKey, SimpleBloomFilter<Number160> keyBloomFilter,
-	        SimpleBloomFilter<Number160> contentKeyBloomFilter, int limit, boolean ascending, boolean isBloomFilterAnd) {
-		DigestInfo digestInfo = new DigestInfo();
-		RangeLock<Number640>.Range lock = lock(locationAndDomainKey);
-		try {
-			Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
-			Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
-			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
-			tmp = filterCopyOrig(tmp, limit, ascending, true);
-			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
-				if (isBloomFilterAnd) {
-					if (keyBloomFilter == null || keyBloomFilter.contains(entry.getKey().contentKey())) {
-						if (contentKeyBloomFilter == null || contentKeyBloomFilter.contains(entry.getValue().hash())) {
-							if (!entry.getValue().hasPrepareFlag()) {
-								digestInfo.put(entry.getKey(), entry.getValue().basedOnSet());
+    public DigestInfo digest(Number320 locationAndDomainKey, final SimpleBloomFilter<Number160> keyBloomFilter,
+	        final SimpleBloomFilter<Number160> contentKeyBloomFilter, final int limit, final boolean ascending,
+	        final boolean isBloomFilterAnd) {
+		final Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+		final Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		return read(from, to, new Read<DigestInfo>() {
+			@Override
+			public DigestInfo read() {
+				DigestInfo digestInfo = new DigestInfo();
+				NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
+				tmp = filterCopyOrig(tmp, limit, ascending, true);
+				for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+					if (isBloomFilterAnd) {
+						if (keyBloomFilter == null || keyBloomFilter.contains(entry.getKey().contentKey())) {
+							if (contentKeyBloomFilter == null || contentKeyBloomFilter.contains(entry.getValue().hash())) {
+								if (!entry.getValue().hasPrepareFlag()) {
+									digestInfo.put(entry.getKey(), entry.getValue().basedOnSet());
+								}
 							}
 						}
-					}
-				} else {
-					if (keyBloomFilter == null || !keyBloomFilter.contains(entry.getKey().contentKey())) {
-						if (contentKeyBloomFilter == null || !contentKeyBloomFilter.contains(entry.getValue().hash())) {
-							if (!entry.getValue().hasPrepareFlag()) {
-								digestInfo.put(entry.getKey(),entry.getValue().basedOnSet());
+					} else {
+						if (keyBloomFilter == null || !keyBloomFilter.contains(entry.getKey().contentKey())) {
+							if (contentKeyBloomFilter == null || !contentKeyBloomFilter.contains(entry.getValue().hash())) {
+								if (!entry.getValue().hasPrepareFlag()) {
+									digestInfo.put(entry.getKey(),entry.getValue().basedOnSet());
+								}
 							}
 						}
 					}
 				}
+				return digestInfo;
 			}
-			return digestInfo;
-		} finally {
-			lock.unlock();
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -667,22 +892,112 @@ public class StorageLayer implements DigestStorage {
 	@Override
     public DigestInfo digest(Collection<Number640> number640s) {
 		DigestInfo digestInfo = new DigestInfo();
-		for (Number640 number640 : number640s) {
-			RangeLock<Number640>.Range lock = lock(number640);
-			try {
-				if (backend.contains(number640)) {
-					Data data = getInternal(number640);
-					if (data != null) {
-						digestInfo.put(number640, data.basedOnSet());
-					}
+		for (final Number640 number640 : number640s) {
+			Data data = read(number640, number640, new Read<Data>() {
+				@Override
+				public Data read() {
+					return getInternal(number640);
 				}
-			} finally {
-				lock.unlock();
+			});
+			if (data != null) {
+				digestInfo.put(number640, data.basedOnSet());
 			}
 		}
 		return digestInfo;
 	}
 
+	/**
+	 * Returns the digest of all entries of a location and domain key in constant time. The digest is maintained on
+	 * every put, remove and expiration and does not contain the digests of the single entries.
+	 * 
+	 * @param locationAndDomainKey
+	 *            The location and domain key
+	 * @return The key digest, the content digest and the number of entries
+	 */
+	public DigestInfo digestSummary(Number320 locationAndDomainKey) {
+		summarize(locationAndDomainKey.locationKey());
+		final DigestSummary summary = summaries.get(locationAndDomainKey);
+		if (summary == null) {
+			return new DigestInfo(Number160.ZERO, Number160.ZERO, 0);
+		}
+		return summary.digestInfo();
+	}
+
+	/**
+	 * Returns the digest per content key of a location and domain key. If two summaries differ, only the content keys
+	 * with a different digest need to be compared.
+	 * 
+	 * @param locationAndDomainKey
+	 *            The location and domain key
+	 * @return The digest per content key
+	 */
+	public NavigableMap<Number160, Number160> digestSummaryContentKeys(Number320 locationAndDomainKey) {
+		summarize(locationAndDomainKey.locationKey());
+		final DigestSummary summary = summaries.get(locationAndDomainKey);
+		if (summary == null) {
+			return new TreeMap<Number160, Number160>();
+		}
+		return summary.contentKeyDigests();
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key
+	 * @return The digest summaries of all domains stored under the location key
+	 */
+	public NavigableMap<Number320, DigestInfo> digestSummaries(Number160 locationKey) {
+		summarize(locationKey);
+		final NavigableMap<Number320, DigestInfo> result = new TreeMap<Number320, DigestInfo>();
+		final Number320 from = new Number320(locationKey, Number160.ZERO);
+		final Number320 to = new Number320(locationKey, Number160.MAX_VALUE);
+		for (Map.Entry<Number320, DigestSummary> entry : summaries.subMap(from, true, to, true).entrySet()) {
+			result.put(entry.getKey(), entry.getValue().digestInfo());
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.tomp2p.storage.DigestStorage#smallValues(net.tomp2p.peers.Number256, net.tomp2p.peers.Number256, net.tomp2p.peers.Number256, int)
+	 */
+	@Override
+	public NavigableMap<Number256, Pair<Number256, Data>> smallValues(Number256 locationKey, Number256 domainKey,
+	        Number256 contentKey, final int maxSize) {
+		Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
+		final Number640 from;
+		final Number640 to;
+		if (contentKey == null) {
+			from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+			to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		} else {
+			from = new Number640(locationAndDomainKey, contentKey, Number160.ZERO);
+			to = new Number640(locationAndDomainKey, contentKey, Number160.MAX_VALUE);
+		}
+		return read(from, to, new Read<NavigableMap<Number256, Pair<Number256, Data>>>() {
+			@Override
+			public NavigableMap<Number256, Pair<Number256, Data>> read() {
+				NavigableMap<Number640, Data> tmp = filterCopyOrig(backend.subMap(from, to), -1, true, true);
+				if (tmp.isEmpty()) {
+					return null;
+				}
+				NavigableMap<Number256, Pair<Number256, Data>> result = new TreeMap<Number256, Pair<Number256, Data>>();
+				int size = 0;
+				for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+					size += entry.getValue().length();
+					if (size > maxSize) {
+						// all or nothing, otherwise the requester cannot skip the get
+						return null;
+					}
+					if (result.put(entry.getKey().contentKey(), new Pair<Number256, Data>(entry.getKey().versionKey(),
+					        entry.getValue())) != null) {
+						// several versions, the requester needs a regular get to see all of them
+						return null;
+					}
+				}
+				return result;
+			}
+		});
+	}
+
 	private boolean securityDomainCheck(Number320 key, PublicKey publicKey, PublicKey newPublicKey,
 	        boolean domainProtection) {
 
@@ -826,19 +1141,22 @@ public class StorageLayer implements DigestStorage {
 		RangeLock<Number640>.Range lockResp = lockResponsibility(locationKey);
 		try {
 			if (!keepData) {
-				RangeLock<Number640>.Range lock = lock(locationKey);
+				RangeLock<Number640>.Range lock = lockWrite(
+						new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
+						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 				try {
 					final NavigableMap<Number640, Data> removed = backend.remove(
 						new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
 						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 					for(Map.Entry<Number640,Data> entry:removed.entrySet()) {
+						summaryRemove(entry.getKey(), entry.getValue());
 						if(entry.getValue() != null) {
 							entry.getValue().release();
 						}
 						backend.removeTimeout(entry.getKey());
 					}
 				} finally {
-					lock.unlock();
+					unlockWrite(lock);
 		        }
 			}
         	backend.removeResponsibility(locationKey);
@@ -851,6 +1169,9 @@ public class StorageLayer implements DigestStorage {
 		@Override
 		public void run() {
 			checkTimeout();
+			if (backend instanceof CompactingStorage) {
+				((CompactingStorage) backend).compact();
+			}
 		}
 	}
 
@@ -867,7 +1188,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Enum<?> updateMeta(PublicKey publicKey, Number640 key, Data newData) {
-		RangeLock<Number640>.Range lock = lock(key);
+		RangeLock<Number640>.Range lock = lockWrite(key, key);
 		try {
 			if (!securityEntryCheck(key.locationAndDomainAndContentKey(), publicKey, newData.publicKey(),
 			        newData.isProtectedEntry())) {
@@ -901,7 +1222,7 @@ public class StorageLayer implements DigestStorage {
 			}
 		} finally {
 			newData.release();
-			lock.unlock();
+			unlockWrite(lock);
 		}
 	}
 
@@ -909,8 +1230,19 @@ public class StorageLayer implements DigestStorage {
 	    return backend.storageCheckIntervalMillis();
     }
 
+	/**
+	 * @return A future that completes once all changes made so far are durable. If the backend commits every change
+	 *         right away, the future is already done.
+	 */
+	public FutureDone<Void> durable() {
+		if (backend instanceof DurableStorage) {
+			return ((DurableStorage) backend).durable();
+		}
+		return new FutureDone<Void>().done();
+	}
+
 	public Enum<?> putConfirm(PublicKey publicKey, Number640 key, Data newData) {
-		RangeLock<Number640>.Range lock = lock(key);
+		RangeLock<Number640>.Range lock = lockWrite(key, key);
 		try {
 			if (!securityEntryCheck(key.locationAndDomainAndContentKey(), publicKey, newData.publicKey(),
 					newData.isProtectedEntry())) {
@@ -919,8 +1251,12 @@ public class StorageLayer implements DigestStorage {
 
 			final Data data = backend.get(key);
 			if (data != null) {
-				// remove prepare flag
+				// remove prepare flag, the entry is now part of the digest
+				final boolean prepared = data.hasPrepareFlag();
 				data.prepareFlag(false);
+				if (prepared) {
+					summaryAdd(key, data);
+				}
 
 				data.validFromMillis(newData.validFromMillis());
 				data.ttlSeconds(newData.ttlSeconds());
@@ -936,12 +1272,14 @@ public class StorageLayer implements DigestStorage {
 			}
 		} finally {
 			newData.release();
-			lock.unlock();
+			unlockWrite(lock);
 		}
 		//TODO: check for FORKS!
 	}
 
 	public void close() {
 		backend.close();
+		summaries.clear();
+		summarizedLocations.clear();
 	}
 }
@@ -48,9 +48,11 @@ public class StorageMemory implements Storage {
     // Core
     final private NavigableMap<Number640, Data> dataMap = new ConcurrentSkipListMap<Number640, Data>();
 
-    // Maintenance
+    // Maintenance, the expirations are grouped in slots of timeoutSlotMillis like in a timing wheel. The reverse map
+    // has one entry per slot and not one per distinct expiration.
     final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
     final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+    final private long timeoutSlotMillis;
 
     // Protection
     final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
@@ -69,6 +71,8 @@ public class StorageMemory implements Storage {
 
     public StorageMemory(int storageCheckIntervalMillis) {
     	this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+    	// one slot per maintenance run
+    	this.timeoutSlotMillis = Math.max(1, storageCheckIntervalMillis);
 	}
 
 	// Core
@@ -121,9 +125,22 @@ public class StorageMemory implements Storage {
     @Override
     public void addTimeout(Number640 key, long expiration) {
         Long oldExpiration = timeoutMap.put(key, expiration);
-        Set<Number640> tmp = putIfAbsent2(expiration,
-                Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>()));
-        tmp.add(key);
+        final long slot = slot(expiration);
+        if (oldExpiration != null && slot(oldExpiration) == slot) {
+            // same slot, the new expiration is read from the timeoutMap
+            return;
+        }
+        while (true) {
+            final Set<Number640> tmp = putIfAbsent2(slot,
+                    Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>()));
+            synchronized (tmp) {
+                // an empty set is removed under its lock, so if it is still mapped, the key cannot get lost with it
+                if (timeoutMapRev.get(slot) == tmp) {
+                    tmp.add(key);
+                    break;
+                }
+            }
+        }
         if (oldExpiration == null) {
             return;
         }
@@ -131,8 +148,8 @@ public class StorageMemory implements Storage {
     }
     
     //TODO: unnecessary creation of object
-    private Set<Number640> putIfAbsent2(long expiration, Set<Number640> hashSet) {
-        Set<Number640> timeouts = timeoutMapRev.putIfAbsent(expiration, hashSet);
+    private Set<Number640> putIfAbsent2(long slot, Set<Number640> hashSet) {
+        Set<Number640> timeouts = timeoutMapRev.putIfAbsent(slot, hashSet);
         return timeouts == null ? hashSet : timeouts;
     }
 
@@ -145,26 +162,47 @@ public class StorageMemory implements Storage {
         removeRevTimeout(key, expiration);
     }
 
-    private void removeRevTimeout(Number640 key, Long expiration) {
-        Set<Number640> tmp = timeoutMapRev.get(expiration);
+    private void removeRevTimeout(Number640 key, long expiration) {
+        final long slot = slot(expiration);
+        Set<Number640> tmp = timeoutMapRev.get(slot);
         if (tmp != null) {
-            tmp.remove(key);
-            if (tmp.isEmpty()) {
-                timeoutMapRev.remove(expiration);
+            synchronized (tmp) {
+                tmp.remove(key);
+                if (tmp.isEmpty()) {
+                    timeoutMapRev.remove(slot, tmp);
+                }
             }
         }
     }
 
+    /**
+     * The expired keys are found slot by slot: all keys of a slot that ends before "to" are expired, only the keys of
+     * the last slot need to be checked one by one.
+     */
     @Override
     public Collection<Number640> subMapTimeout(long to) {
-        SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
+        final long lastSlot = slot(to);
+        SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.headMap(lastSlot, true);
         Collection<Number640> toRemove = new ArrayList<Number640>();
-        for (Set<Number640> set : tmp.values()) {
-            toRemove.addAll(set);
+        for (Map.Entry<Long, Set<Number640>> entry : tmp.entrySet()) {
+            if (entry.getKey() < lastSlot) {
+                toRemove.addAll(entry.getValue());
+                continue;
+            }
+            for (Number640 key : entry.getValue()) {
+                Long expiration = timeoutMap.get(key);
+                if (expiration != null && expiration < to) {
+                    toRemove.add(key);
+                }
+            }
         }
         return toRemove;
     }
 
+    private long slot(long expiration) {
+        return expiration / timeoutSlotMillis;
+    }
+
     // Protection
     @Override
     public boolean protectDomain(Number320 key, PublicKey publicKey) {
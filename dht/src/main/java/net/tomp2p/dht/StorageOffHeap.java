@@ -0,0 +1,390 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that keeps the values outside of the Java heap. The values are encoded and appended to direct memory
+ * slabs, only the {@link Number640Index} from the key to the address of the value is on the heap. Thus, the garbage collector does not
+ * need to trace millions of {@link Data} objects and their buffers. A value is decoded on every read, the maps returned
+ * by {@link #subMap(Number640, Number640)} and {@link #map()} are {@link IndexedDataMap} views that decode lazily.
+ * <p>
+ * Slabs are append only, a removed or replaced value leaves a hole. A slab without any live value is dropped right
+ * away, while fragmented slabs are reclaimed by {@link #compact()}, which the {@link StorageLayer} calls after every
+ * run of its maintenance task. Since a slab is never overwritten, reads do not need any locks. The timeouts, the protection
+ * and the responsibility are kept on the heap as in {@link StorageMemory}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageOffHeap extends StorageMemory implements CompactingStorage {
+
+	public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageOffHeap.class);
+
+	// record: 4 bytes length of the encoded data, 8 bytes valid from, encoded data
+	private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+	// Core
+	final private Number640Index index = new Number640Index();
+	final private Map<Integer, Slab> slabs = new ConcurrentHashMap<Integer, Slab>();
+
+	final private int slabSize;
+
+	final private IndexedDataMap.Values values = new IndexedDataMap.Values() {
+		@Override
+		public Data value(final Number640 key, final long address) {
+			final Data data = decode(address);
+			// compacted in the meantime
+			return data == null ? get(key) : data;
+		}
+
+		@Override
+		public Data remove(final Number640 key) {
+			return StorageOffHeap.this.remove(key, true);
+		}
+	};
+
+	// guarded by this
+	private Slab current;
+	private int nextSlabId = 0;
+
+	private static final class Slab {
+		private final int id;
+		private final ByteBuffer buffer;
+		// guarded by the storage
+		private int position = 0;
+		private int live = 0;
+
+		private Slab(final int id, final int size) {
+			this.id = id;
+			this.buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	public StorageOffHeap() {
+		this(DEFAULT_STORAGE_CHECK_INTERVAL, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * @param storageCheckIntervalMillis
+	 *            The interval of the maintenance task
+	 * @param slabSize
+	 *            The size of a slab in bytes. Values larger than a slab get their own slab.
+	 */
+	public StorageOffHeap(int storageCheckIntervalMillis, int slabSize) {
+		super(storageCheckIntervalMillis);
+		if (slabSize <= RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("slab size too small: " + slabSize);
+		}
+		this.slabSize = slabSize;
+	}
+
+	// Core
+	@Override
+	public Data put(Number640 key, Data value) {
+		return write(key, value);
+	}
+
+	@Override
+	public Data get(Number640 key) {
+		long address = index.get(key);
+		while (address != Number640Index.NOT_FOUND) {
+			final Data data = decode(address);
+			if (data != null) {
+				return data;
+			}
+			// the slab has been compacted, the index has the new address
+			final long newAddress = index.get(key);
+			if (newAddress == address) {
+				throw new IllegalStateException("the value of " + key + " is in a dropped slab");
+			}
+			address = newAddress;
+		}
+		return null;
+	}
+
+	@Override
+	public boolean contains(Number640 key) {
+		return index.get(key) != Number640Index.NOT_FOUND;
+	}
+
+	@Override
+	public int contains(Number640 fromKey, Number640 toKey) {
+		return index.count(fromKey, true, toKey, true);
+	}
+
+	@Override
+	public Data remove(Number640 key, boolean returnData) {
+		final long address = index.remove(key);
+		if (address == Number640Index.NOT_FOUND) {
+			return null;
+		}
+		final Data oldData = returnData ? decode(address) : null;
+		free(address);
+		return oldData;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey) {
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		for (Map.Entry<Number640, Long> entry : index.range(fromKey, true, toKey, true, false, Integer.MAX_VALUE)) {
+			if (index.remove(entry.getKey(), entry.getValue())) {
+				retVal.put(entry.getKey(), decode(entry.getValue()));
+				free(entry.getValue());
+			}
+		}
+		return retVal;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> subMap(Number640 fromKey, Number640 toKey) {
+		return new IndexedDataMap(index, values, fromKey, true, toKey, true, false);
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> map() {
+		return new IndexedDataMap(index, values);
+	}
+
+	// Misc
+	@Override
+	public void close() {
+		super.close();
+		synchronized (this) {
+			index.clear();
+			slabs.clear();
+			current = null;
+		}
+	}
+
+	/**
+	 * Compacts the slabs where less than half of the bytes are live.
+	 *
+	 * @return The number of slabs that have been reclaimed
+	 */
+	@Override
+	public int compact() {
+		return compact(DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * Moves the live values of fragmented slabs to the current slab and drops the fragmented slabs. Concurrent reads
+	 * that still use an old address fall back to the index. Since a put allocates and indexes its value while holding
+	 * the same monitor, every value in a fragmented slab is in the index and is moved.
+	 *
+	 * @param threshold
+	 *            A slab is compacted if the ratio of live bytes to written bytes is below this threshold
+	 * @return The number of slabs that have been reclaimed
+	 */
+	public synchronized int compact(final double threshold) {
+		final Set<Integer> fragmented = new HashSet<Integer>();
+		for (Slab slab : slabs.values()) {
+			if (slab != current && slab.live < slab.position * threshold) {
+				fragmented.add(slab.id);
+			}
+		}
+		if (fragmented.isEmpty()) {
+			return 0;
+		}
+		int moved = 0;
+		for (Map.Entry<Number640, Long> entry : index.range(null, false, null, false, false, Integer.MAX_VALUE)) {
+			final long address = entry.getValue();
+			if (!fragmented.contains(slabId(address))) {
+				continue;
+			}
+			final long newAddress = copy(address);
+			if (index.replace(entry.getKey(), address, newAddress)) {
+				moved++;
+			} else {
+				// replaced or removed in the meantime
+				free(newAddress);
+			}
+		}
+		for (Integer slabId : fragmented) {
+			slabs.remove(slabId);
+		}
+		LOG.debug("compacted {} slabs, moved {} values", fragmented.size(), moved);
+		return fragmented.size();
+	}
+
+	/**
+	 * @return The number of slabs in use
+	 */
+	public int slabs() {
+		return slabs.size();
+	}
+
+	/**
+	 * @return The number of bytes of the values that are stored, without holes
+	 */
+	public synchronized long liveBytes() {
+		long live = 0;
+		for (Slab slab : slabs.values()) {
+			live += slab.live;
+		}
+		return live;
+	}
+
+	/**
+	 * Appends the value and publishes its address in the index under the monitor, so that a compaction cannot drop
+	 * the slab before the value is indexed.
+	 *
+	 * @return The replaced value or null
+	 */
+	private Data write(final Number640 key, final Data value) {
+		final ByteBuf header = Unpooled.buffer();
+		final ByteBuf done = Unpooled.buffer();
+		try {
+			value.encodeHeader(header);
+			value.encodeDone(done);
+			final ByteBuffer[] payload = value.toByteBuffers();
+			int length = header.readableBytes() + done.readableBytes();
+			for (ByteBuffer buffer : payload) {
+				length += buffer.remaining();
+			}
+			synchronized (this) {
+				final long address = allocate(RECORD_HEADER_SIZE + length);
+				final ByteBuffer buffer = slabs.get(slabId(address)).buffer.duplicate();
+				buffer.position(offset(address));
+				buffer.putInt(length);
+				buffer.putLong(value.validFromMillis());
+				buffer.put(header.nioBuffer());
+				for (ByteBuffer payloadBuffer : payload) {
+					buffer.put(payloadBuffer.duplicate());
+				}
+				buffer.put(done.nioBuffer());
+				final long oldAddress = index.put(key, address);
+				if (oldAddress == Number640Index.NOT_FOUND) {
+					return null;
+				}
+				final Data oldData = decode(oldAddress);
+				free(oldAddress);
+				return oldData;
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("data cannot be stored off heap", e);
+		} finally {
+			header.release();
+			done.release();
+		}
+	}
+
+	/**
+	 * @return The data at this address or null if the slab has been dropped in the meantime
+	 */
+	private Data decode(final long address) {
+		final Slab slab = slabs.get(slabId(address));
+		if (slab == null) {
+			return null;
+		}
+		final ByteBuffer buffer = slab.buffer.duplicate();
+		final int offset = offset(address);
+		final int length = buffer.getInt(offset);
+		final long validFromMillis = buffer.getLong(offset + 4);
+		buffer.position(offset + RECORD_HEADER_SIZE);
+		buffer.limit(offset + RECORD_HEADER_SIZE + length);
+		final ByteBuf buf = Unpooled.wrappedBuffer(buffer);
+		final Data data = Data.decodeHeader(buf);
+		if (data == null || !data.decodeBuffer(buf) || !data.decodeDone(buf)) {
+			throw new IllegalStateException("corrupt record at " + address);
+		}
+		return data.validFromMillis(validFromMillis);
+	}
+
+	private synchronized long copy(final long address) {
+		final ByteBuffer buffer = slabs.get(slabId(address)).buffer.duplicate();
+		final int offset = offset(address);
+		final int recordLength = RECORD_HEADER_SIZE + buffer.getInt(offset);
+		final long newAddress = allocate(recordLength);
+		buffer.position(offset);
+		buffer.limit(offset + recordLength);
+		final ByteBuffer target = slabs.get(slabId(newAddress)).buffer.duplicate();
+		target.position(offset(newAddress));
+		target.put(buffer);
+		return newAddress;
+	}
+
+	private synchronized long allocate(final int recordLength) {
+		if (recordLength > slabSize) {
+			// large values get their own slab, the current slab stays
+			final Slab slab = newSlab(recordLength);
+			slab.position = recordLength;
+			slab.live = recordLength;
+			return address(slab.id, 0);
+		}
+		if (current == null || current.position + recordLength > slabSize) {
+			final Slab old = current;
+			current = newSlab(slabSize);
+			if (old != null && old.live == 0) {
+				slabs.remove(old.id);
+			}
+		}
+		final long address = address(current.id, current.position);
+		current.position += recordLength;
+		current.live += recordLength;
+		return address;
+	}
+
+	private Slab newSlab(final int size) {
+		final Slab slab = new Slab(nextSlabId++, size);
+		slabs.put(slab.id, slab);
+		return slab;
+	}
+
+	private synchronized void free(final long address) {
+		final Slab slab = slabs.get(slabId(address));
+		if (slab == null) {
+			// already compacted
+			return;
+		}
+		slab.live -= RECORD_HEADER_SIZE + slab.buffer.getInt(offset(address));
+		if (slab.live == 0 && slab != current) {
+			slabs.remove(slab.id);
+		}
+	}
+
+	private static long address(final int slabId, final int offset) {
+		return ((long) slabId << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private static int slabId(final long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offset(final long address) {
+		return (int) address;
+	}
+}
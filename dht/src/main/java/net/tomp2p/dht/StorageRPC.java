@@ -16,10 +16,14 @@
 
 package net.tomp2p.dht;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -36,13 +40,17 @@ import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.connection.Responder;
 import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
 import net.tomp2p.message.DataMap;
 import net.tomp2p.message.KeyCollection;
 import net.tomp2p.message.KeyMap640Keys;
 import net.tomp2p.message.KeyMapByte;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
+import net.tomp2p.message.NeighborSet;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
@@ -73,9 +81,17 @@ public class StorageRPC extends DispatchHandler {
     private static final Logger LOG = LoggerFactory.getLogger(StorageRPC.class);
     private static final Random RND = new Random();
 
+    // a digest request with this byte in its first buffer gets the digest in the format of Number640Codec
+    private static final byte DIGEST_FORMAT_COMPACT = 1;
+    // the requester only wants the digest summary of the whole location and domain
+    private static final byte DIGEST_FORMAT_SUMMARY = 2;
+
     private final BloomfilterFactory factory;
     private final StorageLayer storageLayer;
     private ReplicationListener replicationListener = null;
+    private volatile HintedHandoff hintedHandoff = null;
+    private volatile NearCacheRPC nearCacheRPC = null;
+    private volatile boolean durableReplies = false;
 
     /**
      * Register the store rpc for put, compare put, get, add, and remove.
@@ -108,7 +124,50 @@ public class StorageRPC extends DispatchHandler {
     	this.replicationListener = replicationListener;
     	return this;
     }
+
+    /**
+     * @param durableReplies
+     *            True if the reply to a request that changes the storage is sent once the change is durable. This only
+     *            makes a difference for a {@link DurableStorage} that commits in batches.
+     * @return This class
+     */
+    public StorageRPC durableReplies(boolean durableReplies) {
+    	this.durableReplies = durableReplies;
+    	return this;
+    }
+
+    public boolean durableReplies() {
+    	return durableReplies;
+    }
     
+    /**
+     * @param hintedHandoff
+     *            Keeps the hints of puts that were stored here in place of an unreachable replica, null to ignore hints
+     * @return This class
+     */
+    public StorageRPC hintedHandoff(HintedHandoff hintedHandoff) {
+    	this.hintedHandoff = hintedHandoff;
+    	return this;
+    }
+
+    public HintedHandoff hintedHandoff() {
+    	return hintedHandoff;
+    }
+
+    /**
+     * @param nearCacheRPC
+     *            Sends invalidations to the peers that cache values stored here, null to not send any
+     * @return This class
+     */
+    public StorageRPC nearCacheRPC(NearCacheRPC nearCacheRPC) {
+    	this.nearCacheRPC = nearCacheRPC;
+    	return this;
+    }
+
+    public NearCacheRPC nearCacheRPC() {
+    	return nearCacheRPC;
+    }
+
     public ReplicationListener replicationListener() {
     	return replicationListener;
     }
@@ -143,7 +202,27 @@ public class StorageRPC extends DispatchHandler {
     public FutureResponse put(final PeerAddress remotePeer, final PutBuilder putBuilder,
             final ChannelClient channelCreator) {
         final Type request = putBuilder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
-        return put(remotePeer, putBuilder, request, RPC.Commands.PUT, channelCreator);
+        return put(remotePeer, putBuilder, request, RPC.Commands.PUT, null, channelCreator);
+    }
+
+    /**
+     * Stores data on a remote peer in place of a replica that could not be reached. The remote peer keeps a hint and
+     * forwards the data to the replica once it is reachable again, see {@link HintedHandoff}.
+     * 
+     * @param remotePeer
+     *            The peer that stores the data in place of the replica
+     * @param putBuilder
+     *            The put builder
+     * @param hint
+     *            The replica that could not be reached
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that stores which content keys have been stored.
+     */
+    public FutureResponse putHinted(final PeerAddress remotePeer, final PutBuilder putBuilder, final PeerAddress hint,
+            final ChannelClient channelCreator) {
+        final Type request = putBuilder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
+        return put(remotePeer, putBuilder, request, RPC.Commands.PUT, hint, channelCreator);
     }
 
     /**
@@ -181,7 +260,7 @@ public class StorageRPC extends DispatchHandler {
         } else {
             request = Type.REQUEST_3;
         }
-        return put(remotePeer, putBuilder, request, RPC.Commands.PUT, channelCreator);
+        return put(remotePeer, putBuilder, request, RPC.Commands.PUT, null, channelCreator);
     }
 
     /**
@@ -213,11 +292,11 @@ public class StorageRPC extends DispatchHandler {
     
     public FutureResponse putReplica(PeerAddress remotePeer, PutBuilder putBuilder,
 			ChannelClient channelCreator) {
-		return put(remotePeer, putBuilder, Type.REQUEST_1, RPC.Commands.REPLICA_PUT, channelCreator);
+		return put(remotePeer, putBuilder, Type.REQUEST_1, RPC.Commands.REPLICA_PUT, null, channelCreator);
 	}
     
     private FutureResponse put(final PeerAddress remotePeer, final PutBuilder putBuilder, final Type type, final RPC.Commands rpcCommand,
-            final ChannelClient channelCreator) {
+            final PeerAddress hint, final ChannelClient channelCreator) {
 
         Utils.nullCheck(remotePeer);
 
@@ -236,6 +315,9 @@ public class StorageRPC extends DispatchHandler {
         }
 
         message.setDataMap(dataMap);
+        if (hint != null) {
+            message.neighborsSet(new NeighborSet(-1, Collections.singleton(hint)));
+        }
 
         final FutureResponse futureResponse = new FutureResponse(message);
         final RequestHandler request = new RequestHandler(futureResponse,
@@ -442,6 +524,9 @@ public class StorageRPC extends DispatchHandler {
         if (getBuilder.isSign()) {
             message.publicKeyAndSign(getBuilder.keyPair());
         }
+        if (command == RPC.Commands.DIGEST.getNr()) {
+            message.buffer(getBuilder.isSummary() ? summaryDigest() : compactDigest());
+        }
 
         if (getBuilder.to() != null && getBuilder.from() != null) {
             final Collection<Number640> keys = new ArrayList<Number640>(2);
@@ -487,6 +572,24 @@ public class StorageRPC extends DispatchHandler {
 
     public FutureResponse get(final PeerAddress remotePeer, final GetBuilder getBuilder,
             final ChannelClient channelCreator) {
+        return get(remotePeer, getBuilder, channelCreator, 0);
+    }
+
+    /**
+     * Gets values and asks for a lease on their location keys, see {@link NearCacheRPC}.
+     *
+     * @param remotePeer
+     *            The remote peer to get the values from
+     * @param getBuilder
+     *            The builder with the keys to get
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @param leaseMillis
+     *            The time the values are cached, 0 if they are not cached
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse get(final PeerAddress remotePeer, final GetBuilder getBuilder,
+            final ChannelClient channelCreator, final long leaseMillis) {
     	final Type type;
         if (getBuilder.isAscending() && getBuilder.isBloomFilterAnd()) {
             type = Type.REQUEST_1;
@@ -504,9 +607,13 @@ public class StorageRPC extends DispatchHandler {
         }
 
         if (getBuilder.to() != null && getBuilder.from() != null) {
-            final Collection<Number640> keys = new ArrayList<Number640>(2);
+            final Collection<Number640> keys = new ArrayList<Number640>(3);
             keys.add(getBuilder.from());
             keys.add(getBuilder.to());
+            if (getBuilder.cursor() != null) {
+                // the page starts after the cursor
+                keys.add(getBuilder.cursor());
+            }
             message.intValue(getBuilder.returnNr());
             message.keyCollection(new KeyCollection(keys));
         } else if (getBuilder.keys() == null) {
@@ -557,6 +664,15 @@ public class StorageRPC extends DispatchHandler {
             message.keyCollection(new KeyCollection(getBuilder.keys()));
         }
 
+        if (getBuilder.valueFilter() != null) {
+            final ByteBuf buf = Unpooled.buffer();
+            getBuilder.valueFilter().encode(buf);
+            message.buffer(new Buffer(buf));
+        }
+        if (leaseMillis > 0) {
+            message.longValue(leaseMillis);
+        }
+
         final FutureResponse futureResponse = new FutureResponse(message);
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), getBuilder);
@@ -567,6 +683,101 @@ public class StorageRPC extends DispatchHandler {
         }
     }
 
+    /**
+     * Gets the values of keys with different location keys from a remote peer in one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to get the data from
+     * @param keys
+     *            The keys to look up
+     * @param builder
+     *            The builder with the connection and signature options
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse with the values that have been found
+     */
+    public FutureResponse getAll(final PeerAddress remotePeer, final Collection<Number640> keys,
+            final DHTBuilder<?> builder, final ChannelClient channelCreator) {
+        final Message message = createMessage(remotePeer, RPC.Commands.GET.getNr(), Type.REQUEST_1);
+        if (builder.isSign()) {
+            message.publicKeyAndSign(builder.keyPair());
+        }
+        // without an int value, the keys are looked up one by one
+        message.keyCollection(new KeyCollection(keys));
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler request = new RequestHandler(futureResponse, peerBean(), connectionBean(), builder);
+        if (!builder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
+    /**
+     * Stores values with different location keys on a remote peer in one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to store the data
+     * @param dataMap
+     *            The values to store
+     * @param builder
+     *            The builder with the connection, signature, and protection options
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that stores which keys have been stored.
+     */
+    public FutureResponse putAll(final PeerAddress remotePeer, final NavigableMap<Number640, Data> dataMap,
+            final DHTBuilder<?> builder, final ChannelClient channelCreator) {
+        Utils.nullCheck(remotePeer);
+        final Type type = builder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
+        final Message message = createMessage(remotePeer, RPC.Commands.PUT.getNr(), type);
+        if (builder.isSign()) {
+            message.publicKeyAndSign(builder.keyPair());
+        }
+        message.setDataMap(new DataMap(dataMap));
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler request = new RequestHandler(futureResponse, peerBean(), connectionBean(), builder);
+        if (!builder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
+    /**
+     * Writes values back to a replica that did not return them, or that missed them while it was unreachable, see
+     * {@link HintedHandoff}. The message is not signed with the key of the sender, the values are sent as they have
+     * been received with the signature and the public key of their owner, which the replica checks for protected
+     * entries. Values in a domain protected by others cannot be repaired this way.
+     * 
+     * @param remotePeer
+     *            The replica to repair
+     * @param dataMap
+     *            The values as received from the other replicas or as stored
+     * @param putIfAbsent
+     *            Set to true to store the values only if absent, so that a value written in the meantime is not
+     *            replaced
+     * @param builder
+     *            The builder of the get or put, only used for the connection settings
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that stores which keys have been stored
+     */
+    public FutureResponse putRepair(final PeerAddress remotePeer, final NavigableMap<Number640, Data> dataMap,
+            final boolean putIfAbsent, final DHTBuilder<?> builder, final ChannelClient channelCreator) {
+        Utils.nullCheck(remotePeer);
+        final Message message = createMessage(remotePeer, RPC.Commands.PUT.getNr(),
+                putIfAbsent ? Type.REQUEST_3 : Type.REQUEST_1);
+        message.setDataMap(new DataMap(dataMap));
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler request = new RequestHandler(futureResponse, peerBean(), connectionBean(), builder);
+        if (!builder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
 	public FutureResponse getLatest(final PeerAddress remotePeer, final GetBuilder getBuilder,
 			final ChannelClient channelCreator, final RPC.Commands command) {
 		final Type type = Type.REQUEST_1;
@@ -579,6 +790,9 @@ public class StorageRPC extends DispatchHandler {
 		message.key(getBuilder.locationKey());
 		message.key(getBuilder.domainKey());
 		message.key(getBuilder.contentKey());
+		if (command == RPC.Commands.GET_LATEST_WITH_DIGEST) {
+			message.buffer(compactDigest());
+		}
 
 		final FutureResponse futureResponse = new FutureResponse(message);
 		final RequestHandler request = new RequestHandler(futureResponse,
@@ -656,7 +870,7 @@ public class StorageRPC extends DispatchHandler {
 
     @Override
     public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign,
-            Responder responder) throws Exception {
+            final Responder responder) throws Exception {
 
     	final Message responseMessage = createResponseMessage(message, Type.OK);
 
@@ -688,10 +902,32 @@ public class StorageRPC extends DispatchHandler {
         if (sign) {
             responseMessage.publicKeyAndSign(peerBean().keyPair());
         }
+        if (durableReplies && isModification(message)) {
+            storageLayer.durable().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+                @Override
+                public void operationComplete(final FutureDone<Void> future) throws Exception {
+                    if (future.isSuccess()) {
+                        LOG.debug("response for durable storage request: {}", responseMessage);
+                        responder.response(responseMessage);
+                    } else {
+                        LOG.warn("storage request is not durable: {}", future.failedReason());
+                        responder.response(createResponseMessage(message, Type.EXCEPTION));
+                    }
+                }
+            });
+            return;
+        }
         LOG.debug("response for storage request: {}", responseMessage);
         responder.response(responseMessage);
     }
 
+    private boolean isModification(final Message message) {
+        final byte command = message.command();
+        return command == RPC.Commands.ADD.getNr() || command == RPC.Commands.PUT.getNr()
+                || command == RPC.Commands.REPLICA_PUT.getNr() || command == RPC.Commands.PUT_CONFIRM.getNr()
+                || command == RPC.Commands.REMOVE.getNr() || command == RPC.Commands.PUT_META.getNr();
+    }
+
     private boolean isReplicaPut(final Message message) {
         return message.command() == RPC.Commands.REPLICA_PUT.getNr();
     }
@@ -748,6 +984,24 @@ public class StorageRPC extends DispatchHandler {
         responseMessage.keyMapByte(new KeyMapByte(result));
     }
 
+    /**
+     * @return The values grouped by location key, each group in key order
+     */
+    private static Collection<NavigableMap<Number640, Data>> splitByLocationKey(
+            final NavigableMap<Number640, Data> dataMap) {
+        final Collection<NavigableMap<Number640, Data>> retVal = new ArrayList<NavigableMap<Number640, Data>>();
+        NavigableMap<Number640, Data> current = null;
+        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            // sorted, so the keys of a location key are next to each other
+            if (current == null || !current.firstKey().locationKey().equals(entry.getKey().locationKey())) {
+                current = new TreeMap<Number640, Data>();
+                retVal.add(current);
+            }
+            current.put(entry.getKey(), entry.getValue());
+        }
+        return retVal;
+    }
+
     private Message handlePut(final Message message, final Message responseMessage,
             final boolean putIfAbsent, final boolean protectDomain, final boolean replicaPut) throws IOException {
     	LOG.debug("handlePut {}", message);
@@ -756,8 +1010,11 @@ public class StorageRPC extends DispatchHandler {
         final int dataSize = toStore.size();
         final Map<Number640, Byte> result = new HashMap<Number640, Byte>(dataSize);
         
-        Map<Number640, Enum<?>> storeRes = 
-        		storageLayer.putAll(toStore.dataMap(), publicKey, putIfAbsent, protectDomain, message.isSendSelf());
+        // a batch spans many location keys, one put over all of them would lock the range from the first to the last
+        final Map<Number640, Enum<?>> storeRes = new HashMap<Number640, Enum<?>>(dataSize);
+        for (NavigableMap<Number640, Data> dataMap : splitByLocationKey(toStore.dataMap())) {
+        	storeRes.putAll(storageLayer.putAll(dataMap, publicKey, putIfAbsent, protectDomain, message.isSendSelf()));
+        }
         
         Set<Number160> affectedKeys = new HashSet<Number160>();
         for (Map.Entry<Number640, Enum<?>> entry : storeRes.entrySet()) {
@@ -773,6 +1030,24 @@ public class StorageRPC extends DispatchHandler {
         		replicationListener.dataInserted(locationKey);
         	}
         }
+        for (Number160 locationKey : affectedKeys) {
+        	notifyNearCache(locationKey);
+        }
+
+        final NeighborSet hints = message.neighborsSet(0);
+        final HintedHandoff hintedHandoff = this.hintedHandoff;
+        // the forward cannot be signed by the owner of a domain, so the replication takes care of protected domains
+        if (hints != null && hintedHandoff != null && !protectDomain) {
+        	final Collection<Number640> stored = new ArrayList<Number640>(storeRes.size());
+        	for (Map.Entry<Number640, Enum<?>> entry : storeRes.entrySet()) {
+        		if (entry.getValue() == PutStatus.OK || entry.getValue() == PutStatus.VERSION_FORK) {
+        			stored.add(entry.getKey());
+        		}
+        	}
+        	for (PeerAddress hint : hints.neighbors()) {
+        		hintedHandoff.addHint(hint, stored, publicKey);
+        	}
+        }
 
         responseMessage.type(result.size() == dataSize ? Type.OK : Type.PARTIALLY_OK);
         responseMessage.keyMapByte(new KeyMapByte(result));
@@ -794,6 +1069,9 @@ public class StorageRPC extends DispatchHandler {
         			&& replicationListener != null) {
         		replicationListener.dataInserted(entry.getKey().locationKey());
         	}
+			if (status == PutStatus.OK || status == PutStatus.VERSION_FORK) {
+				notifyNearCache(entry.getKey().locationKey());
+			}
 		}
 		
 		responseMessage.type(result.size() == dataSize ? Type.OK : Type.PARTIALLY_OK);
@@ -823,6 +1101,9 @@ public class StorageRPC extends DispatchHandler {
             	if (status == PutStatus.OK && replicationListener!=null) {
             		replicationListener.dataInserted(entry.getKey().locationKey());
             	}
+            	if (status == PutStatus.OK) {
+            		notifyNearCache(entry.getKey().locationKey());
+            	}
             }
         }
         responseMessage.keyMapByte(new KeyMapByte(result));
@@ -861,22 +1142,50 @@ public class StorageRPC extends DispatchHandler {
         final boolean isRange = contentKeys != null && returnNr != null;
         final boolean isCollection = contentKeys != null && returnNr == null;
         final boolean isBloomFilterAnd = isBloomFilterAnd(message);
+        final ValueFilter valueFilter = valueFilter(message);
+        final Long leaseMillis = message.longAt(0);
+        final NearCacheRPC nearCacheRPC = this.nearCacheRPC;
+        // leased before the read, so that a change after the read is not missed
+        final Collection<Number160> leased;
+        if (leaseMillis != null && nearCacheRPC != null && isCollection) {
+            leased = nearCacheRPC.lease(message.sender(), locationKeys(contentKeys.keys()), leaseMillis);
+        } else {
+            leased = Collections.emptyList();
+        }
         final NavigableMap<Number640, Data> result = doGet(locationKey, domainKey, contentKeys, contentKeyBloomFilter,
-                versionBloomFilter, contentBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
+                versionBloomFilter, contentBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd,
+                valueFilter);
+        if (!leased.isEmpty()) {
+            // no lease for location keys that are not stored here
+            final Collection<Number160> notStored = new ArrayList<Number160>(leased);
+            notStored.removeAll(locationKeys(result.keySet()));
+            nearCacheRPC.release(message.sender(), notStored);
+        }
         responseMessage.setDataMap(new DataMap(result));
         return responseMessage;
     }
 
+    private static Set<Number160> locationKeys(final Collection<Number640> keys) {
+        final Set<Number160> locationKeys = new HashSet<Number160>();
+        for (Number640 key : keys) {
+            locationKeys.add(key.locationKey());
+        }
+        return locationKeys;
+    }
+
 	private NavigableMap<Number640, Data> doGet(final Number160 locationKey, final Number160 domainKey,
             final KeyCollection contentKeys, final SimpleBloomFilter<Number160> contentKeyBloomFilter,
             final SimpleBloomFilter<Number160> versionBloomFilter, final SimpleBloomFilter<Number160> contentBloomFilter, 
             final int limit, final boolean ascending, final boolean isRange, final boolean isCollection, 
-            final boolean isBloomFilterAnd) {
+            final boolean isBloomFilterAnd, final ValueFilter valueFilter) {
 	    final NavigableMap<Number640, Data> result;
         if (isCollection) {
             result = new TreeMap<Number640, Data>();
             for (Number640 key : contentKeys.keys()) {
                 Data data = storageLayer.get(key);
+                if (data != null && valueFilter != null) {
+                    data = valueFilter.apply(data);
+                }
                 if (data != null) {
                     result.put(key, data);
                 }
@@ -886,25 +1195,128 @@ public class StorageRPC extends DispatchHandler {
             Iterator<Number640> iterator = contentKeys.keys().iterator();
             Number640 min = iterator.next();
             Number640 max = iterator.next();
-            result = storageLayer.get(min, max, limit, ascending);
+            Number640 cursor = iterator.hasNext() ? iterator.next() : null;
+            result = storageLayer.getPage(min, max, cursor, limit, ascending, valueFilter);
 
         } else if (contentKeyBloomFilter != null && versionBloomFilter != null && contentBloomFilter !=null
         		&& (!contentKeyBloomFilter.isFull() || !versionBloomFilter.isFull() || !contentBloomFilter.isFull())) {
             Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
             Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
             result = storageLayer.get(min, max, contentKeyBloomFilter, versionBloomFilter, contentBloomFilter, limit, ascending, isBloomFilterAnd);
+            if (valueFilter != null) {
+                for (Iterator<Map.Entry<Number640, Data>> iterator = result.entrySet().iterator(); iterator.hasNext();) {
+                    final Map.Entry<Number640, Data> entry = iterator.next();
+                    final Data data = valueFilter.apply(entry.getValue());
+                    if (data == null) {
+                        iterator.remove();
+                    } else {
+                        entry.setValue(data);
+                    }
+                }
+            }
         } else {
             // get all
             Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
             Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
-            result = storageLayer.get(min, max, limit, ascending);
+            result = storageLayer.get(min, max, limit, ascending, valueFilter);
         }
 	    return result;
     }
 
+    /**
+     * @return The filter that is sent with a get, or null if the whole values are requested
+     */
+    private static ValueFilter valueFilter(final Message message) {
+        if (message.buffer(0) == null) {
+            return null;
+        }
+        return ValueFilters.decode(message.buffer(0).buffer());
+    }
+
+    /**
+     * @return The buffer that asks for a digest in the format of {@link Number640Codec}
+     */
+    private static Buffer compactDigest() {
+        return new Buffer(Unpooled.wrappedBuffer(new byte[] { DIGEST_FORMAT_COMPACT }));
+    }
+
+    private static boolean isCompactDigest(final Message request) {
+        return digestFormat(request) == DIGEST_FORMAT_COMPACT;
+    }
+
+    /**
+     * @return The buffer that asks for the digest summary only, see {@link StorageLayer#digestSummary(Number320)}
+     */
+    private static Buffer summaryDigest() {
+        return new Buffer(Unpooled.wrappedBuffer(new byte[] { DIGEST_FORMAT_SUMMARY }));
+    }
+
+    private static boolean isSummaryDigest(final Message request) {
+        return digestFormat(request) == DIGEST_FORMAT_SUMMARY;
+    }
+
+    private static int digestFormat(final Message request) {
+        final Buffer buffer = request.buffer(0);
+        if (buffer == null || buffer.buffer().readableBytes() == 0) {
+            return -1;
+        }
+        return buffer.buffer().getByte(buffer.buffer().readerIndex());
+    }
+
+    /**
+     * @param message
+     *            The response to a digest request for the summary
+     * @return The digest summary, or null if the peer answered with the digest of every entry
+     */
+    static DigestInfo digestSummary(final Message message) {
+        final Number160 keyDigest = message.key(0);
+        final Number160 contentDigest = message.key(1);
+        final Integer size = message.intAt(0);
+        if (keyDigest == null || contentDigest == null || size == null) {
+            return null;
+        }
+        return new DigestInfo(keyDigest, contentDigest, size);
+    }
+
+    /**
+     * Adds the digest to the response, in the format of {@link Number640Codec} if the requester asked for it, and as
+     * a key map for peers that do not know that format.
+     */
+    private static void encodeDigest(final Message request, final Message responseMessage,
+            final NavigableMap<Number640, Collection<Number160>> digest) {
+        if (isCompactDigest(request)) {
+            final ByteBuf buf = Unpooled.buffer();
+            Number640Codec.encodeDigest(digest, buf);
+            responseMessage.buffer(new Buffer(buf));
+        } else {
+            responseMessage.keyMap640Keys(new KeyMap640Keys(digest));
+        }
+    }
+
+    /**
+     * @param message
+     *            The response to a digest or to a get with digest
+     * @return The digest, or null if the response does not contain one
+     */
+    static NavigableMap<Number640, Collection<Number160>> digest(final Message message) {
+        if (message.buffer(0) != null) {
+            return Number640Codec.decodeDigest(message.buffer(0).buffer());
+        }
+        // a peer that ignored the request for the compact format
+        final KeyMap640Keys keyMaps = message.keyMap640Keys(0);
+        if (keyMaps == null) {
+            return null;
+        }
+        return keyMaps.keysMap();
+    }
+
 	private Message handleGetLatest(final Message message, final Message responseMessage,
 			final boolean withDigest) {
 		LOG.debug("handleGetLatest {}", message);
+		if (message.buffer(0) != null) {
+			// a value filter is not supported for the latest version
+			throw new IllegalArgumentException("Message content is wrong");
+		}
 		final Number160 locationKey = message.key(0);
 		final Number160 domainKey = message.key(1);
 		final Number160 contentKey = message.key(2);
@@ -915,7 +1327,7 @@ public class StorageRPC extends DispatchHandler {
 
 		if (withDigest) {
 			final DigestInfo digestInfo = storageLayer.digest(key.minVersionKey(), key.maxVersionKey(), -1, true);
-			responseMessage.keyMap640Keys(new KeyMap640Keys(digestInfo.digests()));
+			encodeDigest(message, responseMessage, digestInfo.digests());
 		}
 
 		return responseMessage;
@@ -940,7 +1352,8 @@ public class StorageRPC extends DispatchHandler {
         final boolean isReturnMetaValues = message.command() == RPC.Commands.DIGEST_META_VALUES.getNr();
         if(isReturnMetaValues || isReturnAllBloomfilter) {
         	final NavigableMap<Number640, Data> result = doGet(locationKey, domainKey, contentKeys, contentKeyBloomFilter,
-                    versionBloomFilter, contentBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
+                    versionBloomFilter, contentBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd,
+                    null);
         	if(!isReturnAllBloomfilter) {
         		DataMap dataMap = new DataMap(result, true);
         		responseMessage.setDataMap(dataMap);
@@ -958,6 +1371,13 @@ public class StorageRPC extends DispatchHandler {
                 responseMessage.bloomFilter(sbfVersion);
                 responseMessage.bloomFilter(sbfContent);
         	}
+        } else if (isSummaryDigest(message) && locationKey != null && domainKey != null && contentKeys == null
+                && contentKeyBloomFilter == null && versionBloomFilter == null && limit == -1) {
+            // maintained on every change, the entries are not read
+            final DigestInfo summary = storageLayer.digestSummary(new Number320(locationKey, domainKey));
+            responseMessage.key(summary.keyDigest());
+            responseMessage.key(summary.contentDigest());
+            responseMessage.intValue(summary.size());
         } else {
         	final DigestInfo digestInfo = doDigest(locationKey, domainKey, contentKeys, contentKeyBloomFilter,
         			versionBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
@@ -973,7 +1393,7 @@ public class StorageRPC extends DispatchHandler {
                 responseMessage.bloomFilter(sbfVersion);
                 responseMessage.bloomFilter(FULL_FILTER);
             } else {
-                responseMessage.keyMap640Keys(new KeyMap640Keys(digestInfo.digests()));
+                encodeDigest(message, responseMessage, digestInfo.digests());
             }
         }
         return responseMessage;
@@ -1086,5 +1506,15 @@ public class StorageRPC extends DispatchHandler {
 		if (status == PutStatus.OK && replicationListener!=null) {
 			replicationListener.dataRemoved(locationKey);
 		}
+		if (status == PutStatus.OK) {
+			notifyNearCache(locationKey);
+		}
     }
+
+	private void notifyNearCache(Number160 locationKey) {
+		final NearCacheRPC nearCacheRPC = this.nearCacheRPC;
+		if (nearCacheRPC != null) {
+			nearCacheRPC.changed(locationKey);
+		}
+	}
 }
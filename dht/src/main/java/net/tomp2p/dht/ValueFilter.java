@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+
+import net.tomp2p.storage.Data;
+
+/**
+ * A filter and projection that is sent with a get and evaluated on the responsible peers, so that only the values the
+ * caller needs are returned, see {@link GetBuilder#valueFilter(ValueFilter)}. Only the built-in filters of
+ * {@link ValueFilters} can be sent, they are encoded as an opcode with their arguments and decoded with
+ * {@link ValueFilters#decode(ByteBuf)}, so a remote peer cannot make a responsible peer run its own code.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface ValueFilter {
+    /**
+     * @param data
+     *            The stored value, must not be modified
+     * @return The value to return, a projection of the value, or null if the value does not match
+     */
+    Data apply(Data data);
+
+    /**
+     * @param buf
+     *            The buffer to write the opcode and the arguments of this filter to
+     */
+    void encode(ByteBuf buf);
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+import net.tomp2p.peers.Number256;
+import net.tomp2p.storage.Data;
+
+/**
+ * The built-in {@link ValueFilter}s. These are the only filters that can be sent to other peers. A filter is encoded
+ * as a one byte opcode followed by its arguments: a prefix as an unsigned short length and the bytes, maxBytes as an
+ * int, metaOnly without arguments, and and() as an unsigned byte count followed by the nested filters.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class ValueFilters {
+
+    public static final int MAX_PREFIX_LENGTH = 0xffff;
+    public static final int MAX_FILTERS = 16;
+    public static final int MAX_DEPTH = 4;
+
+    private static final byte OP_PREFIX = 1;
+    private static final byte OP_MAX_BYTES = 2;
+    private static final byte OP_META_ONLY = 3;
+    private static final byte OP_AND = 4;
+
+    private ValueFilters() {
+    }
+
+    /**
+     * @param prefix
+     *            The bytes a value has to start with
+     * @return A filter that returns only the values that start with the prefix
+     */
+    public static ValueFilter prefix(final byte[] prefix) {
+        if (prefix.length > MAX_PREFIX_LENGTH) {
+            throw new IllegalArgumentException("prefix too long: " + prefix.length);
+        }
+        return new Prefix(prefix);
+    }
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes returned per value
+     * @return A projection that cuts longer values, a cut value is not signed anymore
+     */
+    public static ValueFilter maxBytes(final int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes cannot be negative");
+        }
+        return new MaxBytes(maxBytes);
+    }
+
+    /**
+     * @return A projection that returns the meta data (TTL, public key, signature and version keys) without the value
+     */
+    public static ValueFilter metaOnly() {
+        return new MetaOnly();
+    }
+
+    /**
+     * @param filters
+     *            The built-in filters that are applied one after the other, at most {@link #MAX_FILTERS}, nested at
+     *            most {@link #MAX_DEPTH} deep
+     * @return A filter that returns a value only if all filters return it
+     */
+    public static ValueFilter and(final ValueFilter... filters) {
+        if (filters.length > MAX_FILTERS) {
+            throw new IllegalArgumentException("too many filters: " + filters.length);
+        }
+        for (ValueFilter filter : filters) {
+            checkBuiltIn(filter);
+        }
+        final And and = new And(filters);
+        if (and.depth() > MAX_DEPTH) {
+            throw new IllegalArgumentException("filters nested too deep");
+        }
+        return and;
+    }
+
+    /**
+     * @param filter
+     *            The filter to check
+     * @throws IllegalArgumentException
+     *             If the filter is not one of the built-in filters and cannot be sent
+     */
+    public static void checkBuiltIn(final ValueFilter filter) {
+        if (!(filter instanceof Prefix || filter instanceof MaxBytes || filter instanceof MetaOnly
+                || filter instanceof And)) {
+            throw new IllegalArgumentException("only the filters of ValueFilters can be sent: " + filter);
+        }
+    }
+
+    /**
+     * Decodes a filter that has been encoded with {@link ValueFilter#encode(ByteBuf)}.
+     *
+     * @param buf
+     *            The buffer to read from
+     * @return The decoded filter
+     * @throws IllegalArgumentException
+     *             If the buffer does not contain a valid filter
+     */
+    public static ValueFilter decode(final ByteBuf buf) {
+        final ValueFilter filter = decode(buf, 0);
+        if (buf.isReadable()) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        return filter;
+    }
+
+    private static ValueFilter decode(final ByteBuf buf, final int depth) {
+        if (depth > MAX_DEPTH || buf.readableBytes() < 1) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        switch (buf.readByte()) {
+        case OP_PREFIX:
+            if (buf.readableBytes() < 2) {
+                throw new IllegalArgumentException("Message content is wrong");
+            }
+            final int length = buf.readUnsignedShort();
+            if (buf.readableBytes() < length) {
+                throw new IllegalArgumentException("Message content is wrong");
+            }
+            final byte[] prefix = new byte[length];
+            buf.readBytes(prefix);
+            return new Prefix(prefix);
+        case OP_MAX_BYTES:
+            if (buf.readableBytes() < 4) {
+                throw new IllegalArgumentException("Message content is wrong");
+            }
+            final int maxBytes = buf.readInt();
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException("Message content is wrong");
+            }
+            return new MaxBytes(maxBytes);
+        case OP_META_ONLY:
+            return new MetaOnly();
+        case OP_AND:
+            if (buf.readableBytes() < 1) {
+                throw new IllegalArgumentException("Message content is wrong");
+            }
+            final int nrFilters = buf.readUnsignedByte();
+            if (nrFilters > MAX_FILTERS) {
+                throw new IllegalArgumentException("Message content is wrong");
+            }
+            final ValueFilter[] filters = new ValueFilter[nrFilters];
+            for (int i = 0; i < nrFilters; i++) {
+                filters[i] = decode(buf, depth + 1);
+            }
+            return new And(filters);
+        default:
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+    }
+
+    private static final class Prefix implements ValueFilter {
+        private final byte[] prefix;
+
+        private Prefix(final byte[] prefix) {
+            this.prefix = Arrays.copyOf(prefix, prefix.length);
+        }
+
+        @Override
+        public Data apply(final Data data) {
+            if (data.length() < prefix.length) {
+                return null;
+            }
+            final ByteBuf buffer = data.buffer();
+            for (int i = 0; i < prefix.length; i++) {
+                if (buffer.getByte(buffer.readerIndex() + i) != prefix[i]) {
+                    return null;
+                }
+            }
+            return data;
+        }
+
+        @Override
+        public void encode(final ByteBuf buf) {
+            buf.writeByte(OP_PREFIX);
+            buf.writeShort(prefix.length);
+            buf.writeBytes(prefix);
+        }
+    }
+
+    private static final class MaxBytes implements ValueFilter {
+        private final int maxBytes;
+
+        private MaxBytes(final int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public Data apply(final Data data) {
+            if (data.length() <= maxBytes) {
+                return data;
+            }
+            final ByteBuf buffer = data.buffer();
+            final Data cut = new Data(buffer.slice(buffer.readerIndex(), maxBytes), maxBytes).ttlSeconds(data
+                    .ttlSeconds());
+            for (Number256 basedOn : data.basedOnSet()) {
+                cut.addBasedOn(basedOn);
+            }
+            return cut;
+        }
+
+        @Override
+        public void encode(final ByteBuf buf) {
+            buf.writeByte(OP_MAX_BYTES);
+            buf.writeInt(maxBytes);
+        }
+    }
+
+    private static final class MetaOnly implements ValueFilter {
+        @Override
+        public Data apply(final Data data) {
+            return data.duplicateMeta();
+        }
+
+        @Override
+        public void encode(final ByteBuf buf) {
+            buf.writeByte(OP_META_ONLY);
+        }
+    }
+
+    private static final class And implements ValueFilter {
+        private final ValueFilter[] filters;
+
+        private And(final ValueFilter[] filters) {
+            this.filters = Arrays.copyOf(filters, filters.length);
+        }
+
+        private int depth() {
+            int depth = 0;
+            for (ValueFilter filter : filters) {
+                if (filter instanceof And) {
+                    depth = Math.max(depth, ((And) filter).depth());
+                }
+            }
+            return depth + 1;
+        }
+
+        @Override
+        public Data apply(final Data data) {
+            Data retVal = data;
+            for (ValueFilter filter : filters) {
+                retVal = filter.apply(retVal);
+                if (retVal == null) {
+                    return null;
+                }
+            }
+            return retVal;
+        }
+
+        @Override
+        public void encode(final ByteBuf buf) {
+            buf.writeByte(OP_AND);
+            buf.writeByte(filters.length);
+            for (ValueFilter filter : filters) {
+                filter.encode(buf);
+            }
+        }
+    }
+}
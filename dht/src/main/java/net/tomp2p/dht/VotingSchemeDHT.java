@@ -119,6 +119,73 @@ public class VotingSchemeDHT implements EvaluatingSchemeDHT {
         return result;
     }
 
+    /**
+     * Finds the replicas that need a read-repair. A key is written back to a replica that did not return it, if more
+     * than half of the replicas that replied returned it with the same value. The key is not written back if the
+     * replica returned a newer version of the same content key, or if the replicas returned different values for the
+     * key. The value does not tell when it has been written, so the newer one cannot be told apart and a newer write
+     * that only reached some replicas would be reverted.
+     * 
+     * @param rawData
+     *            The data that has been received with information from which peer it has been received
+     * @param responders
+     *            All peers that replied, including those that did not have any data
+     * @return The values to write back as they have been received, with the signature of their owner, per stale
+     *         replica
+     */
+    public static Map<PeerAddress, Map<Number640, Data>> readRepair(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Collection<PeerAddress> responders) {
+        final Map<Number640, Data> values = new HashMap<Number640, Data>();
+        final Map<Number640, Integer> counter = new HashMap<Number640, Integer>();
+        final Set<Number640> conflicts = new HashSet<Number640>();
+        for (Map<Number640, Data> data : rawData.values()) {
+            for (Map.Entry<Number640, Data> entry : data.entrySet()) {
+                final Data value = values.get(entry.getKey());
+                if (value == null) {
+                    values.put(entry.getKey(), entry.getValue());
+                } else if (!value.hash().equals(entry.getValue().hash())) {
+                    conflicts.add(entry.getKey());
+                }
+                final Integer count = counter.get(entry.getKey());
+                counter.put(entry.getKey(), count == null ? 1 : count + 1);
+            }
+        }
+        final Map<PeerAddress, Map<Number640, Data>> result = new HashMap<PeerAddress, Map<Number640, Data>>();
+        for (Map.Entry<Number640, Data> entry : values.entrySet()) {
+            final Number640 key = entry.getKey();
+            // without a majority, e.g., if most replicas removed the key, we cannot tell which replicas are right
+            if (conflicts.contains(key) || counter.get(key) * 2 <= responders.size()) {
+                continue;
+            }
+            for (PeerAddress peerAddress : responders) {
+                final Map<Number640, Data> stored = rawData.get(peerAddress);
+                if (stored != null && (stored.containsKey(key) || hasNewerVersion(stored, key))) {
+                    continue;
+                }
+                Map<Number640, Data> repair = result.get(peerAddress);
+                if (repair == null) {
+                    repair = new TreeMap<Number640, Data>();
+                    result.put(peerAddress, repair);
+                }
+                repair.put(key, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return True if the keys have a version of the content key of the key that is newer than the version of the key
+     */
+    private static boolean hasNewerVersion(final Map<Number640, Data> stored, final Number640 key) {
+        for (Number640 storedKey : stored.keySet()) {
+            if (storedKey.locationAndDomainAndContentKey().equals(key.locationAndDomainAndContentKey())
+                    && storedKey.versionKey().timestamp() > key.versionKey().timestamp()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Object evaluate3(Map<PeerAddress, Object> rawKeys) {
         return evaluate0(rawKeys);
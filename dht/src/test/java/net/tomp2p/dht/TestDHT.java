@@ -12,11 +12,15 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
@@ -41,6 +45,7 @@ import net.tomp2p.futures.FutureDirect;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureDoneAttachment;
 import net.tomp2p.futures.FuturePeerConnection;
+import net.tomp2p.futures.FutureProgres;
 import net.tomp2p.message.Buffer;
 import net.tomp2p.p2p.AutomaticFuture;
 import net.tomp2p.p2p.Peer;
@@ -55,6 +60,7 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
 import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.rpc.ObjectDataReply;
 import net.tomp2p.rpc.RawDataReply;
@@ -267,6 +273,420 @@ public class TestDHT {
 		}
 	}
 
+	@Test
+	public void testPutAllGetAll() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			// only the master knows every peer, the responsible peers have to be found by routing
+			for (PeerDHT peer : peers) {
+				master.peerBean().peerMap().peerFound(peer.peerAddress(), null, null, null);
+				peer.peerBean().peerMap().peerFound(master.peerAddress(), null, null, null);
+			}
+			// do testing
+			NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+			for (int i = 0; i < 1000; i++) {
+				dataMap.put(new Number640(new Number160(rnd), Number160.ZERO, Number160.ZERO, Number160.ZERO),
+				        new Data(i));
+			}
+			FutureBatch<Integer> fp = peers[44].putAll(dataMap).batchSize(100).start();
+			fp.awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			Assert.assertEquals(1000, fp.results().size());
+			for (Number640 key : dataMap.keySet()) {
+				TreeMap<PeerAddress, PeerDHT> closest = new TreeMap<PeerAddress, PeerDHT>(
+				        PeerMap.createXORAddressComparator(key.locationKey()));
+				for (PeerDHT peer : peers) {
+					closest.put(peer.peerAddress(), peer);
+				}
+				Assert.assertNotNull(closest.firstEntry().getValue().storageLayer().get(key));
+			}
+
+			FutureBatch<Data> fg = peers[55].getAll(dataMap.keySet()).batchSize(100).parallel(2).start();
+			// consume the stream while the batch is running
+			int streamed = 0;
+			FutureProgres<Map<Number640, Data>> progres = fg.progres();
+			while (true) {
+				progres.awaitUninterruptibly();
+				if (progres.object().isEmpty()) {
+					break;
+				}
+				streamed += progres.object().size();
+				progres = progres.next();
+			}
+			fg.awaitUninterruptibly();
+			Assert.assertEquals(true, fg.isSuccess());
+			Assert.assertEquals(1000, fg.results().size());
+			Assert.assertEquals(1000, streamed);
+			for (Entry<Number640, Data> entry : dataMap.entrySet()) {
+				Assert.assertEquals(entry.getValue(), fg.results().get(entry.getKey()));
+			}
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testReadRepair() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			Number160 locationKey = peers[30].peerID();
+			RequestP2PConfiguration pc = new RequestP2PConfiguration(3, 5, 0);
+			FuturePut fp = peers[44].put(locationKey).data(new Data("repair")).requestP2PConfiguration(pc).start();
+			fp.awaitUninterruptibly();
+			fp.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			// the third closest replica loses the value
+			TreeMap<PeerAddress, Integer> tmp = new TreeMap<PeerAddress, Integer>(
+			        PeerMap.createXORAddressComparator(locationKey));
+			for (int i = 0; i < peers.length; i++) {
+				tmp.put(peers[i].peerAddress(), i);
+			}
+			PeerDHT closest = peers[tmp.pollFirstEntry().getValue()];
+			tmp.pollFirstEntry();
+			PeerDHT stale = peers[tmp.pollFirstEntry().getValue()];
+			Number640 key = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			stale.storageLayer().remove(key, null, false);
+			Assert.assertNull(stale.storageLayer().get(key));
+
+			FutureGet fg = peers[55].get(locationKey).readQuorum(3).readRepair().start();
+			fg.awaitUninterruptibly();
+			Assert.assertEquals(true, fg.isSuccess());
+			Assert.assertEquals(3, fg.rawStatus().size());
+			Assert.assertEquals(new Data("repair"), fg.data());
+			fg.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(new Data("repair"), stale.storageLayer().get(key));
+			// a newer value that only reached one replica is not reverted by the others
+			closest.storageLayer().put(key, new Data("newer"), null, false, false, false);
+			fg = peers[55].get(locationKey).readQuorum(3).readRepair().start();
+			fg.awaitUninterruptibly();
+			fg.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(new Data("newer"), closest.storageLayer().get(key));
+			Assert.assertEquals(new Data("repair"), stale.storageLayer().get(key));
+			// a quorum larger than the number of replicas fails
+			fg = peers[55].get(locationKey).readQuorum(200).start();
+			fg.awaitUninterruptibly();
+			Assert.assertEquals(false, fg.isSuccess());
+			// a replica that does not reply neither counts for the majority nor gets a repair
+			locationKey = peers[60].peerID();
+			fp = peers[44].put(locationKey).data(new Data("repair")).requestP2PConfiguration(pc).start();
+			fp.awaitUninterruptibly();
+			fp.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			tmp = new TreeMap<PeerAddress, Integer>(PeerMap.createXORAddressComparator(locationKey));
+			for (int i = 0; i < peers.length; i++) {
+				tmp.put(peers[i].peerAddress(), i);
+			}
+			tmp.pollFirstEntry();
+			tmp.pollFirstEntry();
+			PeerDHT down = peers[tmp.pollFirstEntry().getValue()];
+			PeerDHT fourth = peers[tmp.pollFirstEntry().getValue()];
+			down.shutdown().awaitUninterruptibly();
+			key = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Assert.assertNull(fourth.storageLayer().get(key));
+			fg = peers[55].get(locationKey).readQuorum(3).readRepair().start();
+			fg.awaitUninterruptibly();
+			fg.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(true, fg.isSuccess());
+			Assert.assertEquals((byte) StorageLayer.PutStatus.FAILED.ordinal(),
+			        fg.rawStatus().get(down.peerAddress()).byteValue());
+			// two of the three replicas that replied have the value
+			Assert.assertEquals(new Data("repair"), fourth.storageLayer().get(key));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testHintedHandoff() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(10, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			Number640 key = new Number640(new Number160(rnd), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			peers[1].storageLayer().put(key, new Data("hint"), null, false, false, false);
+			// peer 1 stored the value in place of peer 2
+			HintedHandoff hintedHandoff = peers[1].storeRPC().hintedHandoff();
+			hintedHandoff.addHint(peers[2].peerAddress(), Arrays.asList(key), null);
+			Assert.assertEquals(1, hintedHandoff.hints(peers[2].peerID()));
+			// only firsthand knowledge triggers the handoff
+			Assert.assertFalse(hintedHandoff.peerFound(peers[2].peerAddress(), peers[3].peerAddress(), null));
+			Assert.assertTrue(hintedHandoff.peerFound(peers[2].peerAddress(), null, null));
+			for (int i = 0; i < 100 && hintedHandoff.hints(peers[2].peerID()) > 0; i++) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(0, hintedHandoff.hints(peers[2].peerID()));
+			Assert.assertEquals(new Data("hint"), peers[2].storageLayer().get(key));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testHintedHandoffUnreachable() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			Number160 locationKey = peers[30].peerID();
+			Number640 key = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			// the routing result is cached and still contains peer 30 after it went down
+			FuturePut fp = peers[44].put(locationKey).data(new Data("first")).start();
+			fp.awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			peers[30].shutdown().awaitUninterruptibly();
+			fp = peers[44].put(locationKey).data(new Data("hint")).hintedHandoff().start();
+			fp.awaitUninterruptibly();
+			fp.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			PeerDHT substitute = null;
+			for (PeerDHT peer : peers) {
+				if (peer != peers[30] && peer.storeRPC().hintedHandoff().hints(locationKey) > 0) {
+					substitute = peer;
+				}
+			}
+			Assert.assertNotNull(substitute);
+			Assert.assertEquals(new Data("hint"), substitute.storageLayer().get(key));
+			// peer 30 comes back with the old value and contacts the substitute
+			PeerDHT replica = new PeerBuilderDHT(new PeerBuilder(locationKey).masterPeer(master.peer()).start())
+			        .start();
+			replica.storageLayer().put(key, new Data("first"), null, false, false, false);
+			replica.peer().ping().peerAddress(substitute.peerAddress()).start().awaitUninterruptibly();
+			for (int i = 0; i < 100 && substitute.storeRPC().hintedHandoff().hints(locationKey) > 0; i++) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(0, substitute.storeRPC().hintedHandoff().hints(locationKey));
+			Assert.assertEquals(new Data("hint"), replica.storageLayer().get(key));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testNearCache() throws Exception {
+		PeerDHT master = null;
+		try {
+			NearCache nearCache = new NearCache();
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).nearCache(
+			        nearCache).start();
+			FuturePut fdht = master.put(Number160.ONE).data(new Data("hallo")).start();
+			fdht.awaitUninterruptibly();
+			Assert.assertEquals(true, fdht.isSuccess());
+			// first get goes to the network and fills the cache
+			FutureGet fdht2 = master.get(Number160.ONE).start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(true, fdht2.isSuccess());
+			Assert.assertEquals(1, nearCache.misses());
+			Assert.assertEquals(1, nearCache.size());
+			// second get is served from the cache
+			fdht2 = master.get(Number160.ONE).start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(true, fdht2.isSuccess());
+			Assert.assertEquals(1, nearCache.hits());
+			Assert.assertEquals("hallo", fdht2.data().object().toString());
+			// a put invalidates the cached value
+			fdht = master.put(Number160.ONE).data(new Data("hallo2")).start();
+			fdht.awaitUninterruptibly();
+			Assert.assertEquals(0, nearCache.size());
+			fdht2 = master.get(Number160.ONE).start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(2, nearCache.misses());
+			Assert.assertEquals("hallo2", fdht2.data().object().toString());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testNearCacheRemoteChange() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(10, rnd, 4001);
+			master = peers[0];
+			NearCache nearCache = new NearCache();
+			PeerDHT reader = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).masterPeer(master.peer())
+			        .start()).nearCache(nearCache).start();
+			PeerDHT[] all = Arrays.copyOf(peers, peers.length + 1);
+			all[peers.length] = reader;
+			UtilsDHT2.perfectRouting(all);
+			// do testing
+			Number160 locationKey = new Number160(rnd);
+			FuturePut fp = peers[3].put(locationKey).data(new Data("hallo")).start();
+			fp.awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			FutureGet fg = reader.get(locationKey).start();
+			fg.awaitUninterruptibly();
+			Assert.assertEquals(true, fg.isSuccess());
+			Assert.assertEquals(1, nearCache.size());
+			// the lease was registered with the get, only by the peers that store the value
+			int subscribed = 0;
+			for (PeerDHT peer : peers) {
+				final int subscribers = peer.storeRPC().nearCacheRPC().subscribers(locationKey);
+				if (subscribers > 0) {
+					Assert.assertNotNull(peer.storageLayer().get(
+					        new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO)));
+					subscribed++;
+				}
+			}
+			Assert.assertTrue(subscribed > 0);
+			// another peer changes the value, the replicas invalidate the cache of the reader
+			fp = peers[7].put(locationKey).data(new Data("hallo2")).start();
+			fp.awaitUninterruptibly();
+			Assert.assertEquals(true, fp.isSuccess());
+			for (int i = 0; i < 100 && nearCache.size() > 0; i++) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(0, nearCache.size());
+			fg = reader.get(locationKey).start();
+			fg.awaitUninterruptibly();
+			Assert.assertEquals(2, nearCache.misses());
+			Assert.assertEquals("hallo2", fg.data().object().toString());
+			// a short lease is removed by the sweep
+			NearCacheRPC nearCacheRPC = peers[3].storeRPC().nearCacheRPC();
+			Number160 other = new Number160(rnd);
+			nearCacheRPC.lease(reader.peerAddress(), Collections.singleton(other), 1);
+			Assert.assertEquals(1, nearCacheRPC.subscribers(other));
+			Thread.sleep(10);
+			nearCacheRPC.expire();
+			Assert.assertEquals(0, nearCacheRPC.subscribers(other));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testValueFilter() throws Exception {
+		PeerDHT master = null;
+		try {
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+			for (int i = 0; i < 10; i++) {
+				byte[] value = new byte[100];
+				value[0] = (byte) (i % 2);
+				FuturePut fdht = master.put(Number160.ONE).data(new Number160(i), new Data(value)).start();
+				fdht.awaitUninterruptibly();
+				Assert.assertEquals(true, fdht.isSuccess());
+			}
+			Number640 from = new Number640(Number160.ONE, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Number640 to = new Number640(Number160.ONE, Number160.ZERO, Number160.MAX_VALUE, Number160.MAX_VALUE);
+			// only values starting with 1, cut to 10 bytes
+			FutureGet fdht2 = master.get(Number160.ONE).from(from).to(to)
+			        .valueFilter(ValueFilters.and(ValueFilters.prefix(new byte[] { 1 }), ValueFilters.maxBytes(10)))
+			        .start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(true, fdht2.isSuccess());
+			Assert.assertEquals(5, fdht2.dataMap().size());
+			for (Data data : fdht2.dataMap().values()) {
+				Assert.assertEquals(10, data.length());
+				Assert.assertEquals(1, data.toBytes()[0]);
+			}
+			// the limit counts the matching values only
+			fdht2 = master.get(Number160.ONE).from(from).to(to).returnNr(2)
+			        .valueFilter(ValueFilters.prefix(new byte[] { 1 })).start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(2, fdht2.dataMap().size());
+			// meta data only
+			fdht2 = master.get(Number160.ONE).from(from).to(to).valueFilter(ValueFilters.metaOnly()).start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(10, fdht2.dataMap().size());
+			Assert.assertEquals(0, fdht2.dataMap().values().iterator().next().length());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testPagedRange() throws Exception {
+		PeerDHT master = null;
+		try {
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+			for (int i = 0; i < 25; i++) {
+				FuturePut fdht = master.put(Number160.ONE).data(new Number160(i), new Data(i)).start();
+				fdht.awaitUninterruptibly();
+				Assert.assertEquals(true, fdht.isSuccess());
+			}
+			Number640 from = new Number640(Number160.ONE, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Number640 to = new Number640(Number160.ONE, Number160.ZERO, Number160.MAX_VALUE, Number160.MAX_VALUE);
+			for (boolean ascending : new boolean[] { true, false }) {
+				Set<Number640> seen = new HashSet<Number640>();
+				List<Integer> sizes = new ArrayList<Integer>();
+				Number640 cursor = null;
+				do {
+					FutureGet fdht2 = master.get(Number160.ONE).from(from).to(to).ascending(ascending).pageSize(10)
+					        .cursor(cursor).start();
+					fdht2.awaitUninterruptibly();
+					Assert.assertEquals(true, fdht2.isSuccess());
+					for (Number640 key : fdht2.dataMap().keySet()) {
+						Assert.assertTrue(seen.add(key));
+					}
+					sizes.add(fdht2.dataMap().size());
+					cursor = fdht2.cursor();
+				} while (cursor != null);
+				Assert.assertEquals(25, seen.size());
+				Assert.assertEquals(Arrays.asList(10, 10, 5), sizes);
+			}
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testPagedRangeIgnoredCursor() throws Exception {
+		PeerDHT master = null;
+		try {
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+			Number640 from = new Number640(Number160.ONE, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Number640 to = new Number640(Number160.ONE, Number160.ZERO, Number160.MAX_VALUE, Number160.MAX_VALUE);
+			Number640 cursor = new Number640(Number160.ONE, Number160.ZERO, new Number160(9), Number160.ZERO);
+			FutureGet futureGet = new FutureGet(master.get(Number160.ONE).from(from).to(to).pageSize(10)
+			        .cursor(cursor));
+			// a peer that does not know the cursor returns the first page again
+			Map<Number640, Data> page = new TreeMap<Number640, Data>();
+			for (int i = 0; i < 10; i++) {
+				page.put(new Number640(Number160.ONE, Number160.ZERO, new Number160(i), Number160.ZERO), new Data(i));
+			}
+			Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+			rawStatus.put(master.peerAddress(), (byte) StorageLayer.PutStatus.OK.ordinal());
+			futureGet.receivedData(Collections.singletonMap(master.peerAddress(), page),
+			        Collections.<PeerAddress, DigestResult> emptyMap(), rawStatus, new FutureDone<Void>().done());
+			Assert.assertEquals(true, futureGet.isFailed());
+			Assert.assertNull(futureGet.cursor());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testPutGetAlone() throws Exception {
 		PeerDHT master = null;
@@ -798,6 +1218,37 @@ public class TestDHT {
 		}
 	}
 
+	@Test
+	public void testDigestSummary() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			Number160 locationKey = peers[30].peerID();
+			for (int i = 0; i < 3; i++) {
+				FuturePut fp = peers[44].put(locationKey).data(new Number160(i), new Data("summary" + i)).start();
+				fp.awaitUninterruptibly();
+				Assert.assertEquals(true, fp.isSuccess());
+			}
+			FutureDigest fd = peers[55].digest(locationKey).summary().start();
+			fd.awaitUninterruptibly();
+			Assert.assertEquals(true, fd.isSuccess());
+			DigestInfo summary = fd.digest().summary();
+			Assert.assertEquals(3, summary.size());
+			Assert.assertEquals(peers[30].storageLayer().digestSummary(new Number320(locationKey, Number160.ZERO)),
+			        summary);
+			// no digest per entry
+			Assert.assertNull(fd.digest().keyDigest());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testDigest2() throws Exception {
 		PeerDHT master = null;
@@ -0,0 +1,116 @@
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNumber640Codec {
+
+	@Test
+	public void testKeys() {
+		Random rnd = new Random(42);
+		List<Number640> keys = new ArrayList<Number640>();
+		keys.add(new Number640(Number160.ZERO, Number160.ZERO, Number160.ZERO, Number160.ZERO));
+		keys.add(new Number640(Number160.ZERO, Number160.ZERO, Number160.ZERO, Number160.MAX_VALUE));
+		keys.add(new Number640(Number160.ZERO, Number160.ONE, Number160.MAX_VALUE, Number160.ZERO));
+		for (int i = 0; i < 100; i++) {
+			keys.add(new Number640(new Number160(rnd), new Number160(rnd), new Number160(rnd), new Number160(rnd)));
+		}
+		// not sorted, groups repeat
+		keys.add(keys.get(0));
+		ByteBuf buf = Unpooled.buffer();
+		Number640Codec.encodeKeys(keys, buf);
+		Assert.assertEquals(keys, Number640Codec.decodeKeys(buf));
+		Assert.assertEquals(0, buf.readableBytes());
+	}
+
+	@Test
+	public void testDigest() {
+		Random rnd = new Random(42);
+		Number160 locationKey = new Number160(rnd);
+		Number160 domainKey = new Number160(rnd);
+		NavigableMap<Number640, Collection<Number160>> digest = new TreeMap<Number640, Collection<Number160>>();
+		for (int i = 0; i < 100; i++) {
+			Number160 contentKey = new Number160(rnd);
+			Number160 versionKey = Number160.ZERO;
+			for (int j = 0; j < 3; j++) {
+				Number160 basedOn = versionKey;
+				versionKey = new Number160(1000 + j, new Number160(rnd));
+				Collection<Number160> basedOnKeys = j == 0 ? Collections.<Number160> emptyList() : Arrays
+				        .asList(basedOn);
+				digest.put(new Number640(locationKey, domainKey, contentKey, versionKey), basedOnKeys);
+			}
+		}
+		ByteBuf buf = Unpooled.buffer();
+		Number640Codec.encodeDigest(digest, buf);
+		// a key map encodes 80 bytes per key and 20 bytes per based on key
+		int uncompressed = 4 + digest.size() * (Number640.BYTE_ARRAY_SIZE + 4) + 200 * Number160.BYTE_ARRAY_SIZE;
+		Assert.assertTrue("size " + buf.readableBytes(), buf.readableBytes() * 2 < uncompressed);
+		NavigableMap<Number640, Collection<Number160>> decoded = Number640Codec.decodeDigest(buf);
+		Assert.assertEquals(digest.keySet(), decoded.keySet());
+		for (Number640 key : digest.keySet()) {
+			Assert.assertEquals(new ArrayList<Number160>(digest.get(key)), decoded.get(key));
+		}
+	}
+
+	@Test
+	public void testWrongCounts() {
+		// a count larger than the rest of the buffer is rejected before anything is allocated
+		ByteBuf buf = Unpooled.buffer();
+		Number640Codec.writeVarInt(buf, Integer.MAX_VALUE);
+		try {
+			Number640Codec.decodeKeys(buf);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		NavigableMap<Number640, Collection<Number160>> digest = new TreeMap<Number640, Collection<Number160>>();
+		digest.put(new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO),
+		        Collections.<Number160> emptyList());
+		buf = Unpooled.buffer();
+		Number640Codec.encodeKeys(digest.keySet(), buf);
+		Number640Codec.writeVarInt(buf, 100000000);
+		try {
+			Number640Codec.decodeDigest(buf);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		buf = Unpooled.buffer();
+		Number640Codec.writeVarInt(buf, 1);
+		buf.writeBytes(new byte[2 * Number160.BYTE_ARRAY_SIZE]);
+		Number640Codec.writeVarInt(buf, 1000);
+		try {
+			Number640Codec.decodeKeys(buf);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testVarInt() {
+		ByteBuf buf = Unpooled.buffer();
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE };
+		for (int value : values) {
+			Number640Codec.writeVarInt(buf, value);
+		}
+		for (int value : values) {
+			Assert.assertEquals(value, Number640Codec.readVarInt(buf));
+		}
+	}
+}
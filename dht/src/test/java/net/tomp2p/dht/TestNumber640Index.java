@@ -0,0 +1,144 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNumber640Index {
+
+	@Test
+	public void testPack() {
+		Number640 key = new Number640(new Number160(1), Number160.MAX_VALUE, new Number160(3), Number160.ZERO);
+		long[] packed = Number640Index.pack(key);
+		Assert.assertEquals(Number640Index.WORDS, packed.length);
+		Assert.assertEquals(key, Number640Index.unpack(packed, 0));
+	}
+
+	@Test
+	public void testRandom() {
+		Random rnd = new Random(42);
+		Number640Index index = new Number640Index();
+		NavigableMap<Number640, Long> reference = new TreeMap<Number640, Long>();
+		for (int i = 0; i < 20000; i++) {
+			Number640 key = key(rnd);
+			if (rnd.nextInt(3) == 0) {
+				Long old = reference.remove(key);
+				Assert.assertEquals(old == null ? Number640Index.NOT_FOUND : old, index.remove(key));
+			} else {
+				Long old = reference.put(key, (long) i);
+				Assert.assertEquals(old == null ? Number640Index.NOT_FOUND : old, index.put(key, i));
+			}
+		}
+		Assert.assertEquals(reference.size(), index.size());
+		Assert.assertEquals(new ArrayList<Map.Entry<Number640, Long>>(reference.entrySet()),
+		        index.range(null, false, null, false, false, Integer.MAX_VALUE));
+		for (int i = 0; i < 1000; i++) {
+			Number640 from = key(rnd);
+			Number640 to = key(rnd);
+			if (from.compareTo(to) > 0) {
+				Number640 tmp = from;
+				from = to;
+				to = tmp;
+			}
+			boolean fromInclusive = rnd.nextBoolean();
+			boolean toInclusive = rnd.nextBoolean();
+			NavigableMap<Number640, Long> sub = reference.subMap(from, fromInclusive, to, toInclusive);
+			Assert.assertEquals(sub.size(), index.count(from, fromInclusive, to, toInclusive));
+			List<Map.Entry<Number640, Long>> range = index.range(from, fromInclusive, to, toInclusive, true, 10);
+			List<Map.Entry<Number640, Long>> expected = new ArrayList<Map.Entry<Number640, Long>>();
+			for (Map.Entry<Number640, Long> entry : sub.descendingMap().entrySet()) {
+				if (expected.size() == 10) {
+					break;
+				}
+				expected.add(entry);
+			}
+			Assert.assertEquals(expected, range);
+			Assert.assertEquals(reference.ceilingEntry(from), index.ceiling(from, true));
+			Assert.assertEquals(reference.lowerEntry(to), index.floor(to, false));
+		}
+	}
+
+	@Test
+	public void testReplace() {
+		Number640Index index = new Number640Index();
+		Number640 key = new Number640(new Number160(1), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+		index.put(key, 1);
+		Assert.assertFalse(index.replace(key, 2, 3));
+		Assert.assertTrue(index.replace(key, 1, 3));
+		Assert.assertFalse(index.remove(key, 1));
+		Assert.assertTrue(index.remove(key, 3));
+		Assert.assertEquals(0, index.size());
+		Assert.assertNull(index.ceiling(null, false));
+	}
+
+	@Test
+	public void testPartitions() {
+		Random rnd = new Random(42);
+		Number640Index index = new Number640Index();
+		NavigableMap<Number640, Long> reference = new TreeMap<Number640, Long>();
+		for (int i = 0; i < 5000; i++) {
+			// random location keys spread over all partitions
+			Number640 key = new Number640(new Number160(rnd), Number160.ZERO, new Number160(rnd.nextInt(10)),
+			        Number160.ZERO);
+			reference.put(key, (long) i);
+			index.put(key, i);
+		}
+		Assert.assertEquals(reference.size(), index.size());
+		Assert.assertEquals(new ArrayList<Map.Entry<Number640, Long>>(reference.descendingMap().entrySet()),
+		        index.range(null, false, null, false, true, Integer.MAX_VALUE));
+		for (int i = 0; i < 1000; i++) {
+			Number640 from = new Number640(new Number160(rnd), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Number640 to = new Number640(new Number160(rnd), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			if (from.compareTo(to) > 0) {
+				Number640 tmp = from;
+				from = to;
+				to = tmp;
+			}
+			NavigableMap<Number640, Long> sub = reference.subMap(from, true, to, false);
+			Assert.assertEquals(sub.size(), index.count(from, true, to, false));
+			List<Map.Entry<Number640, Long>> expected = new ArrayList<Map.Entry<Number640, Long>>(sub.entrySet());
+			Assert.assertEquals(expected.subList(0, Math.min(100, expected.size())),
+			        index.range(from, true, to, false, false, 100));
+			Assert.assertEquals(reference.ceilingEntry(to), index.ceiling(to, true));
+			Assert.assertEquals(reference.lowerEntry(from), index.floor(from, false));
+		}
+	}
+
+	@Test
+	public void testMerge() {
+		Number640Index index = new Number640Index();
+		NavigableMap<Number640, Long> reference = new TreeMap<Number640, Long>();
+		for (int i = 0; i < 10000; i++) {
+			Number640 key = new Number640(Number160.ONE, Number160.ZERO, new Number160(i), Number160.ZERO);
+			reference.put(key, (long) i);
+			index.put(key, i);
+		}
+		int leaves = index.leaves();
+		Assert.assertTrue(leaves >= 10000 / Number640Index.LEAF_SIZE);
+		// remove all but every tenth key, the leaves that run empty are merged
+		for (int i = 0; i < 10000; i++) {
+			if (i % 10 != 0) {
+				Number640 key = new Number640(Number160.ONE, Number160.ZERO, new Number160(i), Number160.ZERO);
+				reference.remove(key);
+				Assert.assertEquals(i, index.remove(key));
+			}
+		}
+		Assert.assertTrue(index.leaves() < leaves / 4);
+		Assert.assertEquals(new ArrayList<Map.Entry<Number640, Long>>(reference.entrySet()),
+		        index.range(null, false, null, false, false, Integer.MAX_VALUE));
+	}
+
+	private static Number640 key(Random rnd) {
+		return new Number640(new Number160(rnd.nextInt(4)), new Number160(rnd.nextInt(4)), new Number160(
+		        rnd.nextInt(100)), new Number160(rnd.nextInt(10)));
+	}
+}
@@ -140,4 +140,105 @@ public class TestRangeLock {
 		Assert.assertEquals(0, r.size());
 		
 	}
+
+	private static final RangeLock.Partitioner<Integer> PARTITIONER = new RangeLock.Partitioner<Integer>() {
+		@Override
+		public Object partition(Integer key) {
+			return key / 10;
+		}
+	};
+
+	@Test
+	public void testPartitionsParallel() throws InterruptedException {
+		final CountDownLatch cd = new CountDownLatch(1);
+		final RangeLock<Integer> r = new RangeLock<Integer>(PARTITIONER);
+
+		RangeLock<Integer>.Range lock = r.lock(10, 19);
+		Assert.assertEquals(2, r.size());
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RangeLock<Integer>.Range rr = r.tryLock(20, 29);
+				Assert.assertNotNull(rr);
+				Assert.assertNull(r.tryLock(15, 15));
+				Assert.assertEquals(4, r.size());
+				r.unlock(rr);
+				cd.countDown();
+			}
+		}).start();
+		cd.await();
+		r.unlock(lock);
+		Assert.assertEquals(0, r.size());
+	}
+
+	@Test
+	public void testPartitionsWide() throws InterruptedException {
+		final CountDownLatch cd = new CountDownLatch(1);
+		final RangeLock<Integer> r = new RangeLock<Integer>(PARTITIONER);
+
+		RangeLock<Integer>.Range lock = r.lock(25, 25);
+		Assert.assertEquals(1, r.size());
+		final AtomicLong diff = new AtomicLong();
+		final long start = System.currentTimeMillis();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// spans partitions 0 to 9 and overlaps with 25
+				Assert.assertNull(r.tryLock(0, 99));
+				RangeLock<Integer>.Range rr = r.lock(0, 99);
+				diff.set(System.currentTimeMillis() - start);
+				Assert.assertEquals(2, r.size());
+				r.unlock(rr);
+				cd.countDown();
+			}
+		}).start();
+		Thread.sleep(50);
+		// the same thread can lock again while the wide range is pending
+		RangeLock<Integer>.Range lock2 = r.lock(26, 27);
+		Assert.assertNotNull(lock2);
+		r.unlock(lock2);
+		r.unlock(lock);
+		cd.await();
+		Assert.assertTrue(diff.get() >= 50);
+		Assert.assertEquals(0, r.size());
+	}
+
+	@Test(timeout = 10000)
+	public void testPartitionsWideNested() throws InterruptedException {
+		final CountDownLatch cd = new CountDownLatch(1);
+		final RangeLock<Integer> r = new RangeLock<Integer>(PARTITIONER);
+
+		RangeLock<Integer>.Range lock = r.lock(25, 25);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// pending until 25 is released
+				RangeLock<Integer>.Range rr = r.lock(0, 99);
+				Assert.assertEquals(2, r.size());
+				r.unlock(rr);
+				cd.countDown();
+			}
+		}).start();
+		Thread.sleep(50);
+		// a wide range of the same thread passes the pending wide range, which waits for this thread
+		RangeLock<Integer>.Range lock2 = r.lock(20, 39);
+		Assert.assertNotNull(lock2);
+		Assert.assertEquals(3, r.size());
+		r.unlock(lock2);
+		r.unlock(lock);
+		cd.await();
+		Assert.assertEquals(0, r.size());
+	}
+
+	@Test
+	public void testReentrant() {
+		final RangeLock<Integer> r = new RangeLock<Integer>(PARTITIONER);
+		RangeLock<Integer>.Range lock1 = r.lock(1, 5);
+		RangeLock<Integer>.Range lock2 = r.lock(1, 5);
+		Assert.assertEquals(4, r.size());
+		lock1.unlock();
+		Assert.assertEquals(2, r.size());
+		lock2.unlock();
+		Assert.assertEquals(0, r.size());
+	}
 }
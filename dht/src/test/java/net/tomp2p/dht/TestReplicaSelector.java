@@ -0,0 +1,80 @@
+package net.tomp2p.dht;
+
+import java.util.Arrays;
+import java.util.Queue;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.peers.DefaultMaintenance;
+import net.tomp2p.peers.DefaultPeerFilter;
+import net.tomp2p.peers.Number256;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.peers.RTT;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestReplicaSelector {
+
+	private static final Number256 ID = new Number256("0x1");
+
+	@Test
+	public void testRank() {
+		PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+		conf.setFixedVerifiedBagSizes(4).setFixedOverflowBagSizes(4);
+		conf.offlineCount(1000).offlineTimeout(60);
+		conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+		PeerMap peerMap = new PeerMap(conf);
+
+		PeerAddress self = Utils2.createPeerAddress(ID);
+		PeerAddress slow = Utils2.createPeerAddress(new Number256("0x2"));
+		PeerAddress fast = Utils2.createPeerAddress(new Number256("0x3"));
+		PeerAddress unknown = Utils2.createPeerAddress(new Number256("0x4"));
+		PeerAddress unknown2 = Utils2.createPeerAddress(new Number256("0x5"));
+		peerMap.peerFound(slow, null, new RTT(100, true));
+		peerMap.peerFound(fast, null, new RTT(10, true));
+
+		ReplicaSelector replicaSelector = new ReplicaSelector();
+		Queue<PeerAddress> ranked = replicaSelector.rank(Arrays.asList(unknown, slow, unknown2, fast, self),
+		        peerMap);
+		Assert.assertEquals(Arrays.asList(self, fast, slow, unknown, unknown2), Arrays.asList(ranked.toArray()));
+	}
+
+	@Test
+	public void testPercentile() {
+		ReplicaSelector replicaSelector = new ReplicaSelector(20);
+		for (int i = 1; i < ReplicaSelector.MIN_SAMPLES; i++) {
+			replicaSelector.record(i);
+		}
+		// not enough samples, no hedging
+		Assert.assertEquals(-1, replicaSelector.percentile(0.95));
+		for (int i = ReplicaSelector.MIN_SAMPLES; i <= 100; i++) {
+			replicaSelector.record(i);
+		}
+		// only the last 20 samples (81..100) are kept
+		Assert.assertEquals(81, replicaSelector.percentile(0));
+		Assert.assertEquals(90, replicaSelector.percentile(0.5));
+		Assert.assertEquals(99, replicaSelector.percentile(0.95));
+		Assert.assertEquals(100, replicaSelector.percentile(1));
+	}
+
+	@Test
+	public void testRecordOnlyRemote() {
+		PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+		conf.setFixedVerifiedBagSizes(4).setFixedOverflowBagSizes(4);
+		conf.offlineCount(1000).offlineTimeout(60);
+		conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+		PeerMap peerMap = new PeerMap(conf);
+		PeerAddress self = Utils2.createPeerAddress(ID);
+		PeerAddress remote = Utils2.createPeerAddress(new Number256("0x2"));
+
+		ReplicaSelector replicaSelector = new ReplicaSelector(ReplicaSelector.MIN_SAMPLES);
+		for (int i = 0; i < ReplicaSelector.MIN_SAMPLES; i++) {
+			replicaSelector.record(remote, peerMap, 50);
+			// local reads do not lower the hedge delay
+			replicaSelector.record(self, peerMap, 0);
+		}
+		Assert.assertEquals(50, replicaSelector.percentile(0));
+	}
+}
@@ -13,6 +13,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.storage.Data;
@@ -230,6 +231,40 @@ public class TestStorage {
 		Assert.assertEquals(key1, digest.digests().firstEntry().getKey());
 	}
 
+	@Test
+	public void testDigestSummaryRestart() throws Exception {
+		Storage storageM = createStorage();
+		StorageLayer storage = new StorageLayer(storageM);
+		storage.put(key1, new Data("test1"), null, false, false, false);
+		storage.put(key2, new Data("test2"), null, false, false, false);
+		DigestInfo before = storage.digestSummary(new Number320(locationKey, domainKey));
+		Assert.assertEquals(2, before.size());
+		// a new layer on the same backend, as after a restart with a persistent backend
+		StorageLayer restarted = new StorageLayer(storageM);
+		// a change before the summary is built lazily is part of it
+		restarted.put(key3, new Data("test3"), null, false, false, false);
+		Assert.assertEquals(3, restarted.digestSummary(new Number320(locationKey, domainKey)).size());
+		// and from then on, the summary is maintained
+		restarted.remove(key3, null, false);
+		DigestInfo after = restarted.digestSummary(new Number320(locationKey, domainKey));
+		Assert.assertEquals(before, after);
+		storageM.close();
+	}
+
+	@Test
+	public void testMaxVersionsDigestSummary() throws Exception {
+		Storage storageM = createStorage();
+		StorageLayer storage = new StorageLayer(storageM, 2);
+		for (int i = 0; i < 5; i++) {
+			Number640 key = new Number640(locationKey, domainKey, content1, new Number160(i, new Number160(i)));
+			storage.put(key, new Data("test" + i), null, false, false, false);
+		}
+		// the old versions are removed from the summary as well
+		Assert.assertEquals(new StorageLayer(storageM).digestSummary(new Number320(locationKey, domainKey)),
+		        storage.digestSummary(new Number320(locationKey, domainKey)));
+		storageM.close();
+	}
+
     @Test
     public void testPutIfAbsent() throws Exception {
         Storage storageM = createStorage();
@@ -319,6 +354,51 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
 
+    @Test
+    public void testTimeoutSlots() throws Exception {
+        Storage storageM = new StorageMemory(1000);
+        storageM.addTimeout(key1, 500);
+        storageM.addTimeout(key2, 1500);
+        storageM.addTimeout(key3, 1700);
+        Assert.assertEquals(2, storageM.subMapTimeout(1600).size());
+        // moved to another slot
+        storageM.addTimeout(key2, 2500);
+        Assert.assertEquals(1, storageM.subMapTimeout(1600).size());
+        // same slot
+        storageM.addTimeout(key3, 1100);
+        Assert.assertEquals(2, storageM.subMapTimeout(1600).size());
+        storageM.removeTimeout(key1);
+        storageM.removeTimeout(key3);
+        Assert.assertEquals(1, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storageM.removeTimeout(key2);
+        Assert.assertEquals(0, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storageM.close();
+    }
+
+    @Test
+    public void testTimeoutSlotsConcurrent() throws Exception {
+        final Storage storageM = new StorageMemory(1000);
+        final int nr = 10000;
+        Thread adder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < nr; i++) {
+                    storageM.addTimeout(new Number640(locationKey, domainKey, new Number160(i + 1000), Number160.ZERO),
+                            500 + (i % 1000));
+                }
+            }
+        });
+        adder.start();
+        // empties the shared slot over and over, which must not take the keys of the adder with it
+        while (adder.isAlive()) {
+            storageM.addTimeout(key1, 100);
+            storageM.removeTimeout(key1);
+        }
+        adder.join();
+        Assert.assertEquals(nr, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storageM.close();
+    }
+
     @Test
     public void testResponsibility() throws Exception {
         Storage storageM = createStorage();
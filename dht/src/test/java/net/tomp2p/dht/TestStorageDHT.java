@@ -790,7 +790,7 @@ public class TestStorageDHT {
             fr.awaitUninterruptibly();
             Assert.assertEquals(true, fr.isSuccess());
             Message m = fr.responseMessage();
-            Assert.assertEquals(2, m.keyMap640Keys(0).size());
+            Assert.assertEquals(2, StorageRPC.digest(m).size());
             fr.release();
 
         } finally {
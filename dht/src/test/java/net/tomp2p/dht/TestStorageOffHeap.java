@@ -0,0 +1,134 @@
+package net.tomp2p.dht;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the storage tests with the values off heap.
+ */
+public class TestStorageOffHeap extends TestStorage {
+
+    final private static Number160 locationKey = new Number160(10);
+    final private static Number160 domainKey = new Number160(20);
+
+    @Override
+    public Storage createStorage() throws IOException {
+        // small slabs, so that the tests span multiple slabs
+        return new StorageOffHeap(StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, 1024);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        StorageOffHeap storage = new StorageOffHeap(StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, 1024);
+        for (int i = 0; i < 100; i++) {
+            storage.put(key(i), new Data(new byte[100]));
+        }
+        Assert.assertTrue(storage.slabs() > 1);
+        // leave every fourth value
+        for (int i = 0; i < 100; i++) {
+            if (i % 4 != 0) {
+                storage.remove(key(i), false);
+            }
+        }
+        final int slabs = storage.slabs();
+        final long liveBytes = storage.liveBytes();
+        Assert.assertTrue(storage.compact() > 0);
+        Assert.assertTrue(storage.slabs() < slabs);
+        Assert.assertEquals(liveBytes, storage.liveBytes());
+        NavigableMap<Number640, Data> map = storage.subMap(key(0), key(99));
+        Assert.assertEquals(25, map.size());
+        for (int i = 0; i < 100; i += 4) {
+            Assert.assertEquals(new Data(new byte[100]), storage.get(key(i)));
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testCompactionWhilePut() throws Exception {
+        final StorageOffHeap storage = new StorageOffHeap(StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, 1024);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    storage.compact(1.0);
+                }
+            }
+        });
+        compactor.start();
+        try {
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 100; i++) {
+                    storage.put(key(i), new Data(round * 100 + i));
+                }
+            }
+        } finally {
+            running.set(false);
+            compactor.join();
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(new Data(1900 + i), storage.get(key(i)));
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testLargeValue() throws Exception {
+        StorageOffHeap storage = new StorageOffHeap(StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, 1024);
+        storage.put(key(1), new Data(new byte[10]));
+        storage.put(key(2), new Data(new byte[5000]));
+        Assert.assertEquals(2, storage.slabs());
+        Assert.assertEquals(5000, storage.get(key(2)).length());
+        storage.remove(key(2), false);
+        Assert.assertEquals(1, storage.slabs());
+        Assert.assertEquals(10, storage.get(key(1)).length());
+        storage.close();
+    }
+
+    @Test
+    public void testView() throws Exception {
+        StorageOffHeap storage = new StorageOffHeap(StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, 1024);
+        for (int i = 0; i < 50; i += 2) {
+            storage.put(key(i), new Data(i));
+        }
+        NavigableMap<Number640, Data> view = storage.subMap(key(10), key(40));
+        Assert.assertEquals(16, view.size());
+        Assert.assertEquals(key(10), view.firstKey());
+        Assert.assertEquals(key(40), view.lastKey());
+        Assert.assertEquals(key(12), view.higherKey(key(10)));
+        Assert.assertEquals(key(12), view.ceilingKey(key(11)));
+        Assert.assertNull(view.lowerKey(key(10)));
+        Assert.assertNull(view.get(key(8)));
+        Assert.assertEquals(new Data(20), view.get(key(20)));
+        NavigableMap<Number640, Data> descending = view.descendingMap();
+        Assert.assertEquals(key(40), descending.firstKey());
+        Assert.assertEquals(key(38), descending.higherKey(key(40)));
+        Assert.assertEquals(6, descending.headMap(key(30), true).size());
+        Assert.assertEquals(key(20), descending.tailMap(key(21), true).firstKey());
+        Assert.assertEquals(3, view.subMap(key(14), true, key(20), false).size());
+        int i = 40;
+        for (Map.Entry<Number640, Data> entry : descending.entrySet()) {
+            Assert.assertEquals(key(i), entry.getKey());
+            Assert.assertEquals(new Data(i), entry.getValue());
+            i -= 2;
+        }
+        Assert.assertEquals(8, i);
+        Assert.assertEquals(key(10), view.pollFirstEntry().getKey());
+        Assert.assertFalse(storage.contains(key(10)));
+        Assert.assertEquals(15, view.keySet().size());
+        storage.close();
+    }
+
+    private static Number640 key(int nr) {
+        return new Number640(locationKey, domainKey, new Number160(nr), Number160.ZERO);
+    }
+}
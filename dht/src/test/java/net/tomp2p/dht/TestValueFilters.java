@@ -0,0 +1,53 @@
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestValueFilters {
+
+	@Test
+	public void testEncodeDecode() {
+		ValueFilter filter = ValueFilters.and(ValueFilters.prefix(new byte[] { 1, 2 }), ValueFilters.maxBytes(10),
+		        ValueFilters.and(ValueFilters.metaOnly()));
+		ByteBuf buf = Unpooled.buffer();
+		filter.encode(buf);
+		ByteBuf copy = buf.copy();
+		ValueFilter decoded = ValueFilters.decode(buf);
+		ByteBuf buf2 = Unpooled.buffer();
+		decoded.encode(buf2);
+		Assert.assertEquals(copy, buf2);
+	}
+
+	@Test
+	public void testMalformed() {
+		byte[][] malformed = { {}, { 0 }, { 99 }, { 1, 0, 5, 1 }, { 2, 0, 0 }, { 2, -1, -1, -1, -1 }, { 4, 2, 3 },
+		        { 3, 3 }, { 4, 1, 4, 1, 4, 1, 4, 1, 4, 1, 3 } };
+		for (byte[] bytes : malformed) {
+			try {
+				ValueFilters.decode(Unpooled.wrappedBuffer(bytes));
+				Assert.fail("decoded " + bytes.length);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCustomFilter() {
+		ValueFilters.and(new ValueFilter() {
+			@Override
+			public Data apply(Data data) {
+				return data;
+			}
+
+			@Override
+			public void encode(ByteBuf buf) {
+			}
+		});
+	}
+}
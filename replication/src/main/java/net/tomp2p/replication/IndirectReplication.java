@@ -18,6 +18,7 @@ package net.tomp2p.replication;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -65,8 +66,10 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     private int delayMillis = -1;
     private int intervalMillis = -1;
     private boolean rsync = false;
+    private boolean merkle = false;
     private int blockSize = -1;
     private ReplicationSender replicationSender;
+    private PeerSync peerSync;
     private boolean nRoot = false;
     private boolean keepData = false;
     private Replication replication;
@@ -116,6 +119,25 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     	return this;
     }
     
+    public boolean isMerkle() {
+    	return merkle;
+    }
+    
+    /**
+     * Replicas are synchronized by comparing Merkle trees, so only the entries that differ are sent. The periodic
+     * replication compares all location keys that this peer shares with a replica in one pass. The replicas need to
+     * use the Merkle synchronization as well.
+     */
+    public IndirectReplication merkle(boolean merkle) {
+    	this.merkle = merkle;
+    	return this;
+    }
+    
+    public IndirectReplication merkle() {
+    	this.merkle = true;
+    	return this;
+    }
+    
     public boolean isNRoot() {
     	return nRoot;
     }
@@ -246,8 +268,13 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     	}
     	peer.storeRPC().replicationListener(replication);
     	
-		if(rsync) {
-			replicationSender = new PeerSync(peer, replication, blockSize);
+		if(rsync || merkle) {
+			peerSync = new PeerSync(peer, replication, blockSize);
+		}
+		if(merkle) {
+			replicationSender = new MerkleReplicationSender(peerSync);
+		} else if(rsync) {
+			replicationSender = peerSync;
 		} else if (replicationSender == null) {
 			replicationSender = new DefaultReplicationSender(peer);
 		}
@@ -319,8 +346,12 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     		// publish it again... The good way is to do a diff
     		Collection<Number160> locationKeys = peer.storageLayer().findContentForResponsiblePeerID(peer.peerID());
         
-    		for (Number160 locationKey : locationKeys) {
-    			synchronizeData(locationKey);
+    		if (merkle) {
+    			merkleSynchronize(locationKeys);
+    		} else {
+    			for (Number160 locationKey : locationKeys) {
+    				synchronizeData(locationKey);
+    			}
     		}
     		// recalculate replication factor
     		int replicationFactor = IndirectReplication.this.replicationFactor.replicationFactor();
@@ -360,34 +391,72 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
      * @return The future of the put
      */
     protected FutureDone<?> send(final Number160 locationKey) {
+        List<PeerAddress> closePeers = replicas(locationKey);
+        List<FutureDone<?>> retVal = new ArrayList<FutureDone<?>>(closePeers.size());
+        for (PeerAddress closePeer : closePeers) {
+            //this must be inside the loop as we need to retain the data for every peer
+            Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+            Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                    Number160.MAX_VALUE);
+            final NavigableMap<Number640, Data> dataMap = peer.storageLayer().get(min, max, -1, true);
+
+            retVal.add(replicationSender.sendDirect(closePeer, locationKey, dataMap));
+        }
+        LOG.debug("[storage refresh] I ({}) restore {} to {}", peer.peerAddress(),
+                locationKey, closePeers);
+        return Futures.whenAll(retVal);
+    }
+
+    /**
+     * Compares the Merkle trees of all given location keys with the replicas. The location keys are grouped by
+     * replica, so a replica that shares many location keys with this peer is synchronized in one pass.
+     * 
+     * @param locationKeys
+     *            The location keys this peer is responsible for
+     * @return The future of all synchronizations
+     */
+    private FutureDone<?> merkleSynchronize(final Collection<Number160> locationKeys) {
+        final Map<PeerAddress, Collection<Number160>> byReplica = new HashMap<PeerAddress, Collection<Number160>>();
+        for (Number160 locationKey : locationKeys) {
+            for (PeerAddress closePeer : replicas(locationKey)) {
+                Collection<Number160> shared = byReplica.get(closePeer);
+                if (shared == null) {
+                    shared = new ArrayList<Number160>();
+                    byReplica.put(closePeer, shared);
+                }
+                shared.add(locationKey);
+            }
+        }
+        List<FutureDone<?>> retVal = new ArrayList<FutureDone<?>>(byReplica.size());
+        for (Map.Entry<PeerAddress, Collection<Number160>> entry : byReplica.entrySet()) {
+            FutureDone<Collection<Number640>> future = peerSync.merkleSynchronize(entry.getKey(), entry.getValue())
+                    .start();
+            peer.peer().notifyAutomaticFutures(future);
+            retVal.add(future);
+        }
+        LOG.debug("[storage refresh] I ({}) compare {} location keys with {}", peer.peerAddress(),
+                locationKeys.size(), byReplica.keySet());
+        return Futures.whenAll(retVal);
+    }
+
+    /**
+     * @return The close peers that should have a replica of the location key
+     */
+    private List<PeerAddress> replicas(final Number160 locationKey) {
         int replicationFactor = replication.replicationFactor() - 1;
-        List<PeerAddress> closePeers = new ArrayList<PeerAddress>();
+        List<PeerAddress> closePeers = new ArrayList<PeerAddress>(replicationFactor);
         SortedSet<PeerStatistic> sortedSet = peer.peerBean().peerMap()
                 .closePeers(locationKey, replicationFactor);
-        int count = 0;
-        List<FutureDone<?>> retVal = new ArrayList<FutureDone<?>>(replicationFactor);
         for (PeerStatistic peerStatistic : sortedSet) {
         	if(replication.rejectReplication(peerStatistic.peerAddress())) {
         		continue;
         	}
-        	
-            count++;
             closePeers.add(peerStatistic.peerAddress());
-            //this must be inside the loop as we need to retain the data for every peer
-            
-            Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-            Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
-                    Number160.MAX_VALUE);
-            final NavigableMap<Number640, Data> dataMap = peer.storageLayer().get(min, max, -1, true);
-
-            retVal.add(replicationSender.sendDirect(peerStatistic.peerAddress(), locationKey, dataMap));
-            if (count == replicationFactor) {
+            if (closePeers.size() == replicationFactor) {
                 break;
             }
         }
-        LOG.debug("[storage refresh] I ({}) restore {} to {}", peer.peerAddress(),
-                locationKey, closePeers);
-        return Futures.whenAll(retVal);
+        return closePeers;
     }
     
     public void shutdown() {
@@ -396,6 +465,25 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     	}
     }
 
+    /**
+     * Sends only the entries of a location key that the other peer is missing or has in a different version.
+     */
+    private static class MerkleReplicationSender implements ReplicationSender {
+        private final PeerSync peerSync;
+
+        private MerkleReplicationSender(PeerSync peerSync) {
+            this.peerSync = peerSync;
+        }
+
+        @Override
+        public FutureDone<Collection<Number640>> sendDirect(final PeerAddress other, final Number160 locationKey,
+                final NavigableMap<Number640, Data> dataMap) {
+            FutureDone<Collection<Number640>> future = peerSync.merkleSynchronize(other, locationKey).start();
+            peerSync.peerDHT().peer().notifyAutomaticFutures(future);
+            return future;
+        }
+    }
+
     private static class DefaultReplicationSender implements ReplicationSender {
         private StorageRPC storageRPC;
         private PeerDHT peer;
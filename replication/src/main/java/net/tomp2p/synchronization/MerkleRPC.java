@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.tomp2p.connection.ChannelClient;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.dht.ReplicationListener;
+import net.tomp2p.dht.StorageLayer;
+import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.message.KeyMap640Keys;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The anti-entropy RPC that compares the {@link MerkleTree} of one or more location keys level by level. The requester
+ * sends a level (REQUEST_1) and the replica answers with the keys that differ, so only the differing subtrees are sent
+ * in the next level. The levels are: location keys, domains, buckets of content keys, content keys and versions. A level with more than
+ * {@link #MAX_LEVEL_KEYS} keys is sent in several messages. Finally, the requester sends the missing entries
+ * (REQUEST_2).
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MerkleRPC extends DispatchHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MerkleRPC.class);
+
+	public static final byte MERKLE_COMMAND = RPC.Commands.MERKLE.getNr();
+	public static final int MAX_LEVEL_KEYS = 1000;
+
+	private final StorageLayer storageLayer;
+	private final ReplicationListener replicationListener;
+
+	/**
+	 * Constructor that registers this RPC with the message handler.
+	 *
+	 * @param peerBean
+	 *            The peer bean that contains data that is unique for each peer
+	 * @param connectionBean
+	 *            The connection bean that is unique per connection (multiple peers can share a single connection)
+	 * @param storageLayer
+	 *            The storage to compare and to store missing entries
+	 * @param replicationListener
+	 *            The listener that is notified about stored entries, may be null
+	 */
+	public MerkleRPC(final PeerBean peerBean, final ConnectionBean connectionBean, final StorageLayer storageLayer,
+	        final ReplicationListener replicationListener) {
+		super(peerBean, connectionBean);
+		register(MERKLE_COMMAND);
+		this.storageLayer = storageLayer;
+		this.replicationListener = replicationListener;
+	}
+
+	/**
+	 * Sends a level of the Merkle tree. The replica answers with the keys of this level that differ.
+	 *
+	 * @param remotePeer
+	 *            The replica
+	 * @param level
+	 *            The level, 0 for location keys, 1 for domains, 2 for buckets, 3 for content keys, and 4 for versions
+	 * @param digests
+	 *            The digests of this level, at most {@link #MAX_LEVEL_KEYS}
+	 * @param merkleSyncBuilder
+	 *            Used for keeping parameters that are sent
+	 * @param channelCreator
+	 *            The channel creator that creates connections
+	 * @return The future response to keep track of future events
+	 */
+	public FutureResponse levelMessage(final PeerAddress remotePeer, final int level,
+	        final NavigableMap<Number640, Collection<Number160>> digests, final MerkleSyncBuilder merkleSyncBuilder,
+	        final ChannelClient channelCreator) {
+		if (level < 0 || level > 4) {
+			throw new IllegalArgumentException("unknown level " + level);
+		}
+		if (digests.size() > MAX_LEVEL_KEYS) {
+			throw new IllegalArgumentException("more than " + MAX_LEVEL_KEYS + " keys in one level message");
+		}
+		final Message message = createMessage(remotePeer, MERKLE_COMMAND, Type.REQUEST_1);
+		if (merkleSyncBuilder.isSign()) {
+			message.publicKeyAndSign(merkleSyncBuilder.keyPair());
+		}
+		message.intValue(level);
+		message.keyMap640Keys(new KeyMap640Keys(digests));
+		FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler requestHandler = new RequestHandler(futureResponse, peerBean(), connectionBean(),
+		        merkleSyncBuilder);
+		LOG.debug("Merkle level {} sent {}", level, message);
+		return requestHandler.sendTCP(channelCreator);
+	}
+
+	/**
+	 * Sends the entries that the replica is missing.
+	 *
+	 * @param remotePeer
+	 *            The replica
+	 * @param dataMap
+	 *            The missing entries
+	 * @param merkleSyncBuilder
+	 *            Used for keeping parameters that are sent
+	 * @param channelCreator
+	 *            The channel creator that creates connections
+	 * @return The future response to keep track of future events
+	 */
+	public FutureResponse dataMessage(final PeerAddress remotePeer, final DataMap dataMap,
+	        final MerkleSyncBuilder merkleSyncBuilder, final ChannelClient channelCreator) {
+		final Message message = createMessage(remotePeer, MERKLE_COMMAND, Type.REQUEST_2);
+		if (merkleSyncBuilder.isSign()) {
+			message.publicKeyAndSign(merkleSyncBuilder.keyPair());
+		}
+		message.setDataMap(dataMap);
+		FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler requestHandler = new RequestHandler(futureResponse, peerBean(), connectionBean(),
+		        merkleSyncBuilder);
+		LOG.debug("Merkle data sent {}", message);
+		return requestHandler.sendTCP(channelCreator);
+	}
+
+	@Override
+	public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign,
+	        Responder responder) throws Exception {
+		if (message.command() != MERKLE_COMMAND) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final Message responseMessage = createResponseMessage(message, Type.OK);
+		if (message.type() == Type.REQUEST_1) {
+			handleLevel(message, responseMessage);
+		} else if (message.type() == Type.REQUEST_2) {
+			handleData(message, responseMessage);
+		} else {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		responder.response(responseMessage);
+	}
+
+	private void handleLevel(final Message message, final Message responseMessage) {
+		final Integer level = message.intAt(0);
+		if (level == null || message.keyMap640Keys(0) == null) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final NavigableMap<Number640, Collection<Number160>> remote = message.keyMap640Keys(0).keysMap();
+		if (remote.size() > MAX_LEVEL_KEYS) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		// only the subtrees that the requester sent
+		final NavigableMap<Number640, Collection<Number160>> local;
+		switch (level) {
+		case 0:
+			final Set<Number160> locationKeys = new TreeSet<Number160>();
+			for (Number640 key : remote.keySet()) {
+				locationKeys.add(key.locationKey());
+			}
+			local = MerkleTree.locations(storageLayer, locationKeys);
+			break;
+		case 1:
+			final Set<Number640> locations = new TreeSet<Number640>();
+			for (Number640 key : remote.keySet()) {
+				locations.add(new Number640(key.locationKey(), Number160.ZERO, Number160.ZERO, Number160.ZERO));
+			}
+			local = MerkleTree.domains(storageLayer, locations);
+			break;
+		case 2:
+			final Set<Number640> domains = new TreeSet<Number640>();
+			for (Number640 key : remote.keySet()) {
+				domains.add(new Number640(key.locationAndDomainKey(), Number160.ZERO, Number160.ZERO));
+			}
+			local = MerkleTree.buckets(storageLayer, domains);
+			break;
+		case 3:
+			local = MerkleTree.contentKeys(storageLayer, MerkleTree.bucketsOf(remote.keySet()));
+			break;
+		case 4:
+			final Set<Number640> contentKeys = new TreeSet<Number640>();
+			for (Number640 key : remote.keySet()) {
+				contentKeys.add(new Number640(key.locationAndDomainAndContentKey(), Number160.ZERO));
+			}
+			local = MerkleTree.versions(storageLayer, contentKeys);
+			break;
+		default:
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final List<Number640> diff = MerkleTree.diff(remote, local);
+		LOG.debug("Merkle level {}: {} of {} differ", level, diff.size(), remote.size());
+		responseMessage.keyCollection(new KeyCollection(diff));
+	}
+
+	private void handleData(final Message message, final Message responseMessage) {
+		final DataMap dataMap = message.dataMap(0);
+		final PublicKey publicKey = message.publicKey(0);
+		final List<Number640> retVal = new ArrayList<Number640>(dataMap.size());
+		for (Map.Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
+			// a sync never claims a domain. A protected entry is checked against the public key of its owner that comes
+			// with the data, and a domain protected by others is only written if the requester is the owner
+			Enum<?> status = storageLayer.put(entry.getKey(), entry.getValue(), publicKey, false, false, false);
+			if (status == PutStatus.OK) {
+				retVal.add(entry.getKey());
+				if (replicationListener != null) {
+					replicationListener.dataInserted(entry.getKey().locationKey());
+				}
+			} else {
+				LOG.debug("Merkle data for {} not stored: {}", entry.getKey(), status);
+			}
+		}
+		responseMessage.keyCollection(new KeyCollection(retVal));
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.connection.ChannelClient;
+import net.tomp2p.dht.DHTBuilder;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The builder for the Merkle anti-entropy of one or more location keys. The levels of the {@link MerkleTree} are
+ * compared with the replica from the top, and only the subtrees that differ are sent in the next level. With several
+ * location keys, the top level has one digest per location key, so location keys that are equal on both peers cost a
+ * few bytes each and no extra round trip. A level is sent in pages of
+ * {@link MerkleRPC#MAX_LEVEL_KEYS} keys, one after the other. At the end, the entries that the replica is missing or
+ * has in a different version are sent. The number of bytes is proportional to the difference and not to the number of
+ * entries.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MerkleSyncBuilder extends DHTBuilder<MerkleSyncBuilder> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MerkleSyncBuilder.class);
+	private static final FutureDone<Collection<Number640>> FUTURE_SHUTDOWN = new FutureDone<Collection<Number640>>()
+	        .failed("merkle sync builder - peer is shutting down");
+
+	private final PeerAddress other;
+	private final PeerSync peerSync;
+	private final Collection<Number160> locationKeys;
+
+	/**
+	 * @param peerSync
+	 *            The peer that performs the synchronization
+	 * @param other
+	 *            The replica
+	 * @param locationKey
+	 *            The location key to synchronize
+	 */
+	public MerkleSyncBuilder(final PeerSync peerSync, final PeerAddress other, final Number160 locationKey) {
+		super(peerSync.peerDHT(), locationKey);
+		self(this);
+		this.other = other;
+		this.peerSync = peerSync;
+		this.locationKeys = Collections.singletonList(locationKey);
+	}
+
+	/**
+	 * @param peerSync
+	 *            The peer that performs the synchronization
+	 * @param other
+	 *            The replica
+	 * @param locationKeys
+	 *            The location keys to synchronize, e.g., all location keys that the replica shares with this peer
+	 */
+	public MerkleSyncBuilder(final PeerSync peerSync, final PeerAddress other, final Collection<Number160> locationKeys) {
+		super(peerSync.peerDHT(), Number160.ZERO);
+		self(this);
+		this.other = other;
+		this.peerSync = peerSync;
+		this.locationKeys = locationKeys;
+	}
+
+	/**
+	 * @return The future with the keys that have been stored on the replica
+	 */
+	public FutureDone<Collection<Number640>> start() {
+		if (peer.peer().isShutdown()) {
+			return FUTURE_SHUTDOWN;
+		}
+		final FutureDone<Collection<Number640>> futureSync = new FutureDone<Collection<Number640>>();
+		// a single location key starts with its domains
+		final int top = locationKeys.size() == 1 ? 1 : 0;
+		final NavigableMap<Number640, Collection<Number160>> digests = top == 1 ? MerkleTree.domains(
+		        peer.storageLayer(), locationKeys.iterator().next()) : MerkleTree.locations(peer.storageLayer(),
+		        locationKeys);
+		if (digests.isEmpty()) {
+			return futureSync.done(Collections.<Number640> emptyList());
+		}
+		FutureChannelCreator futureChannelCreator = peer.peer().connectionBean().reservation().create(0, 1);
+		Utils.addReleaseListener(futureChannelCreator, futureSync);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (!future.isSuccess()) {
+					futureSync.failed(future);
+					LOG.error("merkle sync failed {}", future.failedReason());
+					return;
+				}
+				level(top, digests, future.channelCreator(), futureSync);
+			}
+		});
+		return futureSync;
+	}
+
+	private void level(final int level, final NavigableMap<Number640, Collection<Number160>> digests,
+	        final ChannelClient channelCreator, final FutureDone<Collection<Number640>> futureSync) {
+		page(level, digests, digests.firstKey(), new ArrayList<Number640>(), channelCreator, futureSync);
+	}
+
+	/**
+	 * Sends the page of a level that starts at the given key, and the next page once the replica answered.
+	 */
+	private void page(final int level, final NavigableMap<Number640, Collection<Number160>> digests,
+	        final Number640 from, final List<Number640> diff, final ChannelClient channelCreator,
+	        final FutureDone<Collection<Number640>> futureSync) {
+		final NavigableMap<Number640, Collection<Number160>> page = new TreeMap<Number640, Collection<Number160>>();
+		for (Map.Entry<Number640, Collection<Number160>> entry : digests.tailMap(from, true).entrySet()) {
+			if (page.size() == MerkleRPC.MAX_LEVEL_KEYS) {
+				break;
+			}
+			page.put(entry.getKey(), entry.getValue());
+		}
+		final FutureResponse futureResponse = peerSync.merkleRPC().levelMessage(other, level, page, this,
+		        channelCreator);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isFailed()) {
+					futureSync.failed(future);
+					LOG.error("merkle sync failed at level {}: {}", level, future.failedReason());
+					return;
+				}
+				final KeyCollection keyCollection = future.responseMessage().keyCollection(0);
+				if (keyCollection != null) {
+					diff.addAll(keyCollection.keys());
+				}
+				final Number640 next = digests.higherKey(page.lastKey());
+				if (next != null) {
+					page(level, digests, next, diff, channelCreator, futureSync);
+					return;
+				}
+				LOG.debug("merkle level {}: {} of {} differ", level, diff.size(), digests.size());
+				if (diff.isEmpty()) {
+					futureSync.done(Collections.<Number640> emptyList());
+				} else if (level == 0) {
+					next(1, MerkleTree.domains(peer.storageLayer(), diff), channelCreator, futureSync);
+				} else if (level == 1) {
+					next(2, MerkleTree.buckets(peer.storageLayer(), diff), channelCreator, futureSync);
+				} else if (level == 2) {
+					next(3, MerkleTree.contentKeys(peer.storageLayer(), diff), channelCreator, futureSync);
+				} else if (level == 3) {
+					next(4, MerkleTree.versions(peer.storageLayer(), diff), channelCreator, futureSync);
+				} else {
+					data(diff, channelCreator, futureSync);
+				}
+			}
+		});
+	}
+
+	private void next(final int level, final NavigableMap<Number640, Collection<Number160>> digests,
+	        final ChannelClient channelCreator, final FutureDone<Collection<Number640>> futureSync) {
+		if (digests.isEmpty()) {
+			// removed locally in the meantime
+			futureSync.done(Collections.<Number640> emptyList());
+		} else {
+			level(level, digests, channelCreator, futureSync);
+		}
+	}
+
+	private void data(final Collection<Number640> keys, final ChannelClient channelCreator,
+	        final FutureDone<Collection<Number640>> futureSync) {
+		final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		for (Number640 key : keys) {
+			final Data data = peer.storageLayer().get(key);
+			if (data != null) {
+				dataMap.put(key, data);
+			}
+		}
+		if (dataMap.isEmpty()) {
+			futureSync.done(Collections.<Number640> emptyList());
+			return;
+		}
+		final FutureResponse futureResponse = peerSync.merkleRPC().dataMessage(other, new DataMap(dataMap), this,
+		        channelCreator);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isFailed()) {
+					futureSync.failed(future);
+					LOG.error("merkle sync failed {}", future.failedReason());
+					return;
+				}
+				final KeyCollection keyCollection = future.responseMessage().keyCollection(0);
+				futureSync.done(keyCollection == null ? Collections.<Number640> emptyList() : keyCollection.keys());
+			}
+		});
+	}
+}
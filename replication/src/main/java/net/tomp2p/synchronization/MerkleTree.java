@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.dht.StorageLayer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.storage.Data;
+
+/**
+ * The levels of the Merkle tree over the key space of one or more location keys. The tree follows the structure of
+ * {@link Number640}: the top level has one digest per location key, the next level one digest per domain, then one
+ * digest per bucket of content keys, one digest per content key and finally the hash of every version. The content keys of
+ * a bucket share the first byte, so a domain fans out into at most 256 buckets and only the content keys of the
+ * buckets that differ are compared. The digests of the content keys are maintained incrementally by the
+ * {@link StorageLayer}, so only the last level reads the data. A level is a map from a key, where the lower parts are
+ * zero, to its digest.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class MerkleTree {
+
+	private MerkleTree() {
+	}
+
+	/**
+	 * @return One digest per location key, the xor of the digests of its domains. Location keys without data are left
+	 *         out.
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> locations(final StorageLayer storageLayer,
+	        final Collection<Number160> locationKeys) {
+		final NavigableMap<Number640, Collection<Number160>> level = new TreeMap<Number640, Collection<Number160>>();
+		for (Number160 locationKey : locationKeys) {
+			Number160 digest = null;
+			for (DigestInfo digestInfo : storageLayer.digestSummaries(locationKey).values()) {
+				final Number160 domainDigest = digestInfo.keyDigest().xor(digestInfo.contentDigest());
+				digest = digest == null ? domainDigest : digest.xor(domainDigest);
+			}
+			if (digest != null) {
+				level.put(new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO), digest(digest));
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * @return One digest per domain stored under the given location keys
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> domains(final StorageLayer storageLayer,
+	        final Collection<Number640> locations) {
+		final NavigableMap<Number640, Collection<Number160>> level = new TreeMap<Number640, Collection<Number160>>();
+		for (Number640 location : locations) {
+			level.putAll(domains(storageLayer, location.locationKey()));
+		}
+		return level;
+	}
+
+	/**
+	 * @return One digest per domain stored under the location key
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> domains(final StorageLayer storageLayer,
+	        final Number160 locationKey) {
+		final NavigableMap<Number640, Collection<Number160>> level = new TreeMap<Number640, Collection<Number160>>();
+		for (Map.Entry<Number320, DigestInfo> entry : storageLayer.digestSummaries(locationKey).entrySet()) {
+			final DigestInfo digestInfo = entry.getValue();
+			level.put(new Number640(entry.getKey(), Number160.ZERO, Number160.ZERO),
+			        digest(digestInfo.keyDigest().xor(digestInfo.contentDigest())));
+		}
+		return level;
+	}
+
+	/**
+	 * @return One digest per bucket of content keys stored under the given domains, the digest of a bucket is the
+	 *         xor of the digests of its content keys
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> buckets(final StorageLayer storageLayer,
+	        final Collection<Number640> domains) {
+		final NavigableMap<Number640, Number160> buckets = new TreeMap<Number640, Number160>();
+		for (Number640 domain : domains) {
+			final Number320 locationAndDomainKey = domain.locationAndDomainKey();
+			for (Map.Entry<Number160, Number160> entry : storageLayer.digestSummaryContentKeys(locationAndDomainKey)
+			        .entrySet()) {
+				final Number640 bucket = new Number640(locationAndDomainKey, bucket(entry.getKey(), (byte) 0),
+				        Number160.ZERO);
+				final Number160 digest = buckets.get(bucket);
+				buckets.put(bucket, digest == null ? entry.getValue() : digest.xor(entry.getValue()));
+			}
+		}
+		final NavigableMap<Number640, Collection<Number160>> level = new TreeMap<Number640, Collection<Number160>>();
+		for (Map.Entry<Number640, Number160> entry : buckets.entrySet()) {
+			level.put(entry.getKey(), digest(entry.getValue()));
+		}
+		return level;
+	}
+
+	/**
+	 * @return One digest per content key stored in the given buckets
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> contentKeys(final StorageLayer storageLayer,
+	        final Collection<Number640> buckets) {
+		final NavigableMap<Number640, Collection<Number160>> level = new TreeMap<Number640, Collection<Number160>>();
+		Number320 previous = null;
+		NavigableMap<Number160, Number160> contentKeys = null;
+		// sorted, so that the content keys of a domain are read once
+		for (Number640 bucket : new TreeSet<Number640>(buckets)) {
+			final Number320 locationAndDomainKey = bucket.locationAndDomainKey();
+			if (!locationAndDomainKey.equals(previous)) {
+				contentKeys = storageLayer.digestSummaryContentKeys(locationAndDomainKey);
+				previous = locationAndDomainKey;
+			}
+			final Number160 from = bucket(bucket.contentKey(), (byte) 0);
+			final Number160 to = bucket(bucket.contentKey(), (byte) 0xff);
+			for (Map.Entry<Number160, Number160> entry : contentKeys.subMap(from, true, to, true).entrySet()) {
+				level.put(new Number640(locationAndDomainKey, entry.getKey(), Number160.ZERO), digest(entry.getValue()));
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * @return The keys of the buckets of the given content keys
+	 */
+	public static Set<Number640> bucketsOf(final Collection<Number640> contentKeys) {
+		final Set<Number640> buckets = new TreeSet<Number640>();
+		for (Number640 key : contentKeys) {
+			buckets.add(new Number640(key.locationAndDomainKey(), bucket(key.contentKey(), (byte) 0), Number160.ZERO));
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return The hash of every version stored under the given content keys
+	 */
+	public static NavigableMap<Number640, Collection<Number160>> versions(final StorageLayer storageLayer,
+	        final Collection<Number640> contentKeys) {
+		final NavigableMap<Number640, Collection<Number160>> level = new TreeMap<Number640, Collection<Number160>>();
+		for (Number640 contentKey : contentKeys) {
+			final Number480 key = contentKey.locationAndDomainAndContentKey();
+			final NavigableMap<Number640, Data> versions = storageLayer.get(new Number640(key, Number160.ZERO),
+			        new Number640(key, Number160.MAX_VALUE), -1, true);
+			for (Map.Entry<Number640, Data> entry : versions.entrySet()) {
+				level.put(entry.getKey(), digest(entry.getValue().hash()));
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * Compares a level received from another peer with the same level of this peer.
+	 *
+	 * @param remote
+	 *            The level of the other peer
+	 * @param local
+	 *            The level of this peer
+	 * @return The keys that the other peer has with a different digest or that this peer does not have
+	 */
+	public static List<Number640> diff(final NavigableMap<Number640, Collection<Number160>> remote,
+	        final NavigableMap<Number640, Collection<Number160>> local) {
+		final List<Number640> result = new ArrayList<Number640>();
+		for (Map.Entry<Number640, Collection<Number160>> entry : remote.entrySet()) {
+			final Collection<Number160> digest = local.get(entry.getKey());
+			// the collection type may change on the wire, compare the digest only
+			if (digest == null || entry.getValue().isEmpty()
+			        || !digest.iterator().next().equals(entry.getValue().iterator().next())) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return The content key with the first byte of the given content key and all other bytes set to fill
+	 */
+	private static Number160 bucket(final Number160 contentKey, final byte fill) {
+		final byte[] bytes = new byte[Number160.BYTE_ARRAY_SIZE];
+		Arrays.fill(bytes, fill);
+		bytes[0] = contentKey.toByteArray()[0];
+		return new Number160(bytes);
+	}
+
+	private static Collection<Number160> digest(final Number160 digest) {
+		return Collections.singletonList(digest);
+	}
+}
@@ -16,6 +16,7 @@
 
 package net.tomp2p.synchronization;
 
+import java.util.Collection;
 import java.util.NavigableMap;
 
 import net.tomp2p.dht.PeerDHT;
@@ -31,6 +32,7 @@ import net.tomp2p.storage.Data;
 public class PeerSync implements ReplicationSender {
 
 	private final SyncRPC syncRPC;
+	private final MerkleRPC merkleRPC;
 	private final PeerDHT peer;
 	private final int blockSize;
 	
@@ -57,6 +59,7 @@ public class PeerSync implements ReplicationSender {
 	public PeerSync(final PeerDHT peer, final ReplicationListener replicationListener, final int blockSize) {
 		this.peer = peer;
 		this.syncRPC = new SyncRPC(peer.peerBean(), peer.peer().connectionBean(), blockSize, peer.storageLayer(), replicationListener);
+		this.merkleRPC = new MerkleRPC(peer.peerBean(), peer.peer().connectionBean(), peer.storageLayer(), replicationListener);
 		this.blockSize = blockSize;
 	}
 
@@ -68,9 +71,40 @@ public class PeerSync implements ReplicationSender {
 		return syncRPC;
 	}
 
+	public MerkleRPC merkleRPC() {
+		return merkleRPC;
+	}
+
 	public SyncBuilder synchronize(PeerAddress other) {
 		return new SyncBuilder(this, other, blockSize);
 	}
+
+	/**
+	 * Compares the Merkle tree of a location key with the replica and only sends the entries that differ.
+	 * 
+	 * @param other
+	 *            The replica
+	 * @param locationKey
+	 *            The location key to synchronize
+	 * @return The builder
+	 */
+	public MerkleSyncBuilder merkleSynchronize(PeerAddress other, Number160 locationKey) {
+		return new MerkleSyncBuilder(this, other, locationKey);
+	}
+
+	/**
+	 * Compares the Merkle trees of many location keys with the replica in one pass. Location keys that are equal on
+	 * both peers are only compared at the top level.
+	 * 
+	 * @param other
+	 *            The replica
+	 * @param locationKeys
+	 *            The location keys to synchronize
+	 * @return The builder
+	 */
+	public MerkleSyncBuilder merkleSynchronize(PeerAddress other, Collection<Number160> locationKeys) {
+		return new MerkleSyncBuilder(this, other, locationKeys);
+	}
 	
 	@Override
     public FutureDone<SyncStat> sendDirect(PeerAddress other, Number160 locationKey, NavigableMap<Number640, Data> dataMap) {
@@ -7,6 +7,8 @@ import static org.junit.Assert.assertEquals;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.NavigableMap;
 import java.util.Random;
@@ -29,6 +31,7 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
 import net.tomp2p.synchronization.Checksum;
 import net.tomp2p.synchronization.Instruction;
+import net.tomp2p.synchronization.MerkleRPC;
 import net.tomp2p.synchronization.PeerSync;
 import net.tomp2p.synchronization.RSync;
 import net.tomp2p.synchronization.SyncBuilder;
@@ -601,4 +604,138 @@ public class SynchronizationTest {
 			}
 		}
 	}
+
+	@Test
+	public void testMerkleSync() throws IOException, InterruptedException, ClassNotFoundException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(3)).ports(4003).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(4)).ports(4004).start()).start();
+
+			final PeerSync senderSync = new PeerSync(sender, 5);
+			new PeerSync(receiver, 5);
+
+			final Number160 locationKey = new Number160(500);
+			Number640 key1 = new Number640(locationKey, Number160.ZERO, new Number160(1), Number160.ZERO);
+			Number640 key2 = new Number640(locationKey, Number160.ZERO, new Number160(2), Number160.ZERO);
+			Number640 key3 = new Number640(locationKey, new Number160(7), new Number160(3), Number160.ZERO);
+
+			sender.storageLayer().put(key1, new Data("same"), null, false, false, false);
+			sender.storageLayer().put(key2, new Data("new"), null, false, false, false);
+			sender.storageLayer().put(key3, new Data("missing"), null, false, false, false);
+			receiver.storageLayer().put(key1, new Data("same"), null, false, false, false);
+			receiver.storageLayer().put(key2, new Data("old"), null, false, false, false);
+
+			FutureDone<Collection<Number640>> future = senderSync.merkleSynchronize(receiver.peerAddress(),
+			        locationKey).start();
+			future.awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			// the equal entry is not sent
+			Assert.assertEquals(2, future.object().size());
+			Assert.assertFalse(future.object().contains(key1));
+			Assert.assertEquals("new", receiver.storageLayer().get(key2).object());
+			Assert.assertEquals("missing", receiver.storageLayer().get(key3).object());
+
+			// the trees are now equal and stop at the first level
+			future = senderSync.merkleSynchronize(receiver.peerAddress(), locationKey).start();
+			future.awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(0, future.object().size());
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
+
+	@Test
+	public void testMerkleSyncLocations() throws IOException, InterruptedException, ClassNotFoundException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(3)).ports(4003).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(4)).ports(4004).start()).start();
+
+			final PeerSync senderSync = new PeerSync(sender, 5);
+			new PeerSync(receiver, 5);
+
+			// only one of many location keys differs
+			final List<Number160> locationKeys = new ArrayList<Number160>();
+			for (int i = 0; i < 100; i++) {
+				Number160 locationKey = new Number160(1000 + i);
+				locationKeys.add(locationKey);
+				Number640 key = new Number640(locationKey, Number160.ZERO, new Number160(i), Number160.ZERO);
+				sender.storageLayer().put(key, new Data(i), null, false, false, false);
+				receiver.storageLayer().put(key, new Data(i), null, false, false, false);
+			}
+			Number640 changed = new Number640(new Number160(1042), Number160.ZERO, new Number160(42), Number160.ZERO);
+			sender.storageLayer().put(changed, new Data("changed"), null, false, false, false);
+			Number640 missing = new Number640(new Number160(1077), new Number160(7), new Number160(1), Number160.ZERO);
+			sender.storageLayer().put(missing, new Data("missing"), null, false, false, false);
+
+			FutureDone<Collection<Number640>> future = senderSync.merkleSynchronize(receiver.peerAddress(),
+			        locationKeys).start();
+			future.awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(2, future.object().size());
+			Assert.assertEquals("changed", receiver.storageLayer().get(changed).object());
+			Assert.assertEquals("missing", receiver.storageLayer().get(missing).object());
+
+			// equal location keys stop at the top level
+			future = senderSync.merkleSynchronize(receiver.peerAddress(), locationKeys).start();
+			future.awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(0, future.object().size());
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
+
+	@Test
+	public void testMerkleSyncPaged() throws IOException, InterruptedException, ClassNotFoundException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(3)).ports(4003).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(4)).ports(4004).start()).start();
+
+			final PeerSync senderSync = new PeerSync(sender, 5);
+			new PeerSync(receiver, 5);
+
+			// the content keys share the first byte, so they end up in one bucket that is sent in several pages
+			final Number160 locationKey = new Number160(500);
+			final int nr = MerkleRPC.MAX_LEVEL_KEYS * 2 + 500;
+			for (int i = 0; i < nr; i++) {
+				Number640 key = new Number640(locationKey, Number160.ZERO, new Number160(i), Number160.ZERO);
+				sender.storageLayer().put(key, new Data(i), null, false, false, false);
+				receiver.storageLayer().put(key, new Data(i), null, false, false, false);
+			}
+			Number640 changed = new Number640(locationKey, Number160.ZERO, new Number160(nr - 1), Number160.ZERO);
+			sender.storageLayer().put(changed, new Data("changed"), null, false, false, false);
+
+			FutureDone<Collection<Number640>> future = senderSync.merkleSynchronize(receiver.peerAddress(),
+			        locationKey).start();
+			future.awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(1, future.object().size());
+			Assert.assertTrue(future.object().contains(changed));
+			Assert.assertEquals("changed", receiver.storageLayer().get(changed).object());
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
 }
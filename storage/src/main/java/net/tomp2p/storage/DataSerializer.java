@@ -168,15 +168,20 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	    in.readFully(me);
 	    Number160 hash = new Number160(me);
 	    RandomAccessFile file = new RandomAccessFile(new File(path, hash.toString()), "r");
-	    FileChannel inChannel = file.getChannel();
-	    MappedByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
-	    buffer.load();
-	    ByteBuf buf = Unpooled.wrappedBuffer(buffer);
-	    Data data = Data.decodeHeader(buf, signatureFactory);
-	    data.decodeBuffer(buf);
-	    data.decodeDone(buf, signatureFactory);
-	    file.close();
-	    return data;
+	    try {
+	    	FileChannel inChannel = file.getChannel();
+	    	// the mapping stays valid after the file is closed, the pages are loaded on demand
+	    	MappedByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+	    	ByteBuf buf = Unpooled.wrappedBuffer(buffer);
+	    	// the data is a slice of the mapped file, it is not copied to the heap
+	    	Data data = Data.decodeWrapped(buf);
+	    	if (data == null || !data.decodeDone(buf, signatureFactory)) {
+	    		throw new IOException("data could not be read from " + hash);
+	    	}
+	    	return data;
+	    } finally {
+	    	file.close();
+	    }
     }
 
 	@Override
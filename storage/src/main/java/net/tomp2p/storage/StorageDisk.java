@@ -29,9 +29,13 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.SignatureFactory;
-import net.tomp2p.dht.Storage;
+import net.tomp2p.dht.DurableStorage;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
@@ -39,8 +43,23 @@ import net.tomp2p.peers.Number640;
 
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage backed by MapDB. By default, every change is committed right away. In the group commit mode, a change is
+ * added to a batch that a background thread commits every few milliseconds or once the batch is full. The caller does
+ * not wait for the disk, {@link #durable()} tells when the batch is committed, e.g., to delay the reply with
+ * {@link net.tomp2p.dht.StorageRPC#durableReplies(boolean)}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class StorageDisk implements DurableStorage {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(StorageDisk.class);
+	
 
-public class StorageDisk implements Storage {
     // Core
     final private NavigableMap<Number640, Data> dataMap;
     // Maintenance
@@ -57,8 +76,36 @@ public class StorageDisk implements Storage {
     
     final private int storageCheckIntervalMillis;
     
+    // Group commit, null if every change is committed right away
+    final private ScheduledExecutorService committer;
+    final private int commitBatchSize;
+    final private Object commitLock = new Object();
+    // guarded by commitLock
+    private int pending = 0;
+    private FutureDone<Void> batch = new FutureDone<Void>();
+    // the batch that is being committed, null if no commit is running
+    private FutureDone<Void> committing = null;
+    
+    final private Runnable commitTask = new Runnable() {
+		@Override
+		public void run() {
+			commitBatch();
+		}
+	};
+    
     //for full control
     public StorageDisk(DB db, Number160 peerId, File path, SignatureFactory signatureFactory, int storageCheckIntervalMillis) {
+    	this(db, peerId, path, signatureFactory, storageCheckIntervalMillis, 0, 1);
+    }
+    
+	/**
+	 * @param commitIntervalMillis
+	 *            The interval of the group commit. If 0, every change is committed right away.
+	 * @param commitBatchSize
+	 *            The number of changes after which the batch is committed without waiting for the interval
+	 */
+    public StorageDisk(DB db, Number160 peerId, File path, SignatureFactory signatureFactory, int storageCheckIntervalMillis,
+    		int commitIntervalMillis, int commitBatchSize) {
     	this.db = db;
     	DataSerializer dataSerializer = new DataSerializer(path, signatureFactory);
     	this.dataMap = db.createTreeMap("dataMap_" + peerId.toString()).valueSerializer(dataSerializer).makeOrGet();
@@ -69,6 +116,14 @@ public class StorageDisk implements Storage {
     	this.responsibilityMap = db.createTreeMap("responsibilityMap_" + peerId.toString()).makeOrGet();
     	this.responsibilityMapRev = db.createTreeMap("responsibilityMapRev_" + peerId.toString()).makeOrGet();
     	this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+    	this.commitBatchSize = Math.max(1, commitBatchSize);
+    	if (commitIntervalMillis > 0) {
+    		this.committer = Executors.newSingleThreadScheduledExecutor();
+    		this.committer.scheduleWithFixedDelay(commitTask, commitIntervalMillis, commitIntervalMillis,
+    		        TimeUnit.MILLISECONDS);
+    	} else {
+    		this.committer = null;
+    	}
     }
     
     //set parameter to a reasonable default
@@ -80,7 +135,7 @@ public class StorageDisk implements Storage {
     @Override
     public Data put(Number640 key, Data value) {
 		Data oldData = dataMap.put(key, value);
-		db.commit();
+		commit();
         return oldData;
     }
     
@@ -103,7 +158,7 @@ public class StorageDisk implements Storage {
     @Override
     public Data remove(Number640 key, boolean returnData) {
     	Data retVal = dataMap.remove(key);
-		db.commit();
+		commit();
 		return retVal;
     }
     
@@ -116,7 +171,7 @@ public class StorageDisk implements Storage {
         }
 		
         tmp.clear();
-        db.commit();
+        commit();
         return retVal;
     }
     
@@ -139,7 +194,7 @@ public class StorageDisk implements Storage {
 			return;
 		}
 		removeRevTimeout(key, oldExpiration);
-		db.commit();
+		commit();
 	}
  	
  	private void putIfAbsent2(long expiration, Number640 key) {
@@ -158,7 +213,7 @@ public class StorageDisk implements Storage {
             return;
         }
         removeRevTimeout(key, expiration);
-        db.commit();
+        commit();
     }
  	
  	private void removeRevTimeout(Number640 key, Long expiration) {
@@ -216,7 +271,7 @@ public class StorageDisk implements Storage {
 		}
 		contentIDs.add(locationKey);
 		responsibilityMapRev.put(peerId, contentIDs);
-		db.commit();
+		commit();
 		return hasChanged;
     }
 
@@ -226,7 +281,7 @@ public class StorageDisk implements Storage {
     	if(peerId != null) {
     		removeRevResponsibility(peerId, locationKey);
     	}
-    	db.commit();
+    	commit();
     }
 	
 	private void removeRevResponsibility(Number160 peerId, Number160 locationKey) {
@@ -244,9 +299,81 @@ public class StorageDisk implements Storage {
 	// Misc
 	@Override
     public void close() {
+		if (committer != null) {
+			committer.shutdown();
+			try {
+				committer.awaitTermination(storageCheckIntervalMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			commitBatch();
+		}
 	    db.close();	    
     }
 	
+	// Group commit
+	@Override
+	public FutureDone<Void> durable() {
+		synchronized (commitLock) {
+			if (pending > 0) {
+				return batch;
+			}
+			// the changes may have been handed to a commit that is still running
+			if (committing != null) {
+				return committing;
+			}
+			return new FutureDone<Void>().done();
+		}
+	}
+	
+	private void commit() {
+		if (committer == null) {
+			db.commit();
+			return;
+		}
+		synchronized (commitLock) {
+			if (++pending == commitBatchSize && !committer.isShutdown()) {
+				committer.execute(commitTask);
+			}
+		}
+	}
+	
+	/**
+	 * Commits all changes that have been made so far and completes the future of their batch. The changes that are
+	 * made during the commit may be part of it, but they are committed again with the next batch. Until the commit has
+	 * finished, {@link #durable()} returns the future of the batch that is being committed.
+	 */
+	private void commitBatch() {
+		final FutureDone<Void> toComplete;
+		synchronized (commitLock) {
+			if (pending == 0) {
+				return;
+			}
+			toComplete = batch;
+			batch = new FutureDone<Void>();
+			pending = 0;
+			committing = toComplete;
+		}
+		try {
+			db.commit();
+		} catch (RuntimeException e) {
+			LOG.error("group commit failed", e);
+			committed(toComplete);
+			toComplete.failed(e);
+			return;
+		}
+		committed(toComplete);
+		toComplete.done();
+	}
+	
+	private void committed(FutureDone<Void> toComplete) {
+		synchronized (commitLock) {
+			if (committing == toComplete) {
+				committing = null;
+			}
+		}
+	}
+	
 	// Protection Domain
 	@Override
     public boolean protectDomain(Number320 key, PublicKey publicKey) {
@@ -0,0 +1,1346 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import net.tomp2p.dht.CompactingStorage;
+import net.tomp2p.dht.IndexedDataMap;
+import net.tomp2p.dht.Number640Index;
+import net.tomp2p.dht.Storage;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A log structured storage. Every change is appended as a record to a segment file and the values are read from the
+ * segments, only the index from the key to the record is in memory. Thus, a write is a sequential append and not a
+ * commit of a B-tree as in {@link StorageDisk}. Concurrent writers share one fsync (group commit), how often the log
+ * is synced is set with the {@link FsyncPolicy}.
+ * <p>
+ * The index and the meta data (timeouts, protection and responsibility) are written to a checkpoint by
+ * {@link #compact()} once a segment is full, after a compaction and on close. The checkpoint is written while writes
+ * continue, the replay of the records after its start position is idempotent. On startup, the checkpoint is loaded and
+ * the log is replayed from the position of the checkpoint. A torn record at the end of the log is cut off. Segments
+ * where most of the records are overwritten or removed are reclaimed by {@link #compact()}, which the
+ * {@link net.tomp2p.dht.StorageLayer} calls periodically. A compaction drops the remove and meta data records of the
+ * reclaimed segments, thus a compacted log cannot be replayed from the start and needs its checkpoint.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageLog implements CompactingStorage {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageLog.class);
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final int DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+	/**
+	 * When the log is forced to disk.
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * A write returns once its record is on disk. Concurrent writes share one fsync.
+		 */
+		ALWAYS,
+		/**
+		 * A write returns right away, the log is forced at most once per interval by the next write.
+		 */
+		INTERVAL,
+		/**
+		 * The operating system decides when the log is written to disk.
+		 */
+		NEVER
+	}
+
+	// record: 4 bytes length of type and body, 4 bytes crc of type and body, 1 byte type, body
+	private static final int RECORD_HEADER_SIZE = 4 + 4;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte TIMEOUT = 3;
+	private static final byte REMOVE_TIMEOUT = 4;
+	private static final byte PROTECT_DOMAIN = 5;
+	private static final byte PROTECT_ENTRY = 6;
+	private static final byte RESPONSIBILITY = 7;
+	private static final byte REMOVE_RESPONSIBILITY = 8;
+	// the body of a put starts with the key and the valid from timestamp
+	private static final int PUT_DATA_OFFSET = 1 + 4 * Number160.BYTE_ARRAY_SIZE + 8;
+
+	private static final int CHECKPOINT_MAGIC = 0x746c6f67;
+	private static final String CHECKPOINT = "checkpoint";
+	private static final String COMPACTED = "compacted";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int MAX_READ_ATTEMPTS = 3;
+
+	// Core
+	final private Number640Index index = new Number640Index();
+	// Maintenance
+	final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
+	final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+	// Protection
+	final private Map<Number320, PublicKey> protectedDomainMap = new ConcurrentHashMap<Number320, PublicKey>();
+	final private Map<Number480, PublicKey> protectedEntryMap = new ConcurrentHashMap<Number480, PublicKey>();
+	// Responsibility
+	final private Map<Number160, Number160> responsibilityMap = new ConcurrentHashMap<Number160, Number160>();
+	final private Map<Number160, Set<Number160>> responsibilityMapRev = new ConcurrentHashMap<Number160, Set<Number160>>();
+
+	// Log
+	final private Map<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	final private File path;
+	final private long segmentSize;
+	final private FsyncPolicy fsyncPolicy;
+	final private int fsyncIntervalMillis;
+	final private int storageCheckIntervalMillis;
+
+	// guarded by this
+	private Segment current;
+	private long sequence = 0;
+
+	// one checkpoint or compaction at a time, taken before the lock of this storage
+	final private Object checkpointLock = new Object();
+	private volatile boolean checkpointPending = false;
+
+	// group commit, guarded by syncLock
+	final private Object syncLock = new Object();
+	private long syncedSequence = 0;
+	private boolean syncing = false;
+	private long lastSyncMillis = System.currentTimeMillis();
+
+	final private IndexedDataMap.Values values = new IndexedDataMap.Values() {
+		@Override
+		public Data value(final Number640 key, final long address) {
+			final Data data = read(address);
+			// compacted in the meantime
+			return data == null ? get(key) : data;
+		}
+
+		@Override
+		public Data remove(final Number640 key) {
+			return StorageLog.this.remove(key, true);
+		}
+	};
+
+	private static final class Segment {
+		private final int id;
+		private final File file;
+		// an interrupted thread closes the channel for all threads, then it is replaced
+		private volatile RandomAccessFile randomAccessFile;
+		private volatile FileChannel channel;
+		// guarded by the segment
+		private boolean closed = false;
+		// guarded by the storage
+		private long size;
+		private long live = 0;
+
+		private Segment(final int id, final File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			this.channel = randomAccessFile.getChannel();
+			this.size = channel.size();
+		}
+
+		/**
+		 * Opens the segment again if the channel has been closed by an interrupt.
+		 * 
+		 * @param closedChannel
+		 *            The channel that has been found closed
+		 * @return False if the segment itself has been closed
+		 */
+		private synchronized boolean reopen(final FileChannel closedChannel) throws IOException {
+			if (closed) {
+				return false;
+			}
+			if (channel == closedChannel) {
+				randomAccessFile = new RandomAccessFile(file, "rw");
+				channel = randomAccessFile.getChannel();
+			}
+			return true;
+		}
+
+		private synchronized void close() throws IOException {
+			closed = true;
+			channel.close();
+			randomAccessFile.close();
+		}
+	}
+
+	//set parameter to a reasonable default
+	public StorageLog(File path) throws IOException {
+		this(path, 60 * 1000, DEFAULT_SEGMENT_SIZE, FsyncPolicy.ALWAYS, DEFAULT_FSYNC_INTERVAL_MILLIS);
+	}
+
+	//for full control
+	public StorageLog(File path, int storageCheckIntervalMillis, long segmentSize, FsyncPolicy fsyncPolicy,
+	        int fsyncIntervalMillis) throws IOException {
+		if (segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("segment size too large: " + segmentSize);
+		}
+		this.path = path;
+		this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+		this.segmentSize = segmentSize;
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		recover();
+	}
+
+	// Core
+	@Override
+	public Data put(Number640 key, Data value) {
+		final byte[] body = putBody(key, value);
+		final long seq;
+		final Data oldData;
+		synchronized (this) {
+			final long address = append(body);
+			final long oldAddress = index.put(key, address);
+			current.live += RECORD_HEADER_SIZE + body.length;
+			oldData = oldAddress == Number640Index.NOT_FOUND ? null : read(oldAddress);
+			dead(oldAddress);
+			seq = sequence;
+		}
+		sync(seq);
+		return oldData;
+	}
+
+	@Override
+	public Data get(Number640 key) {
+		long address = index.get(key);
+		while (address != Number640Index.NOT_FOUND) {
+			final Data data = read(address);
+			if (data != null) {
+				return data;
+			}
+			// the segment has been compacted, the index has the new address
+			final long newAddress = index.get(key);
+			if (newAddress == address) {
+				throw new IllegalStateException("the value of " + key + " is in a deleted segment");
+			}
+			address = newAddress;
+		}
+		return null;
+	}
+
+	@Override
+	public boolean contains(Number640 key) {
+		return index.get(key) != Number640Index.NOT_FOUND;
+	}
+
+	@Override
+	public int contains(Number640 from, Number640 to) {
+		return index.count(from, true, to, true);
+	}
+
+	@Override
+	public Data remove(Number640 key, boolean returnData) {
+		final long seq;
+		final Data oldData;
+		synchronized (this) {
+			final long oldAddress = index.remove(key);
+			if (oldAddress == Number640Index.NOT_FOUND) {
+				return null;
+			}
+			append(keyBody(REMOVE, key));
+			oldData = returnData ? read(oldAddress) : null;
+			dead(oldAddress);
+			seq = sequence;
+		}
+		sync(seq);
+		return oldData;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> remove(Number640 from, Number640 to) {
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		final long seq;
+		synchronized (this) {
+			for (Map.Entry<Number640, Long> entry : index.range(from, true, to, true, false, Integer.MAX_VALUE)) {
+				if (index.remove(entry.getKey(), entry.getValue())) {
+					append(keyBody(REMOVE, entry.getKey()));
+					retVal.put(entry.getKey(), read(entry.getValue()));
+					dead(entry.getValue());
+				}
+			}
+			seq = sequence;
+		}
+		sync(seq);
+		return retVal;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> subMap(Number640 from, Number640 to) {
+		return new IndexedDataMap(index, values, from, true, to, true, false);
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> map() {
+		return new IndexedDataMap(index, values);
+	}
+
+	// Maintenance
+	@Override
+	public void addTimeout(Number640 key, long expiration) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(TIMEOUT);
+			writeNumber640(out, key);
+			out.writeLong(expiration);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		final long seq;
+		synchronized (this) {
+			append(bytes.toByteArray());
+			addTimeoutInternal(key, expiration);
+			seq = sequence;
+		}
+		sync(seq);
+	}
+
+	@Override
+	public void removeTimeout(Number640 key) {
+		final long seq;
+		synchronized (this) {
+			if (!timeoutMap.containsKey(key)) {
+				return;
+			}
+			append(keyBody(REMOVE_TIMEOUT, key));
+			removeTimeoutInternal(key);
+			seq = sequence;
+		}
+		sync(seq);
+	}
+
+	@Override
+	public Collection<Number640> subMapTimeout(long to) {
+		SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
+		Collection<Number640> toRemove = new ArrayList<Number640>();
+		for (Set<Number640> set : tmp.values()) {
+			toRemove.addAll(set);
+		}
+		return toRemove;
+	}
+
+	private void addTimeoutInternal(Number640 key, long expiration) {
+		Long oldExpiration = timeoutMap.put(key, expiration);
+		Set<Number640> timeouts = timeoutMapRev.get(expiration);
+		if (timeouts == null) {
+			timeouts = Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>());
+			timeoutMapRev.put(expiration, timeouts);
+		}
+		timeouts.add(key);
+		if (oldExpiration != null && oldExpiration != expiration) {
+			removeRevTimeout(key, oldExpiration);
+		}
+	}
+
+	private void removeTimeoutInternal(Number640 key) {
+		Long expiration = timeoutMap.remove(key);
+		if (expiration != null) {
+			removeRevTimeout(key, expiration);
+		}
+	}
+
+	private void removeRevTimeout(Number640 key, Long expiration) {
+		Set<Number640> tmp = timeoutMapRev.get(expiration);
+		if (tmp != null) {
+			tmp.remove(key);
+			if (tmp.isEmpty()) {
+				timeoutMapRev.remove(expiration);
+			}
+		}
+	}
+
+	// Protection Domain
+	@Override
+	public boolean protectDomain(Number320 key, PublicKey publicKey) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(PROTECT_DOMAIN);
+			writeNumber320(out, key);
+			writePublicKey(out, publicKey);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		final long seq;
+		synchronized (this) {
+			append(bytes.toByteArray());
+			protectDomainInternal(key, publicKey);
+			seq = sequence;
+		}
+		sync(seq);
+		return true;
+	}
+
+	@Override
+	public boolean isDomainProtectedByOthers(Number320 key, PublicKey publicKey) {
+		PublicKey other = protectedDomainMap.get(key);
+		if (other == null) {
+			return false;
+		}
+		return !other.equals(publicKey);
+	}
+
+	private void protectDomainInternal(Number320 key, PublicKey publicKey) {
+		if (publicKey == null) {
+			protectedDomainMap.remove(key);
+		} else {
+			protectedDomainMap.put(key, publicKey);
+		}
+	}
+
+	// Protection Entry
+	@Override
+	public boolean protectEntry(Number480 key, PublicKey publicKey) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(PROTECT_ENTRY);
+			writeNumber480(out, key);
+			writePublicKey(out, publicKey);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		final long seq;
+		synchronized (this) {
+			append(bytes.toByteArray());
+			protectEntryInternal(key, publicKey);
+			seq = sequence;
+		}
+		sync(seq);
+		return true;
+	}
+
+	@Override
+	public boolean isEntryProtectedByOthers(Number480 key, PublicKey publicKey) {
+		PublicKey other = protectedEntryMap.get(key);
+		if (other == null) {
+			return false;
+		}
+		return !other.equals(publicKey);
+	}
+
+	private void protectEntryInternal(Number480 key, PublicKey publicKey) {
+		if (publicKey == null) {
+			protectedEntryMap.remove(key);
+		} else {
+			protectedEntryMap.put(key, publicKey);
+		}
+	}
+
+	// Responsibility
+	@Override
+	public Number160 findPeerIDsForResponsibleContent(Number160 locationKey) {
+		return responsibilityMap.get(locationKey);
+	}
+
+	@Override
+	public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
+		return responsibilityMapRev.get(peerID);
+	}
+
+	@Override
+	public boolean updateResponsibilities(Number160 locationKey, Number160 peerId) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(RESPONSIBILITY);
+			writeNumber160(out, locationKey);
+			writeNumber160(out, peerId);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		final long seq;
+		final boolean hasChanged;
+		synchronized (this) {
+			if (peerId.equals(responsibilityMap.get(locationKey))) {
+				return false;
+			}
+			append(bytes.toByteArray());
+			hasChanged = updateResponsibilitiesInternal(locationKey, peerId);
+			seq = sequence;
+		}
+		sync(seq);
+		return hasChanged;
+	}
+
+	@Override
+	public void removeResponsibility(Number160 locationKey) {
+		final long seq;
+		synchronized (this) {
+			if (!responsibilityMap.containsKey(locationKey)) {
+				return;
+			}
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeByte(REMOVE_RESPONSIBILITY);
+				writeNumber160(out, locationKey);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			append(bytes.toByteArray());
+			removeResponsibilityInternal(locationKey);
+			seq = sequence;
+		}
+		sync(seq);
+	}
+
+	private boolean updateResponsibilitiesInternal(Number160 locationKey, Number160 peerId) {
+		final Number160 oldPeerID = responsibilityMap.put(locationKey, peerId);
+		final boolean hasChanged;
+		if (oldPeerID != null) {
+			if (oldPeerID.equals(peerId)) {
+				hasChanged = false;
+			} else {
+				removeRevResponsibility(oldPeerID, locationKey);
+				hasChanged = true;
+			}
+		} else {
+			hasChanged = true;
+		}
+		Set<Number160> contentIDs = responsibilityMapRev.get(peerId);
+		if (contentIDs == null) {
+			contentIDs = Collections.newSetFromMap(new ConcurrentHashMap<Number160, Boolean>());
+			responsibilityMapRev.put(peerId, contentIDs);
+		}
+		contentIDs.add(locationKey);
+		return hasChanged;
+	}
+
+	private void removeResponsibilityInternal(Number160 locationKey) {
+		final Number160 peerId = responsibilityMap.remove(locationKey);
+		if (peerId != null) {
+			removeRevResponsibility(peerId, locationKey);
+		}
+	}
+
+	private void removeRevResponsibility(Number160 peerId, Number160 locationKey) {
+		Set<Number160> contentIDs = responsibilityMapRev.get(peerId);
+		if (contentIDs != null) {
+			contentIDs.remove(locationKey);
+			if (contentIDs.isEmpty()) {
+				responsibilityMapRev.remove(peerId);
+			}
+		}
+	}
+
+	// Misc
+	@Override
+	public void close() {
+		synchronized (checkpointLock) {
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				LOG.error("could not write the checkpoint", e);
+			}
+			synchronized (this) {
+				if (current == null) {
+					return;
+				}
+				try {
+					force(current, current.channel);
+					for (Segment segment : segments.values()) {
+						segment.close();
+					}
+				} catch (IOException e) {
+					LOG.error("could not close the log", e);
+				}
+				segments.clear();
+				index.clear();
+				current = null;
+			}
+		}
+	}
+
+	@Override
+	public int storageCheckIntervalMillis() {
+		return storageCheckIntervalMillis;
+	}
+
+	/**
+	 * Compacts the segments where less than half of the bytes are live.
+	 *
+	 * @return The number of segments that have been deleted
+	 */
+	@Override
+	public int compact() {
+		return compact(DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * Appends the live values of sparse segments to the end of the log, writes a checkpoint and deletes the sparse
+	 * segments. Writes are blocked while the values are moved, but not while the checkpoint is written. If no segment
+	 * is sparse, the checkpoint is written if a segment has been filled since the last one.
+	 *
+	 * @param threshold
+	 *            A segment is compacted if the ratio of live bytes to its size is below this threshold
+	 * @return The number of segments that have been deleted
+	 */
+	public int compact(final double threshold) {
+		synchronized (checkpointLock) {
+			final Set<Integer> sparse = new HashSet<Integer>();
+			int moved = 0;
+			try {
+				synchronized (this) {
+					if (current == null) {
+						return 0;
+					}
+					for (Segment segment : segments.values()) {
+						if (segment != current && segment.live < segment.size * threshold) {
+							sparse.add(segment.id);
+						}
+					}
+				}
+				if (sparse.isEmpty()) {
+					// the index is not scanned and the checkpoint is written while writes continue
+					if (checkpointPending) {
+						checkpoint();
+					}
+					return 0;
+				}
+				// the sparse segments stay sparse, only a compaction removes segments and it holds the checkpoint lock
+				synchronized (this) {
+					for (Map.Entry<Number640, Long> entry : index.range(null, false, null, false, false,
+					        Integer.MAX_VALUE)) {
+						final long address = entry.getValue();
+						if (!sparse.contains(segmentId(address))) {
+							continue;
+						}
+						final byte[] body = readBody(address);
+						final long newAddress = append(body);
+						current.live += RECORD_HEADER_SIZE + body.length;
+						index.put(entry.getKey(), newAddress);
+						moved++;
+					}
+				}
+				// once the checkpoint is written, the log before the checkpoint is not replayed anymore
+				checkpoint();
+				synchronized (this) {
+					// the removes and the meta data of the sparse segments are only in the checkpoint from now on
+					markCompacted();
+					for (Integer segmentId : sparse) {
+						final Segment segment = segments.remove(segmentId);
+						segment.close();
+						if (!segment.file.delete()) {
+							LOG.warn("could not delete {}", segment.file);
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("compaction failed", e);
+			}
+			LOG.debug("compacted {} segments, moved {} values", sparse.size(), moved);
+			return sparse.size();
+		}
+	}
+
+	/**
+	 * @return The number of segment files
+	 */
+	public int segments() {
+		return segments.size();
+	}
+
+	/**
+	 * Appends a record to the log. The caller holds the lock of this storage.
+	 *
+	 * @return The address of the record
+	 */
+	private long append(final byte[] body) {
+		final int recordLength = RECORD_HEADER_SIZE + body.length;
+		try {
+			if (current.size > 0 && current.size + recordLength > segmentSize) {
+				roll();
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			final ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+			buffer.putInt(body.length);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(body);
+			buffer.flip();
+			final long address = address(current.id, current.size);
+			long position = current.size;
+			while (buffer.hasRemaining()) {
+				final FileChannel channel = current.channel;
+				try {
+					position += channel.write(buffer, position);
+				} catch (ClosedByInterruptException e) {
+					current.reopen(channel);
+					throw e;
+				} catch (ClosedChannelException e) {
+					// closed by an interrupted reader, write the whole record again
+					if (!current.reopen(channel)) {
+						throw e;
+					}
+					buffer.rewind();
+					position = current.size;
+				}
+			}
+			current.size += recordLength;
+			sequence++;
+			return address;
+		} catch (IOException e) {
+			throw new IllegalStateException("could not append to the log", e);
+		}
+	}
+
+	/**
+	 * Starts a new segment. All records of the full segment are forced to disk. The next {@link #compact()} writes a
+	 * checkpoint, so the replay on startup is limited to the segments after it. The checkpoint is not written here, as
+	 * it would block the writers for the time it takes to write the whole index.
+	 */
+	private void roll() throws IOException {
+		force(current, current.channel);
+		synchronized (syncLock) {
+			syncedSequence = sequence;
+		}
+		final int id = current.id + 1;
+		current = new Segment(id, segmentFile(id));
+		segments.put(id, current);
+		checkpointPending = true;
+	}
+
+	/**
+	 * Waits until the record with this sequence number is on disk, depending on the {@link FsyncPolicy}. If a force is
+	 * in progress, the writer waits for it and the next force covers all records written in the meantime.
+	 */
+	private void sync(final long seq) {
+		if (fsyncPolicy == FsyncPolicy.NEVER) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+				if (syncing || System.currentTimeMillis() - lastSyncMillis < fsyncIntervalMillis) {
+					return;
+				}
+			} else {
+				while (syncing && syncedSequence < seq) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (syncedSequence >= seq) {
+					return;
+				}
+			}
+			syncing = true;
+		}
+		long target = 0;
+		try {
+			final Segment segment;
+			final FileChannel channel;
+			synchronized (this) {
+				if (current == null) {
+					return;
+				}
+				target = sequence;
+				segment = current;
+				channel = current.channel;
+			}
+			force(segment, channel);
+		} catch (IOException e) {
+			target = 0;
+			throw new IllegalStateException("could not sync the log", e);
+		} finally {
+			synchronized (syncLock) {
+				syncedSequence = Math.max(syncedSequence, target);
+				lastSyncMillis = System.currentTimeMillis();
+				syncing = false;
+				syncLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Forces a segment to disk. A channel closed by an interrupted reader is opened again and forced, the file is the
+	 * same. A segment that has been closed was forced before.
+	 */
+	private static void force(final Segment segment, final FileChannel channel) throws IOException {
+		try {
+			channel.force(false);
+		} catch (ClosedByInterruptException e) {
+			segment.reopen(channel);
+			throw e;
+		} catch (ClosedChannelException e) {
+			if (segment.reopen(channel)) {
+				segment.channel.force(false);
+			}
+		}
+	}
+
+	/**
+	 * Marks a record as overwritten. The caller holds the lock of this storage.
+	 */
+	private void dead(final long address) {
+		if (address == Number640Index.NOT_FOUND) {
+			return;
+		}
+		final Segment segment = segments.get(segmentId(address));
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		if (segment != null && readSegment(address, header, offset(address))) {
+			segment.live -= RECORD_HEADER_SIZE + header.getInt(0);
+		}
+	}
+
+	/**
+	 * @return The data of the put record at the address, or null if the segment has been compacted in the meantime
+	 */
+	private Data read(final long address) {
+		final byte[] body = readBody(address);
+		if (body == null) {
+			return null;
+		}
+		final ByteBuf buf = Unpooled.wrappedBuffer(body, PUT_DATA_OFFSET, body.length - PUT_DATA_OFFSET);
+		// the record body is already a copy, the data wraps it
+		final Data data = Data.decodeWrapped(buf);
+		if (data == null || !data.decodeDone(buf)) {
+			throw new IllegalStateException("corrupt record at " + address);
+		}
+		final long validFromMillis = ByteBuffer.wrap(body, PUT_DATA_OFFSET - 8, 8).getLong();
+		return data.validFromMillis(validFromMillis);
+	}
+
+	/**
+	 * @return The body of the record at the address, or null if the segment has been compacted in the meantime
+	 */
+	private byte[] readBody(final long address) {
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		if (!readSegment(address, header, offset(address))) {
+			return null;
+		}
+		final ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+		if (!readSegment(address, body, offset(address) + RECORD_HEADER_SIZE)) {
+			return null;
+		}
+		return body.array();
+	}
+
+	/**
+	 * Reads from the segment of the address. A thread that is interrupted while reading closes the channel for all
+	 * threads. The channel is opened again and the read of the interrupted thread fails, while the reads of the other
+	 * threads are repeated.
+	 * 
+	 * @return False if the segment has been compacted in the meantime
+	 */
+	private boolean readSegment(final long address, final ByteBuffer buffer, final long position) {
+		for (int i = 0; i < MAX_READ_ATTEMPTS; i++) {
+			final Segment segment = segments.get(segmentId(address));
+			if (segment == null) {
+				return false;
+			}
+			final FileChannel channel = segment.channel;
+			buffer.clear();
+			try {
+				try {
+					readFully(channel, buffer, position);
+					return true;
+				} catch (ClosedByInterruptException e) {
+					segment.reopen(channel);
+					throw new IllegalStateException("interrupted while reading from the log", e);
+				} catch (ClosedChannelException e) {
+					if (!segment.reopen(channel)) {
+						return false;
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("could not read from the log", e);
+			}
+		}
+		throw new IllegalStateException("could not read from the log, the channel has been closed "
+		        + MAX_READ_ATTEMPTS + " times");
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+	        throws IOException {
+		long pos = position;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, pos);
+			if (read < 0) {
+				throw new IOException("unexpected end of segment");
+			}
+			pos += read;
+		}
+	}
+
+	private static byte[] putBody(final Number640 key, final Data value) {
+		final ByteBuf header = Unpooled.buffer();
+		final ByteBuf done = Unpooled.buffer();
+		try {
+			value.encodeHeader(header);
+			value.encodeDone(done);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(PUT_DATA_OFFSET + header.readableBytes()
+			        + value.length() + done.readableBytes());
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(PUT);
+			writeNumber640(out, key);
+			out.writeLong(value.validFromMillis());
+			header.readBytes(out, header.readableBytes());
+			for (ByteBuffer payload : value.toByteBuffers()) {
+				final byte[] me = new byte[payload.remaining()];
+				payload.duplicate().get(me);
+				out.write(me);
+			}
+			done.readBytes(out, done.readableBytes());
+			return bytes.toByteArray();
+		} catch (Exception e) {
+			throw new IllegalStateException("data cannot be written to the log", e);
+		} finally {
+			header.release();
+			done.release();
+		}
+	}
+
+	private static byte[] keyBody(final byte type, final Number640 key) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + 4 * Number160.BYTE_ARRAY_SIZE);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			writeNumber640(out, key);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	// Recovery
+	private void recover() throws IOException {
+		if (!path.isDirectory() && !path.mkdirs()) {
+			throw new IOException("cannot create " + path);
+		}
+		final File[] files = path.listFiles();
+		final List<Integer> ids = new ArrayList<Integer>();
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+				        name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		Collections.sort(ids);
+		for (Integer id : ids) {
+			segments.put(id, new Segment(id, segmentFile(id)));
+		}
+		long start = loadCheckpoint();
+		if (start == Number640Index.NOT_FOUND) {
+			if (new File(path, COMPACTED).exists()) {
+				// the removes and the meta data of the deleted segments would be lost
+				throw new IOException("the log in " + path
+				        + " has been compacted and cannot be replayed without a valid checkpoint");
+			}
+			start = ids.isEmpty() ? 0 : address(ids.get(0), 0);
+		}
+		for (int i = 0; i < ids.size(); i++) {
+			final int id = ids.get(i);
+			if (id < segmentId(start)) {
+				continue;
+			}
+			final Segment segment = segments.get(id);
+			final long end = replay(segment, id == segmentId(start) ? offset(start) : 0);
+			if (end < segment.size) {
+				if (i < ids.size() - 1) {
+					throw new IOException("corrupt record in " + segment.file + " at " + end);
+				}
+				LOG.warn("cutting off a torn record in {} at {}", segment.file, end);
+				segment.channel.truncate(end);
+				segment.size = end;
+			}
+		}
+		if (ids.isEmpty()) {
+			current = new Segment(0, segmentFile(0));
+			segments.put(0, current);
+		} else {
+			current = segments.get(ids.get(ids.size() - 1));
+		}
+		LOG.debug("recovered {} entries from {} segments", index.size(), segments.size());
+	}
+
+	/**
+	 * @return The position after the last valid record
+	 */
+	private long replay(final Segment segment, final long from) throws IOException {
+		long position = from;
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		while (position + RECORD_HEADER_SIZE <= segment.size) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			final int length = header.getInt(0);
+			final int crcValue = header.getInt(4);
+			if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.size) {
+				break;
+			}
+			final ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(segment.channel, body, position + RECORD_HEADER_SIZE);
+			final CRC32 crc = new CRC32();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != crcValue) {
+				break;
+			}
+			apply(body.array(), address(segment.id, position));
+			position += RECORD_HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	private void apply(final byte[] body, final long address) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		final byte type = in.readByte();
+		switch (type) {
+		case PUT:
+			final long oldAddress = index.put(readNumber640(in), address);
+			// the checkpoint may already have the records written while it was written
+			if (oldAddress != address) {
+				dead(oldAddress);
+			}
+			segments.get(segmentId(address)).live += RECORD_HEADER_SIZE + body.length;
+			break;
+		case REMOVE:
+			dead(index.remove(readNumber640(in)));
+			break;
+		case TIMEOUT:
+			addTimeoutInternal(readNumber640(in), in.readLong());
+			break;
+		case REMOVE_TIMEOUT:
+			removeTimeoutInternal(readNumber640(in));
+			break;
+		case PROTECT_DOMAIN:
+			protectDomainInternal(readNumber320(in), readPublicKey(in));
+			break;
+		case PROTECT_ENTRY:
+			protectEntryInternal(readNumber480(in), readPublicKey(in));
+			break;
+		case RESPONSIBILITY:
+			updateResponsibilitiesInternal(readNumber160(in), readNumber160(in));
+			break;
+		case REMOVE_RESPONSIBILITY:
+			removeResponsibilityInternal(readNumber160(in));
+			break;
+		default:
+			throw new IOException("unknown record type " + type);
+		}
+	}
+
+	// Checkpoint
+	/**
+	 * Writes the index and the meta data together with the current end of the log. Only the end of the log and the
+	 * live bytes of the segments are taken under the lock of this storage, the index and the meta data are written
+	 * while the writers continue. Thus, the checkpoint may have some of the records after its start position, which
+	 * are replayed again on startup. The log is forced before the checkpoint replaces the old one atomically, so every
+	 * record in the checkpoint is on disk. The caller must not hold the lock of this storage.
+	 */
+	private void checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			final long start;
+			final Map<Integer, Long> live = new TreeMap<Integer, Long>();
+			synchronized (this) {
+				if (current == null) {
+					return;
+				}
+				start = address(current.id, current.size);
+				for (Segment segment : segments.values()) {
+					live.put(segment.id, segment.live);
+				}
+				checkpointPending = false;
+			}
+			writeCheckpoint(start, live);
+		}
+	}
+
+	private void writeCheckpoint(final long start, final Map<Integer, Long> live) throws IOException {
+		final File tmp = new File(path, CHECKPOINT + ".tmp");
+		final FileOutputStream fileOut = new FileOutputStream(tmp);
+		try {
+			final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+			final DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(start);
+			out.writeInt(live.size());
+			for (Map.Entry<Integer, Long> entry : live.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			final List<Map.Entry<Number640, Long>> entries = index.range(null, false, null, false, false,
+			        Integer.MAX_VALUE);
+			out.writeInt(entries.size());
+			for (Map.Entry<Number640, Long> entry : entries) {
+				writeNumber640(out, entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.writeInt(timeoutMap.size());
+			for (Map.Entry<Number640, Long> entry : timeoutMap.entrySet()) {
+				writeNumber640(out, entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.writeInt(protectedDomainMap.size());
+			for (Map.Entry<Number320, PublicKey> entry : protectedDomainMap.entrySet()) {
+				writeNumber320(out, entry.getKey());
+				writePublicKey(out, entry.getValue());
+			}
+			out.writeInt(protectedEntryMap.size());
+			for (Map.Entry<Number480, PublicKey> entry : protectedEntryMap.entrySet()) {
+				writeNumber480(out, entry.getKey());
+				writePublicKey(out, entry.getValue());
+			}
+			out.writeInt(responsibilityMap.size());
+			for (Map.Entry<Number160, Number160> entry : responsibilityMap.entrySet()) {
+				writeNumber160(out, entry.getKey());
+				writeNumber160(out, entry.getValue());
+			}
+			out.flush();
+			final long crc = checked.getChecksum().getValue();
+			out.writeLong(crc);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		// the records written so far are in the current segment, the full segments have been forced when rolled
+		final Segment segment;
+		synchronized (this) {
+			if (current == null) {
+				return;
+			}
+			segment = current;
+		}
+		force(segment, segment.channel);
+		final File checkpoint = new File(path, CHECKPOINT);
+		if (!tmp.renameTo(checkpoint)) {
+			// not atomic on every platform
+			if (!checkpoint.delete() || !tmp.renameTo(checkpoint)) {
+				throw new IOException("cannot write " + checkpoint);
+			}
+		}
+	}
+
+	/**
+	 * @return The address where the replay starts or {@link Number640Index#NOT_FOUND} if there is no valid checkpoint
+	 */
+	private long loadCheckpoint() throws IOException {
+		final File checkpoint = new File(path, CHECKPOINT);
+		if (!checkpoint.exists()) {
+			return Number640Index.NOT_FOUND;
+		}
+		final CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(
+		        checkpoint)), new CRC32());
+		final DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				LOG.warn("not a checkpoint {}", checkpoint);
+				return Number640Index.NOT_FOUND;
+			}
+			final long start = in.readLong();
+			final Map<Integer, Long> live = new TreeMap<Integer, Long>();
+			for (int i = in.readInt(); i > 0; i--) {
+				live.put(in.readInt(), in.readLong());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				index.put(readNumber640(in), in.readLong());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				addTimeoutInternal(readNumber640(in), in.readLong());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				protectDomainInternal(readNumber320(in), readPublicKey(in));
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				protectEntryInternal(readNumber480(in), readPublicKey(in));
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				updateResponsibilitiesInternal(readNumber160(in), readNumber160(in));
+			}
+			final long crc = checked.getChecksum().getValue();
+			if (in.readLong() != crc) {
+				throw new IOException("checkpoint checksum mismatch");
+			}
+			for (Map.Entry<Integer, Long> entry : live.entrySet()) {
+				final Segment segment = segments.get(entry.getKey());
+				if (segment != null) {
+					segment.live = entry.getValue();
+				}
+			}
+			return start;
+		} catch (IOException e) {
+			LOG.warn("cannot read the checkpoint", e);
+			clearState();
+			return Number640Index.NOT_FOUND;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Notes that segments have been deleted, so the log is not replayed from the start without a checkpoint.
+	 */
+	private void markCompacted() throws IOException {
+		final File compacted = new File(path, COMPACTED);
+		if (compacted.exists()) {
+			return;
+		}
+		final FileOutputStream fileOut = new FileOutputStream(compacted);
+		try {
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+	}
+
+	private void clearState() {
+		index.clear();
+		timeoutMap.clear();
+		timeoutMapRev.clear();
+		protectedDomainMap.clear();
+		protectedEntryMap.clear();
+		responsibilityMap.clear();
+		responsibilityMapRev.clear();
+		for (Segment segment : segments.values()) {
+			segment.live = 0;
+		}
+	}
+
+	// Encoding
+	private File segmentFile(final int id) {
+		return new File(path, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private static long address(final int segmentId, final long offset) {
+		return ((long) segmentId << 32) | offset;
+	}
+
+	private static int segmentId(final long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static long offset(final long address) {
+		return address & 0xFFFFFFFFL;
+	}
+
+	private static void writeNumber160(final DataOutput out, final Number160 key) throws IOException {
+		out.write(key.toByteArray());
+	}
+
+	private static void writeNumber320(final DataOutput out, final Number320 key) throws IOException {
+		writeNumber160(out, key.locationKey());
+		writeNumber160(out, key.domainKey());
+	}
+
+	private static void writeNumber480(final DataOutput out, final Number480 key) throws IOException {
+		writeNumber160(out, key.locationKey());
+		writeNumber160(out, key.domainKey());
+		writeNumber160(out, key.contentKey());
+	}
+
+	private static void writeNumber640(final DataOutput out, final Number640 key) throws IOException {
+		writeNumber160(out, key.locationKey());
+		writeNumber160(out, key.domainKey());
+		writeNumber160(out, key.contentKey());
+		writeNumber160(out, key.versionKey());
+	}
+
+	private static void writePublicKey(final DataOutput out, final PublicKey publicKey) throws IOException {
+		if (publicKey == null) {
+			out.writeShort(0);
+			return;
+		}
+		final byte[] encoded = publicKey.getEncoded();
+		out.writeShort(encoded.length);
+		out.write(encoded);
+		out.writeUTF(publicKey.getAlgorithm());
+	}
+
+	private static Number160 readNumber160(final DataInput in) throws IOException {
+		final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+		in.readFully(me);
+		return new Number160(me);
+	}
+
+	private static Number320 readNumber320(final DataInput in) throws IOException {
+		return new Number320(readNumber160(in), readNumber160(in));
+	}
+
+	private static Number480 readNumber480(final DataInput in) throws IOException {
+		return new Number480(readNumber160(in), readNumber160(in), readNumber160(in));
+	}
+
+	private static Number640 readNumber640(final DataInput in) throws IOException {
+		return new Number640(readNumber160(in), readNumber160(in), readNumber160(in), readNumber160(in));
+	}
+
+	private static PublicKey readPublicKey(final DataInput in) throws IOException {
+		final int length = in.readUnsignedShort();
+		if (length == 0) {
+			return null;
+		}
+		final byte[] encoded = new byte[length];
+		in.readFully(encoded);
+		final String algorithm = in.readUTF();
+		try {
+			return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("cannot decode the public key", e);
+		}
+	}
+}
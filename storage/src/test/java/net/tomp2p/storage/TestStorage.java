@@ -9,6 +9,7 @@ import java.util.Collection;
 import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.dht.Storage;
@@ -16,6 +17,7 @@ import net.tomp2p.dht.StorageLayer;
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.dht.StorageMemory;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.rpc.DigestInfo;
 
@@ -228,6 +230,40 @@ public class TestStorage {
 		Assert.assertEquals(key1, digest.digests().firstEntry().getKey());
 	}
 
+	@Test
+	public void testDigestSummary() throws Exception {
+		Storage storageM = createStorage();
+		testDigestSummary(new StorageLayer(storageM));
+		storageM.close();
+	}
+
+	private void testDigestSummary(StorageLayer storage) throws IOException {
+		Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
+		Assert.assertEquals(0, storage.digestSummary(locationAndDomainKey).size());
+		store(storage);
+		DigestInfo summary = storage.digestSummary(locationAndDomainKey);
+		Assert.assertEquals(2, summary.size());
+		Assert.assertEquals(2, storage.digestSummaryContentKeys(locationAndDomainKey).size());
+		// prepared entries are not part of the summary until they are confirmed
+		Data data3 = new Data("test3").prepareFlag();
+		Assert.assertEquals(PutStatus.OK_PREPARED, storage.put(key3, data3, null, false, false, false));
+		Assert.assertEquals(summary, storage.digestSummary(locationAndDomainKey));
+		Assert.assertEquals(PutStatus.OK, storage.putConfirm(null, key3, new Data()));
+		Assert.assertEquals(3, storage.digestSummary(locationAndDomainKey).size());
+		// removing the entry again restores the previous digest
+		storage.remove(key3, null, false);
+		Assert.assertEquals(summary, storage.digestSummary(locationAndDomainKey));
+		// overwriting an entry changes the content digest only
+		storage.put(key1, new Data("test4"), null, false, false, false);
+		DigestInfo summary2 = storage.digestSummary(locationAndDomainKey);
+		Assert.assertEquals(2, summary2.size());
+		Assert.assertEquals(summary.keyDigest(), summary2.keyDigest());
+		Assert.assertNotEquals(summary.contentDigest(), summary2.contentDigest());
+		storage.remove(key1, null, false);
+		storage.remove(key2, null, false);
+		Assert.assertEquals(0, storage.digestSummary(locationAndDomainKey).size());
+	}
+
     @Test
     public void testPutIfAbsent() throws Exception {
         Storage storageM = createStorage();
@@ -444,4 +480,50 @@ public class TestStorage {
         cdl.await();
         sM.close();
     }
+
+    @Test
+    public void testConcurrencyReadWrite() throws InterruptedException, IOException {
+        final Storage sM = createStorage();
+        final StorageLayer storageGeneric = new StorageLayer(sM);
+        store(storageGeneric);
+        final CountDownLatch cdl = new CountDownLatch(5);
+        final AtomicInteger errors = new AtomicInteger();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        storageGeneric.put(key1, new Data(i % 2 == 0 ? "test3" : "test1"), null, false, false, false);
+                    }
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    errors.incrementAndGet();
+                }
+                cdl.countDown();
+            }
+        }).start();
+        for (int i = 0; i < 4; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 500; j++) {
+                            // reads never see a missing or partial value while key1 is overwritten
+                            Object object = storageGeneric.get(key1).object();
+                            Assert.assertTrue("test1".equals(object) || "test3".equals(object));
+                            Assert.assertEquals(2, storageGeneric.get(key1, key4, -1, true).size());
+                            Assert.assertEquals(2, storageGeneric.digest(key1, key4, -1, true).size());
+                        }
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        Assert.assertEquals(0, errors.get());
+        sM.close();
+    }
 }
@@ -4,13 +4,19 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.dht.Storage;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Test;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 
@@ -23,6 +29,65 @@ public class TestStorageDisk extends TestStorage {
 		return new StorageDisk(db, locationKey, DIR, new DSASignatureFactory(), 60 * 1000);
 	}
 
+	@Test
+	public void testGroupCommit() throws Exception {
+		DB db = DBMaker.newFileDB(new File(DIR, "tomp2p")).closeOnJvmShutdown().cacheDisable().make();
+		StorageDisk storage = new StorageDisk(db, locationKey, DIR, new DSASignatureFactory(), 60 * 1000, 50, 10);
+		Assert.assertTrue(storage.durable().isSuccess());
+		for (int i = 0; i < 5; i++) {
+			storage.put(key(i), new Data(i));
+		}
+		// the batch is not full, it is committed by the interval
+		FutureDone<Void> durable = storage.durable();
+		Assert.assertTrue(durable.awaitUninterruptibly(5000));
+		Assert.assertTrue(durable.isSuccess());
+		for (int i = 5; i < 20; i++) {
+			storage.put(key(i), new Data(i));
+		}
+		storage.close();
+
+		db = DBMaker.newFileDB(new File(DIR, "tomp2p")).closeOnJvmShutdown().cacheDisable().make();
+		storage = new StorageDisk(db, locationKey, DIR, new DSASignatureFactory(), 60 * 1000);
+		Assert.assertEquals(20, storage.contains(key(0), key(19)));
+		Assert.assertEquals(new Data(7), storage.get(key(7)));
+		storage.close();
+	}
+
+	@Test
+	public void testDurableDuringCommit() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		DB db = DBMaker.newFileDB(new File(DIR, "tomp2p")).closeOnJvmShutdown().cacheDisable().make();
+		// the first commit blocks until it is released
+		DB slowDb = new DB(db.getEngine()) {
+			@Override
+			public synchronized void commit() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.commit();
+			}
+		};
+		StorageDisk storage = new StorageDisk(slowDb, locationKey, DIR, new DSASignatureFactory(), 60 * 1000, 50, 1);
+		storage.put(key(1), new Data(1));
+		Assert.assertTrue(started.await(5000, TimeUnit.MILLISECONDS));
+		// the batch has been handed to the commit, but it is not on disk yet
+		FutureDone<Void> durable = storage.durable();
+		Assert.assertFalse(durable.isCompleted());
+		release.countDown();
+		Assert.assertTrue(durable.awaitUninterruptibly(5000));
+		Assert.assertTrue(durable.isSuccess());
+		Assert.assertTrue(storage.durable().isSuccess());
+		storage.close();
+	}
+
+	private static Number640 key(int nr) {
+		return new Number640(locationKey, Number160.ZERO, new Number160(nr), Number160.ZERO);
+	}
+
 	@Before
 	public void befor() throws IOException {
 		DIR =  Files.createTempDirectory("tomp2p").toFile();
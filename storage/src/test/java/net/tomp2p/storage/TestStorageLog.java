@@ -0,0 +1,198 @@
+package net.tomp2p.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import net.tomp2p.dht.Storage;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.StorageLog.FsyncPolicy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStorageLog extends TestStorage {
+	final private static Number160 locationKey = new Number160(10);
+	final private static Number160 domainKey = new Number160(20);
+	private static File DIR;
+
+	public Storage createStorage() throws IOException {
+		// small segments, so that the tests span multiple segments
+		return new StorageLog(Files.createTempDirectory(DIR.toPath(), "log").toFile(), 60 * 1000, 4096,
+		        FsyncPolicy.ALWAYS, 0);
+	}
+
+	@Before
+	public void befor() throws IOException {
+		DIR = Files.createTempDirectory("tomp2p").toFile();
+	}
+
+	@After
+	public void after() {
+		delete(DIR);
+	}
+
+	@Test
+	public void testRecover() throws Exception {
+		KeyPair keyPair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 4096, FsyncPolicy.NEVER, 0);
+		for (int i = 0; i < 100; i++) {
+			storage.put(key(i), new Data(i));
+		}
+		storage.remove(key(5), false);
+		storage.addTimeout(key(6), 1000);
+		storage.protectDomain(new Number320(locationKey, domainKey), keyPair.getPublic());
+		storage.updateResponsibilities(locationKey, new Number160(1));
+		storage.close();
+
+		storage = new StorageLog(DIR, 60 * 1000, 4096, FsyncPolicy.NEVER, 0);
+		Assert.assertEquals(99, storage.contains(key(0), key(99)));
+		Assert.assertNull(storage.get(key(5)));
+		Assert.assertEquals(new Data(42), storage.get(key(42)));
+		Assert.assertEquals(1, storage.subMapTimeout(1001).size());
+		Assert.assertTrue(storage.isDomainProtectedByOthers(new Number320(locationKey, domainKey), null));
+		Assert.assertFalse(storage.isDomainProtectedByOthers(new Number320(locationKey, domainKey),
+		        keyPair.getPublic()));
+		Assert.assertEquals(new Number160(1), storage.findPeerIDsForResponsibleContent(locationKey));
+		storage.close();
+	}
+
+	@Test
+	public void testTornTail() throws Exception {
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 1024 * 1024, FsyncPolicy.ALWAYS, 0);
+		storage.put(key(1), new Data(1));
+		storage.put(key(2), new Data(2));
+		// no close, there is no checkpoint and the log is replayed from the start
+		File segment = new File(DIR, "segment-00000000.log");
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		StorageLog recovered = new StorageLog(DIR, 60 * 1000, 1024 * 1024, FsyncPolicy.ALWAYS, 0);
+		Assert.assertEquals(new Data(1), recovered.get(key(1)));
+		Assert.assertNull(recovered.get(key(2)));
+		recovered.put(key(3), new Data(3));
+		Assert.assertEquals(new Data(3), recovered.get(key(3)));
+		recovered.close();
+		storage.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 1024, FsyncPolicy.INTERVAL, 10);
+		for (int i = 0; i < 100; i++) {
+			storage.put(key(i), new Data(new byte[100]));
+		}
+		// leave every fourth value
+		for (int i = 0; i < 100; i++) {
+			if (i % 4 != 0) {
+				storage.remove(key(i), false);
+			}
+		}
+		final int segments = storage.segments();
+		Assert.assertTrue(storage.compact() > 0);
+		Assert.assertTrue(storage.segments() < segments);
+		Assert.assertEquals(25, storage.subMap(key(0), key(99)).size());
+		storage.close();
+
+		storage = new StorageLog(DIR, 60 * 1000, 1024, FsyncPolicy.INTERVAL, 10);
+		Assert.assertEquals(25, storage.contains(key(0), key(99)));
+		for (int i = 0; i < 100; i += 4) {
+			Assert.assertEquals(new Data(new byte[100]), storage.get(key(i)));
+		}
+		storage.close();
+	}
+
+	@Test
+	public void testCompactNothingSparse() throws Exception {
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 1024, FsyncPolicy.INTERVAL, 10);
+		for (int i = 0; i < 100; i++) {
+			storage.put(key(i), new Data(new byte[100]));
+		}
+		final int segments = storage.segments();
+		// filled segments, but all values are live
+		Assert.assertEquals(0, storage.compact());
+		Assert.assertEquals(segments, storage.segments());
+		Assert.assertTrue(new File(DIR, "checkpoint").exists());
+		Assert.assertEquals(100, storage.contains(key(0), key(99)));
+		storage.close();
+	}
+
+	@Test
+	public void testCompactedWithoutCheckpoint() throws Exception {
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 1024, FsyncPolicy.INTERVAL, 10);
+		for (int i = 0; i < 100; i++) {
+			storage.put(key(i), new Data(new byte[100]));
+		}
+		for (int i = 0; i < 100; i++) {
+			if (i % 4 != 0) {
+				storage.remove(key(i), false);
+			}
+		}
+		Assert.assertTrue(storage.compact() > 0);
+		storage.close();
+		Assert.assertTrue(new File(DIR, "checkpoint").delete());
+		// a replay from the start would bring back removed values
+		try {
+			new StorageLog(DIR, 60 * 1000, 1024, FsyncPolicy.INTERVAL, 10);
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testInterruptedRead() throws Exception {
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 4096, FsyncPolicy.NEVER, 0);
+		storage.put(key(1), new Data(1));
+		Thread.currentThread().interrupt();
+		try {
+			storage.get(key(1));
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			Thread.interrupted();
+		}
+		// the channel closed by the interrupt has been opened again
+		Assert.assertEquals(new Data(1), storage.get(key(1)));
+		storage.put(key(2), new Data(2));
+		Assert.assertEquals(new Data(2), storage.get(key(2)));
+		storage.close();
+	}
+
+	@Test
+	public void testLargeValue() throws Exception {
+		StorageLog storage = new StorageLog(DIR, 60 * 1000, 4096, FsyncPolicy.NEVER, 0);
+		byte[] me = new byte[1024 * 1024];
+		me[me.length - 1] = 42;
+		storage.put(key(1), new Data(me));
+		storage.put(key(2), new Data(2));
+		Data data = storage.get(key(1));
+		Assert.assertEquals(me.length, data.length());
+		Assert.assertEquals(new Data(me), data);
+		Assert.assertEquals(new Data(2), storage.get(key(2)));
+		storage.close();
+	}
+
+	private static Number640 key(int nr) {
+		return new Number640(locationKey, domainKey, new Number160(nr), Number160.ZERO);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -1,9 +1,11 @@
 package net.tomp2p.tracker;
 
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.SortedSet;
@@ -144,6 +146,25 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		return null;
 	}
 
+	@Override
+	public Collection<PeerStatistic> nextForMaintenance(Collection<PeerAddress> notInterestedAddresses, int max) {
+		final List<PeerStatistic> result = new ArrayList<PeerStatistic>();
+		for (Map<PeerAddress, Pair<PeerStatistic, Data>> map2 : dataMapUnverified.values()) {
+			for (Pair<PeerStatistic, Data> pair : map2.values()) {
+				if (result.size() >= max) {
+					return result;
+				}
+				final PeerStatistic peerStatistic = pair.element0();
+				if (DefaultMaintenance.needMaintenance(peerStatistic, intervalSeconds)
+						&& (notInterestedAddresses == null
+								|| !notInterestedAddresses.contains(peerStatistic.peerAddress()))) {
+					result.add(peerStatistic);
+				}
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public void peerInserted(PeerAddress remotePeer, boolean verified) {
 		if (verified) {